@@ -0,0 +1,183 @@
+package gov.fda.nctr.util;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Optional;
+
+
+/** A 128-bit structural fingerprint, being the leading bits of the SHA-256 digest of a tagged, length-prefixed encoding
+ *  of the values added to a Builder. Fingerprints depend only on the values added, never on object identities, so they
+ *  are the same in every JVM and can be stored or exchanged as cache keys.
+ */
+public final class Fingerprint implements Serializable
+{
+    private final long high;
+    private final long low;
+
+    private static final long serialVersionUID = 1L;
+
+    public Fingerprint(long high, long low)
+    {
+        this.high = high;
+        this.low = low;
+    }
+
+    public static Builder builder(String typeTag)
+    {
+        return new Builder(typeTag);
+    }
+
+    public long getHigh() { return high; }
+
+    public long getLow() { return low; }
+
+    public String toHexString()
+    {
+        return String.format("%016x%016x", high, low);
+    }
+
+    public static Fingerprint fromHexString(String hex)
+    {
+        if ( hex.length() != 32 )
+            throw new IllegalArgumentException("Expected 32 hexadecimal digits for fingerprint.");
+
+        return new Fingerprint(Long.parseUnsignedLong(hex.substring(0, 16), 16), Long.parseUnsignedLong(hex.substring(16), 16));
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (int)(low ^ (low >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if ( !(o instanceof Fingerprint) )
+            return false;
+
+        Fingerprint fp = (Fingerprint)o;
+
+        return high == fp.high && low == fp.low;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toHexString();
+    }
+
+
+    /** Accumulates values for a fingerprint. Each value is written with a kind marker and strings are length-prefixed,
+     *  so distinct sequences of values cannot encode to the same bytes. */
+    public static final class Builder
+    {
+        private final MessageDigest digest;
+
+        private final byte[] buf = new byte[8];
+
+        private Builder(String typeTag)
+        {
+            try
+            {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch(NoSuchAlgorithmException e)
+            {
+                throw new RuntimeException(e); // SHA-256 is required of every Java platform
+            }
+
+            add(CoreFuns.requireArg(typeTag, "fingerprint type tag"));
+        }
+
+        public Builder add(String s)
+        {
+            if ( s == null )
+            {
+                digest.update((byte)0);
+            }
+            else
+            {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                digest.update((byte)1);
+                writeInt(bytes.length);
+                digest.update(bytes);
+            }
+            return this;
+        }
+
+        public Builder add(Optional<String> s)
+        {
+            return add(s.orElse(null));
+        }
+
+        public Builder add(int i)
+        {
+            digest.update((byte)2);
+            writeInt(i);
+            return this;
+        }
+
+        public Builder add(boolean b)
+        {
+            digest.update((byte)(b ? 3 : 4));
+            return this;
+        }
+
+        /// Adds an enum constant by its name, so the fingerprint does not depend on declaration order.
+        public Builder add(Enum<?> e)
+        {
+            return add(e.name());
+        }
+
+        public Builder add(Fingerprint fp)
+        {
+            digest.update((byte)5);
+            writeLong(fp.high);
+            writeLong(fp.low);
+            return this;
+        }
+
+        public Builder add(List<String> strings)
+        {
+            digest.update((byte)6);
+            writeInt(strings.size());
+            for ( String s: strings )
+                add(s);
+            return this;
+        }
+
+        public Fingerprint build()
+        {
+            byte[] d = digest.digest();
+
+            long high = 0, low = 0;
+            for ( int i = 0; i < 8; ++i )
+            {
+                high = (high << 8) | (d[i] & 0xff);
+                low = (low << 8) | (d[i + 8] & 0xff);
+            }
+
+            return new Fingerprint(high, low);
+        }
+
+        private void writeInt(int i)
+        {
+            buf[0] = (byte)(i >>> 24);
+            buf[1] = (byte)(i >>> 16);
+            buf[2] = (byte)(i >>> 8);
+            buf[3] = (byte)i;
+            digest.update(buf, 0, 4);
+        }
+
+        private void writeLong(long l)
+        {
+            for ( int i = 0; i < 8; ++i )
+                buf[i] = (byte)(l >>> (56 - 8 * i));
+            digest.update(buf, 0, 8);
+        }
+    }
+}
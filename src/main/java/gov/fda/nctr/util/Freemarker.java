@@ -1,9 +1,14 @@
 package gov.fda.nctr.util;
 
+import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import freemarker.cache.ClassTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapper;
 import freemarker.template.Template;
 import freemarker.template.Version;
 
@@ -12,6 +17,53 @@ public class Freemarker
 {
     public static final Version compatibilityVersion = new Version("2.3.28");
 
+    public static final String CLASSPATH_TEMPLATES_DIR_PATH = "/templates";
+
+    // The single template configuration for templates on the class path, with its object wrapper and the wrapper's cache
+    // of class introspection data shared by all template users. It is not modified after initialization, which makes it
+    // safe for concurrent use.
+    private static final Configuration classpathTemplatesConfig = makeClasspathTemplatesConfiguration();
+
+    // Parsed templates by name. Templates are immutable once parsed and may be processed by any number of threads at once.
+    private static final ConcurrentHashMap<String,Template> classpathTemplatesByName = new ConcurrentHashMap<>();
+
+    private static Configuration makeClasspathTemplatesConfiguration()
+    {
+        Configuration conf = new Configuration(compatibilityVersion);
+        conf.setTemplateLoader(new ClassTemplateLoader(Freemarker.class, CLASSPATH_TEMPLATES_DIR_PATH));
+        conf.setObjectWrapper(new DefaultObjectWrapper(compatibilityVersion));
+        // Class path templates don't change while running, so never check them for updates.
+        conf.setTemplateUpdateDelayMilliseconds(Long.MAX_VALUE);
+        return conf;
+    }
+
+    /** Returns the named template from the templates directory of the class path, which is parsed only on the first
+     *  request for it in the JVM and shared by all callers thereafter.
+     */
+    public static Template getClasspathTemplate(String templateName) throws IOException
+    {
+        Template template = classpathTemplatesByName.get(templateName);
+
+        if ( template == null )
+        {
+            // Parse outside of any lock. Concurrent first requests may parse the template more than once, but only one
+            // parsed template is ever returned.
+            Template parsed = classpathTemplatesConfig.getTemplate(templateName);
+            template = classpathTemplatesByName.putIfAbsent(templateName, parsed);
+            if ( template == null )
+                template = parsed;
+        }
+
+        return template;
+    }
+
+    /// Parses the named class path templates ahead of their first use, e.g. during application startup.
+    public static void preloadClasspathTemplates(String... templateNames) throws IOException
+    {
+        for ( String templateName: templateNames )
+            getClasspathTemplate(templateName);
+    }
+
     public static String applyTemplate
     (
         Template template,
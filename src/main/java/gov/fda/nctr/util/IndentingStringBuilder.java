@@ -0,0 +1,75 @@
+package gov.fda.nctr.util;
+
+import java.util.Arrays;
+
+
+/** A string builder which writes the current indentation after every line break appended to it. Indentation is
+ *  pushed and popped as nested content is written, so that nested text is written once, already indented, instead of
+ *  being re-indented by each enclosing level.
+ */
+public final class IndentingStringBuilder
+{
+    private final StringBuilder sb;
+
+    private final StringBuilder indentation = new StringBuilder();
+
+    private int[] indentationLengths = new int[16]; // indentation length before each push
+    private int depth = 0;
+
+    public IndentingStringBuilder(int initialCapacity)
+    {
+        this.sb = new StringBuilder(initialCapacity);
+    }
+
+    /// Adds the passed string to the indentation written after subsequent line breaks.
+    public IndentingStringBuilder pushIndent(String indent)
+    {
+        if ( depth == indentationLengths.length )
+            indentationLengths = Arrays.copyOf(indentationLengths, depth * 2);
+
+        indentationLengths[depth++] = indentation.length();
+        indentation.append(indent);
+        return this;
+    }
+
+    public IndentingStringBuilder popIndent()
+    {
+        if ( depth == 0 )
+            throw new IllegalStateException("No indentation to pop.");
+
+        indentation.setLength(indentationLengths[--depth]);
+        return this;
+    }
+
+    public IndentingStringBuilder append(String s)
+    {
+        int from = 0;
+        int nl;
+        while ( (nl = s.indexOf('\n', from)) != -1 )
+        {
+            sb.append(s, from, nl + 1).append(indentation);
+            from = nl + 1;
+        }
+        sb.append(s, from, s.length());
+        return this;
+    }
+
+    public IndentingStringBuilder append(char c)
+    {
+        sb.append(c);
+        if ( c == '\n' )
+            sb.append(indentation);
+        return this;
+    }
+
+    public int length()
+    {
+        return sb.length();
+    }
+
+    @Override
+    public String toString()
+    {
+        return sb.toString();
+    }
+}
@@ -73,9 +73,22 @@ public class StringFuns {
 
     public static String indent(String linesStr, String withStr, boolean indentFirstLine)
     {
-        return
-            (indentFirstLine ? withStr : "") +
-            linesStr.replaceAll("\n", "\n" + withStr);
+        // Single pass without regular expressions, as this is applied to large generated queries.
+        StringBuilder sb = new StringBuilder(linesStr.length() + 16 * withStr.length());
+
+        if ( indentFirstLine )
+            sb.append(withStr);
+
+        int from = 0;
+        int nl;
+        while ( (nl = linesStr.indexOf('\n', from)) != -1 )
+        {
+            sb.append(linesStr, from, nl + 1).append(withStr);
+            from = nl + 1;
+        }
+        sb.append(linesStr, from, linesStr.length());
+
+        return sb.toString();
     }
 
     public static String indent(String linesStr, String withStr)
@@ -0,0 +1,76 @@
+package gov.fda.nctr.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/** A thread-safe table of canonical values by key, which holds its values weakly so that canonical values no longer
+ *  referenced elsewhere can be garbage collected. Entries for collected values are removed as the table is used.
+ */
+public final class WeakValueInterner<K,V>
+{
+    private final ConcurrentHashMap<K,ValueRef<K,V>> refsByKey = new ConcurrentHashMap<>();
+
+    private final ReferenceQueue<V> collectedValues = new ReferenceQueue<>();
+
+    private static final class ValueRef<K,V> extends WeakReference<V>
+    {
+        final K key;
+
+        ValueRef(K key, V v, ReferenceQueue<V> queue)
+        {
+            super(v, queue);
+            this.key = key;
+        }
+    }
+
+    /// Returns the canonical value for the key, making the passed value canonical if there is none.
+    public V intern(K key, V v)
+    {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(v);
+
+        removeCollectedEntries();
+
+        while ( true )
+        {
+            ValueRef<K,V> ref = refsByKey.get(key);
+
+            if ( ref == null )
+            {
+                if ( refsByKey.putIfAbsent(key, new ValueRef<>(key, v, collectedValues)) == null )
+                    return v;
+            }
+            else
+            {
+                V canonical = ref.get();
+                if ( canonical != null )
+                    return canonical;
+                if ( refsByKey.replace(key, ref, new ValueRef<>(key, v, collectedValues)) )
+                    return v;
+            }
+            // Lost a race with another thread for the entry, try again.
+        }
+    }
+
+    /// Returns the number of entries, including any for values collected but not yet removed.
+    public int size()
+    {
+        removeCollectedEntries();
+        return refsByKey.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void removeCollectedEntries()
+    {
+        Reference<? extends V> ref;
+        while ( (ref = collectedValues.poll()) != null )
+        {
+            ValueRef<K,V> valueRef = (ValueRef<K,V>)ref;
+            refsByKey.remove(valueRef.key, valueRef);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package gov.fda.nctr.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+
+/** A thread-safe cache bounded by the total weight of its values, evicting least recently used entries first when the
+ *  bound is exceeded. Lookups take no lock, only recording the time of access in the entry found, so that a cache shared
+ *  by many threads is not a point of contention. Values are loaded outside of any lock, so a slow load does not block
+ *  other readers. Insertions exceeding the bound evict under a lock taken only by evicting threads.
+ *
+ *  Recency is approximate: the entry evicted is the least recently used of a sample of the entries, taken in turn around
+ *  the table. While the cache has no more entries than the sample size, eviction is exactly least recently used.
+ */
+public class WeightedLruCache<K,V>
+{
+    private final long maximumWeight;
+
+    private final ToLongFunction<? super V> weigher;
+
+    private final ConcurrentHashMap<K,Entry<V>> entriesByKey;
+
+    private final AtomicLong weight = new AtomicLong();
+
+    private final Object evictionLock = new Object();
+
+    private Iterator<Map.Entry<K,Entry<V>>> evictionCursor; // guarded by evictionLock
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+
+    private static final int EVICTION_SAMPLE_SIZE = 16;
+
+    public WeightedLruCache(long maximumWeight, ToLongFunction<? super V> weigher)
+    {
+        if ( maximumWeight < 0 )
+            throw new IllegalArgumentException("Maximum cache weight cannot be negative.");
+
+        this.maximumWeight = maximumWeight;
+        this.weigher = CoreFuns.requireArg(weigher, "weigher");
+        this.entriesByKey = new ConcurrentHashMap<>(64);
+    }
+
+    /** Returns the cached value for the key if any, otherwise loads, caches and returns the value. Concurrent
+     *  loads of the same key may both run, in which case the first value cached is kept and returned. */
+    public V get(K key, Function<? super K,? extends V> loader)
+    {
+        Objects.requireNonNull(key);
+
+        Optional<V> cached = getIfPresent(key);
+        if ( cached.isPresent() )
+            return cached.get();
+
+        long start = System.nanoTime();
+        V v = Objects.requireNonNull(loader.apply(key));
+        loadNanos.add(System.nanoTime() - start);
+        loads.increment();
+
+        return putIfAbsent(key, v);
+    }
+
+    public Optional<V> getIfPresent(K key)
+    {
+        Entry<V> e = entriesByKey.get(key);
+
+        if ( e != null )
+        {
+            e.lastAccessNanos = System.nanoTime();
+            hits.increment();
+            return Optional.of(e.value);
+        }
+        else
+        {
+            misses.increment();
+            return Optional.empty();
+        }
+    }
+
+    /// Caches the value if no value is cached for the key, and returns the cached value.
+    public V putIfAbsent(K key, V v)
+    {
+        long w = weigher.applyAsLong(v);
+
+        if ( w > maximumWeight ) // would evict everything and still not fit
+            return v;
+
+        Entry<V> existing = entriesByKey.putIfAbsent(key, new Entry<>(v, w));
+        if ( existing != null )
+        {
+            existing.lastAccessNanos = System.nanoTime();
+            return existing.value;
+        }
+
+        if ( weight.addAndGet(w) > maximumWeight )
+            evictToMaximumWeight();
+
+        return v;
+    }
+
+    private void evictToMaximumWeight()
+    {
+        synchronized (evictionLock)
+        {
+            while ( weight.get() > maximumWeight )
+            {
+                Map.Entry<K,Entry<V>> victim = findEvictionVictim();
+                if ( victim == null )
+                    return;
+
+                if ( entriesByKey.remove(victim.getKey(), victim.getValue()) )
+                {
+                    weight.addAndGet(-victim.getValue().weight);
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    // The least recently used of all entries if there are no more than the sample size, otherwise of the sample size of
+    // entries following the last sampled.
+    private Map.Entry<K,Entry<V>> findEvictionVictim()
+    {
+        boolean sampleAll = entriesByKey.size() <= EVICTION_SAMPLE_SIZE;
+
+        Iterator<Map.Entry<K,Entry<V>>> it = sampleAll ? entriesByKey.entrySet().iterator() : evictionCursor;
+
+        Map.Entry<K,Entry<V>> victim = null;
+        boolean restarted = sampleAll;
+
+        for ( int sampled = 0; sampleAll || sampled < EVICTION_SAMPLE_SIZE; ++sampled )
+        {
+            if ( it == null || !it.hasNext() )
+            {
+                if ( restarted )
+                    break;
+                it = entriesByKey.entrySet().iterator();
+                restarted = true;
+                if ( !it.hasNext() )
+                    break;
+            }
+
+            Map.Entry<K,Entry<V>> e = it.next();
+            if ( victim == null || e.getValue().lastAccessNanos < victim.getValue().lastAccessNanos )
+                victim = e;
+        }
+
+        if ( !sampleAll )
+            evictionCursor = it;
+
+        return victim;
+    }
+
+    public void clear()
+    {
+        for ( Map.Entry<K,Entry<V>> e: entriesByKey.entrySet() )
+        {
+            if ( entriesByKey.remove(e.getKey(), e.getValue()) )
+                weight.addAndGet(-e.getValue().weight);
+        }
+    }
+
+    public int size()
+    {
+        return entriesByKey.size();
+    }
+
+    public long getMaximumWeight()
+    {
+        return maximumWeight;
+    }
+
+    public Stats getStats()
+    {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), loads.sum(), loadNanos.sum(), entriesByKey.size(), weight.get(), maximumWeight);
+    }
+
+
+    private static final class Entry<V>
+    {
+        final V value;
+        final long weight;
+        volatile long lastAccessNanos;
+
+        Entry(V value, long weight)
+        {
+            this.value = value;
+            this.weight = weight;
+            this.lastAccessNanos = System.nanoTime();
+        }
+    }
+
+
+    /** An immutable snapshot of cache statistics. */
+    public static final class Stats
+    {
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long loadCount;
+        private final long totalLoadTimeNanos;
+        private final int entryCount;
+        private final long weight;
+        private final long maximumWeight;
+
+        public Stats
+        (
+            long hitCount,
+            long missCount,
+            long evictionCount,
+            long loadCount,
+            long totalLoadTimeNanos,
+            int entryCount,
+            long weight,
+            long maximumWeight
+        )
+        {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.loadCount = loadCount;
+            this.totalLoadTimeNanos = totalLoadTimeNanos;
+            this.entryCount = entryCount;
+            this.weight = weight;
+            this.maximumWeight = maximumWeight;
+        }
+
+        public long getHitCount() { return hitCount; }
+
+        public long getMissCount() { return missCount; }
+
+        public long getRequestCount() { return hitCount + missCount; }
+
+        public double getHitRate() { return getRequestCount() == 0 ? 1.0 : (double)hitCount / getRequestCount(); }
+
+        public long getEvictionCount() { return evictionCount; }
+
+        public long getLoadCount() { return loadCount; }
+
+        public long getTotalLoadTimeNanos() { return totalLoadTimeNanos; }
+
+        public double getAverageLoadTimeNanos() { return loadCount == 0 ? 0.0 : (double)totalLoadTimeNanos / loadCount; }
+
+        public int getEntryCount() { return entryCount; }
+
+        public long getWeight() { return weight; }
+
+        public long getMaximumWeight() { return maximumWeight; }
+
+        @Override
+        public String toString()
+        {
+            return "hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount +
+                   ", loads=" + loadCount + ", totalLoadTimeNanos=" + totalLoadTimeNanos +
+                   ", entries=" + entryCount + ", weight=" + weight + "/" + maximumWeight;
+        }
+    }
+}
@@ -0,0 +1,521 @@
+package gov.fda.nctr.xdagen;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static gov.fda.nctr.util.CoreFuns.requireArg;
+import static gov.fda.nctr.util.StringFuns.lowercaseInitials;
+import gov.fda.nctr.dbmd.Field;
+import gov.fda.nctr.xdagen.QueryGenerator.OrderByClauseInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.OutputColumnsInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.XmlOutputColumnType;
+
+
+/** Produces one document per root entity for a stream of root table primary keys, as the row element of the root table
+ *  output specification for each key, delivering the documents to a pluggable sink. Documents are fetched by a fixed
+ *  number of worker threads, each of which holds one connection from the executor's data source and one prepared
+ *  statement for the run, so the number of workers bounds the database concurrency, and the statement is parsed once
+ *  per connection rather than once per document. Keys are handed to the workers through a bounded queue, so a stream
+ *  of keys read lazily from a file or a cursor is consumed no faster than documents are produced.
+ *
+ *  Failures fetching or delivering a document are counted and the run continues with the other keys. A worker which
+ *  cannot obtain its connection or prepare its statement takes no keys, leaving them to the other workers, and is
+ *  counted in the report as a failed worker. Only if no worker remains are the keys not yet fetched counted as failed,
+ *  so the run always completes. At the end of the run a report is returned with the numbers of documents, keys without rows and failures, the throughput, and
+ *  percentiles of the per document latency, measured from the start of the fetch to the return of the sink.
+ *
+ *  Services are immutable and may be shared between threads.
+ */
+public class BatchDocumentService
+{
+    private final XdaExecutor executor;
+
+    private final int concurrency;
+
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    // Keys queued ahead of the workers, per worker.
+    private static final int QUEUED_KEYS_PER_WORKER = 64;
+
+    // Marks the end of the keys for a worker.
+    private static final List<?> END_OF_KEYS = new ArrayList<>(0);
+
+    // How long the producer waits for space in the key queue before checking that workers remain to take its keys.
+    private static final long LIVE_WORKERS_CHECK_MILLIS = 100;
+
+
+    public BatchDocumentService(XdaExecutor executor)
+    {
+        this(executor, DEFAULT_CONCURRENCY);
+    }
+
+    public BatchDocumentService
+    (
+        XdaExecutor executor,
+        int concurrency
+    )
+    {
+        this.executor = requireArg(executor, "executor");
+
+        if ( concurrency <= 0 )
+            throw new IllegalArgumentException("Concurrency must be positive.");
+
+        this.concurrency = concurrency;
+    }
+
+    /// Returns a service differing from this one only in the number of documents fetched at once.
+    public BatchDocumentService withConcurrency(int concurrency)
+    {
+        return new BatchDocumentService(executor, concurrency);
+    }
+
+    public XdaExecutor getExecutor()
+    {
+        return executor;
+    }
+
+    public int getConcurrency()
+    {
+        return concurrency;
+    }
+
+    /** Fetches the document for each key of the stream and delivers it to the sink, which is closed at the end of the run.
+     * @param keys  The primary key values of the root entities, each as a list of values for the primary key columns in
+     *              primary key column order.
+     * @return The report of the run.
+     */
+    public BatchRunReport run
+    (
+        TableOutputSpec ospec,
+        Stream<? extends List<?>> keys,
+        DocumentSink sink
+    )
+        throws IOException
+    {
+        requireArg(ospec, "table output spec");
+        requireArg(keys, "keys");
+        requireArg(sink, "sink");
+
+        List<Field> pkFields = executor.getQueryGenerator().getPrimaryKeyFields(ospec.getRelationId());
+        if ( pkFields.isEmpty() )
+            throw new IllegalArgumentException("Batch documents require a primary key for table " + ospec.getRelationId() + ".");
+
+        String sql = getDocumentQuery(ospec, pkFields);
+
+        BlockingQueue<List<?>> keyQueue = new ArrayBlockingQueue<>(concurrency * QUEUED_KEYS_PER_WORKER);
+
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "xdagen-batch-documents");
+            t.setDaemon(true);
+            return t;
+        });
+
+        long start = System.nanoTime();
+
+        try
+        {
+            AtomicInteger liveWorkers = new AtomicInteger(concurrency);
+
+            List<Future<WorkerStats>> workers = new ArrayList<>(concurrency);
+            for ( int i = 0; i < concurrency; ++i )
+                workers.add(pool.submit(() -> runWorker(sql, pkFields.size(), keyQueue, liveWorkers, sink)));
+
+            // Keys which no worker remained to take.
+            long unfetchedKeys = 0;
+            try
+            {
+                for ( Iterator<? extends List<?>> it = keys.iterator(); it.hasNext(); )
+                {
+                    List<?> key = it.next();
+                    if ( key == null || key.size() != pkFields.size() )
+                        throw new IllegalArgumentException("Key " + key + " does not have the " + pkFields.size() + " primary key values of table " + ospec.getRelationId() + ".");
+                    if ( !enqueue(keyQueue, key, liveWorkers) )
+                        ++unfetchedKeys;
+                }
+            }
+            finally
+            {
+                for ( int i = 0; i < concurrency; ++i )
+                    if ( !enqueue(keyQueue, END_OF_KEYS, liveWorkers) )
+                        break;
+            }
+
+            WorkerStats total = new WorkerStats();
+            for ( Future<WorkerStats> worker: workers )
+                total.add(worker.get());
+
+            // Keys queued before the last worker failed are left in the queue.
+            for ( List<?> key: keyQueue )
+                if ( key != END_OF_KEYS )
+                    ++unfetchedKeys;
+            total.failures += unfetchedKeys;
+
+            return total.toReport(System.nanoTime() - start);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during batch document run.", e);
+        }
+        catch(ExecutionException e)
+        {
+            throw new RuntimeException("Batch document worker failed: " + e.getCause(), e.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+            sink.close();
+        }
+    }
+
+    // Queues the keys or end marker for the workers, waiting for space as long as any worker remains to take it. Returns
+    // false if no worker remains.
+    private static boolean enqueue
+    (
+        BlockingQueue<List<?>> keyQueue,
+        List<?> item,
+        AtomicInteger liveWorkers
+    )
+        throws InterruptedException
+    {
+        while ( !keyQueue.offer(item, LIVE_WORKERS_CHECK_MILLIS, TimeUnit.MILLISECONDS) )
+        {
+            if ( liveWorkers.get() == 0 )
+                return false;
+        }
+        return true;
+    }
+
+    private String getDocumentQuery(TableOutputSpec ospec, List<Field> pkFields)
+    {
+        String alias = lowercaseInitials(ospec.getRelationId().getName(),"_");
+
+        List<String> pkConds = new ArrayList<>(pkFields.size());
+        for ( Field f: pkFields )
+            pkConds.add(alias + "." + f.getName() + " = ?");
+
+        return
+            executor.getQueryGenerator().getRowElementsQuery(
+                ospec,
+                alias,
+                Optional.of(String.join(" and ", pkConds)),
+                OrderByClauseInclusion.OMIT_ORDERBY_CLAUSE,
+                executor.getQueryGenerator().getDefaultXmlOutputColumnType(),
+                OutputColumnsInclusion.XML_COLUMN_ONLY
+            );
+    }
+
+    // Fetches the documents for keys from the queue until the end marker on a connection held for the run. A worker
+    // which cannot obtain its connection or prepare its statement returns at once without taking keys, which are left to
+    // the other workers. The live workers count is decremented whenever the worker returns.
+    private WorkerStats runWorker
+    (
+        String sql,
+        int keyLength,
+        BlockingQueue<List<?>> keyQueue,
+        AtomicInteger liveWorkers,
+        DocumentSink sink
+    )
+        throws InterruptedException
+    {
+        WorkerStats stats = new WorkerStats();
+        XmlOutputColumnType xmlColType = executor.getQueryGenerator().getDefaultXmlOutputColumnType();
+
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        try
+        {
+            try
+            {
+                conn = executor.getDataSource().getConnection();
+                stmt = conn.prepareStatement(sql);
+            }
+            catch(SQLException e)
+            {
+                stats.recordWorkerFailure(e);
+                return stats;
+            }
+
+            for ( List<?> key = keyQueue.take(); key != END_OF_KEYS; key = keyQueue.take() )
+            {
+                long fetchStart = System.nanoTime();
+                try
+                {
+                    for ( int i = 0; i < keyLength; ++i )
+                        stmt.setObject(i + 1, key.get(i));
+
+                    String xml = null;
+                    try ( ResultSet rs = stmt.executeQuery() )
+                    {
+                        if ( rs.next() )
+                            xml = XdaExecutor.readXmlValue(rs, 1, xmlColType, rs.getMetaData().getColumnType(1) == Types.CLOB);
+                    }
+
+                    if ( xml == null )
+                        ++stats.missing;
+                    else
+                    {
+                        sink.accept(key, xml);
+                        ++stats.documents;
+                        stats.recordLatency(System.nanoTime() - fetchStart);
+                    }
+                }
+                catch(SQLException | IOException | RuntimeException e)
+                {
+                    stats.recordFailure(e);
+                }
+            }
+        }
+        finally
+        {
+            liveWorkers.decrementAndGet();
+            closeQuietly(stmt);
+            closeQuietly(conn);
+        }
+
+        return stats;
+    }
+
+    private static void closeQuietly(AutoCloseable c)
+    {
+        if ( c == null )
+            return;
+        try
+        {
+            c.close();
+        }
+        catch(Exception e)
+        {
+            // The run's results are unaffected.
+        }
+    }
+
+
+    /** Receives the documents of a batch run. Documents are delivered concurrently from the worker threads, so sinks must be
+     *  thread-safe. */
+    public interface DocumentSink
+    {
+        void accept(List<?> key, String xml) throws IOException;
+
+        /// Called once at the end of the run.
+        default void close() throws IOException {}
+
+        /// Writes each document to a UTF-8 file in the directory, named by the passed function of the document's key.
+        static DocumentSink toDirectory(Path dir, Function<List<?>,String> fileNamer)
+        {
+            requireArg(dir, "directory");
+            requireArg(fileNamer, "file namer");
+
+            return (key, xml) -> Files.write(dir.resolve(fileNamer.apply(key)), xml.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /// Puts each document on the queue, waiting for space if necessary.
+        static DocumentSink toQueue(BlockingQueue<? super Document> queue)
+        {
+            requireArg(queue, "queue");
+
+            return (key, xml) -> {
+                try
+                {
+                    queue.put(new Document(key, xml));
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while queueing document.", e);
+                }
+            };
+        }
+
+        /** Writes the documents to the stream as UTF-8 one after another, each followed by a newline, in the order in which
+         *  they are completed. The stream is flushed at the end of the run but not closed. */
+        static DocumentSink toOutputStream(OutputStream os)
+        {
+            requireArg(os, "output stream");
+
+            return new DocumentSink()
+            {
+                @Override
+                public void accept(List<?> key, String xml) throws IOException
+                {
+                    byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+                    synchronized ( os )
+                    {
+                        os.write(bytes);
+                        os.write('\n');
+                    }
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    synchronized ( os )
+                    {
+                        os.flush();
+                    }
+                }
+            };
+        }
+    }
+
+    /// A document and the key of its root entity.
+    public static final class Document
+    {
+        private final List<?> key;
+        private final String xml;
+
+        public Document(List<?> key, String xml)
+        {
+            this.key = requireArg(key, "key");
+            this.xml = requireArg(xml, "xml");
+        }
+
+        public List<?> getKey() { return key; }
+
+        public String getXml() { return xml; }
+
+        @Override
+        public String toString() { return "Document" + key; }
+    }
+
+    /// The results of a batch run.
+    public static final class BatchRunReport
+    {
+        private final long documents;
+        private final long missing;
+        private final long failures;
+        private final long failedWorkers;
+        private final long elapsedNanos;
+        private final long[] sortedLatencyNanos;
+        private final Optional<Exception> firstFailure;
+
+        BatchRunReport(long documents, long missing, long failures, long failedWorkers, long elapsedNanos, long[] sortedLatencyNanos, Optional<Exception> firstFailure)
+        {
+            this.documents = documents;
+            this.missing = missing;
+            this.failures = failures;
+            this.failedWorkers = failedWorkers;
+            this.elapsedNanos = elapsedNanos;
+            this.sortedLatencyNanos = sortedLatencyNanos;
+            this.firstFailure = firstFailure;
+        }
+
+        /// The number of documents delivered to the sink.
+        public long getDocuments() { return documents; }
+
+        /// The number of keys for which no row was found.
+        public long getMissing() { return missing; }
+
+        /// The number of keys whose document could not be fetched or delivered.
+        public long getFailures() { return failures; }
+
+        /// The number of workers which could not obtain a connection or prepare their statement, and so fetched no keys.
+        public long getFailedWorkers() { return failedWorkers; }
+
+        public Optional<Exception> getFirstFailure() { return firstFailure; }
+
+        public long getElapsedNanos() { return elapsedNanos; }
+
+        /// Documents delivered per second over the run.
+        public double getThroughput()
+        {
+            return elapsedNanos == 0 ? 0 : documents / (elapsedNanos / 1e9);
+        }
+
+        /// The latency in nanoseconds within which the passed fraction (0 < fraction <= 1) of documents were delivered.
+        public long getLatencyPercentileNanos(double fraction)
+        {
+            if ( fraction <= 0 || fraction > 1 )
+                throw new IllegalArgumentException("Percentile fraction must be greater than 0 and at most 1.");
+            if ( sortedLatencyNanos.length == 0 )
+                return 0;
+            return sortedLatencyNanos[Math.max(0, (int)Math.ceil(fraction * sortedLatencyNanos.length) - 1)];
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(
+                "%d documents, %d missing, %d failed, %d failed workers in %.3f s: %.1f documents/s, latency ms p50 %.3f p90 %.3f p99 %.3f max %.3f",
+                documents, missing, failures, failedWorkers, elapsedNanos / 1e9, getThroughput(),
+                getLatencyPercentileNanos(0.5) / 1e6, getLatencyPercentileNanos(0.9) / 1e6,
+                getLatencyPercentileNanos(0.99) / 1e6, getLatencyPercentileNanos(1) / 1e6
+            );
+        }
+    }
+
+    // The counts and latencies of one worker, which are combined for the report.
+    private static final class WorkerStats
+    {
+        long documents;
+        long missing;
+        long failures;
+        long failedWorkers;
+        long[] latencies = new long[1024];
+        int latencyCount;
+        Exception firstFailure;
+
+        void recordLatency(long nanos)
+        {
+            if ( latencyCount == latencies.length )
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            latencies[latencyCount++] = nanos;
+        }
+
+        void recordFailure(Exception e)
+        {
+            ++failures;
+            if ( firstFailure == null )
+                firstFailure = e;
+        }
+
+        void recordWorkerFailure(Exception e)
+        {
+            ++failedWorkers;
+            if ( firstFailure == null )
+                firstFailure = e;
+        }
+
+        void add(WorkerStats s)
+        {
+            documents += s.documents;
+            missing += s.missing;
+            failures += s.failures;
+            failedWorkers += s.failedWorkers;
+            if ( firstFailure == null )
+                firstFailure = s.firstFailure;
+            for ( int i = 0; i < s.latencyCount; ++i )
+                recordLatency(s.latencies[i]);
+        }
+
+        BatchRunReport toReport(long elapsedNanos)
+        {
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            return new BatchRunReport(documents, missing, failures, failedWorkers, elapsedNanos, sorted, Optional.ofNullable(firstFailure));
+        }
+    }
+}
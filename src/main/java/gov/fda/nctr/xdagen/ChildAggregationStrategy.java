@@ -0,0 +1,23 @@
+package gov.fda.nctr.xdagen;
+
+/** Determines the SQL shape by which the child collections of a row elements query are aggregated.
+ *
+ *  CORRELATED_SUBQUERIES aggregates each child collection in a subquery of the parent's row element which is correlated
+ *  with the parent row, and so is evaluated once for each parent row. This suits queries selecting few parent rows.
+ *
+ *  GROUPED_JOINS aggregates each child table once for all parents, grouping its rows by the foreign key to the parent,
+ *  and left joins the aggregated collections to the parent rows on the foreign key. This suits listings of many parent
+ *  rows, but aggregates the whole child table however few parent rows are selected.
+ *
+ *  LATERAL_JOINS left joins the correlated subquery of each child collection as a lateral derived table, taking the
+ *  collection from the joined column. The collections are still aggregated for each parent row, but the planner treats
+ *  the subqueries as joins rather than as scalar subqueries of the select list. Only supported for PostgreSQL.
+ *
+ *  All produce the same xml.
+ */
+public enum ChildAggregationStrategy
+{
+    CORRELATED_SUBQUERIES,
+    GROUPED_JOINS,
+    LATERAL_JOINS
+}
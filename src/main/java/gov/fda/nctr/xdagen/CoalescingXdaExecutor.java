@@ -0,0 +1,416 @@
+package gov.fda.nctr.xdagen;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static gov.fda.nctr.util.CoreFuns.requireArg;
+import gov.fda.nctr.util.Fingerprint;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+
+
+/** Executes xdagen queries as XdaExecutor.writeXml does, except that concurrent requests for the same query with the
+ *  same bind values share a single execution. The first such request executes the query, and the bytes it writes are
+ *  also kept in memory for the requests arriving while it is in flight, each of which copies them to its own output
+ *  stream as they are produced. Requests are identified by the query's fingerprint and the bind values, compared with
+ *  equals. Only requests overlapping an execution are coalesced: results are not cached once the execution completes.
+ *
+ *  An execution keeps its bytes for joining requests only up to a maximum number of bytes. Past that, it accepts no
+ *  further requests, identical requests then executing the query themselves, and keeps only the bytes not yet copied
+ *  by the requests already sharing it, so an execution which no request shares holds no more than the maximum.
+ *
+ *  A failure of the execution is reported to every request sharing it. A failure writing to the executing request's own
+ *  stream is reported only to that request, the execution continuing for the others.
+ *
+ *  Coalescing executors hold the in-flight executions and counters, and may be shared between threads.
+ */
+public class CoalescingXdaExecutor
+{
+    private final XdaExecutor executor;
+
+    private final long maxBufferedBytes;
+
+    private final ConcurrentMap<RequestKey,InFlightExecution> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong executions = new AtomicLong();
+
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
+
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 16 * 1024 * 1024;
+
+
+    public CoalescingXdaExecutor(XdaExecutor executor)
+    {
+        this(executor, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    /** Creates a coalescing executor whose executions accept joining requests until they have written more than the
+     *  passed number of bytes. */
+    public CoalescingXdaExecutor
+    (
+        XdaExecutor executor,
+        long maxBufferedBytes
+    )
+    {
+        this.executor = requireArg(executor, "executor");
+
+        if ( maxBufferedBytes < 0 )
+            throw new IllegalArgumentException("Maximum buffered bytes must not be negative.");
+
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    public XdaExecutor getExecutor()
+    {
+        return executor;
+    }
+
+    public long getMaxBufferedBytes()
+    {
+        return maxBufferedBytes;
+    }
+
+    /** Executes the query on a connection from the data source, or joins an identical execution in flight, writing the
+     *  xml of the results to the passed output stream as for XdaExecutor.writeXml. The stream is flushed but not closed.
+     * @param bindValues  Values for the '?' bind parameters of the query's filter condition, in order.
+     * @return The number of bytes written.
+     */
+    public long writeXml
+    (
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        OutputStream os
+    )
+        throws SQLException, IOException
+    {
+        requireArg(xdaQry, "query");
+        requireArg(bindValues, "bind values");
+        requireArg(os, "output stream");
+
+        requests.incrementAndGet();
+
+        RequestKey key = new RequestKey(xdaQry.getFingerprint(), bindValues);
+
+        InFlightExecution newExecution = new InFlightExecution(maxBufferedBytes);
+
+        // Join an execution in flight, unless it no longer accepts requests, in which case it's replaced by our own.
+        InFlightExecution execution;
+        while ( (execution = inFlight.putIfAbsent(key, newExecution)) != null )
+        {
+            Follower follower = execution.join();
+            if ( follower != null )
+            {
+                coalescedRequests.incrementAndGet();
+                return execution.copyTo(follower, os);
+            }
+            inFlight.remove(key, execution);
+        }
+
+        executions.incrementAndGet();
+
+        TeeOutputStream tee = new TeeOutputStream(os, newExecution);
+        try
+        {
+            executor.writeXml(xdaQry, bindValues, tee);
+            newExecution.complete(null);
+        }
+        catch(SQLException | IOException | RuntimeException | Error e)
+        {
+            newExecution.complete(e);
+            throw e;
+        }
+        finally
+        {
+            inFlight.remove(key, newExecution);
+        }
+
+        if ( tee.ownStreamFailure != null )
+            throw tee.ownStreamFailure;
+
+        return newExecution.byteCount();
+    }
+
+    /// The number of requests made.
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    /// The number of query executions, being the requests which were not coalesced.
+    public long getExecutions()
+    {
+        return executions.get();
+    }
+
+    /// The number of requests which shared an execution in flight rather than executing the query.
+    public long getCoalescedRequests()
+    {
+        return coalescedRequests.get();
+    }
+
+    /// The number of executions currently in flight.
+    public int getInFlightExecutions()
+    {
+        return inFlight.size();
+    }
+
+    /// The number of bytes currently held by the executions in flight for the requests sharing them.
+    public long getBufferedBytes()
+    {
+        long bytes = 0;
+        for ( InFlightExecution execution: inFlight.values() )
+            bytes += execution.bufferedBytes();
+        return bytes;
+    }
+
+
+    private static final class RequestKey
+    {
+        private final Fingerprint queryFingerprint;
+        private final List<Object> bindValues;
+
+        RequestKey(Fingerprint queryFingerprint, List<?> bindValues)
+        {
+            this.queryFingerprint = queryFingerprint;
+            this.bindValues = Collections.unmodifiableList(new ArrayList<>(bindValues));
+        }
+
+        @Override
+        public int hashCode() { return queryFingerprint.hashCode() * 31 + bindValues.hashCode(); }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if ( !(o instanceof RequestKey) )
+                return false;
+            RequestKey k = (RequestKey)o;
+            return queryFingerprint.equals(k.queryFingerprint) && bindValues.equals(k.bindValues);
+        }
+    }
+
+    // The bytes written by an execution which remain to be copied by requests sharing it, and its outcome once complete.
+    // The bytes are all kept while the execution accepts joining requests, which ends when they exceed the maximum.
+    // After that, chunks are released once copied by every request sharing the execution.
+    private static final class InFlightExecution
+    {
+        private final long maxBufferedBytes;
+        private final List<byte[]> chunks = new ArrayList<>();
+        private int releasedChunks; // the number of chunks written before those held
+        private long bufferedBytes;
+        private long byteCount;
+        private boolean joinable = true;
+        private final Set<Follower> followers = Collections.newSetFromMap(new IdentityHashMap<>());
+        private boolean complete;
+        private Throwable failure;
+
+        InFlightExecution(long maxBufferedBytes)
+        {
+            this.maxBufferedBytes = maxBufferedBytes;
+        }
+
+        synchronized void append(byte[] b, int off, int len)
+        {
+            chunks.add(Arrays.copyOfRange(b, off, off + len));
+            bufferedBytes += len;
+            byteCount += len;
+
+            if ( bufferedBytes > maxBufferedBytes )
+                joinable = false;
+            if ( !joinable )
+                releaseCopiedChunks();
+
+            notifyAll();
+        }
+
+        synchronized void complete(Throwable failure)
+        {
+            this.complete = true;
+            this.failure = failure;
+            notifyAll();
+        }
+
+        synchronized long byteCount()
+        {
+            return byteCount;
+        }
+
+        synchronized long bufferedBytes()
+        {
+            return bufferedBytes;
+        }
+
+        // Adds a request sharing the execution, to copy its bytes from the start, or returns null if the execution no
+        // longer accepts requests.
+        synchronized Follower join()
+        {
+            if ( !joinable )
+                return null;
+
+            Follower follower = new Follower();
+            followers.add(follower);
+            return follower;
+        }
+
+        // Releases the chunks which every request sharing the execution has copied.
+        private void releaseCopiedChunks()
+        {
+            int copiedByAll = releasedChunks + chunks.size();
+            for ( Follower follower: followers )
+                copiedByAll = Math.min(copiedByAll, follower.copiedChunks);
+
+            List<byte[]> copied = chunks.subList(0, copiedByAll - releasedChunks);
+            for ( byte[] chunk: copied )
+                bufferedBytes -= chunk.length;
+            copied.clear();
+            releasedChunks = copiedByAll;
+        }
+
+        // Copies the execution's bytes to the stream as they are written, returning the number of bytes once the
+        // execution completes, or rethrowing its failure.
+        long copyTo(Follower follower, OutputStream os) throws SQLException, IOException
+        {
+            try
+            {
+                while ( true )
+                {
+                    List<byte[]> newChunks;
+                    boolean completed;
+                    Throwable failed;
+
+                    synchronized ( this )
+                    {
+                        while ( follower.copiedChunks == releasedChunks + chunks.size() && !complete )
+                        {
+                            try
+                            {
+                                wait();
+                            }
+                            catch(InterruptedException e)
+                            {
+                                Thread.currentThread().interrupt();
+                                throw new InterruptedIOException("Interrupted awaiting shared execution.");
+                            }
+                        }
+                        newChunks = new ArrayList<>(chunks.subList(follower.copiedChunks - releasedChunks, chunks.size()));
+                        completed = complete;
+                        failed = failure;
+                    }
+
+                    for ( byte[] chunk: newChunks )
+                        os.write(chunk);
+
+                    synchronized ( this )
+                    {
+                        follower.copiedChunks += newChunks.size();
+                        if ( !joinable )
+                            releaseCopiedChunks();
+                    }
+
+                    // No bytes are written after completion, so all have been copied.
+                    if ( completed )
+                    {
+                        if ( failed instanceof SQLException )
+                            throw new SQLException("Shared execution failed: " + failed.getMessage(), ((SQLException)failed).getSQLState(), failed);
+                        if ( failed instanceof IOException )
+                            throw new IOException("Shared execution failed: " + failed.getMessage(), failed);
+                        if ( failed != null )
+                            throw new RuntimeException("Shared execution failed: " + failed, failed);
+
+                        os.flush();
+                        return byteCount();
+                    }
+                }
+            }
+            finally
+            {
+                synchronized ( this )
+                {
+                    followers.remove(follower);
+                    if ( !joinable )
+                        releaseCopiedChunks();
+                }
+            }
+        }
+    }
+
+    // A request sharing an execution, with the number of the execution's chunks it has copied.
+    private static final class Follower
+    {
+        int copiedChunks;
+    }
+
+    // Writes to the executing request's stream and to the in-flight execution. After a failure of the request's own
+    // stream, bytes are only written to the execution, and the failure is rethrown to the request at the end.
+    private static final class TeeOutputStream extends OutputStream
+    {
+        private final OutputStream os;
+        private final InFlightExecution execution;
+        private IOException ownStreamFailure;
+
+        TeeOutputStream(OutputStream os, InFlightExecution execution)
+        {
+            this.os = Objects.requireNonNull(os);
+            this.execution = execution;
+        }
+
+        @Override
+        public void write(int b)
+        {
+            write(new byte[]{ (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            if ( len == 0 )
+                return;
+
+            execution.append(b, off, len);
+
+            if ( ownStreamFailure == null )
+            {
+                try
+                {
+                    os.write(b, off, len);
+                }
+                catch(IOException e)
+                {
+                    ownStreamFailure = e;
+                }
+            }
+        }
+
+        @Override
+        public void flush()
+        {
+            if ( ownStreamFailure == null )
+            {
+                try
+                {
+                    os.flush();
+                }
+                catch(IOException e)
+                {
+                    ownStreamFailure = e;
+                }
+            }
+        }
+
+        @Override
+        public void close() { flush(); } // the caller's stream is not ours to close
+    }
+}
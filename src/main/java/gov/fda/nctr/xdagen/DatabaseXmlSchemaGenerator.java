@@ -9,16 +9,13 @@ import java.sql.Types;
 import java.util.*;
 import static java.util.Objects.requireNonNull;
 
-import freemarker.cache.ClassTemplateLoader;
-import freemarker.template.Configuration;
-import freemarker.template.DefaultObjectWrapper;
 import freemarker.template.Template;
 
 import static gov.fda.nctr.util.Freemarker.applyTemplate;
+import static gov.fda.nctr.util.Freemarker.getClasspathTemplate;
 import gov.fda.nctr.dbmd.DBMD;
 import gov.fda.nctr.dbmd.RelId;
 import gov.fda.nctr.dbmd.RelMetaData;
-import gov.fda.nctr.util.Freemarker;
 
 
 public class DatabaseXmlSchemaGenerator
@@ -32,7 +29,6 @@ public class DatabaseXmlSchemaGenerator
     private final boolean includeGenerationTimestamp;
 
     private static final String xmlns = "http://nctr.fda.gov/xdagen";
-    private static final String CLASSPATH_TEMPLATES_DIR_PATH = "/templates";
     private static final String XMLSCHEMA_TEMPLATE =  "XMLSchema.ftl";
 
 
@@ -58,8 +54,7 @@ public class DatabaseXmlSchemaGenerator
         this.typeNamer = typeNamer.orElseGet(() -> new DefaultTypeNamer(dbmd));
         this.includeGenerationTimestamp = includeGenerationTimestamp;
 
-        Configuration templateConfig = getTemplateConfiguration();
-        this.xsdTemplate = templateConfig.getTemplate(XMLSCHEMA_TEMPLATE);
+        this.xsdTemplate = getClasspathTemplate(XMLSCHEMA_TEMPLATE);
     }
 
     public String getStandardXMLSchema
@@ -273,15 +268,6 @@ public class DatabaseXmlSchemaGenerator
     // Type naming interface and default implementation.
     ///////////////////////////////////////////////////////////////
 
-    private static Configuration getTemplateConfiguration()
-    {
-        // Configure template engine.
-        Configuration templateConfig = new Configuration(Freemarker.compatibilityVersion);
-        templateConfig.setTemplateLoader(new ClassTemplateLoader(DatabaseXmlSchemaGenerator.class, CLASSPATH_TEMPLATES_DIR_PATH));
-        templateConfig.setObjectWrapper(new DefaultObjectWrapper(Freemarker.compatibilityVersion));
-        return templateConfig;
-    }
-
     public static void main(String[] args) throws Exception
     {
         if ( args.length != 4 )
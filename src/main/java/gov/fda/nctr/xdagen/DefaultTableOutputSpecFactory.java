@@ -5,6 +5,8 @@ import java.util.*;
 import gov.fda.nctr.dbmd.DBMD;
 import gov.fda.nctr.dbmd.ForeignKey;
 import gov.fda.nctr.dbmd.RelId;
+import gov.fda.nctr.util.Fingerprint;
+import gov.fda.nctr.util.WeakValueInterner;
 import static gov.fda.nctr.util.StringFuns.lc;
 import static gov.fda.nctr.util.StringFuns.stringFrom;
 import static gov.fda.nctr.xdagen.ChildCollectionsStyle.INLINE;
@@ -20,6 +22,8 @@ public class DefaultTableOutputSpecFactory implements TableOutputSpec.Factory
 
     private final ChildCollectionsStyle childCollectionsStyle;
 
+    private final Optional<WeakValueInterner<Fingerprint,TableOutputSpec>> internedOutputSpecs;
+
     public DefaultTableOutputSpecFactory
     (
         DBMD dbmd,
@@ -27,7 +31,22 @@ public class DefaultTableOutputSpecFactory implements TableOutputSpec.Factory
         String outputXmlNamespace
     )
     {
-        this(dbmd, outputXmlNamespace, childCollectionsStyle, new DefaultElementNamer(dbmd, childCollectionsStyle));
+        this(dbmd, outputXmlNamespace, childCollectionsStyle, new DefaultElementNamer(dbmd, childCollectionsStyle), false);
+    }
+
+    /** Create a factory which optionally interns the table output specifications it makes or which are derived from
+     *  them, so that structurally equal specifications are the same instance. Interned specifications are held weakly,
+     *  and so are collected normally when no longer referenced elsewhere.
+     */
+    public DefaultTableOutputSpecFactory
+    (
+        DBMD dbmd,
+        ChildCollectionsStyle childCollectionsStyle,
+        String outputXmlNamespace,
+        boolean internOutputSpecs
+    )
+    {
+        this(dbmd, outputXmlNamespace, childCollectionsStyle, new DefaultElementNamer(dbmd, childCollectionsStyle), internOutputSpecs);
     }
 
     public DefaultTableOutputSpecFactory
@@ -37,6 +56,18 @@ public class DefaultTableOutputSpecFactory implements TableOutputSpec.Factory
         ChildCollectionsStyle childCollectionsStyle,
         ElementNamer elementNamer
     )
+    {
+        this(dbmd, outputXmlNamespace, childCollectionsStyle, elementNamer, false);
+    }
+
+    public DefaultTableOutputSpecFactory
+    (
+        DBMD dbmd,
+        String outputXmlNamespace,
+        ChildCollectionsStyle childCollectionsStyle,
+        ElementNamer elementNamer,
+        boolean internOutputSpecs
+    )
     {
         Objects.requireNonNull(dbmd);
         Objects.requireNonNull(outputXmlNamespace);
@@ -47,12 +78,28 @@ public class DefaultTableOutputSpecFactory implements TableOutputSpec.Factory
         this.outputXmlNamespace = outputXmlNamespace;
         this.childCollectionsStyle = childCollectionsStyle;
         this.elementNamer = elementNamer;
+        this.internedOutputSpecs = internOutputSpecs ? Optional.of(new WeakValueInterner<>()) : Optional.empty();
+    }
+
+    public boolean isInterningOutputSpecs()
+    {
+        return internedOutputSpecs.isPresent();
+    }
+
+    /// Specifications are interned only if interning is enabled and they were made by this factory.
+    @Override
+    public TableOutputSpec intern(TableOutputSpec ospec)
+    {
+        if ( !internedOutputSpecs.isPresent() || ospec.getFactory() != this )
+            return ospec;
+        else
+            return internedOutputSpecs.get().intern(ospec.getFingerprint(), ospec);
     }
 
     @Override
     public TableOutputSpec table(RelId relId)
     {
-        return new TableOutputSpec(
+        return intern(new TableOutputSpec(
             relId,
             dbmd,
             this,
@@ -60,7 +107,7 @@ public class DefaultTableOutputSpecFactory implements TableOutputSpec.Factory
             outputXmlNamespace,
             Optional.of(elementNamer.getDefaultRowElementName(relId)),
             Optional.of(elementNamer.getDefaultRowCollectionElementName(relId))
-        );
+        ));
     }
 
     @Override
@@ -85,7 +132,7 @@ public class DefaultTableOutputSpecFactory implements TableOutputSpec.Factory
         String rowElName = elementNamer.getChildRowElementNameWithinParent(childRelId, withinRelId, Optional.of(fkFieldNames));
         String rowCollElName = elementNamer.getChildRowCollectionElementNameWithinParent(childRelId, withinRelId, Optional.of(fkFieldNames));
 
-        return new TableOutputSpec(
+        return intern(new TableOutputSpec(
             childRelId,
             dbmd,
             this,
@@ -93,7 +140,7 @@ public class DefaultTableOutputSpecFactory implements TableOutputSpec.Factory
             outputXmlNamespace,
             Optional.of(rowElName),
             Optional.of(rowCollElName)
-        );
+        ));
     }
 
     @Override
@@ -115,7 +162,7 @@ public class DefaultTableOutputSpecFactory implements TableOutputSpec.Factory
                 Optional.of(fkFieldNames)
             );
 
-        return new TableOutputSpec(
+        return intern(new TableOutputSpec(
             parentRelid,
             dbmd,
             this,
@@ -123,7 +170,7 @@ public class DefaultTableOutputSpecFactory implements TableOutputSpec.Factory
             outputXmlNamespace,
             Optional.of(rowElName),
             Optional.empty()
-        );
+        ));
     }
 
     public interface ElementNamer
@@ -0,0 +1,103 @@
+package gov.fda.nctr.xdagen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static gov.fda.nctr.util.CoreFuns.requireArg;
+
+
+/** A query for one page of rows of a row elements or row collection element query, ordered by a keyset of non-null
+ *  fields ending in the table's primary key, and optionally starting after the keyset values of the last row of the
+ *  previous page. The result columns are the keyset fields followed by the row_xml column. The query's bind parameters
+ *  are those of the filter condition followed by those of the seek predicate, whose values are provided by
+ *  getSeekBindValues for the last row's keyset values. Because rows are sought by the keyset rather than skipped by an
+ *  offset, every page costs about the same as the first when the keyset fields are indexed.
+ *
+ *  Keyset page queries are obtained from QueryGenerator.getKeysetPageQuery, and are immutable.
+ */
+public final class KeysetPageQuery
+{
+    private final String sql;
+
+    private final List<String> keysetFieldNames;
+
+    private final List<Integer> keysetFieldJdbcTypes;
+
+    private final boolean seekAfterKey;
+
+    private final boolean rowValueSeekPredicate;
+
+    private final int pageSize;
+
+
+    KeysetPageQuery
+    (
+        String sql,
+        List<String> keysetFieldNames,
+        List<Integer> keysetFieldJdbcTypes,
+        boolean seekAfterKey,
+        boolean rowValueSeekPredicate,
+        int pageSize
+    )
+    {
+        this.sql = requireArg(sql, "sql");
+        this.keysetFieldNames = Collections.unmodifiableList(new ArrayList<>(keysetFieldNames));
+        this.keysetFieldJdbcTypes = Collections.unmodifiableList(new ArrayList<>(keysetFieldJdbcTypes));
+        this.seekAfterKey = seekAfterKey;
+        this.rowValueSeekPredicate = rowValueSeekPredicate;
+        this.pageSize = pageSize;
+    }
+
+    public String getSql()
+    {
+        return sql;
+    }
+
+    /// The fields by which rows are ordered and sought, which are also the leading result columns.
+    public List<String> getKeysetFieldNames()
+    {
+        return keysetFieldNames;
+    }
+
+    /// The JDBC types of the keyset fields, all of whose values can be written to page tokens.
+    public List<Integer> getKeysetFieldJdbcTypes()
+    {
+        return keysetFieldJdbcTypes;
+    }
+
+    /// Whether the query has a seek predicate, for pages after the first.
+    public boolean getSeekAfterKey()
+    {
+        return seekAfterKey;
+    }
+
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /** Returns the values for the bind parameters of the seek predicate, which follow any of the filter condition, from
+     *  the keyset values of the last row of the previous page. A row value comparison takes each value once, while the
+     *  expanded form of the predicate for mixed ordering directions takes the first i values for its i'th disjunct.
+     */
+    public List<Object> getSeekBindValues(List<?> lastKeysetValues)
+    {
+        requireArg(lastKeysetValues, "last keyset values");
+
+        if ( !seekAfterKey )
+            return Collections.emptyList();
+
+        if ( lastKeysetValues.size() != keysetFieldNames.size() )
+            throw new IllegalArgumentException("Expected " + keysetFieldNames.size() + " keyset values, got " + lastKeysetValues.size() + ".");
+
+        if ( rowValueSeekPredicate )
+            return new ArrayList<>(lastKeysetValues);
+
+        List<Object> values = new ArrayList<>();
+        for ( int i = 1; i <= lastKeysetValues.size(); ++i )
+            values.addAll(lastKeysetValues.subList(0, i));
+
+        return values;
+    }
+}
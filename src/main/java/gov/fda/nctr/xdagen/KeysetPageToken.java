@@ -0,0 +1,220 @@
+package gov.fda.nctr.xdagen;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static gov.fda.nctr.util.CoreFuns.requireArg;
+
+
+/** The continuation token for the page of a keyset paged query following a page, holding the keyset field names and the
+ *  keyset values of the last row of the page. Tokens are encoded as URL safe strings for handing to clients, and are
+ *  decoded without any deserialization of objects, so tokens from untrusted sources may be decoded safely. Only values
+ *  of the basic number, string, boolean, date, timestamp and UUID types which JDBC drivers return for key columns are
+ *  supported. Keyset page queries are only made for keyset fields of the corresponding JDBC types, whose values
+ *  XdaExecutor reads in these forms.
+ */
+public final class KeysetPageToken
+{
+    private final List<String> keysetFieldNames;
+
+    private final List<Object> keysetValues;
+
+    private static final byte FORMAT_VERSION = 1;
+
+
+    public KeysetPageToken
+    (
+        List<String> keysetFieldNames,
+        List<?> keysetValues
+    )
+    {
+        requireArg(keysetFieldNames, "keyset field names");
+        requireArg(keysetValues, "keyset values");
+
+        if ( keysetFieldNames.size() != keysetValues.size() )
+            throw new IllegalArgumentException("Keyset field names and values differ in number.");
+
+        this.keysetFieldNames = Collections.unmodifiableList(new ArrayList<>(keysetFieldNames));
+        this.keysetValues = Collections.unmodifiableList(new ArrayList<>(keysetValues));
+    }
+
+    public List<String> getKeysetFieldNames()
+    {
+        return keysetFieldNames;
+    }
+
+    public List<Object> getKeysetValues()
+    {
+        return keysetValues;
+    }
+
+    public String encode()
+    {
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+
+            dos.writeByte(FORMAT_VERSION);
+            dos.writeShort(keysetFieldNames.size());
+
+            for ( int i = 0; i < keysetFieldNames.size(); ++i )
+            {
+                dos.writeUTF(keysetFieldNames.get(i));
+                writeValue(dos, keysetValues.get(i));
+            }
+
+            dos.flush();
+
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bos.toByteArray());
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Failed to encode keyset page token: " + e.getMessage(), e);
+        }
+    }
+
+    /// Decodes an encoded token, throwing IllegalArgumentException if the token is not valid.
+    public static KeysetPageToken decode(String encodedToken)
+    {
+        requireArg(encodedToken, "encoded token");
+
+        try
+        {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(encodedToken)));
+
+            if ( dis.readByte() != FORMAT_VERSION )
+                throw new IllegalArgumentException("Unsupported keyset page token format.");
+
+            int n = dis.readUnsignedShort();
+
+            List<String> names = new ArrayList<>(n);
+            List<Object> values = new ArrayList<>(n);
+            for ( int i = 0; i < n; ++i )
+            {
+                names.add(dis.readUTF());
+                values.add(readValue(dis));
+            }
+
+            if ( dis.read() != -1 )
+                throw new IllegalArgumentException("Unexpected data following keyset page token values.");
+
+            return new KeysetPageToken(names, values);
+        }
+        catch(IOException | IllegalArgumentException e) // decoding errors include NumberFormatException
+        {
+            throw new IllegalArgumentException("Invalid keyset page token: " + e.getMessage(), e);
+        }
+    }
+
+    /// Whether values of fields of the passed JDBC type and database type name can be written to tokens.
+    static boolean supportsFieldType
+    (
+        int jdbcType,
+        String databaseType
+    )
+    {
+        switch ( jdbcType )
+        {
+            case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+            case Types.DECIMAL: case Types.NUMERIC: case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+            case Types.CHAR: case Types.VARCHAR: case Types.NCHAR: case Types.NVARCHAR:
+            case Types.BIT: case Types.BOOLEAN:
+            case Types.DATE: case Types.TIMESTAMP:
+                return true;
+            case Types.OTHER:
+                return "uuid".equalsIgnoreCase(databaseType);
+            default:
+                return false;
+        }
+    }
+
+    private static void writeValue(DataOutputStream dos, Object v) throws IOException
+    {
+        if ( v instanceof Integer || v instanceof Short || v instanceof Byte )
+            writeTagged(dos, 'i', v.toString());
+        else if ( v instanceof Long )
+            writeTagged(dos, 'l', v.toString());
+        else if ( v instanceof BigInteger )
+            writeTagged(dos, 'g', v.toString());
+        else if ( v instanceof BigDecimal )
+            writeTagged(dos, 'n', v.toString());
+        else if ( v instanceof Double || v instanceof Float )
+            writeTagged(dos, 'd', v.toString());
+        else if ( v instanceof String )
+            writeTagged(dos, 's', (String)v);
+        else if ( v instanceof Boolean )
+            writeTagged(dos, 'b', v.toString());
+        else if ( v instanceof Timestamp )
+            writeTagged(dos, 't', v.toString());
+        else if ( v instanceof Date )
+            writeTagged(dos, 'D', v.toString());
+        else if ( v instanceof UUID )
+            writeTagged(dos, 'u', v.toString());
+        else
+            throw new IllegalArgumentException("Keyset value of type " + (v == null ? "null" : v.getClass().getName()) + " cannot be written to a page token.");
+    }
+
+    private static void writeTagged(DataOutputStream dos, char tag, String value) throws IOException
+    {
+        dos.writeByte(tag);
+        dos.writeUTF(value);
+    }
+
+    private static Object readValue(DataInputStream dis) throws IOException
+    {
+        char tag = (char)dis.readByte();
+        String s = dis.readUTF();
+
+        switch ( tag )
+        {
+            case 'i': return Integer.valueOf(s);
+            case 'l': return Long.valueOf(s);
+            case 'g': return new BigInteger(s);
+            case 'n': return new BigDecimal(s);
+            case 'd': return Double.valueOf(s);
+            case 's': return s;
+            case 'b': return Boolean.valueOf(s);
+            case 't': return Timestamp.valueOf(s);
+            case 'D': return Date.valueOf(s);
+            case 'u': return UUID.fromString(s);
+            default: throw new IllegalArgumentException("Unknown keyset value type tag '" + tag + "'.");
+        }
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return keysetFieldNames.hashCode() * 31 + keysetValues.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if ( !(o instanceof KeysetPageToken) )
+            return false;
+
+        KeysetPageToken t = (KeysetPageToken)o;
+
+        return keysetFieldNames.equals(t.keysetFieldNames) && keysetValues.equals(t.keysetValues);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "KeysetPageToken" + keysetFieldNames + "=" + keysetValues;
+    }
+}
@@ -0,0 +1,607 @@
+package gov.fda.nctr.xdagen;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static gov.fda.nctr.util.CoreFuns.requireArg;
+import static gov.fda.nctr.util.StringFuns.lowercaseInitials;
+import gov.fda.nctr.dbmd.Field;
+import gov.fda.nctr.dbmd.RelId;
+import gov.fda.nctr.xdagen.QueryGenerator.OrderByClauseInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.OutputColumnsInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+import gov.fda.nctr.xdagen.TableOutputSpec.OrderItem;
+import gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering;
+
+
+/** Exports the document of a row collection element query in parallel, by splitting the range of the leading primary key
+ *  field of the table into contiguous partitions, each of which is exported by the collection members query on its own
+ *  connection from the executor's data source. The partitions' row elements are merged in partition order between the
+ *  collection element's start and end tags, in the order of the primary key. Collections without a row ordering are
+ *  ordered by the primary key for the export, while any row ordering must begin with the leading primary key field
+ *  ascending.
+ *
+ *  For PostgreSQL the partitions are read in repeatable read transactions sharing one snapshot, exported by
+ *  pg_export_snapshot() from the transaction of the first partition and imported by the others with SET TRANSACTION
+ *  SNAPSHOT, so the document is that of a single consistent read, the same as with the CLIENT collection assembly of
+ *  XdaExecutor within one transaction. For other databases each partition is read in its own transaction, so if the
+ *  tables are modified during the export, the partitions may reflect different states of the database: rows may be
+ *  missing, duplicated, or inconsistent with their related rows. Export from other databases only data not being
+ *  modified.
+ *
+ *  Partition bounds are found by a query over the table's key field before the partitions are exported: for integer key
+ *  fields the range between the minimum and maximum key is divided evenly, and for other key types the bounds are the
+ *  quantiles of the keys as found by ntile, which also balances partitions over skewed integer keys at the cost of
+ *  reading the whole key index.
+ *
+ *  The first partition is written directly to the output stream by the calling thread while the others are exported by
+ *  pool threads to temporary files, which are copied to the output in order as the preceding partitions complete, so at
+ *  most the parallelism number of connections are used at once.
+ *
+ *  Exporters are immutable and may be shared between threads.
+ */
+public class ParallelExporter
+{
+    private final XdaExecutor executor;
+
+    private final int parallelism;
+
+    private final KeyRangeSplit keyRangeSplit;
+
+    /// Determines how the leading primary key field's range is split into partitions.
+    public enum KeyRangeSplit { AUTO, MIN_MAX, QUANTILES }
+
+    private static final int SPOOL_BUFFER_SIZE = 64 * 1024;
+
+
+    public ParallelExporter
+    (
+        XdaExecutor executor,
+        int parallelism
+    )
+    {
+        this(executor, parallelism, KeyRangeSplit.AUTO);
+    }
+
+    private ParallelExporter
+    (
+        XdaExecutor executor,
+        int parallelism,
+        KeyRangeSplit keyRangeSplit
+    )
+    {
+        this.executor = requireArg(executor, "executor");
+        this.keyRangeSplit = requireArg(keyRangeSplit, "key range split");
+
+        if ( parallelism <= 0 )
+            throw new IllegalArgumentException("Parallelism must be positive.");
+
+        this.parallelism = parallelism;
+    }
+
+    /// Returns an exporter differing from this one only in its parallelism, the number of partitions exported at once.
+    public ParallelExporter withParallelism(int parallelism)
+    {
+        return new ParallelExporter(executor, parallelism, keyRangeSplit);
+    }
+
+    /** Returns an exporter differing from this one only in how key ranges are split. AUTO uses MIN_MAX for integer key
+     *  fields and QUANTILES otherwise. */
+    public ParallelExporter withKeyRangeSplit(KeyRangeSplit split)
+    {
+        return new ParallelExporter(executor, parallelism, split);
+    }
+
+    public XdaExecutor getExecutor()
+    {
+        return executor;
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    public KeyRangeSplit getKeyRangeSplit()
+    {
+        return keyRangeSplit;
+    }
+
+    /** Exports the document of the row collection element query, writing it to the passed output stream as for
+     *  XdaExecutor.writeXml. The stream is flushed but not closed.
+     * @param bindValues  Values for the '?' bind parameters of the query's filter condition, in order.
+     * @return The number of bytes written.
+     */
+    public long writeXml
+    (
+        XdaQuery collQry,
+        List<?> bindValues,
+        OutputStream os
+    )
+        throws SQLException, IOException
+    {
+        requireArg(collQry, "query");
+        requireArg(bindValues, "bind values");
+        requireArg(os, "output stream");
+
+        if ( collQry.getQueryResultStyle() != QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT )
+            throw new IllegalArgumentException("Parallel export applies only to row collection element queries.");
+
+        TableOutputSpec ospec = getKeyOrderedOutputSpec(collQry.getTableOutputSpec());
+        Field keyField = getPartitionKeyField(ospec.getRelationId());
+        String alias = collQry.getTableAlias().orElseGet(() -> lowercaseInitials(ospec.getRelationId().getName(),"_") + "_row");
+
+        ExecutorService pool = null;
+        List<Future<File>> spooledPartitions = new ArrayList<>();
+
+        try ( Connection conn = executor.getDataSource().getConnection() )
+        {
+            List<Object> bounds = getPartitionUpperBounds(conn, ospec.getRelationId(), keyField);
+            int partitions = bounds.size() + 1;
+
+            // The snapshot is exported from this connection's transaction, which stays open until every partition has
+            // been exported, as the snapshot can only be imported while it is open. The bounds need not be read from the
+            // snapshot, since the partitions together cover all keys.
+            Optional<TransactionSettings> snapshotTxnSettings =
+                partitions > 1 && isPostgres() ? Optional.of(beginRepeatableReadTransaction(conn)) : Optional.empty();
+            try
+            {
+                Optional<String> snapshotId = snapshotTxnSettings.isPresent() ? Optional.of(exportSnapshot(conn)) : Optional.empty();
+
+                if ( partitions > 1 )
+                {
+                    pool = Executors.newFixedThreadPool(Math.min(parallelism - 1, partitions - 1), r -> {
+                        Thread t = new Thread(r, "xdagen-parallel-export");
+                        t.setDaemon(true);
+                        return t;
+                    });
+
+                    for ( int p = 1; p < partitions; ++p )
+                    {
+                        XdaQuery partQry = makePartitionQuery(collQry, ospec, alias, keyField, bounds, p);
+                        List<Object> partBinds = getPartitionBindValues(bindValues, bounds, p);
+                        spooledPartitions.add(pool.submit(() -> spoolPartition(partQry, partBinds, snapshotId)));
+                    }
+                }
+
+                return writePartitions(conn, collQry, ospec, alias, keyField, bounds, bindValues, spooledPartitions, os);
+            }
+            finally
+            {
+                if ( snapshotTxnSettings.isPresent() )
+                    endTransaction(conn, snapshotTxnSettings.get());
+            }
+        }
+        finally
+        {
+            if ( pool != null )
+            {
+                pool.shutdown();
+                deleteSpoolFiles(spooledPartitions);
+            }
+        }
+    }
+
+    // Writes the collection element, with the first partition exported on the passed connection followed by the spooled
+    // partitions in order as each completes.
+    private long writePartitions
+    (
+        Connection conn,
+        XdaQuery collQry,
+        TableOutputSpec ospec,
+        String alias,
+        Field keyField,
+        List<Object> bounds,
+        List<?> bindValues,
+        List<Future<File>> spooledPartitions,
+        OutputStream os
+    )
+        throws SQLException, IOException
+    {
+
+        byte[] startTag = XdaExecutor.getCollectionStartTag(ospec).getBytes(StandardCharsets.UTF_8);
+        os.write(startTag);
+
+        // The start tag is closed before the first row element of whichever partition has one.
+        PrefixedOutputStream rowsOut = new PrefixedOutputStream(os, ">".getBytes(StandardCharsets.UTF_8));
+
+        executor.writeXml(conn, makePartitionQuery(collQry, ospec, alias, keyField, bounds, 0), getPartitionBindValues(bindValues, bounds, 0), rowsOut);
+
+        for ( Future<File> spooledPartition: spooledPartitions )
+        {
+            File f = awaitPartition(spooledPartition);
+            try
+            {
+                Files.copy(f.toPath(), rowsOut);
+            }
+            finally
+            {
+                f.delete();
+            }
+        }
+
+        byte[] endTag = executor.getCollectionEndTag(ospec, rowsOut.getByteCount() > 0).getBytes(StandardCharsets.UTF_8);
+        os.write(endTag);
+        os.flush();
+
+        return startTag.length + rowsOut.getByteCount() + endTag.length;
+    }
+
+    // The output spec ordered by its primary key if not ordered, verifying that any row ordering begins with the leading
+    // primary key field ascending, so that the partitions' rows are in collection order when written in partition order.
+    private TableOutputSpec getKeyOrderedOutputSpec(TableOutputSpec ospec)
+    {
+        List<Field> pkFields = executor.getQueryGenerator().getPrimaryKeyFields(ospec.getRelationId());
+
+        if ( pkFields.isEmpty() )
+            throw new IllegalArgumentException("Parallel export requires a primary key for table " + ospec.getRelationId() + ".");
+
+        Optional<RowOrdering> ordering = ospec.getRowOrdering();
+
+        if ( !ordering.isPresent() )
+        {
+            List<String> pkFieldNames = new ArrayList<>(pkFields.size());
+            for ( Field f: pkFields )
+                pkFieldNames.add(f.getName());
+            return ospec.orderedBy(RowOrdering.fields(pkFieldNames));
+        }
+
+        if ( ordering.get().getItems().isEmpty() )
+            throw new IllegalArgumentException("Parallel export requires a row ordering of order items, but the ordering of table " + ospec.getRelationId() + " renders its own expressions.");
+
+        OrderItem first = ordering.get().getItems().get(0);
+
+        if ( !first.isFieldExpression() || !first.getExpression().equalsIgnoreCase(pkFields.get(0).getName()) ||
+             first.getDirection().map(d -> d == OrderItem.Direction.DESC).orElse(false) )
+            throw new IllegalArgumentException("Parallel export requires the row ordering to begin with primary key field " + pkFields.get(0).getName() + " ascending.");
+
+        return ospec;
+    }
+
+    private Field getPartitionKeyField(RelId relId)
+    {
+        return executor.getQueryGenerator().getPrimaryKeyFields(relId).get(0);
+    }
+
+    // Returns the inclusive upper bounds of all partitions but the last, which has no upper bound, in ascending order
+    // and without duplicates. Tables with fewer keys than partitions have fewer partitions.
+    private List<Object> getPartitionUpperBounds(Connection conn, RelId relId, Field keyField) throws SQLException
+    {
+        if ( parallelism == 1 )
+            return Collections.emptyList();
+
+        boolean integerKey = isIntegerType(keyField.getJdbcTypeCode());
+
+        if ( keyRangeSplit == KeyRangeSplit.MIN_MAX && !integerKey )
+            throw new IllegalArgumentException("Min/max key range splitting requires an integer key field.");
+
+        boolean useMinMax = keyRangeSplit == KeyRangeSplit.MIN_MAX || keyRangeSplit == KeyRangeSplit.AUTO && integerKey;
+
+        String key = keyField.getName();
+        String table = relId.getIdString();
+
+        List<Object> bounds = new ArrayList<>();
+
+        if ( useMinMax )
+        {
+            try ( PreparedStatement stmt = conn.prepareStatement("select min(" + key + "), max(" + key + ") from " + table);
+                  ResultSet rs = stmt.executeQuery() )
+            {
+                if ( !rs.next() || rs.getObject(1) == null )
+                    return bounds;
+
+                BigInteger lo = new BigInteger(rs.getObject(1).toString());
+                BigInteger hi = new BigInteger(rs.getObject(2).toString());
+                BigInteger n = BigInteger.valueOf(parallelism);
+
+                // Partition i covers keys from lo + i*width through lo + (i+1)*width - 1, the last covering the remainder.
+                BigInteger width = hi.subtract(lo).add(BigInteger.ONE).add(n).subtract(BigInteger.ONE).divide(n);
+                for ( int i = 1; i < parallelism; ++i )
+                {
+                    BigInteger upper = lo.add(width.multiply(BigInteger.valueOf(i))).subtract(BigInteger.ONE);
+                    if ( upper.compareTo(hi) >= 0 )
+                        break;
+                    bounds.add(upper.longValue());
+                }
+            }
+        }
+        else
+        {
+            String sql =
+                "select max(" + key + ") part_max\n" +
+                "from (select " + key + ", ntile(" + parallelism + ") over (order by " + key + ") part from " + table + ") t\n" +
+                "group by part\n" +
+                "order by part";
+
+            try ( PreparedStatement stmt = conn.prepareStatement(sql);
+                  ResultSet rs = stmt.executeQuery() )
+            {
+                while ( rs.next() )
+                {
+                    Object b = rs.getObject(1);
+                    if ( bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(b) )
+                        bounds.add(b);
+                }
+            }
+
+            // The last partition's maximum is the greatest key, which the unbounded last partition covers.
+            if ( !bounds.isEmpty() )
+                bounds.remove(bounds.size() - 1);
+        }
+
+        return bounds;
+    }
+
+    private static boolean isIntegerType(int jdbcTypeCode)
+    {
+        switch ( jdbcTypeCode )
+        {
+            case Types.INTEGER: case Types.BIGINT: case Types.SMALLINT: case Types.TINYINT: return true;
+            default: return false;
+        }
+    }
+
+    private static XdaQuery makePartitionQuery
+    (
+        XdaQuery collQry,
+        TableOutputSpec keyOrderedOspec,
+        String alias,
+        Field keyField,
+        List<Object> bounds,
+        int partition
+    )
+    {
+        String key = alias + "." + keyField.getName();
+
+        List<String> conds = new ArrayList<>();
+        collQry.getFilterCondition().filter(cond -> !cond.isEmpty()).ifPresent(cond -> conds.add("(" + cond + ")"));
+        if ( partition > 0 )
+            conds.add(key + " > ?");
+        if ( partition < bounds.size() )
+            conds.add(key + " <= ?");
+
+        return
+            new XdaQuery(
+                keyOrderedOspec,
+                QueryResultStyle.MULTIPLE_ROW_COLLECTION_MEMBER_RESULTS,
+                Optional.of(alias),
+                conds.isEmpty() ? Optional.empty() : Optional.of(String.join("\n  and ", conds)),
+                OrderByClauseInclusion.NA,
+                collQry.getXmlOutputColumnType(),
+                OutputColumnsInclusion.XML_COLUMN_ONLY
+            );
+    }
+
+    // The filter condition's bind values followed by those of the partition's key range condition.
+    private static List<Object> getPartitionBindValues(List<?> bindValues, List<Object> bounds, int partition)
+    {
+        List<Object> values = new ArrayList<>(bindValues);
+        if ( partition > 0 )
+            values.add(bounds.get(partition - 1));
+        if ( partition < bounds.size() )
+            values.add(bounds.get(partition));
+        return values;
+    }
+
+    private File spoolPartition
+    (
+        XdaQuery partQry,
+        List<Object> partBinds,
+        Optional<String> snapshotId
+    )
+        throws SQLException, IOException
+    {
+        File f = File.createTempFile("xdagen-partition", ".xml");
+
+        try ( Connection conn = executor.getDataSource().getConnection();
+              OutputStream os = new BufferedOutputStream(new FileOutputStream(f), SPOOL_BUFFER_SIZE) )
+        {
+            if ( snapshotId.isPresent() )
+            {
+                TransactionSettings txnSettings = beginRepeatableReadTransaction(conn);
+                try
+                {
+                    importSnapshot(conn, snapshotId.get());
+                    executor.writeXml(conn, partQry, partBinds, os);
+                }
+                finally
+                {
+                    endTransaction(conn, txnSettings);
+                }
+            }
+            else
+                executor.writeXml(conn, partQry, partBinds, os);
+        }
+        catch(SQLException | IOException | RuntimeException e)
+        {
+            f.delete();
+            throw e;
+        }
+
+        return f;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    // Shared snapshots
+
+    private boolean isPostgres()
+    {
+        String dbms = executor.getQueryGenerator().getDatabaseMetaData().getDbmsName();
+        return dbms != null && dbms.toUpperCase().contains("POSTGRES");
+    }
+
+    // Begins a repeatable read transaction, whose statements all read the snapshot taken by its first statement,
+    // returning the connection's settings to be restored when the transaction is ended.
+    private static TransactionSettings beginRepeatableReadTransaction(Connection conn) throws SQLException
+    {
+        TransactionSettings settings = new TransactionSettings(conn.getAutoCommit(), conn.getTransactionIsolation());
+
+        if ( settings.autoCommit )
+            conn.setAutoCommit(false);
+        conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+
+        return settings;
+    }
+
+    // The transactions only read, so they are rolled back.
+    private static void endTransaction(Connection conn, TransactionSettings settings) throws SQLException
+    {
+        conn.rollback();
+        conn.setTransactionIsolation(settings.transactionIsolation);
+        if ( settings.autoCommit )
+            conn.setAutoCommit(true);
+    }
+
+    private static String exportSnapshot(Connection conn) throws SQLException
+    {
+        try ( PreparedStatement stmt = conn.prepareStatement("select pg_export_snapshot()");
+              ResultSet rs = stmt.executeQuery() )
+        {
+            if ( !rs.next() )
+                throw new SQLException("No snapshot was exported.");
+
+            return rs.getString(1);
+        }
+    }
+
+    // The snapshot id is written as a literal, since SET TRANSACTION SNAPSHOT takes no bind parameters.
+    private static void importSnapshot(Connection conn, String snapshotId) throws SQLException
+    {
+        if ( !snapshotId.matches("[0-9A-Fa-f-]+") )
+            throw new SQLException("Unexpected exported snapshot id '" + snapshotId + "'.");
+
+        try ( PreparedStatement stmt = conn.prepareStatement("set transaction snapshot '" + snapshotId + "'") )
+        {
+            stmt.execute();
+        }
+    }
+
+    private static final class TransactionSettings
+    {
+        final boolean autoCommit;
+        final int transactionIsolation;
+
+        TransactionSettings(boolean autoCommit, int transactionIsolation)
+        {
+            this.autoCommit = autoCommit;
+            this.transactionIsolation = transactionIsolation;
+        }
+    }
+
+    // Shared snapshots
+    /////////////////////////////////////////////////////////////////////////////////////
+
+
+    private static File awaitPartition(Future<File> spooledPartition) throws SQLException, IOException
+    {
+        try
+        {
+            return spooledPartition.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while awaiting export partition.", e);
+        }
+        catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof SQLException )
+                throw (SQLException)cause;
+            if ( cause instanceof IOException )
+                throw (IOException)cause;
+            if ( cause instanceof RuntimeException )
+                throw (RuntimeException)cause;
+            throw new RuntimeException("Export partition failed: " + cause, cause);
+        }
+    }
+
+    // Removes the spool files of partitions not yet copied when the export fails, cancelling partitions not yet started
+    // and waiting for any in progress.
+    private static void deleteSpoolFiles(List<Future<File>> spooledPartitions)
+    {
+        for ( Future<File> spooledPartition: spooledPartitions )
+        {
+            if ( spooledPartition.cancel(false) )
+                continue;
+            try
+            {
+                spooledPartition.get().delete();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch(ExecutionException e)
+            {
+                // The partition removes its own file on failure.
+            }
+        }
+    }
+
+
+    /// Writes a prefix to the underlying stream before the first byte written, if any, counting the bytes written.
+    private static final class PrefixedOutputStream extends OutputStream
+    {
+        private final OutputStream os;
+        private final byte[] prefix;
+        private long byteCount = 0;
+
+        PrefixedOutputStream(OutputStream os, byte[] prefix)
+        {
+            this.os = os;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{ (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if ( len == 0 )
+                return;
+
+            if ( byteCount == 0 )
+            {
+                os.write(prefix);
+                byteCount += prefix.length;
+            }
+
+            os.write(b, off, len);
+            byteCount += len;
+        }
+
+        @Override
+        public void flush() throws IOException { os.flush(); }
+
+        @Override
+        public void close() throws IOException { flush(); } // the caller's stream is not ours to close
+
+        long getByteCount() { return byteCount; }
+    }
+}
@@ -0,0 +1,21 @@
+package gov.fda.nctr.xdagen;
+
+/** Determines the SQL shape by which the included parent tables of a row elements query are looked up.
+ *
+ *  CORRELATED_SUBQUERIES looks up each parent row in a subquery of the child's row element which is correlated with the
+ *  child row, which planners commonly evaluate by a nested loop over the child rows.
+ *
+ *  LEFT_JOINS left joins the rows query of each parent table to the child table on the foreign key, taking the parent
+ *  row element from the joined rows, so that the planner may choose hash or merge joins for listings of many child rows.
+ *
+ *  LATERAL_JOINS left joins the correlated subquery of each parent as a lateral derived table, taking the parent row
+ *  element from the joined column. Only supported for PostgreSQL.
+ *
+ *  All produce the same xml.
+ */
+public enum ParentLookupStrategy
+{
+    CORRELATED_SUBQUERIES,
+    LEFT_JOINS,
+    LATERAL_JOINS
+}
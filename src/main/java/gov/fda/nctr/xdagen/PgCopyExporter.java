@@ -0,0 +1,356 @@
+package gov.fda.nctr.xdagen;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+
+import static gov.fda.nctr.util.CoreFuns.requireArg;
+import gov.fda.nctr.xdagen.QueryGenerator.OrderByClauseInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.OutputColumnsInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+
+
+/** Exports the xml of xdagen query results from Postgres through COPY (query) TO STDOUT, via the driver's CopyManager.
+ *  The xml column values arrive as the raw bytes of the COPY text format, which are unescaped and written to the output
+ *  stream as they are received, without the per row and per column decoding of a JDBC result set. This is the fastest
+ *  way to export large numbers of rows from Postgres.
+ *
+ *  Row elements queries have their row elements written one after another in result order. Row collection element
+ *  queries are exported as with the CLIENT collection assembly of XdaExecutor: the collection members query is copied,
+ *  its row elements being written between the collection element's start and end tags. Queries must have only the xml
+ *  column in their output.
+ *
+ *  COPY does not accept bind parameters, so any bind values for '?' placeholders in the filter condition are written
+ *  into the statement as SQL literals. Only numbers, strings, booleans, dates, timestamps and nulls are supported.
+ *
+ *  Exporters are immutable and may be shared between threads, each export using its own connection.
+ */
+public class PgCopyExporter
+{
+    private final QueryGenerator queryGenerator;
+
+    private final DataSource dataSource;
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+
+    public PgCopyExporter
+    (
+        QueryGenerator queryGenerator,
+        DataSource dataSource
+    )
+    {
+        this.queryGenerator = requireArg(queryGenerator, "query generator");
+        this.dataSource = requireArg(dataSource, "data source");
+
+        String dbms = queryGenerator.getDatabaseMetaData().getDbmsName();
+        if ( dbms == null || !dbms.toUpperCase().contains("POSTGRES") )
+            throw new IllegalArgumentException("COPY export requires a query generator for a Postgres database.");
+    }
+
+    public QueryGenerator getQueryGenerator()
+    {
+        return queryGenerator;
+    }
+
+    public DataSource getDataSource()
+    {
+        return dataSource;
+    }
+
+    /** Exports the query results on a connection from the data source, writing their xml to the passed output stream as
+     *  UTF-8. The stream is flushed but not closed.
+     * @param bindValues  Values for the '?' bind parameters of the query's filter condition, in order.
+     * @return The number of bytes written.
+     */
+    public long writeXml
+    (
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        OutputStream os
+    )
+        throws SQLException, IOException
+    {
+        try ( Connection conn = dataSource.getConnection() )
+        {
+            return writeXml(conn, xdaQry, bindValues, os);
+        }
+    }
+
+    /// Exports the query results on the passed connection, which is left open, writing their xml to the stream.
+    public long writeXml
+    (
+        Connection conn,
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        OutputStream os
+    )
+        throws SQLException, IOException
+    {
+        requireArg(conn, "connection");
+        requireArg(xdaQry, "query");
+        requireArg(os, "output stream");
+
+        BufferedOutputStream out = new BufferedOutputStream(os, OUTPUT_BUFFER_SIZE);
+
+        long bytes;
+
+        if ( xdaQry.getQueryResultStyle() == QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT )
+        {
+            TableOutputSpec ospec = xdaQry.getTableOutputSpec();
+            String collElName = ospec.getRowCollectionElementName();
+
+            byte[] startTag = ("<" + collElName + " xmlns=\"" + XdaExecutor.escapeXmlAttributeValue(ospec.getOutputXmlNamespace()) + "\"").getBytes(StandardCharsets.UTF_8);
+            out.write(startTag);
+
+            CopyTextDecoder decoder = new CopyTextDecoder(out, ">".getBytes(StandardCharsets.UTF_8));
+            copyOut(conn, getCopySql(membersQuery(xdaQry), bindValues), decoder);
+
+            // Postgres writes an element without content as an empty-element tag.
+            byte[] endTag = (decoder.getRowCount() > 0 ? "</" + collElName + ">" : "/>").getBytes(StandardCharsets.UTF_8);
+            out.write(endTag);
+
+            bytes = startTag.length + decoder.getByteCount() + endTag.length;
+        }
+        else
+        {
+            CopyTextDecoder decoder = new CopyTextDecoder(out);
+            copyOut(conn, getCopySql(xdaQry, bindValues), decoder);
+            bytes = decoder.getByteCount();
+        }
+
+        out.flush();
+
+        return bytes;
+    }
+
+    /** Returns the COPY statement exporting the passed query's results, with the passed bind values written in place of
+     *  the query's bind parameters. */
+    public String getCopySql
+    (
+        XdaQuery xdaQry,
+        List<?> bindValues
+    )
+    {
+        requireArg(xdaQry, "query");
+        requireArg(bindValues, "bind values");
+
+        if ( xdaQry.getOutputColumnsOption() != OutputColumnsInclusion.XML_COLUMN_ONLY )
+            throw new IllegalArgumentException("Queries exported by COPY must have only the xml column in their output.");
+
+        String sql = queryGenerator.getSql(xdaQry);
+
+        int bindParamCount = QueryPlan.countBindParameters(sql);
+        if ( bindParamCount != bindValues.size() )
+            throw new IllegalArgumentException("Query has " + bindParamCount + " bind parameters but " + bindValues.size() + " values were provided.");
+
+        StringBuilder sb = new StringBuilder(sql.length() + 32);
+        sb.append("COPY (\n");
+
+        int from = 0;
+        int paramIx = 0;
+        for ( int i = QueryPlan.nextBindParameterIndex(sql, 0); i != -1; i = QueryPlan.nextBindParameterIndex(sql, i + 1) )
+        {
+            sb.append(sql, from, i).append(toSqlLiteral(bindValues.get(paramIx++)));
+            from = i + 1;
+        }
+        sb.append(sql, from, sql.length());
+
+        sb.append("\n) TO STDOUT");
+
+        return sb.toString();
+    }
+
+    private static XdaQuery membersQuery(XdaQuery collQry)
+    {
+        return
+            new XdaQuery(
+                collQry.getTableOutputSpec(),
+                QueryResultStyle.MULTIPLE_ROW_COLLECTION_MEMBER_RESULTS,
+                collQry.getTableAlias(),
+                collQry.getFilterCondition(),
+                OrderByClauseInclusion.NA,
+                collQry.getXmlOutputColumnType(),
+                OutputColumnsInclusion.XML_COLUMN_ONLY
+            );
+    }
+
+    private static void copyOut(Connection conn, String copySql, OutputStream to) throws SQLException, IOException
+    {
+        conn.unwrap(PGConnection.class).getCopyAPI().copyOut(copySql, to);
+    }
+
+    // Strings are written as escape string constants, which are interpreted the same regardless of the
+    // standard_conforming_strings setting. Negative numbers are parenthesized, so that a minus sign preceding the
+    // parameter does not form a comment or change the meaning of the expression.
+    private static String toSqlLiteral(Object v)
+    {
+        if ( v == null )
+            return "null";
+        else if ( v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte || v instanceof BigInteger )
+            return toNumericLiteral(v.toString());
+        else if ( v instanceof BigDecimal )
+            return toNumericLiteral(((BigDecimal)v).toPlainString());
+        else if ( v instanceof Double || v instanceof Float )
+        {
+            double d = ((Number)v).doubleValue();
+            if ( Double.isNaN(d) || Double.isInfinite(d) )
+                throw new IllegalArgumentException("Non-finite bind value " + v + " cannot be written as a literal in a COPY statement.");
+            return toNumericLiteral(v.toString());
+        }
+        else if ( v instanceof Boolean )
+            return v.toString();
+        else if ( v instanceof String )
+        {
+            String s = (String)v;
+            if ( s.indexOf('\0') != -1 )
+                throw new IllegalArgumentException("String bind values containing NUL characters cannot be written as literals.");
+            return "E'" + s.replace("\\", "\\\\").replace("'", "''") + "'";
+        }
+        else if ( v instanceof java.sql.Timestamp )
+            return "timestamp '" + v + "'";
+        else if ( v instanceof java.sql.Date )
+            return "date '" + v + "'";
+        else
+            throw new IllegalArgumentException("Bind value of type " + v.getClass().getName() + " cannot be written as a literal in a COPY statement.");
+    }
+
+    private static String toNumericLiteral(String number)
+    {
+        return number.startsWith("-") ? "(" + number + ")" : number;
+    }
+
+
+    /** An output stream decoding the single column COPY text format output of a query, to which CopyManager.copyOut may
+     *  write directly. The column values of the rows are unescaped and written one after another to the underlying stream,
+     *  without the row terminators. Null values are written as nothing. An optional prefix is written before the first
+     *  row only, if there are any rows.
+     */
+    public static final class CopyTextDecoder extends OutputStream
+    {
+        private final OutputStream out;
+        private final byte[] firstRowPrefix;
+
+        private boolean escapePending = false;
+        private boolean atRowStart = true;
+        private long rowCount = 0;
+        private long byteCount = 0;
+
+        public CopyTextDecoder(OutputStream out)
+        {
+            this(out, new byte[0]);
+        }
+
+        public CopyTextDecoder(OutputStream out, byte[] firstRowPrefix)
+        {
+            this.out = requireArg(out, "output stream");
+            this.firstRowPrefix = requireArg(firstRowPrefix, "first row prefix");
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{ (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            int end = off + len;
+            int runStart = off; // start of the bytes not yet written which need no decoding
+
+            for ( int i = off; i < end; ++i )
+            {
+                byte c = b[i];
+
+                if ( atRowStart )
+                {
+                    atRowStart = false;
+                    if ( rowCount == 0 && firstRowPrefix.length > 0 )
+                        writeOut(firstRowPrefix, 0, firstRowPrefix.length);
+                }
+
+                if ( escapePending )
+                {
+                    escapePending = false;
+                    writeUnescaped(c);
+                    runStart = i + 1;
+                }
+                else if ( c == '\\' )
+                {
+                    writeOut(b, runStart, i - runStart);
+                    escapePending = true;
+                    runStart = i + 1;
+                }
+                else if ( c == '\n' )
+                {
+                    writeOut(b, runStart, i - runStart);
+                    ++rowCount;
+                    atRowStart = true;
+                    runStart = i + 1;
+                }
+            }
+
+            writeOut(b, runStart, end - runStart);
+        }
+
+        // Escapes generated by COPY TO in text format, a backslash before any other byte standing for the byte itself.
+        private void writeUnescaped(byte c) throws IOException
+        {
+            switch ( c )
+            {
+                case 'N': return; // null
+                case 'b': writeOut('\b'); return;
+                case 'f': writeOut('\f'); return;
+                case 'n': writeOut('\n'); return;
+                case 'r': writeOut('\r'); return;
+                case 't': writeOut('\t'); return;
+                case 'v': writeOut(0x0b); return;
+                default: writeOut(c);
+            }
+        }
+
+        private void writeOut(int b) throws IOException
+        {
+            out.write(b);
+            ++byteCount;
+        }
+
+        private void writeOut(byte[] b, int off, int len) throws IOException
+        {
+            if ( len > 0 )
+            {
+                out.write(b, off, len);
+                byteCount += len;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        /// The number of rows decoded, counted at their terminators.
+        public long getRowCount()
+        {
+            return rowCount;
+        }
+
+        /// The number of bytes written to the underlying stream, including any first row prefix.
+        public long getByteCount()
+        {
+            return byteCount;
+        }
+    }
+}
@@ -7,17 +7,19 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.sql.Types;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import static java.util.Collections.emptyList;
 
-import freemarker.cache.ClassTemplateLoader;
-import freemarker.template.Configuration;
-import freemarker.template.DefaultObjectWrapper;
 import freemarker.template.Template;
 
-import gov.fda.nctr.util.Freemarker;
+import gov.fda.nctr.util.Fingerprint;
+import gov.fda.nctr.util.IndentingStringBuilder;
 import gov.fda.nctr.util.Pair;
-import static gov.fda.nctr.util.CoreFuns.hashcode;
+import gov.fda.nctr.util.WeakValueInterner;
+import gov.fda.nctr.util.WeightedLruCache;
 import static gov.fda.nctr.util.CoreFuns.requireArg;
 import static gov.fda.nctr.util.Freemarker.applyTemplate;
+import static gov.fda.nctr.util.Freemarker.getClasspathTemplate;
 import static gov.fda.nctr.util.StringFuns.indent;
 import static gov.fda.nctr.util.StringFuns.lowercaseInitials;
 import static gov.fda.nctr.util.StringFuns.makeNameNotInSet;
@@ -35,29 +37,65 @@ public class QueryGenerator
 {
     private final DBMD dbmd;
 
+    private final SharedState sharedState;
+
     private final Template rowElementsQueryTemplate;
     private final Template rowCollectionElementQueryTemplate;
     private final Template rowForestQueryTemplate;
+    private final Template rowCollectionMembersQueryTemplate;
+    private final Template rowCollectionMemberBatchesQueryTemplate;
+    private final Template groupedRowForestQueryTemplate;
+
+    private final FieldElementContentExpressionGenerator fieldElementContentExpressionGenerator;
+
+    private final XmlOutputColumnType defaultXmlOutputColumnType;
+
+    private final XmlIndentation xmlIndentation;
+    private final Optional<Integer> xmlIndentationSize;
+
+    private final String largeCharTypeName;
+
+    private final boolean sortUnsortedRowElementCollectionsByPk;
+
+    private final int rowElementBatchSize;
+
+    public static final int DEFAULT_ROW_ELEMENT_BATCH_SIZE = 100;
 
-    private FieldElementContentExpressionGenerator fieldElementContentExpressionGenerator;
+    private final ChildAggregationStrategy childAggregationStrategy;
 
-    private XmlOutputColumnType defaultXmlOutputColumnType;
+    private final ParentLookupStrategy parentLookupStrategy;
 
-    private XmlIndentation xmlIndentation;
-    private Optional<Integer> xmlIndentationSize;
+    private final SubqueryHoisting subqueryHoisting;
 
-    private String largeCharTypeName;
+    // The names of the common table expressions of the rows queries hoisted into the WITH clause of the query being
+    // rendered, empty except in generators made for rendering queries with hoisted rows queries.
+    private final Map<RowsQueryKey,String> hoistedRowsQueryNames;
 
-    private boolean sortUnsortedRowElementCollectionsByPk;
+    private final RenderingEngine renderingEngine;
 
     // SQL caching
-    private boolean cacheGeneratedSqls;
-    private final Map<XdaQuery,String> cachedSqlsByXdaQuery;
+    private final boolean cacheGeneratedSqls;
+    private final WeightedLruCache<XdaQuery,String> sqlCache; // weighted by sql length
+
+    public static final long DEFAULT_SQL_CACHE_MAXIMUM_WEIGHT = 8 * 1024 * 1024; // total characters of cached sql
+
+    private final WeightedLruCache<QueryPlanKey,QueryPlan> queryPlanCache; // weighted by plan sql length
+
+    public static final long DEFAULT_QUERY_PLAN_CACHE_MAXIMUM_WEIGHT = 8 * 1024 * 1024;
+
+    private final WeightedLruCache<SubqueryFragmentKey,String> subqueryFragmentCache; // weighted by fragment length
+
+    public static final long DEFAULT_SUBQUERY_FRAGMENT_CACHE_MAXIMUM_WEIGHT = 8 * 1024 * 1024;
+
+    private static final FieldElementContentExpressionGenerator DEFAULT_FIELD_ELEMENT_CONTENT_EXPRESSION_GENERATOR =
+        new DefaultFieldElementContentExpressionGenerator();
 
-    private static final String CLASSPATH_TEMPLATES_DIR_PATH = "/templates";
     private static final String ROWELEMENTSSQUERY_TEMPLATE_NAME = "RowElementsQuery.ftl";
     private static final String ROWCOLLECTIONELEMENT_QUERY_TEMPLATE = "RowCollectionElementQuery.ftl";
     private static final String ROWFOREST_QUERY_TEMPLATE = "RowForestQuery.ftl";
+    private static final String ROWCOLLECTIONMEMBERS_QUERY_TEMPLATE = "RowCollectionMembersQuery.ftl";
+    private static final String ROWCOLLECTIONMEMBERBATCHES_QUERY_TEMPLATE = "RowCollectionMemberBatchesQuery.ftl";
+    private static final String GROUPEDROWFOREST_QUERY_TEMPLATE = "GroupedRowForestQuery.ftl";
 
     public enum XmlOutputColumnType { XML_TYPE, LARGE_CHAR_TYPE }
 
@@ -67,6 +105,10 @@ public class QueryGenerator
 
     public enum OrderByClauseInclusion { INCLUDE_ORDERBY_CLAUSE_IF_ORDERED, OMIT_ORDERBY_CLAUSE, NA }
 
+    /** Determines how SQL text is produced: by applying the FreeMarker query templates, or by emitting the same text directly
+     *  from Java code, which avoids building template models and the reflective template evaluation for each (sub)query. */
+    public enum RenderingEngine { FREEMARKER_TEMPLATES, DIRECT_EMITTER }
+
 
     public QueryGenerator(DBMD dbmd) throws IOException
     {
@@ -80,44 +122,154 @@ public class QueryGenerator
     )
         throws IOException
     {
-        this.dbmd = requireArg(dbmd, "database metadata");
-
-        this.defaultXmlOutputColumnType = defaultXmlOutputColType;
+        this(builder(dbmd).defaultXmlOutputColumnType(defaultXmlOutputColType));
+    }
 
-        this.cachedSqlsByXdaQuery = new HashMap<>();
+    private QueryGenerator(Builder b) throws IOException
+    {
+        this(b, SharedState.load(b.generatedSqlCacheMaximumWeight, b.queryPlanCacheMaximumWeight, b.subqueryFragmentCacheMaximumWeight));
+    }
 
-        this.sortUnsortedRowElementCollectionsByPk = false;
+    // Constructs a generator which shares the passed templates and caches, for generators built or derived from others.
+    private QueryGenerator(Builder b, SharedState sharedState)
+    {
+        this(b, sharedState, Collections.emptyMap());
+    }
 
-        this.fieldElementContentExpressionGenerator = new DefaultFieldElementContentExpressionGenerator();
+    private QueryGenerator(Builder b, SharedState sharedState, Map<RowsQueryKey,String> hoistedRowsQueryNames)
+    {
+        this.dbmd = b.dbmd;
+        this.sharedState = sharedState;
+
+        this.rowElementsQueryTemplate = sharedState.rowElementsQueryTemplate;
+        this.rowCollectionElementQueryTemplate = sharedState.rowCollectionElementQueryTemplate;
+        this.rowForestQueryTemplate = sharedState.rowForestQueryTemplate;
+        this.rowCollectionMembersQueryTemplate = sharedState.rowCollectionMembersQueryTemplate;
+        this.rowCollectionMemberBatchesQueryTemplate = sharedState.rowCollectionMemberBatchesQueryTemplate;
+        this.groupedRowForestQueryTemplate = sharedState.groupedRowForestQueryTemplate;
+
+        this.fieldElementContentExpressionGenerator = b.fieldElementContentExpressionGenerator;
+        this.defaultXmlOutputColumnType = b.defaultXmlOutputColumnType;
+        this.xmlIndentation = b.xmlIndentation;
+        this.xmlIndentationSize = b.xmlIndentationSize;
+        this.sortUnsortedRowElementCollectionsByPk = b.sortUnsortedRowElementCollectionsByPk;
+        this.rowElementBatchSize = b.rowElementBatchSize;
+        this.childAggregationStrategy = b.childAggregationStrategy;
+        this.parentLookupStrategy = b.parentLookupStrategy;
+        this.subqueryHoisting = b.subqueryHoisting;
+        this.hoistedRowsQueryNames = hoistedRowsQueryNames;
+        this.renderingEngine = b.renderingEngine;
+        this.cacheGeneratedSqls = b.cacheGeneratedSqls;
 
         String dbms = dbmd.getDbmsName();
 
         this.largeCharTypeName = dbms != null && dbms.toUpperCase().contains("POSTGRES") ? "text" : "clob";
 
-        // Oracle needs NO INDENT when serializing xml to avoid capricious indentation of xmltype fields mixed with unindented surroundings.
-        this.xmlIndentation = dbms != null && dbms.toUpperCase().contains("ORACLE") ? XmlIndentation.NO_INDENT : XmlIndentation.INDENT_UNSPECIFIED;
+        if ( (childAggregationStrategy == ChildAggregationStrategy.LATERAL_JOINS || parentLookupStrategy == ParentLookupStrategy.LATERAL_JOINS) && !supportsLateralJoins() )
+            throw new IllegalArgumentException("Lateral joins are only supported for PostgreSQL.");
+
+        Caches caches = sharedState.getCaches(new RenderingOptions(this));
+        this.sqlCache = caches.sqlCache;
+        this.queryPlanCache = caches.queryPlanCache;
+        this.subqueryFragmentCache = caches.subqueryFragmentCache;
+    }
 
-        Configuration conf = getTemplateConfig();
+    /** Returns a builder for a query generator for the passed database metadata, with all options at their defaults.
+     *  Query generators are immutable and safe for use by any number of threads without locking. */
+    public static Builder builder(DBMD dbmd)
+    {
+        return new Builder(dbmd);
+    }
 
-        // Load templates.
-        this.rowElementsQueryTemplate = conf.getTemplate(ROWELEMENTSSQUERY_TEMPLATE_NAME);
-        this.rowCollectionElementQueryTemplate = conf.getTemplate(ROWCOLLECTIONELEMENT_QUERY_TEMPLATE);
-        this.rowForestQueryTemplate = conf.getTemplate(ROWFOREST_QUERY_TEMPLATE);
+    /** Returns a builder initialized with the options of this generator. Generators built from it share this generator's
+     *  templates, and its caches when their rendering options and cache maximum weights are the same. */
+    public Builder toBuilder()
+    {
+        Builder b = new Builder(dbmd);
+        b.sharedState = Optional.of(sharedState);
+        b.fieldElementContentExpressionGenerator = fieldElementContentExpressionGenerator;
+        b.defaultXmlOutputColumnType = defaultXmlOutputColumnType;
+        b.xmlIndentation = xmlIndentation;
+        b.xmlIndentationSize = xmlIndentationSize;
+        b.sortUnsortedRowElementCollectionsByPk = sortUnsortedRowElementCollectionsByPk;
+        b.rowElementBatchSize = rowElementBatchSize;
+        b.childAggregationStrategy = childAggregationStrategy;
+        b.parentLookupStrategy = parentLookupStrategy;
+        b.subqueryHoisting = subqueryHoisting;
+        b.renderingEngine = renderingEngine;
+        b.cacheGeneratedSqls = cacheGeneratedSqls;
+        b.generatedSqlCacheMaximumWeight = sharedState.generatedSqlCacheMaximumWeight;
+        b.queryPlanCacheMaximumWeight = sharedState.queryPlanCacheMaximumWeight;
+        b.subqueryFragmentCacheMaximumWeight = sharedState.subqueryFragmentCacheMaximumWeight;
+        return b;
     }
 
-    public void setDefaultXmlOutputColumnType(XmlOutputColumnType t)
+    /////////////////////////////////////////////////////////////////////
+    // Derived generators
+    // Each returns a generator differing from this one only in the one option, which shares this generator's templates,
+    // and also its caches when the option does not affect the generated SQL text.
+
+    public QueryGenerator withDefaultXmlOutputColumnType(XmlOutputColumnType t)
     {
-        this.defaultXmlOutputColumnType = t;
+        return new QueryGenerator(toBuilder().defaultXmlOutputColumnType(t), sharedState);
     }
 
-    public XmlOutputColumnType getDefaultXmlOutputColumnType()
+    public QueryGenerator withCacheGeneratedSql(boolean cache)
     {
-        return defaultXmlOutputColumnType;
+        return new QueryGenerator(toBuilder().cacheGeneratedSql(cache), sharedState);
+    }
+
+    public QueryGenerator withSortUnsortedRowElementCollectionsByPrimaryKeys(boolean sort)
+    {
+        return new QueryGenerator(toBuilder().sortUnsortedRowElementCollectionsByPrimaryKeys(sort), sharedState);
+    }
+
+    public QueryGenerator withRowElementBatchSize(int rowElements)
+    {
+        return new QueryGenerator(toBuilder().rowElementBatchSize(rowElements), sharedState);
+    }
+
+    public QueryGenerator withChildAggregationStrategy(ChildAggregationStrategy strategy)
+    {
+        return new QueryGenerator(toBuilder().childAggregationStrategy(strategy), sharedState);
+    }
+
+    public QueryGenerator withParentLookupStrategy(ParentLookupStrategy strategy)
+    {
+        return new QueryGenerator(toBuilder().parentLookupStrategy(strategy), sharedState);
+    }
+
+    public QueryGenerator withSubqueryHoisting(SubqueryHoisting hoisting)
+    {
+        return new QueryGenerator(toBuilder().subqueryHoisting(hoisting), sharedState);
+    }
+
+    public QueryGenerator withXmlIndentation(XmlIndentation indent)
+    {
+        return new QueryGenerator(toBuilder().xmlIndentation(indent), sharedState);
     }
 
-    public void setCacheGeneratedSql(boolean cache)
+    public QueryGenerator withXmlIndentationSize(Integer size)
     {
-        cacheGeneratedSqls = cache;
+        return new QueryGenerator(toBuilder().xmlIndentationSize(size), sharedState);
+    }
+
+    public QueryGenerator withRenderingEngine(RenderingEngine engine)
+    {
+        return new QueryGenerator(toBuilder().renderingEngine(engine), sharedState);
+    }
+
+    public QueryGenerator withFieldElementContentExpressionGenerator(FieldElementContentExpressionGenerator g)
+    {
+        return new QueryGenerator(toBuilder().fieldElementContentExpressionGenerator(g), sharedState);
+    }
+
+    // Derived generators
+    /////////////////////////////////////////////////////////////////////
+
+    public XmlOutputColumnType getDefaultXmlOutputColumnType()
+    {
+        return defaultXmlOutputColumnType;
     }
 
     public boolean getCacheGeneratedSql()
@@ -125,18 +277,36 @@ public class QueryGenerator
         return cacheGeneratedSqls;
     }
 
+    /** Clears the generated SQL, query plan and subquery fragment caches. The caches are shared with any generators built
+     *  or derived from this one having the same rendering options, whose cached entries are cleared as well. */
     public void clearGeneratedSqlCache()
     {
-        cachedSqlsByXdaQuery.clear();
+        sqlCache.clear();
+        queryPlanCache.clear();
+        subqueryFragmentCache.clear();
     }
 
-    /** When enabled, all row element collections for table output specifications with no sort order defined are sorted by
-     * the primary keys of their tables. This should be useful for testing or other situations where deterministic output
-     * is wanted.
-     */
-    public void setSortUnsortedRowElementCollectionsByPrimaryKeys(boolean sort)
+    public long getGeneratedSqlCacheMaximumWeight()
+    {
+        return sqlCache.getMaximumWeight();
+    }
+
+    /** Returns a snapshot of the hit, miss, eviction and load time counters of the generated SQL cache. */
+    public WeightedLruCache.Stats getGeneratedSqlCacheStats()
     {
-        sortUnsortedRowElementCollectionsByPk = sort;
+        return sqlCache.getStats();
+    }
+
+    public WeightedLruCache.Stats getQueryPlanCacheStats()
+    {
+        return queryPlanCache.getStats();
+    }
+
+    /** Returns a snapshot of the counters of the subquery fragment cache, whose hits are child or parent subqueries
+     *  reused within or between queries. Subquery fragments are cached when generated SQL is cached. */
+    public WeightedLruCache.Stats getSubqueryFragmentCacheStats()
+    {
+        return subqueryFragmentCache.getStats();
     }
 
     public boolean getSortUnsortedRowElementCollectionsByPrimaryKeys()
@@ -144,10 +314,42 @@ public class QueryGenerator
         return sortUnsortedRowElementCollectionsByPk;
     }
 
+    public int getRowElementBatchSize()
+    {
+        return rowElementBatchSize;
+    }
+
+    public ChildAggregationStrategy getChildAggregationStrategy()
+    {
+        return childAggregationStrategy;
+    }
+
+    public ParentLookupStrategy getParentLookupStrategy()
+    {
+        return parentLookupStrategy;
+    }
+
+    public SubqueryHoisting getSubqueryHoisting()
+    {
+        return subqueryHoisting;
+    }
+
+    /// Whether the lateral join strategies are supported, which they are only for PostgreSQL.
+    public boolean supportsLateralJoins()
+    {
+        return isPostgres();
+    }
+
+    private boolean isPostgres()
+    {
+        String dbms = dbmd.getDbmsName();
+        return dbms != null && dbms.toUpperCase().contains("POSTGRES");
+    }
 
-    public void setXmlIndentation(XmlIndentation indent)
+    private boolean isOracle()
     {
-        xmlIndentation = indent;
+        String dbms = dbmd.getDbmsName();
+        return dbms != null && dbms.toUpperCase().contains("ORACLE");
     }
 
     public XmlIndentation getXmlIndentation()
@@ -155,9 +357,9 @@ public class QueryGenerator
         return xmlIndentation;
     }
 
-    public void setXmlIndentationSize(Integer size)
+    public RenderingEngine getRenderingEngine()
     {
-        xmlIndentationSize = Optional.ofNullable(size);
+        return renderingEngine;
     }
 
     public Optional<Integer> getXmlIndentationSize()
@@ -191,6 +393,20 @@ public class QueryGenerator
                     xdaQry.getTableAlias(),
                     xdaQry.getFilterCondition()
                 );
+            case MULTIPLE_ROW_COLLECTION_MEMBER_RESULTS:
+                return getRowCollectionMembersQuery(
+                    xdaQry.getTableOutputSpec(),
+                    xdaQry.getTableAlias(),
+                    xdaQry.getFilterCondition(),
+                    xdaQry.getXmlOutputColumnType()
+                );
+            case MULTIPLE_ROW_COLLECTION_MEMBER_BATCH_RESULTS:
+                return getRowCollectionMemberBatchesQuery(
+                    xdaQry.getTableOutputSpec(),
+                    xdaQry.getTableAlias(),
+                    xdaQry.getFilterCondition(),
+                    xdaQry.getXmlOutputColumnType()
+                );
             default:
                 throw new IllegalArgumentException("Invalid or unsupported query style in XdaQuery:" + xdaQry.getQueryResultStyle());
         }
@@ -277,46 +493,7 @@ public class QueryGenerator
                 outputColsOpt
             );
 
-        Optional<String> cachedSql = cachedSql(xdaQry);
-
-        if ( cachedSql.isPresent() )
-            return cachedSql.get();
-        else
-        {
-            final RelId relId = ospec.getRelationId();
-
-            Map<String,Object> templateModel = new HashMap<>();
-            templateModel.put("relId", relId);
-            templateModel.put("includeTableFieldColumns", outputColsOpt == OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML);
-            templateModel.put("fieldElContentExprGen", fieldElementContentExpressionGenerator);
-            templateModel.put("convertToLargeChar", xmlColType == XmlOutputColumnType.LARGE_CHAR_TYPE);
-            templateModel.put("largeCharType", largeCharTypeName);
-            templateModel.put("xmlIndentation", getXmlIndentationClause());
-            templateModel.put("outputFields", ospec.getOutputFields());
-            templateModel.put("rowElementName", ospec.getRowElementName());
-            templateModel.put("childSubqueries", getChildTableSubqueries(ospec, tableAlias, Optional.of("     ")));
-            templateModel.put("parentSubqueries", getParentTableSubqueries(ospec, tableAlias, Optional.of("     ")));
-            templateModel.put("tableAlias", tableAlias);
-            templateModel.put("filterCondition", filterCondition);
-
-            if ( orderByIncl == INCLUDE_ORDERBY_CLAUSE_IF_ORDERED )
-            {
-                Optional<RowOrdering> rowOrdering =
-                    ospec.getRowOrdering().isPresent() ? ospec.getRowOrdering()
-                    : sortUnsortedRowElementCollectionsByPk ? getPkRowOrdering(ospec) : Optional.empty();
-
-                rowOrdering.ifPresent(ordering ->
-                    templateModel.put("orderByExprs", ordering.getOrderByExpressions(tableAlias))
-                );
-            }
-
-            String sql = applyTemplate(rowElementsQueryTemplate, templateModel);
-
-            if ( cacheGeneratedSqls )
-                cachedSqlsByXdaQuery.put(xdaQry, sql);
-
-            return sql;
-        }
+        return cachedSql(xdaQry);
     }
 
     public String getRowCollectionElementQuery(TableOutputSpec ospec) // Req
@@ -353,10 +530,8 @@ public class QueryGenerator
         Objects.requireNonNull(filterCondOverRowsQuery);
         Objects.requireNonNull(xmlColType);
 
-        String tableAlias = lowercaseInitials(ospec.getRelationId().getName(),"_");
-
         // Provide an alias for the FROM-clause row-elements subquery, as some databases such as Postgres require an alias.
-        String rowsQueryAlias = maybeRowsQueryAlias.orElseGet(() -> tableAlias + "_row");
+        String rowsQueryAlias = maybeRowsQueryAlias.orElseGet(() -> lowercaseInitials(ospec.getRelationId().getName(),"_") + "_row");
 
         XdaQuery xdaQry =
             new XdaQuery(
@@ -369,46 +544,7 @@ public class QueryGenerator
                 OutputColumnsInclusion.XML_COLUMN_ONLY
             );
 
-        Optional<String> cachedSql = cachedSql(xdaQry);
-
-        if ( cachedSql.isPresent() )
-            return cachedSql.get();
-        else
-        {
-            String rowsQuery =
-                getRowElementsQuery(
-                    ospec,
-                    tableAlias,
-                    Optional.empty(),  // no WHERE clause condition
-                    OMIT_ORDERBY_CLAUSE,
-                    XmlOutputColumnType.XML_TYPE,
-                    OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML // Export all TOS-included fields for possible use in WHERE condition or ordering over the rows query.
-                );
-
-            Map<String,Object> templateModel = new HashMap<>();
-            templateModel.put("rowCollectionElementName", ospec.getRowCollectionElementName());
-            templateModel.put("convertToLargeChar", xmlColType == XmlOutputColumnType.LARGE_CHAR_TYPE);
-            templateModel.put("largeCharType", largeCharTypeName);
-            templateModel.put("xmlIndentation", getXmlIndentationClause());
-            templateModel.put("rowsQuery", indent(rowsQuery, "   ", false));
-            templateModel.put("rowsQueryAlias", rowsQueryAlias);
-            templateModel.put("whereCond", filterCondOverRowsQuery.map(cond -> "where\n" + indent(cond, "  ")).orElse(""));
-
-            Optional<RowOrdering> rowOrdering =
-                ospec.getRowOrdering().isPresent() ? ospec.getRowOrdering()
-                : sortUnsortedRowElementCollectionsByPk ? getPkRowOrdering(ospec) : Optional.empty();
-
-            rowOrdering.ifPresent(ordering ->
-                templateModel.put("orderByExprs", ordering.getOrderByExpressions(rowsQueryAlias))
-            );
-
-            String sql = applyTemplate(rowCollectionElementQueryTemplate, templateModel);
-
-            if ( cacheGeneratedSqls )
-                cachedSqlsByXdaQuery.put(xdaQry, sql);
-
-            return sql;
-        }
+        return cachedSql(xdaQry);
     }
 
     /** Return a single row whose rowcoll_xml column contains a forest of xml elements representing the rows of the indicated table for
@@ -421,10 +557,8 @@ public class QueryGenerator
         Optional<String> filterCondOverRowsQuery
     )
     {
-        String tableAlias = lowercaseInitials(ospec.getRelationId().getName(),"_");
-
         // Provide an alias for the FROM-clause row-elements subquery, as some databases such as Postgres require an alias.
-        String rowsQueryAlias = maybeRowsQueryAlias.orElseGet(() -> tableAlias + "_row");
+        String rowsQueryAlias = maybeRowsQueryAlias.orElseGet(() -> lowercaseInitials(ospec.getRelationId().getName(),"_") + "_row");
 
         XdaQuery xdaQry =
             new XdaQuery(
@@ -437,197 +571,2018 @@ public class QueryGenerator
                 OutputColumnsInclusion.XML_COLUMN_ONLY
             );
 
-        Optional<String> cachedSql = cachedSql(xdaQry);
-
-        if ( cachedSql.isPresent() )
-            return cachedSql.get();
-        else
-        {
-            String rowsQuery =
-                getRowElementsQuery(
-                    ospec,
-                    tableAlias,
-                    Optional.empty(),
-                    OMIT_ORDERBY_CLAUSE,
-                    XmlOutputColumnType.XML_TYPE,
-                    OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML // Export all TOS-included fields for possible use in WHERE condition over the rows query.
-                );
-
-
-            Map<String,Object> templateModel = new HashMap<>();
-            templateModel.put("rowsQuery", indent(rowsQuery, "   ", false));
-            templateModel.put("rowsQueryAlias", rowsQueryAlias);
-            templateModel.put("whereCond", filterCondOverRowsQuery.map(cond -> "where\n" + indent(cond, "  ")).orElse(""));
-
-            Optional<RowOrdering> rowOrdering =
-                ospec.getRowOrdering().isPresent() ? ospec.getRowOrdering()
-                : sortUnsortedRowElementCollectionsByPk ? getPkRowOrdering(ospec) : Optional.empty();
-
-            rowOrdering.ifPresent(ordering ->
-                templateModel.put("orderByExprs", ordering.getOrderByExpressions(rowsQueryAlias))
-            );
-
-            String sql = applyTemplate(rowForestQueryTemplate, templateModel);
-
-            if ( cacheGeneratedSqls )
-                cachedSqlsByXdaQuery.put(xdaQry, sql);
-
-            return sql;
-        }
+        return cachedSql(xdaQry);
     }
 
 
-    private List<String> getChildTableSubqueries
+    /** Returns the query plan for row elements queries of the passed output specification, from which the SQL for any
+     *  table alias, filter condition and ORDER BY clause inclusion can be produced without rendering the query again.
+     *  Query plans are cached.
+     */
+    public QueryPlan getRowElementsQueryPlan
     (
-        TableOutputSpec parentOspec,
-        String parentTableAlias,
-        Optional<String> trailingLinesPrefix
+        TableOutputSpec ospec,
+        XmlOutputColumnType xmlColType,
+        OutputColumnsInclusion outputColsOpt
     )
     {
-        List<String> childTableSubqueries = new ArrayList<>();
-
-        // Child tables
-        for ( Pair<ForeignKey,TableOutputSpec> p: parentOspec.getChildOutputSpecsByFK() )
-        {
-            ForeignKey fk = p.fst();
-            TableOutputSpec childOspec = p.snd();
-
-            // Make sure the child's alias is chosen to be distinct from the parent's since they will be in the same namespace.
-            String childRowElemsQueryAlias =
-                makeNameNotInSet(
-                    lowercaseInitials(childOspec.getRelationId().getName(),"_") + "_row",
-                   Collections.singleton(parentTableAlias)
-                );
-
-            String childRowElemsQueryCond =
-                fk.asEquation(
-                    childRowElemsQueryAlias,
-                    parentTableAlias,
-                    EquationStyle.SOURCE_ON_LEFTHAND_SIDE
-                );
-
-            String childCollSubqry =
-                getRowCollectionElementQuery(
-                    childOspec,
-                    Optional.of(childRowElemsQueryAlias),
-                    Optional.of(childRowElemsQueryCond),
-                    XmlOutputColumnType.XML_TYPE
-                );
-
-
-            if ( trailingLinesPrefix.isPresent() )
-                childCollSubqry = indent(childCollSubqry, trailingLinesPrefix.get(), false);
-
-            childTableSubqueries.add(childCollSubqry);
-        }
-
-        return childTableSubqueries;
+        return getQueryPlan(new QueryPlanKey(ospec, XdaQuery.QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, xmlColType, outputColsOpt));
     }
 
+    public QueryPlan getRowElementsQueryPlan(TableOutputSpec ospec)
+    {
+        return getRowElementsQueryPlan(ospec, defaultXmlOutputColumnType, OutputColumnsInclusion.XML_COLUMN_ONLY);
+    }
 
-    private List<String> getParentTableSubqueries
+    /// Returns the query plan for row collection element queries, its table alias slot being the rows query alias.
+    public QueryPlan getRowCollectionElementQueryPlan
     (
-        TableOutputSpec childOspec,
-        String childTableAlias,
-        Optional<String> trailingLinesPrefix
+        TableOutputSpec ospec,
+        XmlOutputColumnType xmlColType
     )
     {
-        List<String> parentTableSubqueries = new ArrayList<>();
-
-        // Parent tables
-        for ( Pair<ForeignKey,TableOutputSpec> p: childOspec.getParentOutputSpecsByFK() )
-        {
-            ForeignKey fk = p.fst();
-            TableOutputSpec parentOspec = p.snd();
-
-            String parentTableAlias =
-                makeNameNotInSet(
-                    lowercaseInitials(parentOspec.getRelationId().getName(),"_"),
-                    Collections.singleton(childTableAlias)
-                );
-
-            String parentRowsCond =
-                fk.asEquation(
-                    childTableAlias,
-                    parentTableAlias,
-                    EquationStyle.TARGET_ON_LEFTHAND_SIDE
-                );
-
-            String parentRowElsQuery =
-                getRowElementsQuery(
-                    parentOspec,
-                    parentTableAlias,
-                    Optional.of(parentRowsCond),
-                    OMIT_ORDERBY_CLAUSE,
-                    XmlOutputColumnType.XML_TYPE,
-                    OutputColumnsInclusion.XML_COLUMN_ONLY
-                );
-
-            if ( trailingLinesPrefix.isPresent() )
-                parentRowElsQuery = indent(parentRowElsQuery, trailingLinesPrefix.get(), false);
-
-            parentTableSubqueries.add(parentRowElsQuery);
-        }
-
-        return parentTableSubqueries;
+        return getQueryPlan(new QueryPlanKey(ospec, XdaQuery.QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT, xmlColType, OutputColumnsInclusion.XML_COLUMN_ONLY));
     }
 
-    private Optional<String> cachedSql(XdaQuery xdaQry)
+    /// Returns the query plan for row forest queries, its table alias slot being the rows query alias.
+    public QueryPlan getRowForestQueryPlan(TableOutputSpec ospec)
     {
-        if ( cachedSqlsByXdaQuery.size() == 0 ) // Avoid potentially expensive hash code generation (due to TableOutputSpec) when cache is empty.
-            return Optional.empty();
-        else
-            return Optional.ofNullable(cachedSqlsByXdaQuery.get(xdaQry));
+        return getQueryPlan(new QueryPlanKey(ospec, XdaQuery.QueryResultStyle.SINGLE_ROW_ELEMENT_FOREST_RESULT, XmlOutputColumnType.XML_TYPE, OutputColumnsInclusion.XML_COLUMN_ONLY));
     }
 
-    private Optional<String> getXmlIndentationClause()
+    /** Returns a query producing the row elements of the corresponding row collection element query as separate result
+     *  rows, in the collection's order, in a column named row_xml. The row elements are rendered as within the collection
+     *  element, so that writing the collection element's start tag, the row elements in result order and the end tag
+     *  reproduces the collection query's document, without aggregating the rows in the database. The rows query alias
+     *  and filter condition are as for getRowCollectionElementQuery.
+     */
+    public String getRowCollectionMembersQuery
+    (
+        TableOutputSpec ospec,
+        Optional<String> maybeRowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery,
+        XmlOutputColumnType xmlColType
+    )
     {
-        switch ( xmlIndentation )
-        {
-            case INDENT_UNSPECIFIED: return Optional.empty();
-            case NO_INDENT: return Optional.of("no indent");
-            default:
-                return Optional.of("indent" + xmlIndentationSize.map(size -> " " + size).orElse(""));
-        }
-    }
+        Objects.requireNonNull(ospec);
+        Objects.requireNonNull(maybeRowsQueryAlias);
+        Objects.requireNonNull(filterCondOverRowsQuery);
+        Objects.requireNonNull(xmlColType);
 
+        String rowsQueryAlias = maybeRowsQueryAlias.orElseGet(() -> lowercaseInitials(ospec.getRelationId().getName(),"_") + "_row");
 
-    public DBMD getDatabaseMetaData()
-    {
-        return dbmd;
-    }
+        XdaQuery xdaQry =
+            new XdaQuery(
+                ospec,
+                XdaQuery.QueryResultStyle.MULTIPLE_ROW_COLLECTION_MEMBER_RESULTS,
+                Optional.of(rowsQueryAlias),
+                filterCondOverRowsQuery,
+                OrderByClauseInclusion.NA,
+                xmlColType,
+                OutputColumnsInclusion.XML_COLUMN_ONLY
+            );
 
-    public FieldElementContentExpressionGenerator getFieldElementContentExpressionGenerator()
-    {
-        return fieldElementContentExpressionGenerator;
+        return cachedSql(xdaQry);
     }
 
-    public void setFieldElementContentExpressionGenerator(FieldElementContentExpressionGenerator g)
+    public String getRowCollectionMembersQuery
+    (
+        TableOutputSpec ospec,
+        Optional<String> rowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery
+    )
     {
-        this.fieldElementContentExpressionGenerator = g;
+        return getRowCollectionMembersQuery(ospec, rowsQueryAlias, filterCondOverRowsQuery, defaultXmlOutputColumnType);
     }
 
-    private Optional<RowOrdering> getPkRowOrdering(TableOutputSpec ospec)
+    /// Returns the query plan for row collection members queries, its table alias slot being the rows query alias.
+    public QueryPlan getRowCollectionMembersQueryPlan
+    (
+        TableOutputSpec ospec,
+        XmlOutputColumnType xmlColType
+    )
     {
-        List<String> pkFieldNames = dbmd.getPrimaryKeyFieldNames(ospec.getRelationId());
-
-        if ( pkFieldNames.size() > 0 )
-            return Optional.of(RowOrdering.fields(pkFieldNames));
-        else
-            return Optional.empty();
+        return getQueryPlan(new QueryPlanKey(ospec, XdaQuery.QueryResultStyle.MULTIPLE_ROW_COLLECTION_MEMBER_RESULTS, xmlColType, OutputColumnsInclusion.XML_COLUMN_ONLY));
     }
 
-    private static Configuration getTemplateConfig()
-    {
-        Configuration templateConfig = new Configuration(Freemarker.compatibilityVersion);
-        templateConfig.setTemplateLoader(new ClassTemplateLoader(QueryGenerator.class, CLASSPATH_TEMPLATES_DIR_PATH));
-        templateConfig.setObjectWrapper(new DefaultObjectWrapper(Freemarker.compatibilityVersion));
-        return templateConfig;
+    /** Returns a query producing the row elements of the corresponding row collection element query in batches of this
+     *  generator's row element batch size, each result row holding the concatenated xml of the next batch of consecutive
+     *  row elements in the collection's order, in a column named row_xml. Writing the collection element's start tag, the
+     *  batches in result order and the end tag reproduces the collection query's document, as for the row collection
+     *  members query, but with one result row and xml value per batch instead of per row element. The rows query alias and
+     *  filter condition are as for getRowCollectionElementQuery.
+     */
+    public String getRowCollectionMemberBatchesQuery
+    (
+        TableOutputSpec ospec,
+        Optional<String> maybeRowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery,
+        XmlOutputColumnType xmlColType
+    )
+    {
+        Objects.requireNonNull(ospec);
+        Objects.requireNonNull(maybeRowsQueryAlias);
+        Objects.requireNonNull(filterCondOverRowsQuery);
+        Objects.requireNonNull(xmlColType);
+
+        String rowsQueryAlias = maybeRowsQueryAlias.orElseGet(() -> lowercaseInitials(ospec.getRelationId().getName(),"_") + "_row");
+
+        XdaQuery xdaQry =
+            new XdaQuery(
+                ospec,
+                XdaQuery.QueryResultStyle.MULTIPLE_ROW_COLLECTION_MEMBER_BATCH_RESULTS,
+                Optional.of(rowsQueryAlias),
+                filterCondOverRowsQuery,
+                OrderByClauseInclusion.NA,
+                xmlColType,
+                OutputColumnsInclusion.XML_COLUMN_ONLY
+            );
+
+        return cachedSql(xdaQry);
+    }
+
+    public String getRowCollectionMemberBatchesQuery
+    (
+        TableOutputSpec ospec,
+        Optional<String> rowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery
+    )
+    {
+        return getRowCollectionMemberBatchesQuery(ospec, rowsQueryAlias, filterCondOverRowsQuery, defaultXmlOutputColumnType);
+    }
+
+    /// Returns the query plan for row collection member batches queries, its table alias slot being the rows query alias.
+    public QueryPlan getRowCollectionMemberBatchesQueryPlan
+    (
+        TableOutputSpec ospec,
+        XmlOutputColumnType xmlColType
+    )
+    {
+        return getQueryPlan(new QueryPlanKey(ospec, XdaQuery.QueryResultStyle.MULTIPLE_ROW_COLLECTION_MEMBER_BATCH_RESULTS, xmlColType, OutputColumnsInclusion.XML_COLUMN_ONLY));
+    }
+
+    /** Returns a query producing the row elements for any number of primary key values of the output specification's
+     *  table in one execution, each result row being tagged with the position of its key in the requested keys. The key
+     *  values are bound as one array per primary key column, in primary key column order: an array of the column's type
+     *  for Postgres, which is expanded with unnest, or a SQL collection (SYS.ODCINUMBERLIST, SYS.ODCIVARCHAR2LIST or
+     *  SYS.ODCIDATELIST) for Oracle, expanded with table(). The i'th elements of the arrays form the i'th requested key.
+     *  The result has columns key_ix, the 1-based position of the row's key in the arrays, and row_xml, the row element
+     *  as rendered by the row elements query, ordered by key_ix. Keys not matching any row produce no result row, and a
+     *  key appearing more than once in the arrays produces a result row for each of its positions.
+     */
+    public String getRowElementsByKeysQuery
+    (
+        TableOutputSpec ospec,
+        XmlOutputColumnType xmlColType
+    )
+    {
+        Objects.requireNonNull(ospec);
+        Objects.requireNonNull(xmlColType);
+
+        List<Field> pkFields = getPrimaryKeyFields(ospec.getRelationId());
+        if ( pkFields.isEmpty() )
+            throw new IllegalArgumentException("Table " + ospec.getRelationId() + " has no primary key by which to fetch its rows.");
+
+        String rowsQueryAlias = lowercaseInitials(ospec.getRelationId().getName(),"_") + "_row";
+
+        // Export all TOS-included fields for the join to the key values.
+        String rowsQuery = getRowElementsQuery(ospec, lowercaseInitials(ospec.getRelationId().getName(),"_"), Optional.empty(), OMIT_ORDERBY_CLAUSE, xmlColType, OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML);
+
+        StringBuilder sb = new StringBuilder(rowsQuery.length() + 256);
+        sb.append("select req_keys.key_ix, ").append(rowsQueryAlias).append(".row_xml\n");
+        sb.append("from\n ( ").append(indent(rowsQuery, "   ", false)).append("\n ) ").append(rowsQueryAlias).append('\n');
+        sb.append("join ").append(makeKeysRelation(pkFields)).append('\n');
+        sb.append("  on ");
+        for ( int i = 0; i < pkFields.size(); ++i )
+        {
+            if ( i > 0 )
+                sb.append("\n  and ");
+            sb.append(rowsQueryAlias).append('.').append(pkFields.get(i).getName()).append(" = req_keys.key_").append(i + 1);
+        }
+        sb.append("\norder by req_keys.key_ix");
+
+        return sb.toString();
+    }
+
+    public String getRowElementsByKeysQuery(TableOutputSpec ospec)
+    {
+        return getRowElementsByKeysQuery(ospec, defaultXmlOutputColumnType);
+    }
+
+    /// Returns the fields of the primary key of the passed table in primary key column order.
+    public List<Field> getPrimaryKeyFields(RelId relId)
+    {
+        List<Field> fields = dbmd.getRelationMetaData(relId).getFields();
+
+        List<Field> pkFields = new ArrayList<>();
+        for ( String pkFieldName: dbmd.getPrimaryKeyFieldNames(relId) )
+        {
+            for ( Field f: fields )
+            {
+                if ( f.getName().equals(pkFieldName) )
+                    pkFields.add(f);
+            }
+        }
+
+        return pkFields;
+    }
+
+    // A relation req_keys of the bound key arrays with columns key_1, ..., key_n and key_ix, the position of each key in the arrays.
+    private String makeKeysRelation(List<Field> pkFields)
+    {
+        if ( largeCharTypeName.equals("text") ) // Postgres
+        {
+            StringBuilder sb = new StringBuilder("unnest(");
+            for ( int i = 0; i < pkFields.size(); ++i )
+            {
+                if ( i > 0 )
+                    sb.append(", ");
+                sb.append("cast(? as ").append(pkFields.get(i).getDatabaseType()).append("[])");
+            }
+            sb.append(") with ordinality as req_keys(");
+            for ( int i = 1; i <= pkFields.size(); ++i )
+                sb.append("key_").append(i).append(", ");
+            sb.append("key_ix)");
+            return sb.toString();
+        }
+        else
+        {
+            // Collection elements are numbered by rownum in collection order, and the numbered elements of the collections
+            // for the key columns are joined on their numbers.
+            StringBuilder sb = new StringBuilder("(select k1.key_ix");
+            for ( int i = 1; i <= pkFields.size(); ++i )
+                sb.append(", k").append(i).append(".key_").append(i);
+            sb.append("\n  from ");
+            for ( int i = 1; i <= pkFields.size(); ++i )
+            {
+                if ( i > 1 )
+                    sb.append("\n  join ");
+                sb.append("(select rownum key_ix, column_value key_").append(i).append(" from table(?)) k").append(i);
+                if ( i > 1 )
+                    sb.append(" on k").append(i).append(".key_ix = k1.key_ix");
+            }
+            sb.append(") req_keys");
+            return sb.toString();
+        }
+    }
+
+    /** Returns a query for a page of at most pageSize rows of the passed row elements or row collection element query,
+     *  for keyset (seek) pagination. Rows are ordered by the keyset of the query's table output specification: the
+     *  fields of its row ordering followed by any primary key fields not among them, or else the primary key fields, all
+     *  of which must be non-nullable and of types supported by KeysetPageToken. For pages after the first, seekAfterKey adds a predicate selecting only the rows
+     *  following the last row of the previous page in keyset order. The query's table alias and filter condition apply
+     *  as for the passed query, the filter being over the fields of the table. For row collection element queries the
+     *  row elements are rendered as within the collection element, as for collection members queries.
+     * @see KeysetPageQuery
+     */
+    public KeysetPageQuery getKeysetPageQuery
+    (
+        XdaQuery xdaQry,
+        int pageSize,
+        boolean seekAfterKey
+    )
+    {
+        requireArg(xdaQry, "query");
+
+        if ( pageSize <= 0 )
+            throw new IllegalArgumentException("Page size must be positive.");
+
+        TableOutputSpec ospec = xdaQry.getTableOutputSpec();
+        XdaQuery.QueryResultStyle style = xdaQry.getQueryResultStyle();
+
+        if ( style != XdaQuery.QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS && style != XdaQuery.QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT )
+            throw new IllegalArgumentException("Keyset pagination applies only to row elements and row collection element queries.");
+
+        String alias = xdaQry.getTableAlias().orElseGet(() -> lowercaseInitials(ospec.getRelationId().getName(),"_") + "_row");
+
+        List<TableOutputSpec.OrderItem> keyset = getKeysetOrderItems(ospec);
+        List<Field> fields = dbmd.getRelationMetaData(ospec.getRelationId()).getFields();
+        List<String> keysetFieldNames = new ArrayList<>(keyset.size());
+        List<Integer> keysetFieldJdbcTypes = new ArrayList<>(keyset.size());
+        for ( TableOutputSpec.OrderItem item: keyset )
+        {
+            keysetFieldNames.add(item.getExpression());
+            keysetFieldJdbcTypes.add(findField(fields, item.getExpression()).get().getJdbcTypeCode());
+        }
+
+        boolean collectionMembers = style == XdaQuery.QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT;
+
+        QueryGenerator rowsGen = getHoistingGenerator(ospec, alias).orElse(this);
+
+        String rowsQuery =
+            rowsGen.makeRowElementsQuery(
+                ospec,
+                lowercaseInitials(ospec.getRelationId().getName(),"_"),
+                Optional.empty(),
+                OMIT_ORDERBY_CLAUSE,
+                XmlOutputColumnType.XML_TYPE,
+                OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML, // Export all TOS-included fields for the filter condition and keyset.
+                collectionMembers ? Optional.of(ospec.getOutputXmlNamespace()) : Optional.empty()
+            );
+
+        // Postgres compares row values in index order, so a row value comparison serves when all directions are the same.
+        // Otherwise, and for Oracle, which doesn't support ordered row value comparisons, the comparison is expanded.
+        boolean uniformDirection = true;
+        for ( TableOutputSpec.OrderItem item: keyset )
+            uniformDirection &= isDescending(item) == isDescending(keyset.get(0));
+        boolean rowValueSeekPredicate = largeCharTypeName.equals("text") && uniformDirection;
+
+        StringBuilder sb = new StringBuilder(rowsQuery.length() + 512);
+
+        if ( rowsGen != this )
+            sb.append(rowsGen.makeWithClause());
+
+        sb.append("select ");
+        for ( String fieldName: keysetFieldNames )
+            sb.append(alias).append('.').append(fieldName).append(", ");
+        if ( xdaQry.getXmlOutputColumnType() == XmlOutputColumnType.LARGE_CHAR_TYPE )
+        {
+            sb.append("xmlserialize(content ").append(alias).append(".row_xml as ").append(largeCharTypeName);
+            getXmlIndentationClause().ifPresent(clause -> sb.append(' ').append(clause));
+            sb.append(')');
+        }
+        else
+            sb.append(alias).append(".row_xml");
+        sb.append(" row_xml\n");
+
+        sb.append("from\n ( ").append(indent(rowsQuery, "   ", false)).append("\n ) ").append(alias);
+
+        Optional<String> filterCond = xdaQry.getFilterCondition().filter(cond -> !cond.isEmpty());
+        if ( filterCond.isPresent() || seekAfterKey )
+        {
+            sb.append("\nwhere\n  ");
+            if ( filterCond.isPresent() )
+                sb.append(seekAfterKey ? "(" + indent(filterCond.get(), "   ", false) + ")\n  and " : indent(filterCond.get(), "  ", false));
+            if ( seekAfterKey )
+                sb.append('(').append(makeSeekPredicate(keyset, alias, rowValueSeekPredicate)).append(')');
+        }
+
+        sb.append("\norder by ");
+        for ( int i = 0; i < keyset.size(); ++i )
+        {
+            if ( i > 0 )
+                sb.append(',');
+            sb.append(alias).append('.').append(keysetFieldNames.get(i)).append(isDescending(keyset.get(i)) ? " desc" : "");
+        }
+
+        sb.append("\nfetch first ").append(pageSize).append(" rows only");
+
+        return new KeysetPageQuery(sb.toString(), keysetFieldNames, keysetFieldJdbcTypes, seekAfterKey, rowValueSeekPredicate, pageSize);
+    }
+
+    // The row ordering items of the output specification followed by any missing primary key fields, or else the primary
+    // key fields, so that the keyset identifies rows uniquely. The keyset fields are checked to be non-nullable and of
+    // types whose values can be written to page tokens, so that no page is written without a token.
+    private List<TableOutputSpec.OrderItem> getKeysetOrderItems(TableOutputSpec ospec)
+    {
+        RelId relId = ospec.getRelationId();
+        List<Field> fields = dbmd.getRelationMetaData(relId).getFields();
+
+        List<TableOutputSpec.OrderItem> keyset = new ArrayList<>();
+        Set<String> keysetFieldNames = new HashSet<>();
+
+        if ( ospec.getRowOrdering().isPresent() && ospec.getRowOrdering().get().getItems().isEmpty() )
+            throw new IllegalArgumentException("Keyset pagination requires a row ordering of order items, but the ordering of table " + relId + " renders its own expressions.");
+
+        for ( TableOutputSpec.OrderItem item: ospec.getRowOrdering().map(RowOrdering::getItems).orElse(emptyList()) )
+        {
+            if ( !item.isFieldExpression() )
+                throw new IllegalArgumentException("Keyset pagination requires a row ordering of fields, but '" + item + "' is an expression.");
+            keyset.add(item);
+            keysetFieldNames.add(item.getExpression().toLowerCase());
+        }
+
+        List<String> pkFieldNames = dbmd.getPrimaryKeyFieldNames(relId);
+
+        if ( pkFieldNames.isEmpty() )
+            throw new IllegalArgumentException("Keyset pagination requires a primary key for table " + relId + ".");
+
+        for ( String pkFieldName: pkFieldNames )
+        {
+            if ( keysetFieldNames.add(pkFieldName.toLowerCase()) )
+                keyset.add(TableOutputSpec.OrderItem.field(pkFieldName));
+        }
+
+        for ( TableOutputSpec.OrderItem item: keyset )
+        {
+            Optional<Field> field = findField(fields, item.getExpression());
+
+            if ( !field.isPresent() )
+                throw new IllegalArgumentException("Keyset field " + item.getExpression() + " is not a field of table " + relId + ".");
+            if ( field.get().getNullable() )
+                throw new IllegalArgumentException("Keyset field " + item.getExpression() + " of table " + relId + " is nullable, which keyset pagination cannot seek past.");
+            if ( !KeysetPageToken.supportsFieldType(field.get().getJdbcTypeCode(), field.get().getDatabaseType()) )
+                throw new IllegalArgumentException("Keyset field " + item.getExpression() + " of table " + relId + " has type " + field.get().getDatabaseType() + ", whose values cannot be written to page tokens.");
+        }
+
+        return keyset;
+    }
+
+    private static Optional<Field> findField(List<Field> fields, String fieldName)
+    {
+        return fields.stream().filter(f -> f.getName().equalsIgnoreCase(fieldName)).findFirst();
+    }
+
+    private static boolean isDescending(TableOutputSpec.OrderItem item)
+    {
+        return item.getDirection().map(d -> d == TableOutputSpec.OrderItem.Direction.DESC).orElse(false);
+    }
+
+    // The predicate selecting rows after the keyset values of the last row, in terms of bind parameters as described for
+    // KeysetPageQuery.getSeekBindValues.
+    private static String makeSeekPredicate(List<TableOutputSpec.OrderItem> keyset, String alias, boolean rowValueComparison)
+    {
+        StringBuilder sb = new StringBuilder();
+
+        if ( rowValueComparison )
+        {
+            StringBuilder params = new StringBuilder();
+            sb.append('(');
+            for ( int i = 0; i < keyset.size(); ++i )
+            {
+                if ( i > 0 )
+                {
+                    sb.append(", ");
+                    params.append(", ");
+                }
+                sb.append(alias).append('.').append(keyset.get(i).getExpression());
+                params.append('?');
+            }
+            sb.append(") ").append(isDescending(keyset.get(0)) ? "<" : ">").append(" (").append(params).append(')');
+        }
+        else
+        {
+            for ( int i = 0; i < keyset.size(); ++i )
+            {
+                if ( i > 0 )
+                    sb.append("\n   or ");
+                sb.append('(');
+                for ( int j = 0; j < i; ++j )
+                    sb.append(alias).append('.').append(keyset.get(j).getExpression()).append(" = ? and ");
+                sb.append(alias).append('.').append(keyset.get(i).getExpression()).append(isDescending(keyset.get(i)) ? " < ?" : " > ?");
+                sb.append(')');
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    // Query rendering
+    //
+    // The make* methods render queries without consulting the SQL cache. The defaultXmlns argument is the xml namespace
+    // already declared as default by an enclosing element if any, in which case the namespace is not declared again.
+    //
+    // The direct emitter writes a query and all of its nested subqueries into a single IndentingStringBuilder, each
+    // subquery being written in place at the current indentation, so each line is written only once. The templates
+    // instead take nested subqueries as rendered strings, indented for their position within the enclosing query.
+
+    private String makeRowElementsQuery
+    (
+        TableOutputSpec ospec,
+        String tableAlias,
+        Optional<String> filterCondition,
+        OrderByClauseInclusion orderByIncl,
+        XmlOutputColumnType xmlColType,
+        OutputColumnsInclusion outputColsOpt,
+        Optional<String> defaultXmlns
+    )
+    {
+        if ( renderingEngine == RenderingEngine.DIRECT_EMITTER )
+        {
+            IndentingStringBuilder sb = new IndentingStringBuilder(4096);
+            writeRowElementsQuery(sb, ospec, tableAlias, filterCondition, orderByIncl, xmlColType, outputColsOpt, defaultXmlns);
+            return sb.toString();
+        }
+
+        final String xmlns = ospec.getOutputXmlNamespace();
+
+        Map<String,Object> templateModel = new HashMap<>();
+        templateModel.put("relid", ospec.getRelationId());
+        templateModel.put("xmlns", xmlns);
+        templateModel.put("xmlns_is_default", defaultXmlns.map(xmlns::equals).orElse(false));
+        templateModel.put("include_table_field_columns", outputColsOpt == OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML);
+        templateModel.put("field_el_content_expr_gen", fieldElementContentExpressionGenerator);
+        templateModel.put("convert_to_large_char", xmlColType == XmlOutputColumnType.LARGE_CHAR_TYPE);
+        templateModel.put("large_char_type", largeCharTypeName);
+        templateModel.put("xml_indentation", getXmlIndentationClause().orElse(null));
+        templateModel.put("output_fields", ospec.getOutputFields());
+        templateModel.put("row_element_name", ospec.getRowElementName());
+        List<Map<String,String>> joinModels = getRelatedTableJoinTemplateModels(ospec, tableAlias);
+        templateModel.put("joins", joinModels);
+        if ( isJoinedChildAggregation(ospec) )
+            templateModel.put("child_collection_joins", joinModels.subList(0, ospec.getChildOutputSpecsByFK().size()));
+        else
+            templateModel.put("child_subqueries", getChildTableSubqueries(ospec, tableAlias, Optional.of("     ")));
+        if ( isJoinedParentLookup() )
+            templateModel.put("parent_joins", joinModels.subList(joinModels.size() - ospec.getParentOutputSpecsByFK().size(), joinModels.size()));
+        else
+            templateModel.put("parent_subqueries", getParentTableSubqueries(ospec, tableAlias, Optional.of("     ")));
+        templateModel.put("table_alias", tableAlias);
+        templateModel.put("filter_condition", filterCondition.orElse(null));
+        templateModel.put("order_by_exprs", getOrderByExpressions(ospec, tableAlias, orderByIncl));
+
+        return applyTemplate(rowElementsQueryTemplate, templateModel);
+    }
+
+    private String makeRowCollectionElementQuery
+    (
+        TableOutputSpec ospec,
+        String rowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery,
+        XmlOutputColumnType xmlColType,
+        Optional<String> defaultXmlns
+    )
+    {
+        if ( renderingEngine == RenderingEngine.DIRECT_EMITTER )
+        {
+            IndentingStringBuilder sb = new IndentingStringBuilder(4096);
+            writeRowCollectionElementQuery(sb, ospec, rowsQueryAlias, filterCondOverRowsQuery, xmlColType, defaultXmlns);
+            return sb.toString();
+        }
+
+        final String xmlns = ospec.getOutputXmlNamespace();
+
+        Map<String,Object> templateModel = new HashMap<>();
+        templateModel.put("row_collection_element_name", ospec.getRowCollectionElementName());
+        templateModel.put("xmlns", xmlns);
+        templateModel.put("xmlns_is_default", defaultXmlns.map(xmlns::equals).orElse(false));
+        templateModel.put("convert_to_large_char", xmlColType == XmlOutputColumnType.LARGE_CHAR_TYPE);
+        templateModel.put("large_char_type", largeCharTypeName);
+        templateModel.put("xml_indentation", getXmlIndentationClause().orElse(null));
+        putRowsQueryTemplateModel(templateModel, ospec, Optional.of(xmlns)); // row elements are within the collection element declaring the namespace
+        templateModel.put("rows_query_alias", rowsQueryAlias);
+        templateModel.put("where_cond", filterCondOverRowsQuery.map(cond -> "where\n" + indent(cond, "  ")).orElse(""));
+        templateModel.put("order_by_exprs", getOrderByExpressions(ospec, rowsQueryAlias, INCLUDE_ORDERBY_CLAUSE_IF_ORDERED));
+
+        return applyTemplate(rowCollectionElementQueryTemplate, templateModel);
+    }
+
+    private String makeRowForestQuery
+    (
+        TableOutputSpec ospec,
+        String rowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery,
+        Optional<String> defaultXmlns
+    )
+    {
+        if ( renderingEngine == RenderingEngine.DIRECT_EMITTER )
+        {
+            IndentingStringBuilder sb = new IndentingStringBuilder(4096);
+            writeRowForestQuery(sb, ospec, rowsQueryAlias, filterCondOverRowsQuery, defaultXmlns);
+            return sb.toString();
+        }
+
+        Map<String,Object> templateModel = new HashMap<>();
+        putRowsQueryTemplateModel(templateModel, ospec, defaultXmlns); // no enclosing element here, so row elements are in the same namespace context as the forest
+        templateModel.put("rows_query_alias", rowsQueryAlias);
+        templateModel.put("where_cond", filterCondOverRowsQuery.map(cond -> "where\n" + indent(cond, "  ")).orElse(""));
+        templateModel.put("order_by_exprs", getOrderByExpressions(ospec, rowsQueryAlias, INCLUDE_ORDERBY_CLAUSE_IF_ORDERED));
+
+        return applyTemplate(rowForestQueryTemplate, templateModel);
+    }
+
+    private String makeGroupedRowForestQuery
+    (
+        TableOutputSpec ospec,
+        String rowsQueryAlias,
+        List<String> groupByFieldNames,
+        Optional<String> rowsDefaultXmlns
+    )
+    {
+        if ( renderingEngine == RenderingEngine.DIRECT_EMITTER )
+        {
+            IndentingStringBuilder sb = new IndentingStringBuilder(4096);
+            writeGroupedRowForestQuery(sb, ospec, rowsQueryAlias, groupByFieldNames, rowsDefaultXmlns);
+            return sb.toString();
+        }
+
+        Map<String,Object> templateModel = new HashMap<>();
+        putRowsQueryTemplateModel(templateModel, ospec, rowsDefaultXmlns);
+        templateModel.put("rows_query_alias", rowsQueryAlias);
+        templateModel.put("group_by_exprs", getGroupByExpressions(rowsQueryAlias, groupByFieldNames));
+        templateModel.put("order_by_exprs", getOrderByExpressions(ospec, rowsQueryAlias, INCLUDE_ORDERBY_CLAUSE_IF_ORDERED));
+
+        return applyTemplate(groupedRowForestQueryTemplate, templateModel);
+    }
+
+    private String makeRowCollectionMembersQuery
+    (
+        TableOutputSpec ospec,
+        String rowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery,
+        XmlOutputColumnType xmlColType
+    )
+    {
+        if ( renderingEngine == RenderingEngine.DIRECT_EMITTER )
+        {
+            IndentingStringBuilder sb = new IndentingStringBuilder(4096);
+            writeRowCollectionMembersQuery(sb, ospec, rowsQueryAlias, filterCondOverRowsQuery, xmlColType);
+            return sb.toString();
+        }
+
+        String rowsQuery =
+            makeRowElementsQuery(
+                ospec,
+                lowercaseInitials(ospec.getRelationId().getName(),"_"),
+                Optional.empty(),
+                OMIT_ORDERBY_CLAUSE,
+                XmlOutputColumnType.XML_TYPE,
+                OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML, // Export all TOS-included fields for possible use in WHERE condition or ordering over the rows query.
+                Optional.of(ospec.getOutputXmlNamespace()) // rendered as within the collection element declaring the namespace
+            );
+
+        Map<String,Object> templateModel = new HashMap<>();
+        templateModel.put("convert_to_large_char", xmlColType == XmlOutputColumnType.LARGE_CHAR_TYPE);
+        templateModel.put("large_char_type", largeCharTypeName);
+        templateModel.put("xml_indentation", getXmlIndentationClause().orElse(null));
+        templateModel.put("rows_query", indent(rowsQuery, "   ", false));
+        templateModel.put("rows_query_alias", rowsQueryAlias);
+        templateModel.put("filter_condition", filterCondOverRowsQuery.orElse(null));
+        templateModel.put("order_by_exprs", getOrderByExpressions(ospec, rowsQueryAlias, INCLUDE_ORDERBY_CLAUSE_IF_ORDERED));
+
+        return applyTemplate(rowCollectionMembersQueryTemplate, templateModel);
+    }
+
+    private String makeRowCollectionMemberBatchesQuery
+    (
+        TableOutputSpec ospec,
+        String rowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery,
+        XmlOutputColumnType xmlColType
+    )
+    {
+        if ( renderingEngine == RenderingEngine.DIRECT_EMITTER )
+        {
+            IndentingStringBuilder sb = new IndentingStringBuilder(4096);
+            writeRowCollectionMemberBatchesQuery(sb, ospec, rowsQueryAlias, filterCondOverRowsQuery, xmlColType);
+            return sb.toString();
+        }
+
+        String rowsQuery =
+            makeRowElementsQuery(
+                ospec,
+                lowercaseInitials(ospec.getRelationId().getName(),"_"),
+                Optional.empty(),
+                OMIT_ORDERBY_CLAUSE,
+                XmlOutputColumnType.XML_TYPE,
+                OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML, // Export all TOS-included fields for possible use in WHERE condition or ordering over the rows query.
+                Optional.of(ospec.getOutputXmlNamespace()) // rendered as within the collection element declaring the namespace
+            );
+
+        String batchesAlias = getMemberBatchesAlias(rowsQueryAlias);
+
+        Map<String,Object> templateModel = new HashMap<>();
+        templateModel.put("convert_to_large_char", xmlColType == XmlOutputColumnType.LARGE_CHAR_TYPE);
+        templateModel.put("large_char_type", largeCharTypeName);
+        templateModel.put("xml_indentation", getXmlIndentationClause().orElse(null));
+        templateModel.put("rows_query", indent(rowsQuery, "      ", false));
+        templateModel.put("rows_query_alias", rowsQueryAlias);
+        templateModel.put("filter_condition", filterCondOverRowsQuery.map(cond -> indent(cond, "     ", false)).orElse(null));
+        templateModel.put("order_by_exprs", getOrderByExpressions(ospec, rowsQueryAlias, INCLUDE_ORDERBY_CLAUSE_IF_ORDERED));
+        templateModel.put("batches_alias", batchesAlias);
+        templateModel.put("batch_number_expr", getMemberBatchNumberExpression(batchesAlias));
+
+        return applyTemplate(rowCollectionMemberBatchesQueryTemplate, templateModel);
+    }
+
+    // Puts the rows query selected from by a query template, indented for its position in the template, or the name of
+    // the common table expression if the rows query is hoisted. All fields are exported for possible use in a WHERE
+    // condition, ordering or grouping over the rows query.
+    private void putRowsQueryTemplateModel
+    (
+        Map<String,Object> templateModel,
+        TableOutputSpec ospec,
+        Optional<String> rowsDefaultXmlns
+    )
+    {
+        Optional<String> hoistedRowsQueryName = getHoistedRowsQueryName(ospec, rowsDefaultXmlns);
+
+        if ( hoistedRowsQueryName.isPresent() )
+            templateModel.put("rows_cte", hoistedRowsQueryName.get());
+        else
+        {
+            String rowsQuery =
+                makeRowElementsQuery(
+                    ospec,
+                    lowercaseInitials(ospec.getRelationId().getName(),"_"),
+                    Optional.empty(),
+                    OMIT_ORDERBY_CLAUSE,
+                    XmlOutputColumnType.XML_TYPE,
+                    OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML,
+                    rowsDefaultXmlns
+                );
+
+            templateModel.put("rows_query", indent(rowsQuery, "   ", false));
+        }
+    }
+
+    // Direct emitter counterpart of RowElementsQuery.ftl.
+    private void writeRowElementsQuery
+    (
+        IndentingStringBuilder sb,
+        TableOutputSpec ospec,
+        String tableAlias,
+        Optional<String> filterCondition,
+        OrderByClauseInclusion orderByIncl,
+        XmlOutputColumnType xmlColType,
+        OutputColumnsInclusion outputColsOpt,
+        Optional<String> defaultXmlns
+    )
+    {
+        final RelId relId = ospec.getRelationId();
+        final String xmlns = ospec.getOutputXmlNamespace();
+        final boolean convertToLargeChar = xmlColType == XmlOutputColumnType.LARGE_CHAR_TYPE;
+
+        sb.append("select -- rows of ").append(relId.toString()).append('\n');
+        if ( outputColsOpt == OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML )
+            sb.append("  ").append(tableAlias).append(".*,\n");
+        sb.append("  -- row_xml\n");
+        sb.append("  ");
+        if ( convertToLargeChar )
+            sb.append("xmlserialize(content ");
+        sb.append("xmlelement(name \"").append(ospec.getRowElementName()).append('"');
+        if ( !defaultXmlns.map(xmlns::equals).orElse(false) )
+            sb.append(", xmlattributes('").append(xmlns).append("' as \"xmlns\")");
+        sb.append("\n   ,xmlforest(\n");
+
+        Optional<String> fieldsQualifier = Optional.of(tableAlias);
+        List<TableOutputSpec.OutputField> outputFields = ospec.getOutputFields();
+        for ( int i = 0; i < outputFields.size(); ++i )
+        {
+            TableOutputSpec.OutputField of = outputFields.get(i);
+            sb.append("     ")
+              .append(fieldElementContentExpressionGenerator.getFieldElementContentExpression(fieldsQualifier, of.getField()))
+              .append(" as \"").append(of.getOutputElementName()).append('"');
+            if ( i < outputFields.size() - 1 )
+                sb.append(',');
+            sb.append('\n');
+        }
+        sb.append("    )\n");
+
+        List<RelatedTableJoin> joins = getRelatedTableJoins(ospec, tableAlias);
+
+        List<Pair<ForeignKey,TableOutputSpec>> childSpecsByFK = ospec.getChildOutputSpecsByFK();
+        sb.append("   -- ").append(childSpecsByFK.isEmpty() ? "No" : "").append(" child tables for ").append(relId.toString()).append('\n');
+        if ( isJoinedChildAggregation(ospec) )
+        {
+            for ( RelatedTableJoin j: joins )
+                if ( !j.parent )
+                    sb.append("   ,").append(j.columnExpression).append(" -- ").append(j.getColumnComment()).append('\n');
+        }
+        else
+        {
+            for ( Pair<ForeignKey,TableOutputSpec> p: childSpecsByFK )
+            {
+                sb.append("   ,(").pushIndent("     ");
+                writeChildTableSubquery(sb, ospec, tableAlias, p.fst(), p.snd());
+                sb.popIndent().append("\n    ) -- child subquery\n");
+            }
+        }
+
+        List<Pair<ForeignKey,TableOutputSpec>> parentSpecsByFK = ospec.getParentOutputSpecsByFK();
+        sb.append("   -- ").append(parentSpecsByFK.isEmpty() ? "No" : "").append(" parent tables for ").append(relId.toString()).append('\n');
+        if ( isJoinedParentLookup() )
+        {
+            for ( RelatedTableJoin j: joins )
+                if ( j.parent )
+                    sb.append("   ,").append(j.columnExpression).append(" -- ").append(j.getColumnComment()).append('\n');
+        }
+        else
+        {
+            for ( Pair<ForeignKey,TableOutputSpec> p: parentSpecsByFK )
+            {
+                sb.append("   ,(").pushIndent("     ");
+                writeParentTableSubquery(sb, ospec, tableAlias, p.fst(), p.snd());
+                sb.popIndent().append("\n    ) -- parent subquery\n");
+            }
+        }
+
+        sb.append("  )");
+        if ( convertToLargeChar )
+            writeLargeCharConversionSuffix(sb);
+        sb.append(" row_xml\n");
+
+        sb.append("from ").append(relId.getIdString()).append(' ').append(tableAlias);
+        for ( RelatedTableJoin j: joins )
+        {
+            if ( j.hoistedRowsQueryName.isPresent() )
+            {
+                sb.append('\n').append(j.getJoinOperator()).append(' ').append(j.hoistedRowsQueryName.get()).append(' ').append(j.alias);
+                sb.append("\n  on ").append(j.joinCondition);
+                continue;
+            }
+            sb.append('\n').append(j.getJoinOperator()).append("\n ( ").pushIndent("   ");
+            if ( j.lateral && j.parent )
+                writeParentTableSubquery(sb, ospec, tableAlias, j.fk, j.relatedOspec);
+            else if ( j.lateral )
+                writeChildTableSubquery(sb, ospec, tableAlias, j.fk, j.relatedOspec);
+            else if ( j.parent )
+                writeJoinedParentQuery(sb, ospec, j.fk, j.relatedOspec);
+            else
+                writeGroupedChildCollectionQuery(sb, ospec, j.fk, j.relatedOspec);
+            sb.popIndent().append("\n ) ").append(j.alias).append("\n  on ").append(j.joinCondition);
+        }
+        if ( filterCondition.isPresent() && !filterCondition.get().isEmpty() )
+            sb.append("\nwhere\n  ").append(filterCondition.get());
+
+        List<String> orderByExprs = getOrderByExpressions(ospec, tableAlias, orderByIncl);
+        if ( !orderByExprs.isEmpty() )
+            sb.append("\norder by ").append(String.join(",", orderByExprs));
+    }
+
+    // Direct emitter counterpart of GroupedRowForestQuery.ftl.
+    private void writeGroupedRowForestQuery
+    (
+        IndentingStringBuilder sb,
+        TableOutputSpec ospec,
+        String rowsQueryAlias,
+        List<String> groupByFieldNames,
+        Optional<String> rowsDefaultXmlns
+    )
+    {
+        List<String> groupByExprs = getGroupByExpressions(rowsQueryAlias, groupByFieldNames);
+
+        sb.append("select ");
+        for ( String expr: groupByExprs )
+            sb.append(expr).append(", ");
+        sb.append("xmlagg(").append(rowsQueryAlias).append(".row_xml");
+        writeAggregateOrderBy(sb, getOrderByExpressions(ospec, rowsQueryAlias, INCLUDE_ORDERBY_CLAUSE_IF_ORDERED));
+        sb.append(") coll_xml\n");
+
+        writeFromRowsQuery(sb, ospec, rowsQueryAlias, Optional.empty(), rowsDefaultXmlns);
+
+        sb.append("group by ").append(String.join(", ", groupByExprs));
+    }
+
+    // Direct emitter counterpart of RowCollectionElementQuery.ftl.
+    private void writeRowCollectionElementQuery
+    (
+        IndentingStringBuilder sb,
+        TableOutputSpec ospec,
+        String rowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery,
+        XmlOutputColumnType xmlColType,
+        Optional<String> defaultXmlns
+    )
+    {
+        final String xmlns = ospec.getOutputXmlNamespace();
+        final boolean convertToLargeChar = xmlColType == XmlOutputColumnType.LARGE_CHAR_TYPE;
+
+        sb.append("select ");
+        if ( convertToLargeChar )
+            sb.append("xmlserialize(content ");
+        sb.append("xmlelement(name \"").append(ospec.getRowCollectionElementName()).append("\", ");
+        if ( !defaultXmlns.map(xmlns::equals).orElse(false) )
+            sb.append("xmlattributes('").append(xmlns).append("' as \"xmlns\"),");
+        sb.append("\n         xmlagg(").append(rowsQueryAlias).append(".row_xml");
+        writeAggregateOrderBy(sb, getOrderByExpressions(ospec, rowsQueryAlias, INCLUDE_ORDERBY_CLAUSE_IF_ORDERED));
+        sb.append("))");
+        if ( convertToLargeChar )
+            writeLargeCharConversionSuffix(sb);
+        sb.append(" \"rowcoll_xml\"\n");
+
+        // Row elements are within the collection element declaring the namespace.
+        writeFromRowsQuery(sb, ospec, rowsQueryAlias, filterCondOverRowsQuery, Optional.of(xmlns));
+    }
+
+    // Direct emitter counterpart of RowForestQuery.ftl.
+    private void writeRowForestQuery
+    (
+        IndentingStringBuilder sb,
+        TableOutputSpec ospec,
+        String rowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery,
+        Optional<String> defaultXmlns
+    )
+    {
+        sb.append("select xmlagg(").append(rowsQueryAlias).append(".row_xml");
+        writeAggregateOrderBy(sb, getOrderByExpressions(ospec, rowsQueryAlias, INCLUDE_ORDERBY_CLAUSE_IF_ORDERED));
+        sb.append(") \"rowcoll_xml\"\n");
+
+        // No enclosing element here, so row elements are in the same namespace context as the forest.
+        writeFromRowsQuery(sb, ospec, rowsQueryAlias, filterCondOverRowsQuery, defaultXmlns);
+    }
+
+    // Direct emitter counterpart of RowCollectionMembersQuery.ftl.
+    private void writeRowCollectionMembersQuery
+    (
+        IndentingStringBuilder sb,
+        TableOutputSpec ospec,
+        String rowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery,
+        XmlOutputColumnType xmlColType
+    )
+    {
+        final boolean convertToLargeChar = xmlColType == XmlOutputColumnType.LARGE_CHAR_TYPE;
+
+        sb.append("select ");
+        if ( convertToLargeChar )
+            sb.append("xmlserialize(content ");
+        sb.append(rowsQueryAlias).append(".row_xml");
+        if ( convertToLargeChar )
+            writeLargeCharConversionSuffix(sb);
+        sb.append(" row_xml\n");
+
+        sb.append("from\n ( ").pushIndent("   ");
+        writeRowElementsQuery(
+            sb,
+            ospec,
+            lowercaseInitials(ospec.getRelationId().getName(),"_"),
+            Optional.empty(),
+            OMIT_ORDERBY_CLAUSE,
+            XmlOutputColumnType.XML_TYPE,
+            OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML, // Export all TOS-included fields for possible use in WHERE condition or ordering over the rows query.
+            Optional.of(ospec.getOutputXmlNamespace()) // rendered as within the collection element declaring the namespace
+        );
+        sb.popIndent().append("\n ) ").append(rowsQueryAlias);
+
+        // The WHERE and ORDER BY clauses are as for row elements queries, as these are top level row queries.
+        if ( filterCondOverRowsQuery.isPresent() && !filterCondOverRowsQuery.get().isEmpty() )
+            sb.append("\nwhere\n  ").append(filterCondOverRowsQuery.get());
+
+        List<String> orderByExprs = getOrderByExpressions(ospec, rowsQueryAlias, INCLUDE_ORDERBY_CLAUSE_IF_ORDERED);
+        if ( !orderByExprs.isEmpty() )
+            sb.append("\norder by ").append(String.join(",", orderByExprs));
+    }
+
+    // Direct emitter counterpart of RowCollectionMemberBatchesQuery.ftl.
+    private void writeRowCollectionMemberBatchesQuery
+    (
+        IndentingStringBuilder sb,
+        TableOutputSpec ospec,
+        String rowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery,
+        XmlOutputColumnType xmlColType
+    )
+    {
+        final boolean convertToLargeChar = xmlColType == XmlOutputColumnType.LARGE_CHAR_TYPE;
+        final String batchesAlias = getMemberBatchesAlias(rowsQueryAlias);
+        final String batchNumberExpr = getMemberBatchNumberExpression(batchesAlias);
+
+        sb.append("select ");
+        if ( convertToLargeChar )
+            sb.append("xmlserialize(content ");
+        sb.append("xmlagg(").append(batchesAlias).append(".row_xml order by ").append(batchesAlias).append(".batch_row_num)");
+        if ( convertToLargeChar )
+            writeLargeCharConversionSuffix(sb);
+        sb.append(" row_xml\n");
+
+        // Number the filtered rows in the collection's order, from which each row's batch number is computed.
+        List<String> orderByExprs = getOrderByExpressions(ospec, rowsQueryAlias, INCLUDE_ORDERBY_CLAUSE_IF_ORDERED);
+        sb.append("from\n ( ").pushIndent("   ");
+        sb.append("select ").append(rowsQueryAlias).append(".row_xml, row_number() over (order by ")
+          .append(orderByExprs.isEmpty() ? "null" : String.join(",", orderByExprs)).append(") batch_row_num\n");
+        sb.append("from\n ( ").pushIndent("   ");
+        writeRowElementsQuery(
+            sb,
+            ospec,
+            lowercaseInitials(ospec.getRelationId().getName(),"_"),
+            Optional.empty(),
+            OMIT_ORDERBY_CLAUSE,
+            XmlOutputColumnType.XML_TYPE,
+            OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML, // Export all TOS-included fields for possible use in WHERE condition or ordering over the rows query.
+            Optional.of(ospec.getOutputXmlNamespace()) // rendered as within the collection element declaring the namespace
+        );
+        sb.popIndent().append("\n ) ").append(rowsQueryAlias);
+        if ( filterCondOverRowsQuery.isPresent() && !filterCondOverRowsQuery.get().isEmpty() )
+        {
+            sb.append("\nwhere\n  ").pushIndent("  ");
+            sb.append(filterCondOverRowsQuery.get());
+            sb.popIndent();
+        }
+        sb.popIndent().append("\n ) ").append(batchesAlias).append('\n');
+
+        sb.append("group by ").append(batchNumberExpr).append('\n');
+        sb.append("order by ").append(batchNumberExpr);
+    }
+
+    // The alias of the numbered rows in member batches queries, derived from the rows query alias so that it is distinct from it.
+    private static String getMemberBatchesAlias(String rowsQueryAlias)
+    {
+        return rowsQueryAlias + "_batch";
+    }
+
+    private String getMemberBatchNumberExpression(String batchesAlias)
+    {
+        return "floor((" + batchesAlias + ".batch_row_num - 1) / " + rowElementBatchSize + ")";
+    }
+
+    private void writeFromRowsQuery
+    (
+        IndentingStringBuilder sb,
+        TableOutputSpec ospec,
+        String rowsQueryAlias,
+        Optional<String> filterCondOverRowsQuery,
+        Optional<String> rowsDefaultXmlns
+    )
+    {
+        Optional<String> hoistedRowsQueryName = getHoistedRowsQueryName(ospec, rowsDefaultXmlns);
+
+        if ( hoistedRowsQueryName.isPresent() )
+            sb.append("from ").append(hoistedRowsQueryName.get()).append(' ').append(rowsQueryAlias).append('\n');
+        else
+        {
+            sb.append("from\n ( ").pushIndent("   ");
+            writeRowElementsQuery(
+                sb,
+                ospec,
+                lowercaseInitials(ospec.getRelationId().getName(),"_"),
+                Optional.empty(),
+                OMIT_ORDERBY_CLAUSE,
+                XmlOutputColumnType.XML_TYPE,
+                OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML, // Export all TOS-included fields for possible use in WHERE condition or ordering over the rows query.
+                rowsDefaultXmlns
+            );
+            sb.popIndent().append("\n ) ").append(rowsQueryAlias).append('\n');
+        }
+
+        if ( filterCondOverRowsQuery.isPresent() )
+        {
+            sb.append("where\n  ").pushIndent("  ");
+            sb.append(filterCondOverRowsQuery.get());
+            sb.popIndent();
+        }
+    }
+
+    private void writeLargeCharConversionSuffix(IndentingStringBuilder sb)
+    {
+        sb.append(" as ").append(largeCharTypeName);
+        Optional<String> xmlIndentationClause = getXmlIndentationClause();
+        if ( xmlIndentationClause.isPresent() )
+            sb.append(' ').append(xmlIndentationClause.get());
+        sb.append(')');
+    }
+
+    private static List<String> getGroupByExpressions(String rowsQueryAlias, List<String> groupByFieldNames)
+    {
+        List<String> exprs = new ArrayList<>(groupByFieldNames.size());
+        for ( String fieldName: groupByFieldNames )
+            exprs.add(rowsQueryAlias + "." + fieldName);
+        return exprs;
+    }
+
+    private static void writeAggregateOrderBy(IndentingStringBuilder sb, List<String> orderByExprs)
+    {
+        if ( !orderByExprs.isEmpty() )
+            sb.append(" order by ").append(String.join(",", orderByExprs));
+    }
+
+    private List<String> getOrderByExpressions(TableOutputSpec ospec, String fieldQualifyingAlias, OrderByClauseInclusion orderByIncl)
+    {
+        if ( orderByIncl != INCLUDE_ORDERBY_CLAUSE_IF_ORDERED )
+            return emptyList();
+
+        Optional<RowOrdering> rowOrdering =
+            ospec.getRowOrdering().isPresent() ? ospec.getRowOrdering()
+            : sortUnsortedRowElementCollectionsByPk ? getPkRowOrdering(ospec) : Optional.empty();
+
+        return rowOrdering.map(ordering -> ordering.getOrderByExpressions(fieldQualifyingAlias)).orElse(emptyList());
+    }
+
+    // Make sure the child's alias is chosen to be distinct from the parent's since they will be in the same namespace.
+    private static String getChildRowsQueryAlias(TableOutputSpec childOspec, String parentTableAlias)
+    {
+        return
+            makeNameNotInSet(
+                lowercaseInitials(childOspec.getRelationId().getName(),"_") + "_row",
+                Collections.singleton(parentTableAlias)
+            );
+    }
+
+    private static String getParentTableAlias(TableOutputSpec parentOspec, String childTableAlias)
+    {
+        return
+            makeNameNotInSet(
+                lowercaseInitials(parentOspec.getRelationId().getName(),"_"),
+                Collections.singleton(childTableAlias)
+            );
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    // Child and parent subqueries
+    //
+    // The child collection and parent subqueries of a row elements query are correlated with the enclosing table by its
+    // alias, and have the enclosing table's namespace as default namespace, as they are embedded in its row element.
+    // When generated SQL is cached they are memoized as fragments, rendered without indentation, so that subqueries
+    // shared between queries are rendered once.
+    //
+    // With grouped child aggregation, each child collection is instead aggregated for all parents in a derived table
+    // grouped by the foreign key, left joined to the enclosing table on the foreign key. The derived tables are not
+    // correlated, and the collection columns they produce are embedded in the row element in place of the subqueries.
+    // Likewise with joined parent lookups each parent's rows query is left joined to the enclosing table on the foreign
+    // key, in place of the parent subqueries.
+    //
+    // With lateral joins the child collection and parent subqueries themselves are left joined as lateral derived
+    // tables, remaining correlated with the enclosing table, and their columns are embedded in the row element.
+
+    private ChildAggregationStrategy getChildAggregationStrategy(TableOutputSpec ospec)
+    {
+        return ospec.getChildAggregationStrategy().orElse(childAggregationStrategy);
+    }
+
+    // Whether child collections are joined to the enclosing table rather than selected by subqueries of the row element.
+    private boolean isJoinedChildAggregation(TableOutputSpec ospec)
+    {
+        return getChildAggregationStrategy(ospec) != ChildAggregationStrategy.CORRELATED_SUBQUERIES;
+    }
+
+    private boolean isJoinedParentLookup()
+    {
+        return parentLookupStrategy != ParentLookupStrategy.CORRELATED_SUBQUERIES;
+    }
+
+    private void writeChildTableSubquery
+    (
+        IndentingStringBuilder sb,
+        TableOutputSpec parentOspec,
+        String parentTableAlias,
+        ForeignKey fk,
+        TableOutputSpec childOspec
+    )
+    {
+        if ( cacheGeneratedSqls )
+        {
+            sb.append(getChildTableSubquery(parentOspec, parentTableAlias, fk, childOspec));
+            return;
+        }
+
+        String childRowsQueryAlias = getChildRowsQueryAlias(childOspec, parentTableAlias);
+        Optional<String> childRowsCond = Optional.of(fk.asEquation(childRowsQueryAlias, parentTableAlias, EquationStyle.SOURCE_ON_LEFTHAND_SIDE));
+        Optional<String> defaultXmlns = Optional.of(parentOspec.getOutputXmlNamespace());
+
+        if ( parentOspec.isInlineChildCollections() )
+            writeRowForestQuery(sb, childOspec, childRowsQueryAlias, childRowsCond, defaultXmlns);
+        else
+            writeRowCollectionElementQuery(sb, childOspec, childRowsQueryAlias, childRowsCond, XmlOutputColumnType.XML_TYPE, defaultXmlns);
+    }
+
+    private void writeParentTableSubquery
+    (
+        IndentingStringBuilder sb,
+        TableOutputSpec childOspec,
+        String childTableAlias,
+        ForeignKey fk,
+        TableOutputSpec parentOspec
+    )
+    {
+        if ( cacheGeneratedSqls )
+        {
+            sb.append(getParentTableSubquery(childOspec, childTableAlias, fk, parentOspec));
+            return;
+        }
+
+        Optional<String> hoistedRowsQueryName = getHoistedRowsQueryName(parentOspec, Optional.of(childOspec.getOutputXmlNamespace()));
+        if ( hoistedRowsQueryName.isPresent() )
+        {
+            sb.append(makeHoistedParentSubquery(hoistedRowsQueryName.get(), childTableAlias, fk, parentOspec));
+            return;
+        }
+
+        String parentTableAlias = getParentTableAlias(parentOspec, childTableAlias);
+
+        writeRowElementsQuery(
+            sb,
+            parentOspec,
+            parentTableAlias,
+            Optional.of(fk.asEquation(childTableAlias, parentTableAlias, EquationStyle.TARGET_ON_LEFTHAND_SIDE)),
+            OMIT_ORDERBY_CLAUSE,
+            XmlOutputColumnType.XML_TYPE,
+            OutputColumnsInclusion.XML_COLUMN_ONLY,
+            Optional.of(childOspec.getOutputXmlNamespace())
+        );
+    }
+
+    /** Returns the child collection subquery of the parent's row elements query for the child table, without indentation.
+     *  Inline child collections are rendered as element forests, wrapped collections as collection elements. */
+    private String getChildTableSubquery
+    (
+        TableOutputSpec parentOspec,
+        String parentTableAlias,
+        ForeignKey fk,
+        TableOutputSpec childOspec
+    )
+    {
+        if ( !cacheGeneratedSqls )
+            return makeChildTableSubquery(parentOspec, parentTableAlias, fk, childOspec);
+
+        SubqueryFragmentKey fragmentKey =
+            new SubqueryFragmentKey(
+                SubqueryFragmentKey.Kind.CHILD_COLLECTION,
+                childOspec,
+                fk,
+                parentTableAlias,
+                parentOspec.getOutputXmlNamespace(),
+                parentOspec.isInlineChildCollections()
+            );
+
+        return subqueryFragmentCache.get(fragmentKey, k -> makeChildTableSubquery(parentOspec, parentTableAlias, fk, childOspec));
+    }
+
+    private String makeChildTableSubquery
+    (
+        TableOutputSpec parentOspec,
+        String parentTableAlias,
+        ForeignKey fk,
+        TableOutputSpec childOspec
+    )
+    {
+        String childRowsQueryAlias = getChildRowsQueryAlias(childOspec, parentTableAlias);
+        Optional<String> childRowsCond = Optional.of(fk.asEquation(childRowsQueryAlias, parentTableAlias, EquationStyle.SOURCE_ON_LEFTHAND_SIDE));
+        Optional<String> defaultXmlns = Optional.of(parentOspec.getOutputXmlNamespace());
+
+        if ( parentOspec.isInlineChildCollections() )
+            return makeRowForestQuery(childOspec, childRowsQueryAlias, childRowsCond, defaultXmlns);
+        else
+            return makeRowCollectionElementQuery(childOspec, childRowsQueryAlias, childRowsCond, XmlOutputColumnType.XML_TYPE, defaultXmlns);
+    }
+
+    /// Returns the parent subquery of the child's row elements query for the parent table, without indentation.
+    private String getParentTableSubquery
+    (
+        TableOutputSpec childOspec,
+        String childTableAlias,
+        ForeignKey fk,
+        TableOutputSpec parentOspec
+    )
+    {
+        if ( !cacheGeneratedSqls )
+            return makeParentTableSubquery(childOspec, childTableAlias, fk, parentOspec);
+
+        SubqueryFragmentKey fragmentKey =
+            new SubqueryFragmentKey(
+                SubqueryFragmentKey.Kind.PARENT,
+                parentOspec,
+                fk,
+                childTableAlias,
+                childOspec.getOutputXmlNamespace(),
+                false
+            );
+
+        return subqueryFragmentCache.get(fragmentKey, k -> makeParentTableSubquery(childOspec, childTableAlias, fk, parentOspec));
+    }
+
+    private String makeParentTableSubquery
+    (
+        TableOutputSpec childOspec,
+        String childTableAlias,
+        ForeignKey fk,
+        TableOutputSpec parentOspec
+    )
+    {
+        Optional<String> hoistedRowsQueryName = getHoistedRowsQueryName(parentOspec, Optional.of(childOspec.getOutputXmlNamespace()));
+        if ( hoistedRowsQueryName.isPresent() )
+            return makeHoistedParentSubquery(hoistedRowsQueryName.get(), childTableAlias, fk, parentOspec);
+
+        String parentTableAlias = getParentTableAlias(parentOspec, childTableAlias);
+
+        return
+            makeRowElementsQuery(
+                parentOspec,
+                parentTableAlias,
+                Optional.of(fk.asEquation(childTableAlias, parentTableAlias, EquationStyle.TARGET_ON_LEFTHAND_SIDE)),
+                OMIT_ORDERBY_CLAUSE,
+                XmlOutputColumnType.XML_TYPE,
+                OutputColumnsInclusion.XML_COLUMN_ONLY,
+                Optional.of(childOspec.getOutputXmlNamespace())
+            );
+    }
+
+    // Child subqueries for the row elements query template, indented for their position in the template.
+    private List<String> getChildTableSubqueries
+    (
+        TableOutputSpec parentOspec,
+        String parentTableAlias,
+        Optional<String> trailingLinesPrefix
+    )
+    {
+        List<String> childTableSubqueries = new ArrayList<>();
+
+        for ( Pair<ForeignKey,TableOutputSpec> p: parentOspec.getChildOutputSpecsByFK() )
+        {
+            String childCollSubqry = getChildTableSubquery(parentOspec, parentTableAlias, p.fst(), p.snd());
+
+            if ( trailingLinesPrefix.isPresent() )
+                childCollSubqry = indent(childCollSubqry, trailingLinesPrefix.get(), false);
+
+            childTableSubqueries.add(childCollSubqry);
+        }
+
+        return childTableSubqueries;
+    }
+
+    // Parent subqueries for the row elements query template, indented for their position in the template.
+    private List<String> getParentTableSubqueries
+    (
+        TableOutputSpec childOspec,
+        String childTableAlias,
+        Optional<String> trailingLinesPrefix
+    )
+    {
+        List<String> parentTableSubqueries = new ArrayList<>();
+
+        for ( Pair<ForeignKey,TableOutputSpec> p: childOspec.getParentOutputSpecsByFK() )
+        {
+            String parentRowElsQuery = getParentTableSubquery(childOspec, childTableAlias, p.fst(), p.snd());
+
+            if ( trailingLinesPrefix.isPresent() )
+                parentRowElsQuery = indent(parentRowElsQuery, trailingLinesPrefix.get(), false);
+
+            parentTableSubqueries.add(parentRowElsQuery);
+        }
+
+        return parentTableSubqueries;
+    }
+
+    // The joins of the child collections and then of the parents into the row elements query, as the strategies for
+    // the query call for them, with aliases distinct from the table alias and from one another.
+    private List<RelatedTableJoin> getRelatedTableJoins
+    (
+        TableOutputSpec ospec,
+        String tableAlias
+    )
+    {
+        List<RelatedTableJoin> joins = new ArrayList<>();
+        Set<String> aliases = new HashSet<>(Collections.singleton(tableAlias));
+
+        if ( isJoinedChildAggregation(ospec) )
+        {
+            boolean lateral = getChildAggregationStrategy(ospec) == ChildAggregationStrategy.LATERAL_JOINS;
+
+            if ( lateral && !ospec.getChildOutputSpecsByFK().isEmpty() && !supportsLateralJoins() )
+                throw new IllegalArgumentException("Lateral joins of child collections are only supported for PostgreSQL.");
+
+            for ( Pair<ForeignKey,TableOutputSpec> p: ospec.getChildOutputSpecsByFK() )
+            {
+                ForeignKey fk = p.fst();
+                TableOutputSpec childOspec = p.snd();
+
+                String alias = makeNameNotInSet(lowercaseInitials(childOspec.getRelationId().getName(),"_") + "_coll", aliases);
+                aliases.add(alias);
+
+                joins.add(
+                    new RelatedTableJoin(
+                        false,
+                        lateral,
+                        fk,
+                        childOspec,
+                        alias,
+                        lateral ? "true" : fk.asEquation(alias, tableAlias, EquationStyle.SOURCE_ON_LEFTHAND_SIDE),
+                        lateral ? alias + ".rowcoll_xml" : getGroupedChildCollectionExpression(ospec, childOspec, alias),
+                        Optional.empty()
+                    )
+                );
+            }
+        }
+
+        if ( isJoinedParentLookup() )
+        {
+            boolean lateral = parentLookupStrategy == ParentLookupStrategy.LATERAL_JOINS;
+
+            if ( lateral && !ospec.getParentOutputSpecsByFK().isEmpty() && !supportsLateralJoins() )
+                throw new IllegalArgumentException("Lateral joins of parents are only supported for PostgreSQL.");
+
+            for ( Pair<ForeignKey,TableOutputSpec> p: ospec.getParentOutputSpecsByFK() )
+            {
+                ForeignKey fk = p.fst();
+                TableOutputSpec parentOspec = p.snd();
+
+                String alias = makeNameNotInSet(lowercaseInitials(parentOspec.getRelationId().getName(),"_") + "_parent", aliases);
+                aliases.add(alias);
+
+                joins.add(
+                    new RelatedTableJoin(
+                        true,
+                        lateral,
+                        fk,
+                        parentOspec,
+                        alias,
+                        lateral ? "true" : fk.asEquation(tableAlias, alias, EquationStyle.TARGET_ON_LEFTHAND_SIDE),
+                        alias + ".row_xml", // null when the foreign key is null or unmatched, as for a parent subquery
+                        lateral ? Optional.empty() : getHoistedRowsQueryName(parentOspec, Optional.of(ospec.getOutputXmlNamespace()))
+                    )
+                );
+            }
+        }
+
+        return joins;
+    }
+
+    // The expression for the child collection within the parent row element, null when there are no child rows, which
+    // adds nothing to an inline collection and leaves a wrapped collection element empty, as for a correlated subquery.
+    private static String getGroupedChildCollectionExpression
+    (
+        TableOutputSpec parentOspec,
+        TableOutputSpec childOspec,
+        String collectionAlias
+    )
+    {
+        String collXml = collectionAlias + ".coll_xml";
+
+        if ( parentOspec.isInlineChildCollections() )
+            return collXml;
+
+        String xmlns = childOspec.getOutputXmlNamespace();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("xmlelement(name \"").append(childOspec.getRowCollectionElementName()).append("\", ");
+        if ( !xmlns.equals(parentOspec.getOutputXmlNamespace()) )
+            sb.append("xmlattributes('").append(xmlns).append("' as \"xmlns\"), ");
+        return sb.append(collXml).append(')').toString();
+    }
+
+    private void writeGroupedChildCollectionQuery
+    (
+        IndentingStringBuilder sb,
+        TableOutputSpec parentOspec,
+        ForeignKey fk,
+        TableOutputSpec childOspec
+    )
+    {
+        if ( cacheGeneratedSqls )
+        {
+            sb.append(getGroupedChildCollectionQuery(parentOspec, fk, childOspec));
+            return;
+        }
+
+        writeGroupedRowForestQuery(
+            sb,
+            childOspec,
+            getGroupedChildRowsQueryAlias(childOspec),
+            fk.getSourceFieldNames(),
+            getChildRowsDefaultXmlns(parentOspec, childOspec)
+        );
+    }
+
+    /** Returns the derived table query aggregating the child collections of all parents for a grouped child collection
+     *  join, without indentation. */
+    private String getGroupedChildCollectionQuery
+    (
+        TableOutputSpec parentOspec,
+        ForeignKey fk,
+        TableOutputSpec childOspec
+    )
+    {
+        if ( !cacheGeneratedSqls )
+            return makeGroupedChildCollectionQuery(parentOspec, fk, childOspec);
+
+        // Not correlated, so the fragment does not depend on the parent's table alias.
+        SubqueryFragmentKey fragmentKey =
+            new SubqueryFragmentKey(
+                SubqueryFragmentKey.Kind.GROUPED_CHILD_COLLECTION,
+                childOspec,
+                fk,
+                "",
+                parentOspec.getOutputXmlNamespace(),
+                parentOspec.isInlineChildCollections()
+            );
+
+        return subqueryFragmentCache.get(fragmentKey, k -> makeGroupedChildCollectionQuery(parentOspec, fk, childOspec));
+    }
+
+    private String makeGroupedChildCollectionQuery
+    (
+        TableOutputSpec parentOspec,
+        ForeignKey fk,
+        TableOutputSpec childOspec
+    )
+    {
+        return
+            makeGroupedRowForestQuery(
+                childOspec,
+                getGroupedChildRowsQueryAlias(childOspec),
+                fk.getSourceFieldNames(),
+                getChildRowsDefaultXmlns(parentOspec, childOspec)
+            );
+    }
+
+    // The grouped rows query is alone in the derived table, so its alias need only differ from the child table alias.
+    private static String getGroupedChildRowsQueryAlias(TableOutputSpec childOspec)
+    {
+        return lowercaseInitials(childOspec.getRelationId().getName(),"_") + "_row";
+    }
+
+    // The default namespace of the rows of a child collection: the parent's for inline collections, or the child's within
+    // a wrapped collection element, which is written by the parent declaring the child namespace.
+    private static Optional<String> getChildRowsDefaultXmlns(TableOutputSpec parentOspec, TableOutputSpec childOspec)
+    {
+        return Optional.of(parentOspec.isInlineChildCollections() ? parentOspec.getOutputXmlNamespace() : childOspec.getOutputXmlNamespace());
+    }
+
+    private void writeJoinedParentQuery
+    (
+        IndentingStringBuilder sb,
+        TableOutputSpec childOspec,
+        ForeignKey fk,
+        TableOutputSpec parentOspec
+    )
+    {
+        if ( cacheGeneratedSqls )
+        {
+            sb.append(getJoinedParentQuery(childOspec, fk, parentOspec));
+            return;
+        }
+
+        writeRowElementsQuery(
+            sb,
+            parentOspec,
+            lowercaseInitials(parentOspec.getRelationId().getName(),"_"),
+            Optional.empty(),
+            OMIT_ORDERBY_CLAUSE,
+            XmlOutputColumnType.XML_TYPE,
+            OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML, // Export all table fields for joining on the foreign key.
+            Optional.of(childOspec.getOutputXmlNamespace())
+        );
+    }
+
+    /// Returns the derived table query of the parent rows for a joined parent, without indentation.
+    private String getJoinedParentQuery
+    (
+        TableOutputSpec childOspec,
+        ForeignKey fk,
+        TableOutputSpec parentOspec
+    )
+    {
+        if ( !cacheGeneratedSqls )
+            return makeJoinedParentQuery(childOspec, parentOspec);
+
+        // Not correlated, so the fragment does not depend on the child's table alias.
+        SubqueryFragmentKey fragmentKey =
+            new SubqueryFragmentKey(
+                SubqueryFragmentKey.Kind.JOINED_PARENT,
+                parentOspec,
+                fk,
+                "",
+                childOspec.getOutputXmlNamespace(),
+                false
+            );
+
+        return subqueryFragmentCache.get(fragmentKey, k -> makeJoinedParentQuery(childOspec, parentOspec));
+    }
+
+    private String makeJoinedParentQuery
+    (
+        TableOutputSpec childOspec,
+        TableOutputSpec parentOspec
+    )
+    {
+        return
+            makeRowElementsQuery(
+                parentOspec,
+                lowercaseInitials(parentOspec.getRelationId().getName(),"_"),
+                Optional.empty(),
+                OMIT_ORDERBY_CLAUSE,
+                XmlOutputColumnType.XML_TYPE,
+                OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML, // Export all table fields for joining on the foreign key.
+                Optional.of(childOspec.getOutputXmlNamespace())
+            );
+    }
+
+    // Related table joins for the row elements query template, with derived table queries indented for their position
+    // in the template.
+    private List<Map<String,String>> getRelatedTableJoinTemplateModels
+    (
+        TableOutputSpec ospec,
+        String tableAlias
+    )
+    {
+        List<Map<String,String>> joinModels = new ArrayList<>();
+
+        for ( RelatedTableJoin j: getRelatedTableJoins(ospec, tableAlias) )
+        {
+            Map<String,String> joinModel = new HashMap<>();
+            joinModel.put("join", j.getJoinOperator());
+            joinModel.put("alias", j.alias);
+            joinModel.put("condition", j.joinCondition);
+            joinModel.put("column_expr", j.columnExpression);
+            joinModel.put("column_comment", j.getColumnComment());
+            joinModels.add(joinModel);
+
+            if ( j.hoistedRowsQueryName.isPresent() )
+            {
+                joinModel.put("cte", j.hoistedRowsQueryName.get());
+                continue;
+            }
+
+            String query =
+                j.lateral ?
+                    (j.parent ? getParentTableSubquery(ospec, tableAlias, j.fk, j.relatedOspec) : getChildTableSubquery(ospec, tableAlias, j.fk, j.relatedOspec))
+                : j.parent ? getJoinedParentQuery(ospec, j.fk, j.relatedOspec)
+                : getGroupedChildCollectionQuery(ospec, j.fk, j.relatedOspec);
+
+            joinModel.put("query", indent(query, "   ", false));
+        }
+
+        return joinModels;
+    }
+
+    private static final class RelatedTableJoin
+    {
+        final boolean parent; // else a child collection
+        final boolean lateral; // else a derived table not correlated with the enclosing table
+        final ForeignKey fk;
+        final TableOutputSpec relatedOspec;
+        final String alias;
+        final String joinCondition;
+        final String columnExpression;
+        final Optional<String> hoistedRowsQueryName; // joined in place of the derived table, for joined parents
+
+        RelatedTableJoin
+        (
+            boolean parent,
+            boolean lateral,
+            ForeignKey fk,
+            TableOutputSpec relatedOspec,
+            String alias,
+            String joinCondition,
+            String columnExpression,
+            Optional<String> hoistedRowsQueryName
+        )
+        {
+            this.parent = parent;
+            this.lateral = lateral;
+            this.fk = fk;
+            this.relatedOspec = relatedOspec;
+            this.alias = alias;
+            this.joinCondition = joinCondition;
+            this.columnExpression = columnExpression;
+            this.hoistedRowsQueryName = hoistedRowsQueryName;
+        }
+
+        String getJoinOperator()
+        {
+            return lateral ? "left join lateral" : "left join";
+        }
+
+        String getColumnComment()
+        {
+            if ( parent )
+                return lateral ? "lateral parent" : "joined parent";
+            else
+                return lateral ? "lateral child collection" : "grouped child collection";
+        }
+    }
+
+    // Child and parent subqueries
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    // Subquery hoisting
+    //
+    // A rows query, listing the rows of a table with all fields and row elements, is rendered wherever its table is
+    // reached: as the derived table of each child collection query, and as a parent's joined rows. Its text depends only
+    // on its table output specification and default namespace. With subquery hoisting, the rows queries used more than
+    // once in a query are rendered once each in a WITH clause heading the query, and referenced by name at each use,
+    // correlated parent subqueries selecting the parent row element from the named rows.
+
+    // The rows queries used more than once within the query of the output specification, with names for their common
+    // table expressions distinct from the table alias and from one another, each following any others it uses.
+    private Map<RowsQueryKey,String> getRepeatedRowsQueryNames
+    (
+        TableOutputSpec ospec,
+        String tableAlias
+    )
+    {
+        // The rows query of the output specification itself, if any, can only occur once, enclosing all others.
+        Map<RowsQueryKey,Integer> uses = new LinkedHashMap<>();
+        countRelatedRowsQueryUses(ospec, uses);
+
+        Map<RowsQueryKey,String> names = new LinkedHashMap<>();
+        Set<String> usedNames = new HashSet<>(Collections.singleton(tableAlias));
+
+        for ( Map.Entry<RowsQueryKey,Integer> e: uses.entrySet() )
+        {
+            if ( e.getValue() > 1 )
+            {
+                String name = makeNameNotInSet(lowercaseInitials(e.getKey().ospec.getRelationId().getName(),"_") + "_rows", usedNames);
+                usedNames.add(name);
+                names.put(e.getKey(), name);
+            }
+        }
+
+        return names;
+    }
+
+    private static void countRelatedRowsQueryUses
+    (
+        TableOutputSpec ospec,
+        Map<RowsQueryKey,Integer> uses
+    )
+    {
+        for ( Pair<ForeignKey,TableOutputSpec> p: ospec.getChildOutputSpecsByFK() )
+            countRowsQueryUse(new RowsQueryKey(p.snd(), getChildRowsDefaultXmlns(ospec, p.snd())), uses);
+
+        for ( Pair<ForeignKey,TableOutputSpec> p: ospec.getParentOutputSpecsByFK() )
+            countRowsQueryUse(new RowsQueryKey(p.snd(), Optional.of(ospec.getOutputXmlNamespace())), uses);
+    }
+
+    // The uses within a rows query are counted only at its first use, since a rows query used again is hoisted and so is
+    // rendered only once. Rows queries are entered after those they use.
+    private static void countRowsQueryUse
+    (
+        RowsQueryKey rowsQueryKey,
+        Map<RowsQueryKey,Integer> uses
+    )
+    {
+        Integer priorUses = uses.get(rowsQueryKey);
+
+        if ( priorUses == null )
+        {
+            countRelatedRowsQueryUses(rowsQueryKey.ospec, uses);
+            uses.put(rowsQueryKey, 1);
+        }
+        else
+            uses.put(rowsQueryKey, priorUses + 1);
+    }
+
+    // A generator rendering the repeated rows queries of the query of the output specification by reference to common
+    // table expressions, if hoisting is enabled and any rows queries are repeated.
+    private Optional<QueryGenerator> getHoistingGenerator
+    (
+        TableOutputSpec ospec,
+        String tableAlias
+    )
+    {
+        if ( subqueryHoisting == SubqueryHoisting.NONE || !hoistedRowsQueryNames.isEmpty() )
+            return Optional.empty();
+
+        Map<RowsQueryKey,String> repeatedRowsQueryNames = getRepeatedRowsQueryNames(ospec, tableAlias);
+
+        if ( repeatedRowsQueryNames.isEmpty() )
+            return Optional.empty();
+
+        // Subquery fragments are not cached by the hoisting generator, their text depending on the query.
+        return Optional.of(new QueryGenerator(toBuilder().cacheGeneratedSql(false), sharedState, repeatedRowsQueryNames));
+    }
+
+    private Optional<String> getHoistedRowsQueryName
+    (
+        TableOutputSpec ospec,
+        Optional<String> rowsDefaultXmlns
+    )
+    {
+        if ( hoistedRowsQueryNames.isEmpty() )
+            return Optional.empty();
+
+        return Optional.ofNullable(hoistedRowsQueryNames.get(new RowsQueryKey(ospec, rowsDefaultXmlns)));
+    }
+
+    // The WITH clause defining the hoisted rows queries, ending with a line break. Being referenced more than once, the
+    // common table expressions would be evaluated once into temporary results by both PostgreSQL (from version 12) and
+    // Oracle, which for correlated references means reading all of a table's rows for each row referencing them. So
+    // unless materialization is requested they are marked NOT MATERIALIZED for PostgreSQL, or given the INLINE hint for
+    // Oracle, for the planner to push the correlating conditions of each reference into the rows query.
+    private String makeWithClause()
+    {
+        boolean materialize = subqueryHoisting == SubqueryHoisting.MATERIALIZED_COMMON_TABLE_EXPRESSIONS;
+
+        StringBuilder sb = new StringBuilder("with ");
+
+        for ( Map.Entry<RowsQueryKey,String> e: hoistedRowsQueryNames.entrySet() )
+        {
+            RowsQueryKey rowsQueryKey = e.getKey();
+
+            String rowsQuery =
+                makeRowElementsQuery(
+                    rowsQueryKey.ospec,
+                    lowercaseInitials(rowsQueryKey.ospec.getRelationId().getName(),"_"),
+                    Optional.empty(),
+                    OMIT_ORDERBY_CLAUSE,
+                    XmlOutputColumnType.XML_TYPE,
+                    OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML,
+                    rowsQueryKey.defaultXmlns
+                );
+
+            if ( sb.length() > "with ".length() )
+                sb.append(",\n");
+            sb.append(e.getValue()).append(" as");
+            if ( isPostgres() )
+                sb.append(materialize ? " materialized" : " not materialized");
+            else if ( isOracle() )
+                rowsQuery = "select " + (materialize ? "/*+ materialize */" : "/*+ inline */") + rowsQuery.substring("select".length());
+            sb.append("\n ( ").append(indent(rowsQuery, "   ", false)).append("\n )");
+        }
+
+        return sb.append('\n').toString();
+    }
+
+    // The parent subquery selecting the parent row element from the hoisted rows query of the parent table.
+    private String makeHoistedParentSubquery
+    (
+        String hoistedRowsQueryName,
+        String childTableAlias,
+        ForeignKey fk,
+        TableOutputSpec parentOspec
+    )
+    {
+        String parentRowsAlias = getParentTableAlias(parentOspec, childTableAlias);
+
+        return
+            "select " + parentRowsAlias + ".row_xml\n" +
+            "from " + hoistedRowsQueryName + " " + parentRowsAlias + "\n" +
+            "where\n" +
+            "  " + fk.asEquation(childTableAlias, parentRowsAlias, EquationStyle.TARGET_ON_LEFTHAND_SIDE);
+    }
+
+    // Subquery hoisting
+    /////////////////////////////////////////////////////////////////////////////////////
+
+    // Query rendering
+    /////////////////////////////////////////////////////////////////////////////////////
+
+
+    // On a miss in the SQL cache the SQL is spliced from the cached query plan, so only the first query for a given table
+    // output specification, result style and column type is rendered.
+    private String cachedSql(XdaQuery xdaQry)
+    {
+        if ( cacheGeneratedSqls )
+            return sqlCache.get(xdaQry, this::makePlannedSql);
+        else
+            return makeSql(xdaQry);
+    }
+
+    private String makePlannedSql(XdaQuery xdaQry)
+    {
+        QueryPlan plan = getQueryPlan(new QueryPlanKey(xdaQry));
+        String tableAlias = xdaQry.getTableAlias().get();
+
+        if ( plan.isApplicableTableAlias(tableAlias) )
+            return plan.getSql(tableAlias, xdaQry.getFilterCondition(), xdaQry.getOrderByClauseInclusion());
+        else
+            return makeSql(xdaQry);
+    }
+
+    // Renders the query, which must have its table alias specified. With subquery hoisting, a query using any rows query
+    // more than once is rendered following a WITH clause defining the repeated rows queries, by a generator which
+    // references them by name at each use.
+    private String makeSql(XdaQuery xdaQry)
+    {
+        TableOutputSpec ospec = xdaQry.getTableOutputSpec();
+        String tableAlias = xdaQry.getTableAlias().get();
+
+        Optional<QueryGenerator> hoistingGen = getHoistingGenerator(ospec, tableAlias);
+        if ( hoistingGen.isPresent() )
+            return hoistingGen.get().makeWithClause() + hoistingGen.get().makeSql(xdaQry);
+
+        switch ( xdaQry.getQueryResultStyle() )
+        {
+            case MULTIPLE_ROW_ELEMENT_RESULTS:
+                return makeRowElementsQuery(
+                    ospec,
+                    tableAlias,
+                    xdaQry.getFilterCondition(),
+                    xdaQry.getOrderByClauseInclusion(),
+                    xdaQry.getXmlOutputColumnType(),
+                    xdaQry.getOutputColumnsOption(),
+                    Optional.empty() // no default xml namespace at top level
+                );
+            case SINGLE_ROW_COLLECTION_ELEMENT_RESULT:
+                return makeRowCollectionElementQuery(
+                    ospec,
+                    tableAlias,
+                    xdaQry.getFilterCondition(),
+                    xdaQry.getXmlOutputColumnType(),
+                    Optional.empty()
+                );
+            case SINGLE_ROW_ELEMENT_FOREST_RESULT:
+                return makeRowForestQuery(
+                    ospec,
+                    tableAlias,
+                    xdaQry.getFilterCondition(),
+                    Optional.empty()
+                );
+            case MULTIPLE_ROW_COLLECTION_MEMBER_RESULTS:
+                return makeRowCollectionMembersQuery(
+                    ospec,
+                    tableAlias,
+                    xdaQry.getFilterCondition(),
+                    xdaQry.getXmlOutputColumnType()
+                );
+            case MULTIPLE_ROW_COLLECTION_MEMBER_BATCH_RESULTS:
+                return makeRowCollectionMemberBatchesQuery(
+                    ospec,
+                    tableAlias,
+                    xdaQry.getFilterCondition(),
+                    xdaQry.getXmlOutputColumnType()
+                );
+            default:
+                throw new IllegalArgumentException("Invalid or unsupported query style in XdaQuery:" + xdaQry.getQueryResultStyle());
+        }
+    }
+
+    private QueryPlan getQueryPlan(QueryPlanKey planKey)
+    {
+        return queryPlanCache.get(planKey, this::makeQueryPlan);
+    }
+
+    // Renders the query with markers in place of the table alias and filter condition, from which the plan is made.
+    private QueryPlan makeQueryPlan(QueryPlanKey planKey)
+    {
+        TableOutputSpec ospec = planKey.ospec;
+        boolean rowElementsQuery = planKey.queryResultStyle == XdaQuery.QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS;
+
+        String sql =
+            makeSql(
+                new XdaQuery(
+                    ospec,
+                    planKey.queryResultStyle,
+                    Optional.of(QueryPlan.TABLE_ALIAS_MARKER),
+                    Optional.of(QueryPlan.FILTER_CONDITION_MARKER),
+                    rowElementsQuery ? OMIT_ORDERBY_CLAUSE : OrderByClauseInclusion.NA,
+                    planKey.xmlOutputColumnType,
+                    planKey.outputColumnsInclusion
+                )
+            );
+
+        String orderByClause = "";
+        Set<String> reservedTableAliases = new HashSet<>();
+
+        if ( rowElementsQuery )
+        {
+            String orderedSql =
+                makeSql(
+                    new XdaQuery(
+                        ospec,
+                        planKey.queryResultStyle,
+                        Optional.of(QueryPlan.TABLE_ALIAS_MARKER),
+                        Optional.of(QueryPlan.FILTER_CONDITION_MARKER),
+                        INCLUDE_ORDERBY_CLAUSE_IF_ORDERED,
+                        planKey.xmlOutputColumnType,
+                        planKey.outputColumnsInclusion
+                    )
+                );
+
+            if ( !orderedSql.startsWith(sql) )
+                throw new IllegalStateException("Expected the ORDER BY clause to follow the rest of the row elements query.");
+
+            orderByClause = orderedSql.substring(sql.length());
+
+            // Subquery aliases are chosen to differ from the table alias, so a table alias equal to one of these would
+            // change the rendering of the subqueries.
+            for ( Pair<ForeignKey,TableOutputSpec> p: ospec.getChildOutputSpecsByFK() )
+                reservedTableAliases.add(getChildRowsQueryAlias(p.snd(), QueryPlan.TABLE_ALIAS_MARKER));
+            for ( Pair<ForeignKey,TableOutputSpec> p: ospec.getParentOutputSpecsByFK() )
+                reservedTableAliases.add(getParentTableAlias(p.snd(), QueryPlan.TABLE_ALIAS_MARKER));
+            for ( RelatedTableJoin j: getRelatedTableJoins(ospec, QueryPlan.TABLE_ALIAS_MARKER) )
+                reservedTableAliases.add(j.alias);
+        }
+
+        // Likewise the names of hoisted rows queries are chosen to differ from the table alias.
+        if ( subqueryHoisting != SubqueryHoisting.NONE )
+            reservedTableAliases.addAll(getRepeatedRowsQueryNames(ospec, QueryPlan.TABLE_ALIAS_MARKER).values());
+
+        return
+            QueryPlan.fromMarkedSql(
+                planKey.queryResultStyle,
+                planKey.xmlOutputColumnType,
+                planKey.outputColumnsInclusion,
+                sql,
+                orderByClause,
+                reservedTableAliases
+            );
+    }
+
+    private Optional<String> getXmlIndentationClause()
+    {
+        switch ( xmlIndentation )
+        {
+            case INDENT_UNSPECIFIED: return Optional.empty();
+            case NO_INDENT: return Optional.of("no indent");
+            default:
+                return Optional.of("indent" + xmlIndentationSize.map(size -> " " + size).orElse(""));
+        }
+    }
+
+
+    public DBMD getDatabaseMetaData()
+    {
+        return dbmd;
+    }
+
+    public FieldElementContentExpressionGenerator getFieldElementContentExpressionGenerator()
+    {
+        return fieldElementContentExpressionGenerator;
+    }
+
+    private Optional<RowOrdering> getPkRowOrdering(TableOutputSpec ospec)
+    {
+        List<String> pkFieldNames = dbmd.getPrimaryKeyFieldNames(ospec.getRelationId());
+
+        if ( pkFieldNames.size() > 0 )
+            return Optional.of(RowOrdering.fields(pkFieldNames));
+        else
+            return Optional.empty();
     }
 
     public interface FieldElementContentExpressionGenerator
     {
         String getFieldElementContentExpression(Optional<String> tableAlias, Field f);
+
+        // Variant for the query templates, where the table alias is always present.
+        default String getFieldElementContentExpression(String tableAlias, Field f)
+        {
+            return getFieldElementContentExpression(Optional.of(tableAlias), f);
+        }
     }
 
     public static class DefaultFieldElementContentExpressionGenerator implements FieldElementContentExpressionGenerator
@@ -662,13 +2617,15 @@ public class QueryGenerator
         private final OrderByClauseInclusion orderByClauseInclusion;
         private final XmlOutputColumnType xmlOutputColumnType;
         private final OutputColumnsInclusion outputColumnsInclusion;
-        private final int hashCode;
+        private final Fingerprint fingerprint;
 
         public enum QueryResultStyle
         {
             SINGLE_ROW_COLLECTION_ELEMENT_RESULT,
             MULTIPLE_ROW_ELEMENT_RESULTS,
-            SINGLE_ROW_ELEMENT_FOREST_RESULT
+            SINGLE_ROW_ELEMENT_FOREST_RESULT,
+            MULTIPLE_ROW_COLLECTION_MEMBER_RESULTS, // the row elements of a row collection element query, one per result row
+            MULTIPLE_ROW_COLLECTION_MEMBER_BATCH_RESULTS // the row elements of a row collection element query, a batch of consecutive row elements per result row
         }
 
 
@@ -735,7 +2692,7 @@ public class QueryGenerator
             this.orderByClauseInclusion = requireArg(orderByIncl, "order by clause inclusion option");
             this.xmlOutputColumnType = requireArg(xmlOutputColType, "xml output column type");
             this.outputColumnsInclusion = requireArg(outputColsOpt, "output columns option");
-            this.hashCode = computeHashCode();
+            this.fingerprint = computeFingerprint();
 
             // Check input arguments for compatibility.
 
@@ -747,16 +2704,16 @@ public class QueryGenerator
                 if ( orderByClauseInclusion == OrderByClauseInclusion.NA )
                     throw new IllegalArgumentException("For row elements queries the orderByIncl argument cannot be NA.");
             }
-            else // single result collection or forest style query
+            else // single result collection or forest style query, or collection members or member batches query
             {
                 if ( queryResultStyle == QueryResultStyle.SINGLE_ROW_ELEMENT_FOREST_RESULT && xmlOutputColumnType == XmlOutputColumnType.LARGE_CHAR_TYPE )
                     throw new IllegalArgumentException("Queries of SINGLE_ROW_ELEMENT_FOREST_RESULT style cannot have a must have an XMLTYPE output column type.");
 
                 if ( outputColumnsInclusion != OutputColumnsInclusion.XML_COLUMN_ONLY )
-                    throw new IllegalArgumentException("Single-row collection and forest style queries require an output columns option of OutputColumnsInclusion.XML_COLUMN_ONLY");
+                    throw new IllegalArgumentException("Collection, collection members and forest style queries require an output columns option of OutputColumnsInclusion.XML_COLUMN_ONLY");
 
                 if ( orderByClauseInclusion != OrderByClauseInclusion.NA )
-                    throw new IllegalArgumentException("For row collection or forest queries the orderByIncl argument must be NA, as it only applies to top level row elements queries.");
+                    throw new IllegalArgumentException("For row collection, collection members or forest queries the orderByIncl argument must be NA, as it only applies to top level row elements queries.");
             }
         }
 
@@ -812,38 +2769,494 @@ public class QueryGenerator
             return outputColumnsInclusion;
         }
 
-        @Override
-        public int hashCode() { return hashCode; }
+        /// Returns the structural fingerprint of this query, which extends that of its table output specification.
+        public Fingerprint getFingerprint()
+        {
+            return fingerprint;
+        }
 
-        private int computeHashCode()
+        private Fingerprint computeFingerprint()
         {
-            return ospec.hashCode()
-                 + hashcode(tableAlias)
-                 + hashcode(filterCondition)
-                 + orderByClauseInclusion.hashCode()
-                 + queryResultStyle.hashCode()
-                 + xmlOutputColumnType.hashCode()
-                 + outputColumnsInclusion.hashCode();
+            return
+                Fingerprint.builder("XdaQuery")
+                .add(ospec.getFingerprint())
+                .add(queryResultStyle)
+                .add(tableAlias)
+                .add(filterCondition)
+                .add(orderByClauseInclusion)
+                .add(xmlOutputColumnType)
+                .add(outputColumnsInclusion)
+                .build();
         }
 
+        @Override
+        public int hashCode() { return fingerprint.hashCode(); }
+
         @Override
         public boolean equals(Object o)
         {
             if ( !(o instanceof XdaQuery) )
                 return false;
+            else
+                return this == o || fingerprint.equals(((XdaQuery)o).fingerprint);
+        }
+    }
+
+
+    /** Builds query generators. Options not set keep their defaults: large character type xml output columns, xml
+     *  indentation as appropriate for the database, no sorting of unsorted collections, correlated subqueries for child
+     *  collections and parents, the direct emitter rendering engine, and no caching of generated SQL.
+     */
+    public static final class Builder
+    {
+        private final DBMD dbmd;
+
+        private Optional<SharedState> sharedState = Optional.empty();
+
+        private FieldElementContentExpressionGenerator fieldElementContentExpressionGenerator = DEFAULT_FIELD_ELEMENT_CONTENT_EXPRESSION_GENERATOR;
+        private XmlOutputColumnType defaultXmlOutputColumnType = XmlOutputColumnType.LARGE_CHAR_TYPE;
+        private XmlIndentation xmlIndentation;
+        private Optional<Integer> xmlIndentationSize = Optional.empty();
+        private boolean sortUnsortedRowElementCollectionsByPk = false;
+        private int rowElementBatchSize = DEFAULT_ROW_ELEMENT_BATCH_SIZE;
+        private ChildAggregationStrategy childAggregationStrategy = ChildAggregationStrategy.CORRELATED_SUBQUERIES;
+        private ParentLookupStrategy parentLookupStrategy = ParentLookupStrategy.CORRELATED_SUBQUERIES;
+        private SubqueryHoisting subqueryHoisting = SubqueryHoisting.NONE;
+        private RenderingEngine renderingEngine = RenderingEngine.DIRECT_EMITTER;
+        private boolean cacheGeneratedSqls = false;
+        private long generatedSqlCacheMaximumWeight = DEFAULT_SQL_CACHE_MAXIMUM_WEIGHT;
+        private long queryPlanCacheMaximumWeight = DEFAULT_QUERY_PLAN_CACHE_MAXIMUM_WEIGHT;
+        private long subqueryFragmentCacheMaximumWeight = DEFAULT_SUBQUERY_FRAGMENT_CACHE_MAXIMUM_WEIGHT;
+
+        private Builder(DBMD dbmd)
+        {
+            this.dbmd = requireArg(dbmd, "database metadata");
+
+            String dbms = dbmd.getDbmsName();
+
+            // Oracle needs NO INDENT when serializing xml to avoid capricious indentation of xmltype fields mixed with unindented surroundings.
+            this.xmlIndentation = dbms != null && dbms.toUpperCase().contains("ORACLE") ? XmlIndentation.NO_INDENT : XmlIndentation.INDENT_UNSPECIFIED;
+        }
+
+        public Builder defaultXmlOutputColumnType(XmlOutputColumnType t)
+        {
+            defaultXmlOutputColumnType = requireArg(t, "default xml output column type");
+            return this;
+        }
+
+        /** Enables caching of generated SQL, query plans and subquery fragments. The caches are shared by generators built or
+         *  derived from one another which have the same rendering options. */
+        public Builder cacheGeneratedSql(boolean cache)
+        {
+            cacheGeneratedSqls = cache;
+            return this;
+        }
+
+        /** Sets the maximum total length of the SQL held in the generated SQL cache, least recently used entries being
+         *  evicted to stay within the limit. */
+        public Builder generatedSqlCacheMaximumWeight(long maxSqlChars)
+        {
+            generatedSqlCacheMaximumWeight = maxSqlChars;
+            return this;
+        }
+
+        public Builder queryPlanCacheMaximumWeight(long maxPlanChars)
+        {
+            queryPlanCacheMaximumWeight = maxPlanChars;
+            return this;
+        }
+
+        public Builder subqueryFragmentCacheMaximumWeight(long maxFragmentChars)
+        {
+            subqueryFragmentCacheMaximumWeight = maxFragmentChars;
+            return this;
+        }
+
+        /** When enabled, all row element collections for table output specifications with no sort order defined are sorted
+         * by the primary keys of their tables. This should be useful for testing or other situations where deterministic
+         * output is wanted.
+         */
+        public Builder sortUnsortedRowElementCollectionsByPrimaryKeys(boolean sort)
+        {
+            sortUnsortedRowElementCollectionsByPk = sort;
+            return this;
+        }
+
+        /** Sets the number of row elements aggregated into each result row of row collection member batches queries,
+         *  which bounds the size of the xml value of each result row. */
+        public Builder rowElementBatchSize(int rowElements)
+        {
+            if ( rowElements <= 0 )
+                throw new IllegalArgumentException("Row element batch size must be positive.");
+
+            rowElementBatchSize = rowElements;
+            return this;
+        }
+
+        /** Sets the strategy for aggregating child collections in row elements queries, for table output specifications
+         *  not specifying their own. Correlated subqueries are the default. */
+        public Builder childAggregationStrategy(ChildAggregationStrategy strategy)
+        {
+            childAggregationStrategy = requireArg(strategy, "child aggregation strategy");
+            return this;
+        }
+
+        /** Sets the strategy for looking up the included parent tables in row elements queries. Correlated subqueries
+         *  are the default. */
+        public Builder parentLookupStrategy(ParentLookupStrategy strategy)
+        {
+            parentLookupStrategy = requireArg(strategy, "parent lookup strategy");
+            return this;
+        }
+
+        /** Sets whether rows queries occurring more than once in a query are hoisted into common table expressions. No
+         *  hoisting is the default. */
+        public Builder subqueryHoisting(SubqueryHoisting hoisting)
+        {
+            subqueryHoisting = requireArg(hoisting, "subquery hoisting");
+            return this;
+        }
 
-            XdaQuery q = (XdaQuery)o;
+        public Builder xmlIndentation(XmlIndentation indent)
+        {
+            xmlIndentation = requireArg(indent, "xml indentation");
+            return this;
+        }
+
+        public Builder xmlIndentationSize(Integer size)
+        {
+            xmlIndentationSize = Optional.ofNullable(size);
+            return this;
+        }
+
+        /** Sets the engine used to render SQL. Both engines produce identical SQL text, the direct emitter being
+         *  considerably faster since it works without template models or template evaluation, and writes nested subqueries
+         *  in place instead of re-indenting them at each level of nesting. The direct emitter is the default.
+         */
+        public Builder renderingEngine(RenderingEngine engine)
+        {
+            renderingEngine = requireArg(engine, "rendering engine");
+            return this;
+        }
 
-            if ( this == o )
-                return true;
+        public Builder fieldElementContentExpressionGenerator(FieldElementContentExpressionGenerator g)
+        {
+            fieldElementContentExpressionGenerator = requireArg(g, "field element content expression generator");
+            return this;
+        }
+
+        /** Builds the query generator. Templates are loaded only for builders not obtained from an existing generator,
+         *  which is the only case in which an IOException can occur. */
+        public QueryGenerator build() throws IOException
+        {
+            if ( !sharedState.isPresent() )
+                return new QueryGenerator(this);
+
+            SharedState ss = sharedState.get();
+
+            if ( ss.hasCacheMaximumWeights(generatedSqlCacheMaximumWeight, queryPlanCacheMaximumWeight, subqueryFragmentCacheMaximumWeight) )
+                return new QueryGenerator(this, ss);
             else
-                return ospec.equals(q.ospec)
-                    && Objects.equals(tableAlias, q.tableAlias)
-                    && Objects.equals(filterCondition, q.filterCondition)
-                    && orderByClauseInclusion == q.orderByClauseInclusion
-                    && queryResultStyle == q.queryResultStyle
-                    && xmlOutputColumnType == q.xmlOutputColumnType
-                    && outputColumnsInclusion == q.outputColumnsInclusion;
+                return new QueryGenerator(this, ss.withCacheMaximumWeights(generatedSqlCacheMaximumWeight, queryPlanCacheMaximumWeight, subqueryFragmentCacheMaximumWeight));
+        }
+    }
+
+
+    // The loaded templates and the caches shared by generators built or derived from one another. Caches are shared only by
+    // generators having equal rendering options, since the cache keys do not include those options. The caches for a set of
+    // rendering options are held only by the generators having those options, so they are collected along with the last of
+    // those generators. Options comparing field element content expression generators by identity thus do not accumulate.
+    private static final class SharedState
+    {
+        final Template rowElementsQueryTemplate;
+        final Template rowCollectionElementQueryTemplate;
+        final Template rowForestQueryTemplate;
+        final Template rowCollectionMembersQueryTemplate;
+        final Template rowCollectionMemberBatchesQueryTemplate;
+        final Template groupedRowForestQueryTemplate;
+
+        final long generatedSqlCacheMaximumWeight;
+        final long queryPlanCacheMaximumWeight;
+        final long subqueryFragmentCacheMaximumWeight;
+
+        private final WeakValueInterner<RenderingOptions,Caches> cachesByRenderingOptions = new WeakValueInterner<>();
+
+        private SharedState
+        (
+            Template rowElementsQueryTemplate,
+            Template rowCollectionElementQueryTemplate,
+            Template rowForestQueryTemplate,
+            Template rowCollectionMembersQueryTemplate,
+            Template rowCollectionMemberBatchesQueryTemplate,
+            Template groupedRowForestQueryTemplate,
+            long generatedSqlCacheMaximumWeight,
+            long queryPlanCacheMaximumWeight,
+            long subqueryFragmentCacheMaximumWeight
+        )
+        {
+            this.rowElementsQueryTemplate = rowElementsQueryTemplate;
+            this.rowCollectionElementQueryTemplate = rowCollectionElementQueryTemplate;
+            this.rowForestQueryTemplate = rowForestQueryTemplate;
+            this.rowCollectionMembersQueryTemplate = rowCollectionMembersQueryTemplate;
+            this.rowCollectionMemberBatchesQueryTemplate = rowCollectionMemberBatchesQueryTemplate;
+            this.groupedRowForestQueryTemplate = groupedRowForestQueryTemplate;
+            this.generatedSqlCacheMaximumWeight = generatedSqlCacheMaximumWeight;
+            this.queryPlanCacheMaximumWeight = queryPlanCacheMaximumWeight;
+            this.subqueryFragmentCacheMaximumWeight = subqueryFragmentCacheMaximumWeight;
+        }
+
+        static SharedState load
+        (
+            long generatedSqlCacheMaximumWeight,
+            long queryPlanCacheMaximumWeight,
+            long subqueryFragmentCacheMaximumWeight
+        )
+            throws IOException
+        {
+            // Templates are parsed once per JVM and shared by all generators.
+            return
+                new SharedState(
+                    getClasspathTemplate(ROWELEMENTSSQUERY_TEMPLATE_NAME),
+                    getClasspathTemplate(ROWCOLLECTIONELEMENT_QUERY_TEMPLATE),
+                    getClasspathTemplate(ROWFOREST_QUERY_TEMPLATE),
+                    getClasspathTemplate(ROWCOLLECTIONMEMBERS_QUERY_TEMPLATE),
+                    getClasspathTemplate(ROWCOLLECTIONMEMBERBATCHES_QUERY_TEMPLATE),
+                    getClasspathTemplate(GROUPEDROWFOREST_QUERY_TEMPLATE),
+                    generatedSqlCacheMaximumWeight,
+                    queryPlanCacheMaximumWeight,
+                    subqueryFragmentCacheMaximumWeight
+                );
+        }
+
+        boolean hasCacheMaximumWeights(long sqlWeight, long planWeight, long fragmentWeight)
+        {
+            return generatedSqlCacheMaximumWeight == sqlWeight
+                && queryPlanCacheMaximumWeight == planWeight
+                && subqueryFragmentCacheMaximumWeight == fragmentWeight;
+        }
+
+        // Shares the templates but not the caches, which are bounded by the passed weights.
+        SharedState withCacheMaximumWeights(long sqlWeight, long planWeight, long fragmentWeight)
+        {
+            return
+                new SharedState(
+                    rowElementsQueryTemplate,
+                    rowCollectionElementQueryTemplate,
+                    rowForestQueryTemplate,
+                    rowCollectionMembersQueryTemplate,
+                    rowCollectionMemberBatchesQueryTemplate,
+                    groupedRowForestQueryTemplate,
+                    sqlWeight,
+                    planWeight,
+                    fragmentWeight
+                );
+        }
+
+        Caches getCaches(RenderingOptions renderingOptions)
+        {
+            return cachesByRenderingOptions.intern(renderingOptions, new Caches(this));
+        }
+    }
+
+    private static final class Caches
+    {
+        final WeightedLruCache<XdaQuery,String> sqlCache;
+        final WeightedLruCache<QueryPlanKey,QueryPlan> queryPlanCache;
+        final WeightedLruCache<SubqueryFragmentKey,String> subqueryFragmentCache;
+
+        Caches(SharedState ss)
+        {
+            this.sqlCache = new WeightedLruCache<>(ss.generatedSqlCacheMaximumWeight, String::length);
+            this.queryPlanCache = new WeightedLruCache<>(ss.queryPlanCacheMaximumWeight, QueryPlan::getSkeletonLength);
+            this.subqueryFragmentCache = new WeightedLruCache<>(ss.subqueryFragmentCacheMaximumWeight, String::length);
+        }
+    }
+
+    // The generator options which affect generated SQL text. The rendering engine is not included since both engines
+    // produce the same text, and the default xml output column type is part of each query's key.
+    private static final class RenderingOptions
+    {
+        final XmlIndentation xmlIndentation;
+        final Optional<Integer> xmlIndentationSize;
+        final String largeCharTypeName;
+        final boolean sortUnsortedRowElementCollectionsByPk;
+        final int rowElementBatchSize;
+        final ChildAggregationStrategy childAggregationStrategy;
+        final ParentLookupStrategy parentLookupStrategy;
+        final SubqueryHoisting subqueryHoisting;
+        final FieldElementContentExpressionGenerator fieldElementContentExpressionGenerator; // by identity
+
+        RenderingOptions(QueryGenerator g)
+        {
+            this.xmlIndentation = g.xmlIndentation;
+            this.xmlIndentationSize = g.xmlIndentationSize;
+            this.largeCharTypeName = g.largeCharTypeName;
+            this.sortUnsortedRowElementCollectionsByPk = g.sortUnsortedRowElementCollectionsByPk;
+            this.rowElementBatchSize = g.rowElementBatchSize;
+            this.childAggregationStrategy = g.childAggregationStrategy;
+            this.parentLookupStrategy = g.parentLookupStrategy;
+            this.subqueryHoisting = g.subqueryHoisting;
+            this.fieldElementContentExpressionGenerator = g.fieldElementContentExpressionGenerator;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(xmlIndentation, xmlIndentationSize, largeCharTypeName, sortUnsortedRowElementCollectionsByPk, rowElementBatchSize, childAggregationStrategy, parentLookupStrategy, subqueryHoisting)
+                   ^ System.identityHashCode(fieldElementContentExpressionGenerator);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if ( !(o instanceof RenderingOptions) )
+                return false;
+
+            RenderingOptions ro = (RenderingOptions)o;
+
+            return xmlIndentation == ro.xmlIndentation
+                && xmlIndentationSize.equals(ro.xmlIndentationSize)
+                && largeCharTypeName.equals(ro.largeCharTypeName)
+                && sortUnsortedRowElementCollectionsByPk == ro.sortUnsortedRowElementCollectionsByPk
+                && rowElementBatchSize == ro.rowElementBatchSize
+                && childAggregationStrategy == ro.childAggregationStrategy
+                && parentLookupStrategy == ro.parentLookupStrategy
+                && subqueryHoisting == ro.subqueryHoisting
+                && fieldElementContentExpressionGenerator == ro.fieldElementContentExpressionGenerator;
+        }
+    }
+
+
+    // Query plans are independent of the table alias, filter condition and ORDER BY clause inclusion of the queries.
+    private static final class QueryPlanKey
+    {
+        final TableOutputSpec ospec;
+        final XdaQuery.QueryResultStyle queryResultStyle;
+        final XmlOutputColumnType xmlOutputColumnType;
+        final OutputColumnsInclusion outputColumnsInclusion;
+        final int hashCode;
+
+        QueryPlanKey
+        (
+            TableOutputSpec ospec,
+            XdaQuery.QueryResultStyle queryResultStyle,
+            XmlOutputColumnType xmlOutputColumnType,
+            OutputColumnsInclusion outputColumnsInclusion
+        )
+        {
+            this.ospec = requireArg(ospec, "table output spec");
+            this.queryResultStyle = requireArg(queryResultStyle, "query result style");
+            this.xmlOutputColumnType = requireArg(xmlOutputColumnType, "xml output column type");
+            this.outputColumnsInclusion = requireArg(outputColumnsInclusion, "output columns option");
+            this.hashCode = Objects.hash(ospec, queryResultStyle, xmlOutputColumnType, outputColumnsInclusion);
+        }
+
+        QueryPlanKey(XdaQuery xdaQry)
+        {
+            this(
+                xdaQry.getTableOutputSpec(),
+                xdaQry.getQueryResultStyle(),
+                xdaQry.getXmlOutputColumnType(),
+                xdaQry.getOutputColumnsOption()
+            );
+        }
+
+        @Override
+        public int hashCode() { return hashCode; }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if ( !(o instanceof QueryPlanKey) )
+                return false;
+
+            QueryPlanKey k = (QueryPlanKey)o;
+
+            return ospec.equals(k.ospec)
+                && queryResultStyle == k.queryResultStyle
+                && xmlOutputColumnType == k.xmlOutputColumnType
+                && outputColumnsInclusion == k.outputColumnsInclusion;
+        }
+    }
+
+
+    // Identifies a rows query by its table spec and the default namespace in which it is rendered, which determine its text.
+    private static final class RowsQueryKey
+    {
+        final TableOutputSpec ospec;
+        final Optional<String> defaultXmlns;
+
+        RowsQueryKey(TableOutputSpec ospec, Optional<String> defaultXmlns)
+        {
+            this.ospec = ospec;
+            this.defaultXmlns = defaultXmlns;
+        }
+
+        @Override
+        public int hashCode() { return ospec.hashCode() * 31 + defaultXmlns.hashCode(); }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if ( !(o instanceof RowsQueryKey) )
+                return false;
+
+            RowsQueryKey k = (RowsQueryKey)o;
+
+            return ospec.equals(k.ospec) && defaultXmlns.equals(k.defaultXmlns);
+        }
+    }
+
+    // Identifies a rendered child collection or parent subquery, by its table spec and the foreign key, alias and namespace
+    // of the enclosing table, and for child collections whether the enclosing table's child collections are inline.
+    private static final class SubqueryFragmentKey
+    {
+        enum Kind { CHILD_COLLECTION, GROUPED_CHILD_COLLECTION, PARENT, JOINED_PARENT }
+
+        final Kind kind;
+        final TableOutputSpec ospec;
+        final ForeignKey fk;
+        final String correlationAlias;
+        final String defaultXmlns;
+        final boolean inlineChildCollections;
+        final int hashCode;
+
+        SubqueryFragmentKey
+        (
+            Kind kind,
+            TableOutputSpec ospec,
+            ForeignKey fk,
+            String correlationAlias,
+            String defaultXmlns,
+            boolean inlineChildCollections
+        )
+        {
+            this.kind = kind;
+            this.ospec = ospec;
+            this.fk = fk;
+            this.correlationAlias = correlationAlias;
+            this.defaultXmlns = defaultXmlns;
+            this.inlineChildCollections = inlineChildCollections;
+            this.hashCode = Objects.hash(kind, ospec, fk, correlationAlias, defaultXmlns, inlineChildCollections);
+        }
+
+        @Override
+        public int hashCode() { return hashCode; }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if ( !(o instanceof SubqueryFragmentKey) )
+                return false;
+
+            SubqueryFragmentKey k = (SubqueryFragmentKey)o;
+
+            return kind == k.kind
+                && ospec.equals(k.ospec)
+                && fk.equals(k.fk)
+                && correlationAlias.equals(k.correlationAlias)
+                && defaultXmlns.equals(k.defaultXmlns)
+                && inlineChildCollections == k.inlineChildCollections;
         }
     }
 
@@ -0,0 +1,280 @@
+package gov.fda.nctr.xdagen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static gov.fda.nctr.util.CoreFuns.requireArg;
+import static gov.fda.nctr.util.StringFuns.indent;
+import gov.fda.nctr.xdagen.QueryGenerator.OrderByClauseInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.OutputColumnsInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+import gov.fda.nctr.xdagen.QueryGenerator.XmlOutputColumnType;
+
+
+/** A query rendered once for a table output specification, query result style and xml output column type, with slots for
+ *  the parts which may vary between requests: the table alias (the rows query alias for collection and forest queries),
+ *  the WHERE clause, and the ORDER BY clause of row elements queries. The SQL for a particular request is produced by
+ *  splicing the request's values into the slots, without any rendering. Query plans are obtained from a QueryGenerator,
+ *  and are immutable and safe to share between threads.
+ */
+public final class QueryPlan
+{
+    private final QueryResultStyle queryResultStyle;
+    private final XmlOutputColumnType xmlOutputColumnType;
+    private final OutputColumnsInclusion outputColumnsInclusion;
+
+    private final List<Part> parts;
+
+    private final Set<String> reservedTableAliases;
+
+    private final int skeletonLength;
+    private final int skeletonBindParameterCount;
+
+    // Markers standing in for slot contents in the SQL rendered for a plan, which cannot occur in generated SQL otherwise.
+    static final String TABLE_ALIAS_MARKER = "\u0000table_alias\u0000";
+    static final String FILTER_CONDITION_MARKER = "\u0000filter_condition\u0000";
+
+    private enum Slot { TABLE_ALIAS, WHERE_CLAUSE }
+
+    private static final class Part
+    {
+        final String text; // literal text, for parts which are not slots
+        final Optional<Slot> slot;
+        final boolean inOrderByClause;
+
+        Part(String text, Optional<Slot> slot, boolean inOrderByClause)
+        {
+            this.text = text;
+            this.slot = slot;
+            this.inOrderByClause = inOrderByClause;
+        }
+    }
+
+
+    private QueryPlan
+    (
+        QueryResultStyle queryResultStyle,
+        XmlOutputColumnType xmlOutputColumnType,
+        OutputColumnsInclusion outputColumnsInclusion,
+        List<Part> parts,
+        Set<String> reservedTableAliases
+    )
+    {
+        this.queryResultStyle = queryResultStyle;
+        this.xmlOutputColumnType = xmlOutputColumnType;
+        this.outputColumnsInclusion = outputColumnsInclusion;
+        this.parts = Collections.unmodifiableList(parts);
+        this.reservedTableAliases = Collections.unmodifiableSet(new HashSet<>(reservedTableAliases));
+
+        int len = 0;
+        int bindParams = 0;
+        for ( Part p: parts )
+        {
+            if ( !p.slot.isPresent() )
+            {
+                len += p.text.length();
+                bindParams += countBindParameters(p.text);
+            }
+        }
+        this.skeletonLength = len;
+        this.skeletonBindParameterCount = bindParams;
+    }
+
+    /** Makes a plan from SQL rendered with the table alias and filter condition markers in place of the table alias and
+     *  filter condition.
+     * @param sql  The SQL rendered with markers, without any ORDER BY clause.
+     * @param orderByClause  The text following the SQL when an ORDER BY clause is included, with table alias markers,
+     *                       or the empty string if the query has no separate ORDER BY clause.
+     * @param reservedTableAliases  Table aliases which would have changed the rendering of nested subqueries if given as
+     *                              the table alias, and so cannot be spliced into the plan.
+     */
+    static QueryPlan fromMarkedSql
+    (
+        QueryResultStyle queryResultStyle,
+        XmlOutputColumnType xmlOutputColumnType,
+        OutputColumnsInclusion outputColumnsInclusion,
+        String sql,
+        String orderByClause,
+        Set<String> reservedTableAliases
+    )
+    {
+        String markedWhereClause = makeWhereClause(queryResultStyle, FILTER_CONDITION_MARKER);
+
+        int whereIx = sql.indexOf(markedWhereClause);
+        if ( whereIx == -1 || sql.indexOf(FILTER_CONDITION_MARKER, whereIx + markedWhereClause.length()) != -1 )
+            throw new IllegalStateException("Could not locate the WHERE clause in the SQL rendered for a query plan.");
+
+        List<Part> parts = new ArrayList<>();
+        addTextParts(sql.substring(0, whereIx), false, parts);
+        parts.add(new Part("", Optional.of(Slot.WHERE_CLAUSE), false));
+        addTextParts(sql.substring(whereIx + markedWhereClause.length()), false, parts);
+        addTextParts(orderByClause, true, parts);
+
+        return new QueryPlan(queryResultStyle, xmlOutputColumnType, outputColumnsInclusion, parts, reservedTableAliases);
+    }
+
+    private static void addTextParts(String text, boolean inOrderByClause, List<Part> parts)
+    {
+        int from = 0;
+        int aliasIx;
+        while ( (aliasIx = text.indexOf(TABLE_ALIAS_MARKER, from)) != -1 )
+        {
+            if ( aliasIx > from )
+                parts.add(new Part(text.substring(from, aliasIx), Optional.empty(), inOrderByClause));
+            parts.add(new Part("", Optional.of(Slot.TABLE_ALIAS), inOrderByClause));
+            from = aliasIx + TABLE_ALIAS_MARKER.length();
+        }
+        if ( from < text.length() )
+            parts.add(new Part(text.substring(from), Optional.empty(), inOrderByClause));
+    }
+
+    /** Produces the SQL for the passed table alias and filter condition, which are as described for the corresponding
+     *  QueryGenerator query methods. The ORDER BY clause inclusion applies only to row elements queries.
+     */
+    public String getSql
+    (
+        String tableAlias,
+        Optional<String> filterCondition,
+        OrderByClauseInclusion orderByIncl
+    )
+    {
+        requireArg(tableAlias, "table alias");
+        requireArg(filterCondition, "filter condition");
+
+        if ( !isApplicableTableAlias(tableAlias) )
+            throw new IllegalArgumentException("Table alias '" + tableAlias + "' is used within the query and cannot be spliced into the query plan.");
+
+        boolean includeOrderBy = orderByIncl == OrderByClauseInclusion.INCLUDE_ORDERBY_CLAUSE_IF_ORDERED;
+
+        StringBuilder sb = new StringBuilder(skeletonLength + 16 * tableAlias.length() + filterCondition.map(String::length).orElse(0) + 16);
+
+        for ( Part p: parts )
+        {
+            if ( p.inOrderByClause && !includeOrderBy )
+                continue;
+
+            if ( !p.slot.isPresent() )
+                sb.append(p.text);
+            else if ( p.slot.get() == Slot.TABLE_ALIAS )
+                sb.append(tableAlias);
+            else if ( filterCondition.isPresent() )
+                sb.append(makeWhereClause(queryResultStyle, filterCondition.get()));
+        }
+
+        return sb.toString();
+    }
+
+    public String getSql(String tableAlias, Optional<String> filterCondition)
+    {
+        return getSql(tableAlias, filterCondition, OrderByClauseInclusion.INCLUDE_ORDERBY_CLAUSE_IF_ORDERED);
+    }
+
+    /// Returns false if the passed alias is used by a nested subquery and so cannot be spliced into this plan.
+    public boolean isApplicableTableAlias(String tableAlias)
+    {
+        return !reservedTableAliases.contains(tableAlias);
+    }
+
+    /** Returns the number of bind parameters ('?' placeholders) in the SQL produced for the passed filter condition, for
+     *  binding the parameters of a PreparedStatement. */
+    public int getBindParameterCount(Optional<String> filterCondition)
+    {
+        return skeletonBindParameterCount + filterCondition.map(QueryPlan::countBindParameters).orElse(0);
+    }
+
+    public QueryResultStyle getQueryResultStyle()
+    {
+        return queryResultStyle;
+    }
+
+    public XmlOutputColumnType getXmlOutputColumnType()
+    {
+        return xmlOutputColumnType;
+    }
+
+    public OutputColumnsInclusion getOutputColumnsOption()
+    {
+        return outputColumnsInclusion;
+    }
+
+    /// The length of the SQL text of this plan excluding slots.
+    public int getSkeletonLength()
+    {
+        return skeletonLength;
+    }
+
+    // Matches the WHERE clause rendering of the query templates for the query result style.
+    private static String makeWhereClause(QueryResultStyle queryResultStyle, String condition)
+    {
+        if ( queryResultStyle == QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS || queryResultStyle == QueryResultStyle.MULTIPLE_ROW_COLLECTION_MEMBER_RESULTS )
+            return condition.isEmpty() ? "" : "\nwhere\n  " + condition;
+        else if ( queryResultStyle == QueryResultStyle.MULTIPLE_ROW_COLLECTION_MEMBER_BATCH_RESULTS ) // within the row numbering subquery
+            return condition.isEmpty() ? "" : "\n   where\n" + indent(condition, "     ");
+        else
+            return "where\n" + indent(condition, "  ");
+    }
+
+    /** Counts the '?' bind parameter placeholders in the passed SQL text, ignoring any within quoted literals, quoted
+     *  identifiers and comments. */
+    public static int countBindParameters(String sql)
+    {
+        int count = 0;
+
+        for ( int i = nextBindParameterIndex(sql, 0); i != -1; i = nextBindParameterIndex(sql, i + 1) )
+            ++count;
+
+        return count;
+    }
+
+    /** Returns the index of the first '?' bind parameter placeholder at or after the passed index which is not within a
+     *  quoted literal, quoted identifier or comment, or -1 if there is none. */
+    static int nextBindParameterIndex(String sql, int fromIndex)
+    {
+        int len = sql.length();
+
+        for ( int i = fromIndex; i < len; ++i )
+        {
+            char c = sql.charAt(i);
+
+            if ( c == '?' )
+                return i;
+            else if ( c == '\'' || c == '"' )
+            {
+                int close = sql.indexOf(c, i + 1); // a doubled quote within the quoted text just continues the scan
+                i = close == -1 ? len : close;
+            }
+            else if ( c == '-' && i + 1 < len && sql.charAt(i + 1) == '-' )
+            {
+                int eol = sql.indexOf('\n', i + 2);
+                i = eol == -1 ? len : eol;
+            }
+            else if ( c == '/' && i + 1 < len && sql.charAt(i + 1) == '*' )
+            {
+                int close = sql.indexOf("*/", i + 2);
+                i = close == -1 ? len : close + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder(skeletonLength + 64);
+
+        for ( Part p: parts )
+        {
+            if ( !p.slot.isPresent() )
+                sb.append(p.text);
+            else
+                sb.append(p.slot.get() == Slot.TABLE_ALIAS ? "{table_alias}" : "{where_clause}");
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,297 @@
+package gov.fda.nctr.xdagen;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static gov.fda.nctr.util.CoreFuns.requireArg;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+import gov.fda.nctr.xdagen.QueryGenerator.XmlOutputColumnType;
+import gov.fda.nctr.xdagen.RowXmlPublisher.RowXml;
+import gov.fda.nctr.xdagen.XdaFlow.Publisher;
+import gov.fda.nctr.xdagen.XdaFlow.Subscriber;
+import gov.fda.nctr.xdagen.XdaFlow.Subscription;
+
+
+/** A publisher of the row xml values of a multiple row query, delivering them to subscribers with backpressure. Each
+ *  subscription executes the query on its own connection from the executor's data source when its subscriber first
+ *  requests rows, and reads rows from the result set cursor only as they are requested, so a slow subscriber holds at
+ *  most a fetch size of rows in the driver. Cancelling a subscription cancels any statement in progress, and the
+ *  connection is closed as soon as the subscription is cancelled, completes or fails.
+ *
+ *  The publisher implements the Flow counterparts of XdaFlow, as java.util.concurrent.Flow is not available on Java 8.
+ *  Signals to a subscriber are delivered serially from tasks run on the publisher's delivery executor, which should
+ *  allow blocking, as JDBC calls are made from the same tasks. A subscriber may request more rows from within onNext.
+ *
+ *  Publishers are obtained from XdaExecutor.publishRowXml, and are immutable and may be subscribed to any number of
+ *  times, each subscription executing the query anew.
+ */
+public final class RowXmlPublisher implements Publisher<RowXml>
+{
+    private final XdaExecutor executor;
+
+    private final String sql;
+
+    private final XmlOutputColumnType xmlColType;
+
+    private final List<Object> bindValues;
+
+    private final Executor deliveryExecutor;
+
+
+    RowXmlPublisher
+    (
+        XdaExecutor executor,
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        Executor deliveryExecutor
+    )
+    {
+        this.executor = requireArg(executor, "executor");
+        requireArg(xdaQry, "query");
+        this.bindValues = new ArrayList<>(requireArg(bindValues, "bind values"));
+        this.deliveryExecutor = requireArg(deliveryExecutor, "delivery executor");
+
+        QueryResultStyle style = xdaQry.getQueryResultStyle();
+        if ( style == QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT || style == QueryResultStyle.SINGLE_ROW_ELEMENT_FOREST_RESULT )
+            throw new IllegalArgumentException("Row xml publishers apply only to multiple row queries.");
+
+        this.sql = executor.getQueryGenerator().getSql(xdaQry);
+        this.xmlColType = xdaQry.getXmlOutputColumnType();
+
+        int bindParamCount = QueryPlan.countBindParameters(sql);
+        if ( bindParamCount != bindValues.size() )
+            throw new IllegalArgumentException("Query has " + bindParamCount + " bind parameters but " + bindValues.size() + " values were provided.");
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super RowXml> subscriber)
+    {
+        Objects.requireNonNull(subscriber, "subscriber");
+
+        subscriber.onSubscribe(new RowSubscription(subscriber));
+    }
+
+
+    /// The xml of a result row, with its 1-based position in the results.
+    public static final class RowXml
+    {
+        private final long rowNumber;
+        private final String xml;
+
+        RowXml(long rowNumber, String xml)
+        {
+            this.rowNumber = rowNumber;
+            this.xml = xml;
+        }
+
+        public long getRowNumber() { return rowNumber; }
+
+        public String getXml() { return xml; }
+
+        @Override
+        public String toString() { return "RowXml(" + rowNumber + ")"; }
+    }
+
+
+    // All JDBC access and signals to the subscriber happen in drain(), which runs in only one delivery task at a time: a
+    // task is started only by the request or cancel call which raises the pending work count from zero, and the task
+    // repeats until it has accounted for all work signalled while it ran.
+    private final class RowSubscription implements Subscription
+    {
+        private final Subscriber<? super RowXml> subscriber;
+
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pendingWork = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile IllegalArgumentException invalidRequest;
+        private volatile PreparedStatement openStatement; // for cancellation from other threads
+
+        // Accessed only from drain().
+        private boolean done;
+        private Connection conn;
+        private boolean restoreAutoCommit;
+        private PreparedStatement stmt;
+        private ResultSet rs;
+        private int xmlCol;
+        private boolean isClob;
+        private long rowCount;
+
+        RowSubscription(Subscriber<? super RowXml> subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n)
+        {
+            if ( n <= 0 )
+                invalidRequest = new IllegalArgumentException("Subscription request must be positive, got " + n + ".");
+            else
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n); // saturating
+
+            scheduleDrain();
+        }
+
+        @Override
+        public void cancel()
+        {
+            cancelled = true;
+
+            PreparedStatement s = openStatement;
+            if ( s != null )
+            {
+                try
+                {
+                    s.cancel();
+                }
+                catch(SQLException e)
+                {
+                    // The statement is closed on the next drain regardless.
+                }
+            }
+
+            scheduleDrain();
+        }
+
+        private void scheduleDrain()
+        {
+            if ( pendingWork.getAndIncrement() == 0 )
+                deliveryExecutor.execute(this::drain);
+        }
+
+        private void drain()
+        {
+            int work = 1;
+            do
+            {
+                if ( !done )
+                    deliver();
+                work = pendingWork.addAndGet(-work);
+            }
+            while ( work != 0 );
+        }
+
+        private void deliver()
+        {
+            if ( cancelled )
+            {
+                finish();
+                return;
+            }
+
+            if ( invalidRequest != null )
+            {
+                cancelled = true;
+                finish();
+                subscriber.onError(invalidRequest);
+                return;
+            }
+
+            try
+            {
+                if ( rs == null && demand.get() > 0 )
+                    open();
+
+                while ( demand.get() > 0 && !cancelled )
+                {
+                    if ( !rs.next() )
+                    {
+                        finish();
+                        subscriber.onComplete();
+                        return;
+                    }
+
+                    String xml = XdaExecutor.readXmlValue(rs, xmlCol, xmlColType, isClob);
+
+                    demand.getAndUpdate(d -> d == Long.MAX_VALUE ? d : d - 1);
+
+                    subscriber.onNext(new RowXml(++rowCount, xml));
+                }
+
+                if ( cancelled )
+                    finish();
+            }
+            catch(SQLException | RuntimeException e)
+            {
+                boolean wasCancelled = cancelled;
+                cancelled = true;
+                finish();
+                if ( !wasCancelled )
+                    subscriber.onError(e);
+            }
+        }
+
+        // Executes the query with a cursor, which for Postgres requires that the connection not be in auto-commit mode.
+        private void open() throws SQLException
+        {
+            conn = executor.getDataSource().getConnection();
+
+            restoreAutoCommit = conn.getAutoCommit();
+            if ( restoreAutoCommit )
+                conn.setAutoCommit(false);
+
+            stmt = conn.prepareStatement(sql);
+            openStatement = stmt;
+            stmt.setFetchSize(executor.getFetchSize());
+
+            for ( int i = 0; i < bindValues.size(); ++i )
+                stmt.setObject(i + 1, bindValues.get(i));
+
+            rs = stmt.executeQuery();
+
+            // The xml column is the last column, following any table field columns.
+            xmlCol = rs.getMetaData().getColumnCount();
+            isClob = rs.getMetaData().getColumnType(xmlCol) == Types.CLOB;
+        }
+
+        // Releases the result set, statement and connection, after which no more signals are delivered.
+        private void finish()
+        {
+            done = true;
+            openStatement = null;
+
+            closeQuietly(rs);
+            closeQuietly(stmt);
+            if ( conn != null && restoreAutoCommit )
+            {
+                try
+                {
+                    conn.setAutoCommit(true);
+                }
+                catch(SQLException e)
+                {
+                    // The connection is closed below regardless.
+                }
+            }
+            closeQuietly(conn);
+
+            rs = null;
+            stmt = null;
+            conn = null;
+        }
+
+        private void closeQuietly(AutoCloseable c)
+        {
+            if ( c == null )
+                return;
+            try
+            {
+                c.close();
+            }
+            catch(Exception e)
+            {
+                // Nothing more is read from the resource.
+            }
+        }
+    }
+}
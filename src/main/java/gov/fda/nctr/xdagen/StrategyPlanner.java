@@ -0,0 +1,405 @@
+package gov.fda.nctr.xdagen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static gov.fda.nctr.util.CoreFuns.requireArg;
+import gov.fda.nctr.dbmd.ForeignKey;
+import gov.fda.nctr.dbmd.RelId;
+import gov.fda.nctr.util.Pair;
+
+
+/** Chooses the child aggregation strategy of each table output specification of a query, by estimating the cost of each
+ *  strategy from a snapshot of the table statistics of the database.
+ *
+ *  Costs are estimated in rows visited, assuming indexes on foreign keys. A child collection aggregated by correlated
+ *  subqueries costs an index probe for each parent row rendered plus a visit to each of the parent's child rows, and
+ *  only those child rows' row elements are rendered. Grouped joins visit every row of the child table once for all the
+ *  parents, and render every child row element, then hash the groups of each foreign key value, whose number is taken
+ *  from the distinct values of the foreign key fields, for a probe by each parent row. Lateral joins are estimated as
+ *  correlated subqueries, which are preferred when costs are equal. Parent lookups are costed by the query generator's
+ *  parent lookup strategy, which applies to the whole query. Tables without statistics are assumed to have
+ *  DEFAULT_ROW_COUNT rows.
+ *
+ *  A specification with its own child aggregation strategy keeps it, and is costed with it. Each plan includes a
+ *  report of the strategies chosen and of the estimated costs of the alternatives.
+ * @see TableStatistics
+ */
+public final class StrategyPlanner
+{
+    private final QueryGenerator queryGenerator;
+
+    private final TableStatistics tableStatistics;
+
+    private final List<ChildAggregationStrategy> candidateStrategies;
+
+    public static final long DEFAULT_ROW_COUNT = 1000;
+
+
+    public StrategyPlanner
+    (
+        QueryGenerator queryGenerator,
+        TableStatistics tableStatistics
+    )
+    {
+        this.queryGenerator = requireArg(queryGenerator, "query generator");
+        this.tableStatistics = requireArg(tableStatistics, "table statistics");
+
+        List<ChildAggregationStrategy> candidates = new ArrayList<>();
+        for ( ChildAggregationStrategy strategy: ChildAggregationStrategy.values() )
+        {
+            if ( strategy != ChildAggregationStrategy.LATERAL_JOINS || queryGenerator.supportsLateralJoins() )
+                candidates.add(strategy);
+        }
+        this.candidateStrategies = Collections.unmodifiableList(candidates);
+    }
+
+    /** Plans the strategies for a query of all rows of the specification's table, as for a listing of the table. */
+    public Plan plan(TableOutputSpec ospec)
+    {
+        requireArg(ospec, "table output specification");
+
+        return plan(ospec, getRowCount(ospec.getRelationId()));
+    }
+
+    /** Plans the strategies for a query of the passed number of rows of the specification's table, as estimated for its
+     *  filter condition. */
+    public Plan plan
+    (
+        TableOutputSpec ospec,
+        long selectedRows
+    )
+    {
+        requireArg(ospec, "table output specification");
+
+        if ( selectedRows < 0 )
+            throw new IllegalArgumentException("Selected rows must not be negative.");
+
+        SubtreePlan subtreePlan = planSubtree(ospec, selectedRows, new HashMap<>());
+
+        StringBuilder report = new StringBuilder();
+        report.append("Strategy plan for ").append(ospec.getRelationId().getIdString())
+              .append(" rendering ").append(selectedRows).append(" rows, estimated cost ").append(Math.round(subtreePlan.cost)).append(":\n");
+        report.append("Parent lookups by ").append(queryGenerator.getParentLookupStrategy()).append(" as for the query generator.\n");
+        appendReport(report, subtreePlan, ospec.getRelationId().getIdString(), "");
+
+        return new Plan(subtreePlan.ospec, subtreePlan.cost, report.toString());
+    }
+
+    public TableStatistics getTableStatistics()
+    {
+        return tableStatistics;
+    }
+
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    // Cost estimation
+
+    // Plans the specification and its included tables for the estimated number of its rows whose row elements are
+    // rendered, choosing the strategy of least estimated cost for its child collections.
+    private SubtreePlan planSubtree
+    (
+        TableOutputSpec ospec,
+        double rows,
+        Map<Pair<TableOutputSpec,Double>,SubtreePlan> plansBySpecAndRows
+    )
+    {
+        Pair<TableOutputSpec,Double> planKey = Pair.make(ospec, rows);
+
+        SubtreePlan existingPlan = plansBySpecAndRows.get(planKey);
+        if ( existingPlan != null )
+            return existingPlan;
+
+        TableOutputSpec plannedOspec = ospec;
+        double cost = 0;
+
+        List<Pair<ForeignKey,SubtreePlan>> parentPlans = new ArrayList<>();
+        for ( Pair<ForeignKey,TableOutputSpec> p: ospec.getParentOutputSpecsByFK() )
+        {
+            RelId parentRelId = p.snd().getRelationId();
+            double parentTableRows = getRowCount(parentRelId);
+
+            SubtreePlan parentPlan;
+            switch ( queryGenerator.getParentLookupStrategy() )
+            {
+                case LEFT_JOINS:
+                    // The parent rows query is joined in full, each child row probing the hashed parent rows.
+                    parentPlan = planSubtree(p.snd(), parentTableRows, plansBySpecAndRows);
+                    cost += parentTableRows + rows;
+                    break;
+                default:
+                    // A parent row element is rendered for each child row, by an index probe of the parent table.
+                    parentPlan = planSubtree(p.snd(), rows, plansBySpecAndRows);
+                    cost += rows * getIndexProbeCost(parentTableRows);
+            }
+
+            cost += parentPlan.cost;
+            parentPlans.add(Pair.make(p.fst(), parentPlan));
+            plannedOspec = plannedOspec.withParent(p.fst(), Optional.of(parentPlan.ospec));
+        }
+
+        List<Pair<ForeignKey,TableOutputSpec>> childSpecsByFK = ospec.getChildOutputSpecsByFK();
+
+        Optional<ChildAggregationStrategy> chosenStrategy = Optional.empty();
+        Map<ChildAggregationStrategy,Double> strategyCosts = new EnumMap<>(ChildAggregationStrategy.class);
+        List<Pair<ForeignKey,SubtreePlan>> childPlans = new ArrayList<>();
+
+        if ( !childSpecsByFK.isEmpty() )
+        {
+            List<ChildAggregationStrategy> strategies =
+                ospec.getChildAggregationStrategy().map(Collections::singletonList).orElse(candidateStrategies);
+
+            double leastCost = Double.POSITIVE_INFINITY;
+
+            for ( ChildAggregationStrategy strategy: strategies )
+            {
+                double strategyCost = 0;
+                List<Pair<ForeignKey,SubtreePlan>> strategyChildPlans = new ArrayList<>();
+
+                for ( Pair<ForeignKey,TableOutputSpec> p: childSpecsByFK )
+                {
+                    Pair<Double,SubtreePlan> childCostAndPlan = planChildCollections(p.fst(), p.snd(), ospec, rows, strategy, plansBySpecAndRows);
+
+                    strategyCost += childCostAndPlan.fst();
+                    strategyChildPlans.add(Pair.make(p.fst(), childCostAndPlan.snd()));
+                }
+
+                strategyCosts.put(strategy, strategyCost);
+
+                // Strategies are tried in declaration order, so the simpler strategy is chosen when costs are equal.
+                if ( strategyCost < leastCost )
+                {
+                    leastCost = strategyCost;
+                    chosenStrategy = Optional.of(strategy);
+                    childPlans = strategyChildPlans;
+                }
+            }
+
+            cost += leastCost;
+
+            for ( Pair<ForeignKey,SubtreePlan> p: childPlans )
+                plannedOspec = plannedOspec.withChild(p.fst(), Optional.of(p.snd().ospec));
+
+            if ( !ospec.getChildAggregationStrategy().isPresent() )
+                plannedOspec = plannedOspec.withChildAggregationStrategy(chosenStrategy.get());
+        }
+
+        SubtreePlan plan =
+            new SubtreePlan(
+                plannedOspec,
+                rows,
+                cost,
+                chosenStrategy,
+                ospec.getChildAggregationStrategy().isPresent(),
+                strategyCosts,
+                childPlans,
+                parentPlans
+            );
+
+        plansBySpecAndRows.put(planKey, plan);
+
+        return plan;
+    }
+
+    // The estimated cost of aggregating the child collections of the parent rows by the strategy, with the plan of the
+    // child table for the child rows rendered.
+    private Pair<Double,SubtreePlan> planChildCollections
+    (
+        ForeignKey fkFromChild,
+        TableOutputSpec childOspec,
+        TableOutputSpec parentOspec,
+        double parentRows,
+        ChildAggregationStrategy strategy,
+        Map<Pair<TableOutputSpec,Double>,SubtreePlan> plansBySpecAndRows
+    )
+    {
+        RelId childRelId = childOspec.getRelationId();
+        double childTableRows = getRowCount(childRelId);
+        double parentTableRows = getRowCount(parentOspec.getRelationId());
+
+        switch ( strategy )
+        {
+            case GROUPED_JOINS:
+            {
+                // The whole child table is rendered and grouped by foreign key value, and the groups hashed for probing.
+                SubtreePlan childPlan = planSubtree(childOspec, childTableRows, plansBySpecAndRows);
+                double groups = getForeignKeyDistinctValues(fkFromChild, childTableRows, parentTableRows);
+
+                return Pair.make(childTableRows + groups + parentRows + childPlan.cost, childPlan);
+            }
+            default:
+            {
+                // The child rows of each parent row are found by an index probe, and only they are rendered.
+                double childRows = parentTableRows == 0 ? 0 : Math.min(childTableRows, parentRows * childTableRows / parentTableRows);
+                SubtreePlan childPlan = planSubtree(childOspec, childRows, plansBySpecAndRows);
+
+                return Pair.make(parentRows * getIndexProbeCost(childTableRows) + childRows + childPlan.cost, childPlan);
+            }
+        }
+    }
+
+    // The estimated number of distinct values of the foreign key, at least that of any of its fields. Without statistics
+    // for its fields, every parent row is assumed to be referenced when there are enough child rows.
+    private double getForeignKeyDistinctValues
+    (
+        ForeignKey fkFromChild,
+        double childTableRows,
+        double parentTableRows
+    )
+    {
+        double maxDistinct = Math.min(childTableRows, parentTableRows);
+
+        Optional<Long> fieldsDistinct = Optional.empty();
+        for ( String fieldName: fkFromChild.getSourceFieldNames() )
+        {
+            Optional<Long> fieldDistinct = tableStatistics.getDistinctValueCount(fkFromChild.getSourceRelationId(), fieldName);
+            if ( fieldDistinct.isPresent() && (!fieldsDistinct.isPresent() || fieldDistinct.get() > fieldsDistinct.get()) )
+                fieldsDistinct = fieldDistinct;
+        }
+
+        return fieldsDistinct.map(d -> Math.min((double)d, maxDistinct)).orElse(maxDistinct);
+    }
+
+    // The rows visited in descending an index of the table to its leaf rows.
+    private static double getIndexProbeCost(double tableRows)
+    {
+        return 1 + Math.log(Math.max(tableRows, 1)) / Math.log(2);
+    }
+
+    private long getRowCount(RelId relId)
+    {
+        return tableStatistics.getRowCount(relId).orElse(DEFAULT_ROW_COUNT);
+    }
+
+    // Cost estimation
+    /////////////////////////////////////////////////////////////////////////////////////
+
+
+    // Appends a line for the plan of the specification, labeled by its table and its relationship to any enclosing table,
+    // followed by those of its child and parent tables.
+    private void appendReport
+    (
+        StringBuilder sb,
+        SubtreePlan plan,
+        String label,
+        String indent
+    )
+    {
+        Optional<Long> tableRows = tableStatistics.getRowCount(plan.ospec.getRelationId());
+
+        sb.append(indent).append(label).append(": ").append(Math.round(plan.rows)).append(" of ");
+        if ( tableRows.isPresent() )
+            sb.append(tableRows.get()).append(" rows");
+        else
+            sb.append(DEFAULT_ROW_COUNT).append(" rows (assumed, no statistics)");
+
+        if ( plan.childAggregationStrategy.isPresent() )
+        {
+            sb.append(", child collections by ").append(plan.childAggregationStrategy.get());
+
+            if ( plan.strategySpecified )
+                sb.append(" as specified, estimated cost ").append(Math.round(plan.strategyCosts.get(plan.childAggregationStrategy.get())));
+            else
+            {
+                sb.append(" (estimated costs:");
+                for ( Map.Entry<ChildAggregationStrategy,Double> e: plan.strategyCosts.entrySet() )
+                    sb.append(' ').append(e.getKey()).append(' ').append(Math.round(e.getValue()));
+                sb.append(')');
+            }
+        }
+
+        sb.append('\n');
+
+        for ( Pair<ForeignKey,SubtreePlan> p: plan.childPlans )
+            appendReport(sb, p.snd(), "child " + p.fst().getSourceRelationId().getIdString() + " " + p.fst().getSourceFieldNames(), indent + "  ");
+
+        for ( Pair<ForeignKey,SubtreePlan> p: plan.parentPlans )
+            appendReport(sb, p.snd(), "parent " + p.fst().getTargetRelationId().getIdString() + " " + p.fst().getSourceFieldNames(), indent + "  ");
+    }
+
+
+    // The plan of a table output specification and its included tables, for a number of its rows rendered.
+    private static final class SubtreePlan
+    {
+        final TableOutputSpec ospec; // with the planned strategies
+        final double rows;
+        final double cost;
+        final Optional<ChildAggregationStrategy> childAggregationStrategy; // empty if no child tables
+        final boolean strategySpecified;
+        final Map<ChildAggregationStrategy,Double> strategyCosts;
+        final List<Pair<ForeignKey,SubtreePlan>> childPlans;
+        final List<Pair<ForeignKey,SubtreePlan>> parentPlans;
+
+        SubtreePlan
+        (
+            TableOutputSpec ospec,
+            double rows,
+            double cost,
+            Optional<ChildAggregationStrategy> childAggregationStrategy,
+            boolean strategySpecified,
+            Map<ChildAggregationStrategy,Double> strategyCosts,
+            List<Pair<ForeignKey,SubtreePlan>> childPlans,
+            List<Pair<ForeignKey,SubtreePlan>> parentPlans
+        )
+        {
+            this.ospec = ospec;
+            this.rows = rows;
+            this.cost = cost;
+            this.childAggregationStrategy = childAggregationStrategy;
+            this.strategySpecified = strategySpecified;
+            this.strategyCosts = strategyCosts;
+            this.childPlans = childPlans;
+            this.parentPlans = parentPlans;
+        }
+    }
+
+
+    /** The planned table output specification, in which each specification with child tables has the child aggregation
+     *  strategy chosen for it, with the estimated cost of its query and a report of the choices made. */
+    public static final class Plan
+    {
+        private final TableOutputSpec tableOutputSpec;
+        private final double estimatedCost;
+        private final String report;
+
+        Plan
+        (
+            TableOutputSpec tableOutputSpec,
+            double estimatedCost,
+            String report
+        )
+        {
+            this.tableOutputSpec = tableOutputSpec;
+            this.estimatedCost = estimatedCost;
+            this.report = report;
+        }
+
+        public TableOutputSpec getTableOutputSpec()
+        {
+            return tableOutputSpec;
+        }
+
+        /// The estimated cost in rows visited, for comparison with other plans from the same statistics.
+        public double getEstimatedCost()
+        {
+            return estimatedCost;
+        }
+
+        /// A human readable account of the strategy chosen for each specification, and the estimated costs considered.
+        public String getReport()
+        {
+            return report;
+        }
+
+        @Override
+        public String toString()
+        {
+            return report;
+        }
+    }
+}
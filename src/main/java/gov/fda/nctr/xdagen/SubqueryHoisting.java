@@ -0,0 +1,29 @@
+package gov.fda.nctr.xdagen;
+
+/** Determines whether rows queries occurring more than once in a generated query are hoisted into common table
+ *  expressions of a WITH clause heading the query.
+ *
+ *  A rows query lists the rows of a table with their row elements, as embedded wherever the table is reached: under
+ *  the child collections of a parent table, and as the rows of a parent table looked up by its children. The rows queries
+ *  of equal table output specifications rendered in the same default namespace are identical, as when the same table
+ *  is reached by several paths, so each such rows query can be rendered once and referenced by name at every use.
+ *
+ *  NONE renders every rows query in place.
+ *
+ *  COMMON_TABLE_EXPRESSIONS hoists the repeated rows queries into common table expressions which are to be inlined at
+ *  each reference, by AS NOT MATERIALIZED for PostgreSQL, which requires version 12 or later, or by the INLINE hint for
+ *  Oracle. Both databases would otherwise evaluate once any common table expression referenced more than once, as
+ *  hoisted rows queries always are, making correlated subqueries read all of the table's rows for each row of the
+ *  enclosing table. The query text is shortened while each reference is planned as if rendered in place.
+ *
+ *  MATERIALIZED_COMMON_TABLE_EXPRESSIONS instead requires each to be evaluated once per query, by AS MATERIALIZED for
+ *  PostgreSQL, which requires version 12 or later, or by the MATERIALIZE hint for Oracle. This suits the joined child
+ *  aggregation and parent lookup strategies, which read each reference once, rather than correlated subqueries, which
+ *  read the materialized rows again for each row of the enclosing table.
+ */
+public enum SubqueryHoisting
+{
+    NONE,
+    COMMON_TABLE_EXPRESSIONS,
+    MATERIALIZED_COMMON_TABLE_EXPRESSIONS
+}
@@ -1,14 +1,14 @@
 package gov.fda.nctr.xdagen;
 
+import java.io.Serializable;
 import java.util.*;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 
 import gov.fda.nctr.util.CollFuns;
+import gov.fda.nctr.util.Fingerprint;
 import gov.fda.nctr.util.Pair;
-import static gov.fda.nctr.util.CoreFuns.hashcode;
 import static gov.fda.nctr.util.CoreFuns.requireArg;
-import static gov.fda.nctr.util.StringFuns.dotQualify;
 import gov.fda.nctr.dbmd.DBMD;
 import gov.fda.nctr.dbmd.Field;
 import gov.fda.nctr.dbmd.ForeignKey;
@@ -39,7 +39,9 @@ public final class TableOutputSpec
 
     private final Optional<RowOrdering> rowOrdering;
 
-    private final int hashCode;
+    private final Optional<ChildAggregationStrategy> childAggregationStrategy; // generator's strategy if empty
+
+    private final Fingerprint fingerprint;
 
     /** Create an output spec with all the includedFields for the passed table/view included but no parents or children.
      If the table name is not qualified by schema, then the DBMD should have an owning schema specified, else
@@ -76,6 +78,7 @@ public final class TableOutputSpec
             Optional.empty(),
             Optional.empty(),
             Optional.empty(),
+            Optional.empty(),
             Optional.empty()
         );
     }
@@ -102,6 +105,7 @@ public final class TableOutputSpec
             rowElName,
             rowCollectionElName,
             Optional.empty(),
+            Optional.empty(),
             Optional.empty()
         );
     }
@@ -119,7 +123,8 @@ public final class TableOutputSpec
         Optional<String> rowElName,
         Optional<String> rowCollectionElName,
         Optional<List<Pair<ForeignKey,TableOutputSpec>>> includedChildTableSpecs,
-        Optional<List<Pair<ForeignKey,TableOutputSpec>>> includedParentTableSpecs
+        Optional<List<Pair<ForeignKey,TableOutputSpec>>> includedParentTableSpecs,
+        Optional<ChildAggregationStrategy> childAggregationStrategy
     )
     {
         Objects.requireNonNull(relId);
@@ -133,6 +138,7 @@ public final class TableOutputSpec
         Objects.requireNonNull(rowCollectionElName);
         Objects.requireNonNull(includedChildTableSpecs);
         Objects.requireNonNull(includedParentTableSpecs);
+        Objects.requireNonNull(childAggregationStrategy);
 
         this.relId = relId;
         this.dbmd = dbmd;
@@ -148,7 +154,8 @@ public final class TableOutputSpec
                               : emptyList();
         this.parentSpecsByFK = includedParentTableSpecs.isPresent() ? new ArrayList<>(includedParentTableSpecs.get())
                                : emptyList();
-        this.hashCode = computeHashCode();
+        this.childAggregationStrategy = childAggregationStrategy;
+        this.fingerprint = computeFingerprint();
     }
 
     private List<OutputField> getDefaultOutputFields(RelId relid)
@@ -206,6 +213,12 @@ public final class TableOutputSpec
         return rowElementName;
     }
 
+    /// The strategy for aggregating this table's child collections, if overriding that of the query generator.
+    public Optional<ChildAggregationStrategy> getChildAggregationStrategy()
+    {
+        return childAggregationStrategy;
+    }
+
     public Optional<RowOrdering> getRowOrdering()
     {
         return rowOrdering;
@@ -348,7 +361,7 @@ public final class TableOutputSpec
             factory.makeChildTableOutputSpec(fkFromChild, this)
         );
 
-        return new TableOutputSpec(
+        return factory.intern(new TableOutputSpec(
             relId,
             dbmd,
             factory,
@@ -359,8 +372,9 @@ public final class TableOutputSpec
             Optional.of(rowElementName),
             Optional.of(rowCollectionElementName),
             Optional.of(CollFuns.associativeListWithEntry(childSpecsByFK, fkFromChild, childOutputSpec)),
-            Optional.of(parentSpecsByFK)
-        );
+            Optional.of(parentSpecsByFK),
+            childAggregationStrategy
+        ));
     }
 
     // Primary withChild implementation, all other withChild methods delegate to this one.
@@ -442,7 +456,7 @@ public final class TableOutputSpec
             childSpecs.add(Pair.make(fk, factory.makeChildTableOutputSpec(fk, this)));
         }
 
-        return new TableOutputSpec(
+        return factory.intern(new TableOutputSpec(
             relId,
             dbmd,
             factory,
@@ -453,8 +467,9 @@ public final class TableOutputSpec
             Optional.of(rowElementName),
             Optional.of(rowCollectionElementName),
             Optional.of(childSpecs),
-            Optional.of(parentSpecsByFK)
-        );
+            Optional.of(parentSpecsByFK),
+            childAggregationStrategy
+        ));
     }
 
     // Methods for including a child table in the output
@@ -477,7 +492,7 @@ public final class TableOutputSpec
             factory.makeParentTableOutputSpec(fkToParent, this)
         );
 
-        return new TableOutputSpec(
+        return factory.intern(new TableOutputSpec(
             relId,
             dbmd,
             factory,
@@ -488,8 +503,9 @@ public final class TableOutputSpec
             Optional.of(rowElementName),
             Optional.of(rowCollectionElementName),
             Optional.of(childSpecsByFK),
-            Optional.of(CollFuns.associativeListWithEntry(parentSpecsByFK, fkToParent, parentOutputSpec))
-        );
+            Optional.of(CollFuns.associativeListWithEntry(parentSpecsByFK, fkToParent, parentOutputSpec)),
+            childAggregationStrategy
+        ));
     }
 
     // Primary withParent implementation, all other withParent methods delegate to this one.
@@ -577,7 +593,7 @@ public final class TableOutputSpec
             parentSpecs.add(Pair.make(fk, factory.makeParentTableOutputSpec(fk, this)));
         }
 
-        return new TableOutputSpec(
+        return factory.intern(new TableOutputSpec(
             relId,
             dbmd,
             factory,
@@ -588,8 +604,9 @@ public final class TableOutputSpec
             Optional.of(rowElementName),
             Optional.of(rowCollectionElementName),
             Optional.of(childSpecsByFK),
-            Optional.of(parentSpecs)
-        );
+            Optional.of(parentSpecs),
+            childAggregationStrategy
+        ));
     }
 
     // Methods for including a parent table in the output
@@ -601,7 +618,7 @@ public final class TableOutputSpec
 
     public TableOutputSpec withFields(List<OutputField> outputFields)
     {
-        return new TableOutputSpec(
+        return factory.intern(new TableOutputSpec(
             relId,
             dbmd,
             factory,
@@ -612,8 +629,9 @@ public final class TableOutputSpec
             Optional.of(rowElementName),
             Optional.of(rowCollectionElementName),
             Optional.of(childSpecsByFK),
-            Optional.of(parentSpecsByFK)
-        );
+            Optional.of(parentSpecsByFK),
+            childAggregationStrategy
+        ));
     }
 
     public TableOutputSpec withoutFields(String... dbFieldNames)
@@ -632,7 +650,7 @@ public final class TableOutputSpec
         }
 
 
-        return new TableOutputSpec(
+        return factory.intern(new TableOutputSpec(
             relId,
             dbmd,
             factory,
@@ -643,8 +661,9 @@ public final class TableOutputSpec
             Optional.of(rowElementName),
             Optional.of(rowCollectionElementName),
             Optional.of(childSpecsByFK),
-            Optional.of(parentSpecsByFK)
-        );
+            Optional.of(parentSpecsByFK),
+            childAggregationStrategy
+        ));
     }
 
     public TableOutputSpec withoutFieldsOtherThan(String... dbFieldNames)
@@ -663,7 +682,7 @@ public final class TableOutputSpec
                 remaining.add(ofield);
         }
 
-        return new TableOutputSpec(
+        return factory.intern(new TableOutputSpec(
             relId,
             dbmd,
             factory,
@@ -674,8 +693,9 @@ public final class TableOutputSpec
             Optional.of(rowElementName),
             Optional.of(rowCollectionElementName),
             Optional.of(childSpecsByFK),
-            Optional.of(parentSpecsByFK)
-        );
+            Optional.of(parentSpecsByFK),
+            childAggregationStrategy
+        ));
     }
 
     public TableOutputSpec withFieldAsElement(String dbFieldName, String outputElName)
@@ -690,7 +710,7 @@ public final class TableOutputSpec
                 outputFields.add(ofield);
         }
 
-        return new TableOutputSpec(
+        return factory.intern(new TableOutputSpec(
             relId,
             dbmd,
             factory,
@@ -701,8 +721,9 @@ public final class TableOutputSpec
             Optional.of(rowElementName),
             Optional.of(rowCollectionElementName),
             Optional.of(childSpecsByFK),
-            Optional.of(parentSpecsByFK)
-        );
+            Optional.of(parentSpecsByFK),
+            childAggregationStrategy
+        ));
     }
 
     // Output fields customization
@@ -715,7 +736,7 @@ public final class TableOutputSpec
 
     public TableOutputSpec orderedBy(RowOrdering newRowOrdering)
     {
-        return new TableOutputSpec(
+        return factory.intern(new TableOutputSpec(
             relId,
             dbmd,
             factory,
@@ -726,21 +747,51 @@ public final class TableOutputSpec
             Optional.of(rowElementName),
             Optional.of(rowCollectionElementName),
             Optional.of(childSpecsByFK),
-            Optional.of(parentSpecsByFK)
-       );
+            Optional.of(parentSpecsByFK),
+            childAggregationStrategy
+        ));
     }
 
     // Row ordering customization
     ////////////////////////////////////////////////////////////////////////////////////
 
 
+    ////////////////////////////////////////////////////////////////////////////////////
+    // Child aggregation customization
+
+    /** Returns a specification whose child collections are aggregated by the passed strategy, regardless of the child
+     *  aggregation strategy of the query generator. Included child tables keep their own strategies for their children. */
+    public TableOutputSpec withChildAggregationStrategy(ChildAggregationStrategy strategy)
+    {
+        requireArg(strategy, "child aggregation strategy");
+
+        return factory.intern(new TableOutputSpec(
+            relId,
+            dbmd,
+            factory,
+            childCollectionsStyle,
+            outputXmlNamespace,
+            Optional.of(outputFields),
+            rowOrdering,
+            Optional.of(rowElementName),
+            Optional.of(rowCollectionElementName),
+            Optional.of(childSpecsByFK),
+            Optional.of(parentSpecsByFK),
+            Optional.of(strategy)
+        ));
+    }
+
+    // Child aggregation customization
+    ////////////////////////////////////////////////////////////////////////////////////
+
+
 
     ///////////////////////////////////////////////////////////////////////////////////
     // Factory customization
 
     public TableOutputSpec withFactory(Factory newFactory)
     {
-        return new TableOutputSpec(
+        return newFactory.intern(new TableOutputSpec(
             relId,
             dbmd,
             newFactory,
@@ -751,62 +802,80 @@ public final class TableOutputSpec
             Optional.of(rowElementName),
             Optional.of(rowCollectionElementName),
             Optional.of(childSpecsByFK),
-            Optional.of(parentSpecsByFK)
-        );
+            Optional.of(parentSpecsByFK),
+            childAggregationStrategy
+        ));
     }
 
     // Factory customization
     ///////////////////////////////////////////////////////////////////////////////////
 
 
-    @Override
-    public int hashCode() { return hashCode; }
+    /** Returns the structural fingerprint of this specification, which covers its table, fields, element names, namespace,
+     *  collection style, row ordering, child aggregation strategy, and the foreign keys and fingerprints of its included child and parent tables.
+     *  The factory and database metadata contribute only through these. Fingerprints are stable across JVMs.
+     */
+    public Fingerprint getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    // Included child and parent specifications contribute their own fingerprints, computed when they were constructed.
+    private Fingerprint computeFingerprint()
+    {
+        Fingerprint.Builder fpb =
+            Fingerprint.builder("TableOutputSpec")
+            .add(relId.getIdString())
+            .add(childCollectionsStyle)
+            .add(outputXmlNamespace)
+            .add(rowElementName)
+            .add(rowCollectionElementName);
+
+        fpb.add(outputFields.size());
+        for ( OutputField of: outputFields )
+        {
+            Field f = of.getField();
+            fpb.add(f.getName()).add(f.getJdbcTypeCode()).add(f.getDatabaseType()).add(of.getOutputElementName());
+        }
+
+        fpb.add(rowOrdering.isPresent());
+        if ( rowOrdering.isPresent() )
+            rowOrdering.get().addToFingerprint(fpb);
+
+        addRelatedSpecFingerprints(fpb, childSpecsByFK);
+        addRelatedSpecFingerprints(fpb, parentSpecsByFK);
 
-    private int computeHashCode()
+        // Added only when overridden, so fingerprints of specifications without an override are unchanged.
+        if ( childAggregationStrategy.isPresent() )
+            fpb.add("childAggregationStrategy").add(childAggregationStrategy.get());
+
+        return fpb.build();
+    }
+
+    private static void addRelatedSpecFingerprints(Fingerprint.Builder fpb, List<Pair<ForeignKey,TableOutputSpec>> specsByFK)
     {
-        return
-            hashcode(relId)
-            + hashcode(dbmd)
-            + hashcode(factory)
-            + childCollectionsStyle.hashCode()
-            + hashcode(outputXmlNamespace)
-            + hashcode(outputFields)
-            + hashcode(childSpecsByFK)
-            + hashcode(parentSpecsByFK)
-            + hashcode(rowElementName)
-            + hashcode(rowCollectionElementName)
-            + hashcode(rowOrdering.orElse(null));
+        fpb.add(specsByFK.size());
+        for ( Pair<ForeignKey,TableOutputSpec> p: specsByFK )
+        {
+            ForeignKey fk = p.fst();
+            fpb.add(fk.getSourceRelationId().getIdString())
+               .add(fk.getTargetRelationId().getIdString())
+               .add(fk.getSourceFieldNames())
+               .add(p.snd().fingerprint);
+        }
     }
 
+    @Override
+    public int hashCode() { return fingerprint.hashCode(); }
+
+    /// Specifications are equal when their structural fingerprints are equal.
     @Override
     public boolean equals(Object o)
     {
         if ( !(o instanceof TableOutputSpec) )
             return false;
         else
-        {
-            final TableOutputSpec tos = (TableOutputSpec)o;
-
-            if (this == tos )
-                return true;
-            else
-            {
-                if ( hashCode != tos.hashCode )
-                    return false;
-                else
-                    return Objects.equals(relId,tos.relId)
-                        && Objects.equals(dbmd, tos.dbmd)
-                        && Objects.equals(factory, tos.factory)
-                        && Objects.equals(childCollectionsStyle, tos.childCollectionsStyle)
-                        && Objects.equals(outputXmlNamespace, tos.outputXmlNamespace)
-                        && Objects.equals(outputFields, tos.outputFields)
-                        && Objects.equals(childSpecsByFK, tos.childSpecsByFK)
-                        && Objects.equals(parentSpecsByFK, tos.parentSpecsByFK)
-                        && Objects.equals(rowCollectionElementName, tos.rowCollectionElementName)
-                        && Objects.equals(rowElementName, tos.rowElementName)
-                        && Objects.equals(rowOrdering.orElse(null), tos.rowOrdering.orElse(null));
-            }
-        }
+            return this == o || fingerprint.equals(((TableOutputSpec)o).fingerprint);
     }
 
 
@@ -845,37 +914,268 @@ public final class TableOutputSpec
         }
     }
 
-    public static abstract class RowOrdering
+    /** An ordering of rows, as a list of order items each consisting of an expression with optional sort direction and
+     *  nulls ordering. Row orderings are values: orderings having equal items are equal, and they are serializable, so
+     *  equal table output specifications built separately share cached queries.
+     *
+     *  Subclasses may instead render their own expressions by overriding getOrderByExpressions, constructing the ordering
+     *  with the protected constructor. Such orderings have no order items, so they cannot be used for keyset pagination or
+     *  parallel export, and they compare by identity unless they override equals and hashCode. They contribute their class
+     *  name and their expressions rendered for the alias placeholder "{alias}" to the fingerprints of specifications.
+     */
+    public static class RowOrdering implements Serializable
     {
-        // Get a list of expressions to order by, in terms of the table fields and the passed field qualifying alias.
-        public abstract List<String> getOrderByExpressions(String fieldQualifyingAlias);
+        private final List<OrderItem> items;
+
+        private static final long serialVersionUID = 1L;
+
+        private static final String FINGERPRINT_ALIAS = "{alias}";
+
+        public RowOrdering(List<OrderItem> items)
+        {
+            requireArg(items, "order items");
+
+            if ( items.isEmpty() )
+                throw new IllegalArgumentException("A row ordering requires at least one order item.");
+
+            this.items = Collections.unmodifiableList(new ArrayList<>(items));
+        }
 
-        /** Convenience method for constructing order by expressions for field names. */
+        /// For subclasses which render their own expressions by overriding getOrderByExpressions.
+        protected RowOrdering()
+        {
+            this.items = Collections.emptyList();
+        }
+
+        public static RowOrdering of(OrderItem... items)
+        {
+            return new RowOrdering(asList(items));
+        }
 
-        public static RowOrdering fields(final String... fieldNames)
+        /** Convenience method for constructing an ordering by field names.
+         *  The field names may optionally include a trailing " asc" or " desc" to specify sort direction, which may be
+         *  followed by " nulls first" or " nulls last". Specifications not of this form are rendered as given following
+         *  the field qualifying alias, as expression items.
+         */
+        public static RowOrdering fields(String... fieldNames)
         {
-            /** Convenience method for constructing order by expressions for field names.
-             *  The field names may optionally including a trailing " asc" or " desc" to specify sort direction.
-             */
-            return new RowOrdering() {
-                public List<String> getOrderByExpressions(String fieldQualifyingAlias)
-                {
-                    return dotQualify(asList(fieldNames), fieldQualifyingAlias);
-                }
-            };
+            return fields(asList(fieldNames));
         }
 
-        /** Convenience method for constructing order by expressions for field names.
-         *  The field names may optionally including a trailing " asc" or " desc" to specify sort direction.
+        /** Convenience method for constructing an ordering by field names.
+         *  The field names may optionally include a trailing " asc" or " desc" to specify sort direction, which may be
+         *  followed by " nulls first" or " nulls last". Specifications not of this form are rendered as given following
+         *  the field qualifying alias, as expression items.
          */
-        public static RowOrdering fields(final List<String> fieldNames)
+        public static RowOrdering fields(List<String> fieldNames)
+        {
+            List<OrderItem> items = new ArrayList<>(fieldNames.size());
+
+            for ( String fieldName: fieldNames )
+                items.add(OrderItem.parseField(fieldName).orElseGet(() -> OrderItem.expression(OrderItem.ALIAS_PLACEHOLDER + fieldName.trim())));
+
+            return new RowOrdering(items);
+        }
+
+        /// The order items of the ordering, empty for subclasses rendering their own expressions.
+        public List<OrderItem> getItems()
         {
-            return new RowOrdering() {
-                public List<String> getOrderByExpressions(String fieldQualifyingAlias)
-                {
-                    return dotQualify(fieldNames, fieldQualifyingAlias);
-                }
-            };
+            return items;
+        }
+
+        // Get a list of expressions to order by, in terms of the table fields and the passed field qualifying alias.
+        public List<String> getOrderByExpressions(String fieldQualifyingAlias)
+        {
+            List<String> exprs = new ArrayList<>(items.size());
+
+            for ( OrderItem item: items )
+                exprs.add(item.getOrderByExpression(fieldQualifyingAlias));
+
+            return exprs;
+        }
+
+        // Order items contribute their parts, so that a field item is never confused with an expression rendering the
+        // same for some alias.
+        void addToFingerprint(Fingerprint.Builder fpb)
+        {
+            if ( isItemized() )
+            {
+                fpb.add(items.size());
+                for ( OrderItem item: items )
+                    fpb.add(item.getExpression())
+                       .add(item.isFieldExpression())
+                       .add(item.getDirection().map(Enum::name))
+                       .add(item.getNullsOrdering().map(Enum::name));
+            }
+            else
+                fpb.add(getClass().getName()).add(getOrderByExpressions(FINGERPRINT_ALIAS));
+        }
+
+        private boolean isItemized()
+        {
+            return !items.isEmpty();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return isItemized() ? items.hashCode() : super.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if ( !isItemized() )
+                return this == o;
+
+            return o instanceof RowOrdering && items.equals(((RowOrdering)o).items);
+        }
+
+        @Override
+        public String toString()
+        {
+            return getOrderByExpressions(null).toString();
+        }
+    }
+
+    /** An item of a row ordering. The expression of a field item is a field name, qualified by the field qualifying
+     *  alias when rendered. Other expressions are rendered as given, except that "{alias}." is replaced by the field
+     *  qualifying alias and a dot, or removed if there is no field qualifying alias.
+     */
+    public static final class OrderItem implements Serializable
+    {
+        public enum Direction { ASC, DESC }
+
+        public enum NullsOrdering { NULLS_FIRST, NULLS_LAST }
+
+        private final String expression;
+        private final boolean fieldExpression;
+        private final Direction direction;         // null if unspecified
+        private final NullsOrdering nullsOrdering; // null if unspecified
+
+        private static final long serialVersionUID = 1L;
+
+        static final String ALIAS_PLACEHOLDER = "{alias}.";
+
+        private OrderItem
+        (
+            String expression,
+            boolean fieldExpression,
+            Direction direction,
+            NullsOrdering nullsOrdering
+        )
+        {
+            this.expression = requireArg(expression, "order by expression");
+            this.fieldExpression = fieldExpression;
+            this.direction = direction;
+            this.nullsOrdering = nullsOrdering;
+        }
+
+        public static OrderItem field(String fieldName)
+        {
+            return new OrderItem(fieldName, true, null, null);
+        }
+
+        public static OrderItem expression(String expression)
+        {
+            return new OrderItem(expression, false, null, null);
+        }
+
+        // Parses a field name with optional trailing direction and nulls ordering, as described for RowOrdering.fields(),
+        // if the specification is of that form.
+        static Optional<OrderItem> parseField(String spec)
+        {
+            String[] words = requireArg(spec, "field name").trim().split("\\s+");
+
+            int n = words.length;
+            NullsOrdering nullsOrdering = null;
+            Direction direction = null;
+
+            if ( n >= 3 && words[n-2].equalsIgnoreCase("nulls") )
+            {
+                if ( words[n-1].equalsIgnoreCase("first") )
+                    nullsOrdering = NullsOrdering.NULLS_FIRST;
+                else if ( words[n-1].equalsIgnoreCase("last") )
+                    nullsOrdering = NullsOrdering.NULLS_LAST;
+                else
+                    return Optional.empty();
+                n -= 2;
+            }
+
+            if ( n >= 2 && (words[n-1].equalsIgnoreCase("asc") || words[n-1].equalsIgnoreCase("desc")) )
+            {
+                direction = Direction.valueOf(words[n-1].toUpperCase());
+                n -= 1;
+            }
+
+            if ( n != 1 )
+                return Optional.empty();
+
+            return Optional.of(new OrderItem(words[0], true, direction, nullsOrdering));
+        }
+
+        public OrderItem asc() { return new OrderItem(expression, fieldExpression, Direction.ASC, nullsOrdering); }
+
+        public OrderItem desc() { return new OrderItem(expression, fieldExpression, Direction.DESC, nullsOrdering); }
+
+        public OrderItem nullsFirst() { return new OrderItem(expression, fieldExpression, direction, NullsOrdering.NULLS_FIRST); }
+
+        public OrderItem nullsLast() { return new OrderItem(expression, fieldExpression, direction, NullsOrdering.NULLS_LAST); }
+
+        public String getExpression() { return expression; }
+
+        public boolean isFieldExpression() { return fieldExpression; }
+
+        public Optional<Direction> getDirection() { return Optional.ofNullable(direction); }
+
+        public Optional<NullsOrdering> getNullsOrdering() { return Optional.ofNullable(nullsOrdering); }
+
+        public String getOrderByExpression(String fieldQualifyingAlias)
+        {
+            StringBuilder sb = new StringBuilder();
+
+            if ( fieldExpression )
+            {
+                if ( fieldQualifyingAlias != null )
+                    sb.append(fieldQualifyingAlias).append('.');
+                sb.append(expression);
+            }
+            else
+                sb.append(expression.replace(ALIAS_PLACEHOLDER, fieldQualifyingAlias != null ? fieldQualifyingAlias + "." : ""));
+
+            if ( direction != null )
+                sb.append(direction == Direction.ASC ? " asc" : " desc");
+
+            if ( nullsOrdering != null )
+                sb.append(nullsOrdering == NullsOrdering.NULLS_FIRST ? " nulls first" : " nulls last");
+
+            return sb.toString();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(expression, fieldExpression, direction, nullsOrdering);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if ( !(o instanceof OrderItem) )
+                return false;
+
+            OrderItem oi = (OrderItem)o;
+
+            return expression.equals(oi.expression)
+                && fieldExpression == oi.fieldExpression
+                && direction == oi.direction
+                && nullsOrdering == oi.nullsOrdering;
+        }
+
+        @Override
+        public String toString()
+        {
+            return getOrderByExpression(null);
         }
     }
 
@@ -888,6 +1188,15 @@ public final class TableOutputSpec
         // These methods are used internally by TableOutputSpec to create parent/child output specs when they aren't specified when adding parent or child tables.
         TableOutputSpec makeChildTableOutputSpec(ForeignKey fkFromChild, TableOutputSpec attachedToOspec);
         TableOutputSpec makeParentTableOutputSpec(ForeignKey fkToParent, TableOutputSpec attachedToOspec);
+
+        /** Returns the canonical instance of the passed specification, to which TableOutputSpec passes every specification
+         *  it derives. Factories which intern specifications return a single instance for all structurally equal
+         *  specifications, so equal specifications share memory and compare with ==. By default no interning is done.
+         */
+        default TableOutputSpec intern(TableOutputSpec ospec)
+        {
+            return ospec;
+        }
     }
 
     // Inner classes and interfaces
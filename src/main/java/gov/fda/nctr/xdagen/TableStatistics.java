@@ -0,0 +1,391 @@
+package gov.fda.nctr.xdagen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+
+import static gov.fda.nctr.util.CoreFuns.requireArg;
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.dbmd.RelId;
+
+
+/** A snapshot of the row counts of tables and the numbers of distinct values of their fields, as estimated by the
+ *  database's own statistics, from which StrategyPlanner estimates the costs of the query strategies. Snapshots are read
+ *  from the catalog of a PostgreSQL or Oracle database for the tables of its metadata, and may be stored as xml next to
+ *  the metadata so that planning needs no connection.
+ *
+ *  Statistics are only as current as the database's last analysis of the tables. Tables or fields without statistics are
+ *  absent from the snapshot.
+ * @see StrategyPlanner
+ */
+public final class TableStatistics implements Serializable
+{
+    private final Map<RelId,Long> rowCounts;
+
+    private final Map<RelId,Map<String,Long>> distinctValueCounts;
+
+    private static final String ROW_COUNT_KEY_PREFIX = "rows:";
+    private static final String DISTINCT_VALUES_KEY_PREFIX = "distinct:";
+
+    // Stands for the bind parameters of the schemas read in catalog queries.
+    private static final String SCHEMAS_PLACEHOLDER = "{schemas}";
+
+    private static final long serialVersionUID = 1L;
+
+
+    private TableStatistics(Builder b)
+    {
+        this.rowCounts = Collections.unmodifiableMap(new HashMap<>(b.rowCounts));
+
+        Map<RelId,Map<String,Long>> distinctCounts = new HashMap<>();
+        for ( Map.Entry<RelId,Map<String,Long>> e: b.distinctValueCounts.entrySet() )
+            distinctCounts.put(e.getKey(), Collections.unmodifiableMap(new HashMap<>(e.getValue())));
+        this.distinctValueCounts = Collections.unmodifiableMap(distinctCounts);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /// The estimated number of rows of the table, if the table has statistics.
+    public Optional<Long> getRowCount(RelId relId)
+    {
+        return Optional.ofNullable(rowCounts.get(requireArg(relId, "relation id")));
+    }
+
+    /// The estimated number of distinct non-null values of the field, if the field has statistics.
+    public Optional<Long> getDistinctValueCount
+    (
+        RelId relId,
+        String fieldName
+    )
+    {
+        requireArg(relId, "relation id");
+        requireArg(fieldName, "field name");
+
+        return Optional.ofNullable(distinctValueCounts.getOrDefault(relId, Collections.emptyMap()).get(fieldName));
+    }
+
+    public Map<RelId,Long> getRowCounts()
+    {
+        return rowCounts;
+    }
+
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    // Reading from database catalogs
+
+    /** Reads the statistics of the tables of the database metadata from the catalog of the database, from pg_class and
+     *  pg_stats for PostgreSQL, or from ALL_TABLES and ALL_TAB_COL_STATISTICS for Oracle. Only the schemas of the
+     *  metadata's tables are read. Tables of the metadata not qualified by schema are taken to be those of the
+     *  connection's current schema.
+     */
+    public static TableStatistics readFromDatabase
+    (
+        Connection conn,
+        DBMD dbmd
+    )
+        throws SQLException
+    {
+        requireArg(conn, "connection");
+        requireArg(dbmd, "database metadata");
+
+        String dbms = dbmd.getDbmsName() != null ? dbmd.getDbmsName().toUpperCase() : "";
+
+        // Postgres records negative distinct counts as the negated fraction of the rows, for fields whose distinct values
+        // are expected to grow with the table. Statistics of partitioned tables as a whole are marked as inherited, and
+        // are only taken where the table has none of its own.
+        if ( dbms.contains("POSTGRES") )
+            return readFromCatalog(
+                conn,
+                dbmd,
+                "select current_schema()",
+                "select n.nspname, c.relname, c.reltuples\n" +
+                "from pg_class c\n" +
+                "join pg_namespace n on n.oid = c.relnamespace\n" +
+                "where c.relkind in ('r','p','m') and c.reltuples >= 0 and n.nspname in (" + SCHEMAS_PLACEHOLDER + ")",
+                "select s.schemaname, s.tablename, s.attname, s.n_distinct\n" +
+                "from pg_stats s\n" +
+                "where s.schemaname in (" + SCHEMAS_PLACEHOLDER + ")\n" +
+                "order by s.inherited"
+            );
+        else if ( dbms.contains("ORACLE") )
+            return readFromCatalog(
+                conn,
+                dbmd,
+                "select sys_context('USERENV', 'CURRENT_SCHEMA') from dual",
+                "select t.owner, t.table_name, t.num_rows\n" +
+                "from all_tables t\n" +
+                "where t.num_rows is not null and t.owner in (" + SCHEMAS_PLACEHOLDER + ")",
+                "select s.owner, s.table_name, s.column_name, s.num_distinct\n" +
+                "from all_tab_col_statistics s\n" +
+                "where s.num_distinct is not null and s.owner in (" + SCHEMAS_PLACEHOLDER + ")"
+            );
+        else
+            throw new IllegalArgumentException("Table statistics can only be read from PostgreSQL or Oracle databases.");
+    }
+
+    // Reads the row counts and distinct value counts from catalog queries whose results lead with the schema and table
+    // names, of tables in the metadata. The catalog queries are restricted to the schemas bound in place of the schemas
+    // placeholder, being those of the metadata's tables, and the current schema for tables not qualified by schema.
+    private static TableStatistics readFromCatalog
+    (
+        Connection conn,
+        DBMD dbmd,
+        String currentSchemaQuery,
+        String rowCountsQuery,
+        String distinctValueCountsQuery
+    )
+        throws SQLException
+    {
+        Map<String,RelId> relIdsByIdString = new HashMap<>();
+        Set<String> schemas = new LinkedHashSet<>();
+        boolean unqualifiedRelIds = false;
+        for ( RelId relId: dbmd.getRelationIds() )
+        {
+            relIdsByIdString.put(relId.getIdString(), relId);
+            if ( relId.getSchema() != null )
+                schemas.add(relId.getSchema());
+            else
+                unqualifiedRelIds = true;
+        }
+
+        Optional<String> currentSchema = unqualifiedRelIds ? readCurrentSchema(conn, currentSchemaQuery) : Optional.empty();
+        currentSchema.ifPresent(schemas::add);
+
+        Builder b = builder();
+
+        if ( schemas.isEmpty() )
+            return b.build();
+
+        String schemaPlaceholders = String.join(", ", Collections.nCopies(schemas.size(), "?"));
+
+        try ( PreparedStatement stmt = conn.prepareStatement(rowCountsQuery.replace(SCHEMAS_PLACEHOLDER, schemaPlaceholders)) )
+        {
+            bindSchemas(stmt, schemas);
+            try ( ResultSet rs = stmt.executeQuery() )
+            {
+                while ( rs.next() )
+                {
+                    Optional<RelId> relId = findRelId(relIdsByIdString, currentSchema, rs.getString(1), rs.getString(2));
+                    if ( relId.isPresent() )
+                        b.rowCount(relId.get(), Math.round(rs.getDouble(3)));
+                }
+            }
+        }
+
+        try ( PreparedStatement stmt = conn.prepareStatement(distinctValueCountsQuery.replace(SCHEMAS_PLACEHOLDER, schemaPlaceholders)) )
+        {
+            bindSchemas(stmt, schemas);
+            try ( ResultSet rs = stmt.executeQuery() )
+            {
+                while ( rs.next() )
+                {
+                    Optional<RelId> relId = findRelId(relIdsByIdString, currentSchema, rs.getString(1), rs.getString(2));
+                    if ( !relId.isPresent() || !b.rowCounts.containsKey(relId.get()) )
+                        continue;
+
+                    String fieldName = rs.getString(3);
+                    double distinct = rs.getDouble(4);
+
+                    if ( b.distinctValueCounts.getOrDefault(relId.get(), Collections.emptyMap()).containsKey(fieldName) )
+                        continue;
+
+                    long distinctCount = distinct < 0 ? Math.round(-distinct * b.rowCounts.get(relId.get())) : Math.round(distinct);
+                    b.distinctValueCount(relId.get(), fieldName, distinctCount);
+                }
+            }
+        }
+
+        return b.build();
+    }
+
+    private static Optional<String> readCurrentSchema
+    (
+        Connection conn,
+        String currentSchemaQuery
+    )
+        throws SQLException
+    {
+        try ( PreparedStatement stmt = conn.prepareStatement(currentSchemaQuery);
+              ResultSet rs = stmt.executeQuery() )
+        {
+            return rs.next() ? Optional.ofNullable(rs.getString(1)) : Optional.empty();
+        }
+    }
+
+    private static void bindSchemas
+    (
+        PreparedStatement stmt,
+        Set<String> schemas
+    )
+        throws SQLException
+    {
+        int paramIx = 0;
+        for ( String schema: schemas )
+            stmt.setString(++paramIx, schema);
+    }
+
+    // The metadata's relation for the catalog's schema and table names, by unqualified name only for tables of the
+    // current schema.
+    private static Optional<RelId> findRelId
+    (
+        Map<String,RelId> relIdsByIdString,
+        Optional<String> currentSchema,
+        String schema,
+        String tableName
+    )
+    {
+        RelId relId = relIdsByIdString.get(schema + "." + tableName);
+
+        if ( relId == null && currentSchema.isPresent() && currentSchema.get().equals(schema) )
+            relId = relIdsByIdString.get(tableName);
+
+        return Optional.ofNullable(relId);
+    }
+
+    // Reading from database catalogs
+    /////////////////////////////////////////////////////////////////////////////////////
+
+
+    /////////////////////////////////////////////////////////////////////////////////////
+    // Storage
+
+    /** Writes the statistics as a properties xml document, to be read by readXML with the same database metadata. */
+    public void writeXML(OutputStream os) throws IOException
+    {
+        requireArg(os, "output stream");
+
+        Properties props = new Properties();
+
+        for ( Map.Entry<RelId,Long> e: rowCounts.entrySet() )
+            props.setProperty(ROW_COUNT_KEY_PREFIX + e.getKey().getIdString(), e.getValue().toString());
+
+        for ( Map.Entry<RelId,Map<String,Long>> e: distinctValueCounts.entrySet() )
+            for ( Map.Entry<String,Long> fieldCount: e.getValue().entrySet() )
+                props.setProperty(
+                    DISTINCT_VALUES_KEY_PREFIX + e.getKey().getIdString() + ":" + fieldCount.getKey(),
+                    fieldCount.getValue().toString()
+                );
+
+        props.storeToXML(os, "xdagen table statistics");
+    }
+
+    public static TableStatistics readXML
+    (
+        InputStream is,
+        DBMD dbmd
+    )
+        throws IOException
+    {
+        requireArg(is, "input stream");
+        requireArg(dbmd, "database metadata");
+
+        Properties props = new Properties();
+        props.loadFromXML(is);
+
+        Builder b = builder();
+
+        for ( String key: props.stringPropertyNames() )
+        {
+            long count = Long.parseLong(props.getProperty(key));
+
+            if ( key.startsWith(ROW_COUNT_KEY_PREFIX) )
+                b.rowCount(dbmd.toRelId(key.substring(ROW_COUNT_KEY_PREFIX.length())), count);
+            else if ( key.startsWith(DISTINCT_VALUES_KEY_PREFIX) )
+            {
+                String relAndField = key.substring(DISTINCT_VALUES_KEY_PREFIX.length());
+                int sepIx = relAndField.lastIndexOf(':');
+                if ( sepIx == -1 )
+                    throw new IOException("Invalid distinct value count entry in table statistics: " + key);
+
+                b.distinctValueCount(dbmd.toRelId(relAndField.substring(0, sepIx)), relAndField.substring(sepIx + 1), count);
+            }
+            else
+                throw new IOException("Unrecognized entry in table statistics: " + key);
+        }
+
+        return b.build();
+    }
+
+    // Storage
+    /////////////////////////////////////////////////////////////////////////////////////
+
+
+    @Override
+    public int hashCode()
+    {
+        return rowCounts.hashCode() * 31 + distinctValueCounts.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if ( !(o instanceof TableStatistics) )
+            return false;
+
+        TableStatistics s = (TableStatistics)o;
+
+        return rowCounts.equals(s.rowCounts) && distinctValueCounts.equals(s.distinctValueCounts);
+    }
+
+
+    public static final class Builder
+    {
+        private final Map<RelId,Long> rowCounts = new HashMap<>();
+
+        private final Map<RelId,Map<String,Long>> distinctValueCounts = new HashMap<>();
+
+        private Builder() {}
+
+        public Builder rowCount
+        (
+            RelId relId,
+            long rowCount
+        )
+        {
+            requireArg(relId, "relation id");
+
+            if ( rowCount < 0 )
+                throw new IllegalArgumentException("Row count must not be negative.");
+
+            rowCounts.put(relId, rowCount);
+            return this;
+        }
+
+        public Builder distinctValueCount
+        (
+            RelId relId,
+            String fieldName,
+            long distinctValueCount
+        )
+        {
+            requireArg(relId, "relation id");
+            requireArg(fieldName, "field name");
+
+            if ( distinctValueCount < 0 )
+                throw new IllegalArgumentException("Distinct value count must not be negative.");
+
+            distinctValueCounts.computeIfAbsent(relId, r -> new HashMap<>()).put(fieldName, distinctValueCount);
+            return this;
+        }
+
+        public TableStatistics build()
+        {
+            return new TableStatistics(this);
+        }
+    }
+}
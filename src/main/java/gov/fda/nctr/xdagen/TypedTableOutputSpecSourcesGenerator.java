@@ -6,18 +6,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
 
-import freemarker.cache.ClassTemplateLoader;
-import freemarker.template.Configuration;
-import freemarker.template.DefaultObjectWrapper;
 import freemarker.template.Template;
 
 import static gov.fda.nctr.util.Freemarker.applyTemplate;
+import static gov.fda.nctr.util.Freemarker.getClasspathTemplate;
 import static gov.fda.nctr.util.StringFuns.camelCase;
 import static gov.fda.nctr.util.StringFuns.camelCaseInitialLower;
 import static gov.fda.nctr.util.StringFuns.lc;
 import static gov.fda.nctr.util.StringFuns.stringFrom;
 import static gov.fda.nctr.util.Files.writeStringToFile;
-import gov.fda.nctr.util.Freemarker;
 import gov.fda.nctr.dbmd.DBMD;
 import gov.fda.nctr.dbmd.ForeignKey;
 import gov.fda.nctr.dbmd.RelId;
@@ -38,7 +35,6 @@ public class TypedTableOutputSpecSourcesGenerator
     private final Template classSourceFileTemplate;
     private final Template prototypesSourceFileTemplate;
 
-    private static final String CLASSPATH_TEMPLATES_DIR_PATH = "/templates";
     private static final String JAVA_SOURCE_FILE_TEMPLATE =  "TypedTableOutputSpecJavaSource.ftl";
     private static final String PROTOTYPES_SOURCE_FILE_TEMPLATE =  "AllTypedTableOutputSpecPrototypesJavaSource.ftl";
 
@@ -59,14 +55,9 @@ public class TypedTableOutputSpecSourcesGenerator
         this.childCollectionsStyle = childCollectionsStyle;
         this.typedTableOutputSpecNamer = typedTableOutputSpecNamer.orElseGet(() -> new DefaultTypedTableOutputSpecNamer(dbmd));
 
-        // Configure template engine.
-        Configuration templateConfig = new Configuration(Freemarker.compatibilityVersion);
-        templateConfig.setTemplateLoader(new ClassTemplateLoader(getClass(), CLASSPATH_TEMPLATES_DIR_PATH));
-        templateConfig.setObjectWrapper(new DefaultObjectWrapper(Freemarker.compatibilityVersion));
-
-        // Load templates.
-        this.classSourceFileTemplate = templateConfig.getTemplate(JAVA_SOURCE_FILE_TEMPLATE);
-        this.prototypesSourceFileTemplate = templateConfig.getTemplate(PROTOTYPES_SOURCE_FILE_TEMPLATE);
+        // Load templates, which are parsed once per JVM and shared by all generators.
+        this.classSourceFileTemplate = getClasspathTemplate(JAVA_SOURCE_FILE_TEMPLATE);
+        this.prototypesSourceFileTemplate = getClasspathTemplate(PROTOTYPES_SOURCE_FILE_TEMPLATE);
     }
 
 
@@ -0,0 +1,894 @@
+package gov.fda.nctr.xdagen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Array;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import javax.sql.DataSource;
+
+import static gov.fda.nctr.util.CoreFuns.requireArg;
+import gov.fda.nctr.dbmd.Field;
+import gov.fda.nctr.xdagen.QueryGenerator.OrderByClauseInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.OutputColumnsInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+import gov.fda.nctr.xdagen.QueryGenerator.XmlOutputColumnType;
+
+
+/** Executes xdagen queries and streams the xml of their results to a Writer or OutputStream, in chunks of a fixed size, so
+ *  that result documents never need to be held in memory whole. The xml column of each result row is read through
+ *  Clob.getCharacterStream for CLOB columns, SQLXML.getCharacterStream or getBinaryStream for xml type columns, or the
+ *  result set's character stream for other large character types such as Postgres text. For row elements queries the
+ *  row elements are written one after another in result order.
+ *
+ *  Row collection element queries are executed according to the executor's collection assembly option. With the default
+ *  DATABASE assembly the collection element is built in the database by xmlagg and returned as a single value. With
+ *  CLIENT assembly the collection members query is executed instead, its rows being fetched through a cursor in batches
+ *  of the fetch size, and the executor writes the collection element's start tag, each row element as it arrives, and
+ *  the end tag. The output is the same as that of the database aggregation when the xml is not indented, while neither
+ *  the database nor the client ever holds the whole collection. CLIENT_BATCHED assembly is the same except that the
+ *  collection member batches query is executed, each of its rows holding a batch of row elements aggregated in the
+ *  database, of the query generator's row element batch size. This trades a bounded xml value per row for far fewer rows
+ *  and column reads than with one row element per row. Collection members and member batches queries may also be
+ *  executed directly, in which case the row elements are written without the enclosing collection element.
+ *
+ *  Row elements may also be fetched for a list of primary key values in a single execution, with the results returned
+ *  in the order of the keys, see fetchRowXmlsByKeys. Results may be written a page at a time by keyset pagination, each
+ *  page returning a continuation token for the next, so that later pages cost no more than the first, see writeXmlPage.
+ *  The row xml values of multiple row queries may also be published to subscribers with backpressure, see publishRowXml.
+ *
+ *  Executors are immutable and may be shared between threads, each execution using its own connection.
+ */
+public class XdaExecutor
+{
+    private final QueryGenerator queryGenerator;
+
+    private final DataSource dataSource;
+
+    private final int chunkSize;
+
+    private final int fetchSize;
+
+    private final CollectionAssembly collectionAssembly;
+
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    public static final int DEFAULT_FETCH_SIZE = 500;
+
+    /// Determines where the row collection element of a row collection element query is assembled.
+    public enum CollectionAssembly { DATABASE, CLIENT, CLIENT_BATCHED }
+
+
+    public XdaExecutor
+    (
+        QueryGenerator queryGenerator,
+        DataSource dataSource
+    )
+    {
+        this(queryGenerator, dataSource, DEFAULT_CHUNK_SIZE, DEFAULT_FETCH_SIZE, CollectionAssembly.DATABASE);
+    }
+
+    /**
+     * @param chunkSize  The number of characters, or of bytes when writing to an OutputStream, to read from the xml
+     *                   column and write at a time.
+     */
+    public XdaExecutor
+    (
+        QueryGenerator queryGenerator,
+        DataSource dataSource,
+        int chunkSize
+    )
+    {
+        this(queryGenerator, dataSource, chunkSize, DEFAULT_FETCH_SIZE, CollectionAssembly.DATABASE);
+    }
+
+    private XdaExecutor
+    (
+        QueryGenerator queryGenerator,
+        DataSource dataSource,
+        int chunkSize,
+        int fetchSize,
+        CollectionAssembly collectionAssembly
+    )
+    {
+        this.queryGenerator = requireArg(queryGenerator, "query generator");
+        this.dataSource = requireArg(dataSource, "data source");
+        this.collectionAssembly = requireArg(collectionAssembly, "collection assembly");
+
+        if ( chunkSize <= 0 )
+            throw new IllegalArgumentException("Chunk size must be positive.");
+        if ( fetchSize <= 0 )
+            throw new IllegalArgumentException("Fetch size must be positive.");
+
+        this.chunkSize = chunkSize;
+        this.fetchSize = fetchSize;
+    }
+
+    /// Returns an executor differing from this one only in its collection assembly option.
+    public XdaExecutor withCollectionAssembly(CollectionAssembly assembly)
+    {
+        return new XdaExecutor(queryGenerator, dataSource, chunkSize, fetchSize, assembly);
+    }
+
+    /** Returns an executor differing from this one only in the number of result rows to be fetched from the database at a
+     *  time, which bounds the client memory used for rows fetched ahead of their writing. */
+    public XdaExecutor withFetchSize(int rows)
+    {
+        return new XdaExecutor(queryGenerator, dataSource, chunkSize, rows, collectionAssembly);
+    }
+
+    public QueryGenerator getQueryGenerator()
+    {
+        return queryGenerator;
+    }
+
+    public DataSource getDataSource()
+    {
+        return dataSource;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    public int getFetchSize()
+    {
+        return fetchSize;
+    }
+
+    public CollectionAssembly getCollectionAssembly()
+    {
+        return collectionAssembly;
+    }
+
+    /** Executes the query on a connection from the data source, writing the xml of its results to the passed writer,
+     *  which is flushed but not closed.
+     * @param bindValues  Values for the '?' bind parameters of the query's filter condition, in order.
+     * @return The number of characters written.
+     */
+    public long writeXml
+    (
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        Writer w
+    )
+        throws SQLException, IOException
+    {
+        try ( Connection conn = dataSource.getConnection() )
+        {
+            return writeXml(conn, xdaQry, bindValues, w);
+        }
+    }
+
+    /** Executes the query on a connection from the data source, writing the xml of its results to the passed output stream
+     *  as UTF-8, except that the bytes of xml type columns are copied as provided by the driver. The stream is flushed but
+     *  not closed.
+     * @return The number of bytes written.
+     */
+    public long writeXml
+    (
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        OutputStream os
+    )
+        throws SQLException, IOException
+    {
+        try ( Connection conn = dataSource.getConnection() )
+        {
+            return writeXml(conn, xdaQry, bindValues, os);
+        }
+    }
+
+    /// Executes the query on the passed connection, which is left open, writing the xml of its results to the writer.
+    public long writeXml
+    (
+        Connection conn,
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        Writer w
+    )
+        throws SQLException, IOException
+    {
+        requireArg(w, "writer");
+
+        return execute(conn, xdaQry, bindValues, new WriterSink(w, chunkSize));
+    }
+
+    /// Executes the query on the passed connection, which is left open, writing the xml of its results to the stream.
+    public long writeXml
+    (
+        Connection conn,
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        OutputStream os
+    )
+        throws SQLException, IOException
+    {
+        requireArg(os, "output stream");
+
+        return execute(conn, xdaQry, bindValues, new OutputStreamSink(os, chunkSize));
+    }
+
+    /** Returns a publisher of the row xml values of the passed multiple row query, which executes the query for each
+     *  subscription and reads rows only as its subscriber requests them, see RowXmlPublisher.
+     * @param bindValues  Values for the '?' bind parameters of the query's filter condition, in order.
+     * @param deliveryExecutor  Runs the tasks which make the JDBC calls and deliver signals to subscribers.
+     */
+    public RowXmlPublisher publishRowXml
+    (
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        Executor deliveryExecutor
+    )
+    {
+        return new RowXmlPublisher(this, xdaQry, bindValues, deliveryExecutor);
+    }
+
+    /** Executes one page of at most pageSize rows of the row elements or row collection element query on a connection
+     *  from the data source, by keyset pagination as described for QueryGenerator.getKeysetPageQuery, writing the xml of
+     *  the page's rows to the passed writer, which is flushed but not closed. A page of a row collection element query
+     *  is written as a collection element holding the page's row elements.
+     * @param bindValues  Values for the '?' bind parameters of the query's filter condition, in order.
+     * @param continuationToken  The token returned for the previous page, or empty for the first page.
+     * @return The continuation token for the next page, or empty if this page was the last. The token is returned
+     *         whenever the page is full, so the page following a full last page is empty.
+     */
+    public Optional<String> writeXmlPage
+    (
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        int pageSize,
+        Optional<String> continuationToken,
+        Writer w
+    )
+        throws SQLException, IOException
+    {
+        try ( Connection conn = dataSource.getConnection() )
+        {
+            return writeXmlPage(conn, xdaQry, bindValues, pageSize, continuationToken, w);
+        }
+    }
+
+    /// Executes one page of the query as above, writing its xml to the passed output stream as for writeXml.
+    public Optional<String> writeXmlPage
+    (
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        int pageSize,
+        Optional<String> continuationToken,
+        OutputStream os
+    )
+        throws SQLException, IOException
+    {
+        try ( Connection conn = dataSource.getConnection() )
+        {
+            return writeXmlPage(conn, xdaQry, bindValues, pageSize, continuationToken, os);
+        }
+    }
+
+    /// Executes one page of the query on the passed connection, which is left open, writing its xml to the writer.
+    public Optional<String> writeXmlPage
+    (
+        Connection conn,
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        int pageSize,
+        Optional<String> continuationToken,
+        Writer w
+    )
+        throws SQLException, IOException
+    {
+        requireArg(w, "writer");
+
+        return executePage(conn, xdaQry, bindValues, pageSize, continuationToken, new WriterSink(w, chunkSize));
+    }
+
+    /// Executes one page of the query on the passed connection, which is left open, writing its xml to the stream.
+    public Optional<String> writeXmlPage
+    (
+        Connection conn,
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        int pageSize,
+        Optional<String> continuationToken,
+        OutputStream os
+    )
+        throws SQLException, IOException
+    {
+        requireArg(os, "output stream");
+
+        return executePage(conn, xdaQry, bindValues, pageSize, continuationToken, new OutputStreamSink(os, chunkSize));
+    }
+
+    /** Fetches the row elements of the output specification's table for the passed primary key values in one query
+     *  execution on a connection from the data source, as by QueryGenerator.getRowElementsByKeysQuery.
+     * @param keys  The primary key values of the rows wanted, each as a list of values for the primary key columns in
+     *              primary key column order.
+     * @return The row element xml for each key, in the order of the keys, being empty for keys not matching any row.
+     */
+    public List<Optional<String>> fetchRowXmlsByKeys
+    (
+        TableOutputSpec ospec,
+        List<? extends List<?>> keys
+    )
+        throws SQLException
+    {
+        try ( Connection conn = dataSource.getConnection() )
+        {
+            return fetchRowXmlsByKeys(conn, ospec, keys);
+        }
+    }
+
+    /// Fetches row elements by primary key values as above on the passed connection, which is left open.
+    public List<Optional<String>> fetchRowXmlsByKeys
+    (
+        Connection conn,
+        TableOutputSpec ospec,
+        List<? extends List<?>> keys
+    )
+        throws SQLException
+    {
+        requireArg(conn, "connection");
+        requireArg(ospec, "table output spec");
+        requireArg(keys, "keys");
+
+        List<Field> pkFields = queryGenerator.getPrimaryKeyFields(ospec.getRelationId());
+
+        List<Optional<String>> rowXmls = new ArrayList<>(Collections.nCopies(keys.size(), Optional.empty()));
+
+        if ( keys.isEmpty() )
+            return rowXmls;
+
+        // Transpose the keys into an array of values for each primary key column.
+        Object[][] keyColumnValues = new Object[pkFields.size()][keys.size()];
+        for ( int k = 0; k < keys.size(); ++k )
+        {
+            List<?> key = keys.get(k);
+            if ( key == null || key.size() != pkFields.size() )
+                throw new IllegalArgumentException("Key " + key + " does not have the " + pkFields.size() + " primary key values of table " + ospec.getRelationId() + ".");
+            for ( int c = 0; c < pkFields.size(); ++c )
+                keyColumnValues[c][k] = key.get(c);
+        }
+
+        XmlOutputColumnType xmlColType = queryGenerator.getDefaultXmlOutputColumnType();
+
+        try ( PreparedStatement stmt = conn.prepareStatement(queryGenerator.getRowElementsByKeysQuery(ospec, xmlColType)) )
+        {
+            List<Array> arrays = new ArrayList<>();
+
+            try
+            {
+                for ( int c = 0; c < pkFields.size(); ++c )
+                {
+                    Array a = createKeyColumnArray(conn, pkFields.get(c), keyColumnValues[c]);
+                    arrays.add(a);
+                    stmt.setArray(c + 1, a);
+                }
+
+                stmt.setFetchSize(Math.min(keys.size(), fetchSize));
+
+                try ( ResultSet rs = stmt.executeQuery() )
+                {
+                    boolean isClob = rs.getMetaData().getColumnType(2) == Types.CLOB;
+
+                    while ( rs.next() )
+                    {
+                        int keyIx = rs.getInt(1);
+                        rowXmls.set(keyIx - 1, Optional.ofNullable(readXmlValue(rs, 2, xmlColType, isClob)));
+                    }
+                }
+            }
+            finally
+            {
+                for ( Array a: arrays )
+                    a.free();
+            }
+        }
+
+        return rowXmls;
+    }
+
+    // Creates the array bound for a primary key column's values: a Postgres array of the column's type, or an Oracle SQL
+    // collection of a built-in collection type suitable for the column. The Oracle driver is only accessed reflectively,
+    // as it is not needed otherwise.
+    private Array createKeyColumnArray(Connection conn, Field pkField, Object[] values) throws SQLException
+    {
+        if ( !isOracle() )
+            return conn.createArrayOf(pkField.getDatabaseType(), values);
+
+        String collectionType;
+        switch ( pkField.getJdbcTypeCode() )
+        {
+            case Types.NUMERIC: case Types.DECIMAL: case Types.INTEGER: case Types.BIGINT: case Types.SMALLINT:
+            case Types.TINYINT: case Types.DOUBLE: case Types.FLOAT: case Types.REAL:
+                collectionType = "SYS.ODCINUMBERLIST"; break;
+            case Types.DATE: case Types.TIMESTAMP:
+                collectionType = "SYS.ODCIDATELIST"; break;
+            default:
+                collectionType = "SYS.ODCIVARCHAR2LIST";
+        }
+
+        try
+        {
+            Class<?> oraConnClass = Class.forName("oracle.jdbc.OracleConnection");
+            Object oraConn = conn.unwrap(oraConnClass);
+            return (Array)oraConnClass.getMethod("createOracleArray", String.class, Object.class).invoke(oraConn, collectionType, values);
+        }
+        catch(InvocationTargetException e)
+        {
+            if ( e.getCause() instanceof SQLException )
+                throw (SQLException)e.getCause();
+            throw new SQLException("Could not create Oracle collection of key values: " + e.getCause(), e.getCause());
+        }
+        catch(ReflectiveOperationException e)
+        {
+            throw new SQLException("Could not create Oracle collection of key values, the Oracle JDBC driver is required: " + e, e);
+        }
+    }
+
+    static String readXmlValue(ResultSet rs, int col, XmlOutputColumnType xmlColType, boolean isClob) throws SQLException
+    {
+        if ( xmlColType == XmlOutputColumnType.XML_TYPE )
+        {
+            SQLXML sqlXml = rs.getSQLXML(col);
+            if ( sqlXml == null )
+                return null;
+            try
+            {
+                return sqlXml.getString();
+            }
+            finally
+            {
+                sqlXml.free();
+            }
+        }
+        else if ( isClob )
+        {
+            Clob clob = rs.getClob(col);
+            if ( clob == null )
+                return null;
+            try
+            {
+                return clob.getSubString(1, (int)clob.length());
+            }
+            finally
+            {
+                clob.free();
+            }
+        }
+        else
+            return rs.getString(col);
+    }
+
+    private long execute
+    (
+        Connection conn,
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        XmlSink sink
+    )
+        throws SQLException, IOException
+    {
+        requireArg(conn, "connection");
+        requireArg(xdaQry, "query");
+        requireArg(bindValues, "bind values");
+
+        if ( xdaQry.getQueryResultStyle() == QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT && collectionAssembly != CollectionAssembly.DATABASE )
+        {
+            TableOutputSpec ospec = xdaQry.getTableOutputSpec();
+
+            XdaQuery membersQry =
+                new XdaQuery(
+                    ospec,
+                    collectionAssembly == CollectionAssembly.CLIENT_BATCHED ?
+                        QueryResultStyle.MULTIPLE_ROW_COLLECTION_MEMBER_BATCH_RESULTS
+                        : QueryResultStyle.MULTIPLE_ROW_COLLECTION_MEMBER_RESULTS,
+                    xdaQry.getTableAlias(),
+                    xdaQry.getFilterCondition(),
+                    OrderByClauseInclusion.NA,
+                    xdaQry.getXmlOutputColumnType(),
+                    OutputColumnsInclusion.XML_COLUMN_ONLY
+                );
+
+            sink.writeText(getCollectionStartTag(ospec));
+            long rows = executeRows(conn, queryGenerator.getSql(membersQry), membersQry.getXmlOutputColumnType(), bindValues, sink, ">", rs -> {});
+            sink.writeText(getCollectionEndTag(ospec, rows > 0));
+        }
+        else
+            executeRows(conn, queryGenerator.getSql(xdaQry), xdaQry.getXmlOutputColumnType(), bindValues, sink, "", rs -> {});
+
+        return sink.finish();
+    }
+
+    // The start tag of the collection element without its closing '>', which is written before the first row element.
+    static String getCollectionStartTag(TableOutputSpec ospec)
+    {
+        return "<" + ospec.getRowCollectionElementName() + " xmlns=\"" + escapeXmlAttributeValue(ospec.getOutputXmlNamespace()) + "\"";
+    }
+
+    // The text completing the collection element after its start tag and any row elements.
+    String getCollectionEndTag(TableOutputSpec ospec, boolean hasRows)
+    {
+        // Databases differ in how they write an element with no content.
+        if ( hasRows )
+            return "</" + ospec.getRowCollectionElementName() + ">";
+        else if ( isOracle() )
+            return "></" + ospec.getRowCollectionElementName() + ">";
+        else
+            return "/>";
+    }
+
+    private Optional<String> executePage
+    (
+        Connection conn,
+        XdaQuery xdaQry,
+        List<?> bindValues,
+        int pageSize,
+        Optional<String> continuationToken,
+        XmlSink sink
+    )
+        throws SQLException, IOException
+    {
+        requireArg(conn, "connection");
+        requireArg(xdaQry, "query");
+        requireArg(bindValues, "bind values");
+        requireArg(continuationToken, "continuation token");
+
+        Optional<KeysetPageToken> token = continuationToken.map(KeysetPageToken::decode);
+
+        KeysetPageQuery pageQry = queryGenerator.getKeysetPageQuery(xdaQry, pageSize, token.isPresent());
+
+        List<String> keysetFieldNames = pageQry.getKeysetFieldNames();
+        List<Integer> keysetFieldJdbcTypes = pageQry.getKeysetFieldJdbcTypes();
+
+        List<Object> allBindValues = new ArrayList<>(bindValues);
+        if ( token.isPresent() )
+        {
+            if ( !token.get().getKeysetFieldNames().equals(keysetFieldNames) )
+                throw new IllegalArgumentException("Continuation token is not for this query.");
+            allBindValues.addAll(pageQry.getSeekBindValues(token.get().getKeysetValues()));
+        }
+
+        boolean collection = xdaQry.getQueryResultStyle() == QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT;
+        TableOutputSpec ospec = xdaQry.getTableOutputSpec();
+
+        List<Object> lastKeysetValues = new ArrayList<>(keysetFieldNames.size());
+        RowVisitor keysetReader = rs -> {
+            lastKeysetValues.clear();
+            for ( int i = 1; i <= keysetFieldNames.size(); ++i )
+                lastKeysetValues.add(readKeysetValue(rs, i, keysetFieldJdbcTypes.get(i - 1)));
+        };
+
+        if ( collection )
+            sink.writeText(getCollectionStartTag(ospec));
+
+        long rows = executeRows(conn, pageQry.getSql(), xdaQry.getXmlOutputColumnType(), allBindValues, sink, collection ? ">" : "", keysetReader);
+
+        if ( collection )
+            sink.writeText(getCollectionEndTag(ospec, rows > 0));
+
+        sink.finish();
+
+        return rows == pageSize ? Optional.of(new KeysetPageToken(keysetFieldNames, lastKeysetValues).encode()) : Optional.empty();
+    }
+
+    // Reads a keyset value in a form which page tokens encode. Timestamps are read as java.sql.Timestamp whatever the
+    // driver's own representation, such as Oracle's oracle.sql.TIMESTAMP, as are date values not read as dates.
+    private static Object readKeysetValue
+    (
+        ResultSet rs,
+        int col,
+        int jdbcType
+    )
+        throws SQLException
+    {
+        if ( jdbcType == Types.TIMESTAMP )
+            return rs.getTimestamp(col);
+
+        Object v = rs.getObject(col);
+
+        if ( jdbcType == Types.DATE && v != null && !(v instanceof java.sql.Date || v instanceof Timestamp) )
+            return rs.getTimestamp(col);
+
+        return v;
+    }
+
+    /** Executes the query, writing the xml column of each result row to the sink, preceded for the first row only by the
+     *  passed text. The row visitor is called for each row before its xml column is read, for reading any other columns.
+     *  Returns the number of rows. Rows are fetched through a cursor, which for Postgres requires that the connection not
+     *  be in auto-commit mode, so auto-commit is suspended for the execution if necessary.
+     */
+    private long executeRows
+    (
+        Connection conn,
+        String sql,
+        XmlOutputColumnType xmlColType,
+        List<?> bindValues,
+        XmlSink sink,
+        String firstRowPrefix,
+        RowVisitor rowVisitor
+    )
+        throws SQLException, IOException
+    {
+        int bindParamCount = QueryPlan.countBindParameters(sql);
+        if ( bindParamCount != bindValues.size() )
+            throw new IllegalArgumentException("Query has " + bindParamCount + " bind parameters but " + bindValues.size() + " values were provided.");
+
+        boolean suspendAutoCommit = conn.getAutoCommit();
+        if ( suspendAutoCommit )
+            conn.setAutoCommit(false);
+
+        long rows = 0;
+
+        try ( PreparedStatement stmt = conn.prepareStatement(sql) )
+        {
+            stmt.setFetchSize(fetchSize);
+
+            for ( int i = 0; i < bindValues.size(); ++i )
+                stmt.setObject(i + 1, bindValues.get(i));
+
+            try ( ResultSet rs = stmt.executeQuery() )
+            {
+                // The xml column is the last column, following any table field columns.
+                int xmlCol = rs.getMetaData().getColumnCount();
+                boolean isClob = rs.getMetaData().getColumnType(xmlCol) == Types.CLOB;
+
+                while ( rs.next() )
+                {
+                    rowVisitor.visit(rs);
+
+                    if ( rows++ == 0 && !firstRowPrefix.isEmpty() )
+                        sink.writeText(firstRowPrefix);
+
+                    if ( xmlColType == XmlOutputColumnType.XML_TYPE )
+                        sink.writeSqlXml(rs, xmlCol);
+                    else if ( isClob )
+                        sink.writeClob(rs, xmlCol);
+                    else
+                        sink.writeCharacterStream(rs, xmlCol);
+                }
+            }
+        }
+        finally
+        {
+            if ( suspendAutoCommit )
+                conn.setAutoCommit(true);
+        }
+
+        return rows;
+    }
+
+    private interface RowVisitor
+    {
+        void visit(ResultSet rs) throws SQLException;
+    }
+
+    private boolean isOracle()
+    {
+        String dbms = queryGenerator.getDatabaseMetaData().getDbmsName();
+        return dbms != null && dbms.toUpperCase().contains("ORACLE");
+    }
+
+    static String escapeXmlAttributeValue(String s)
+    {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+    }
+
+
+    /////////////////////////////////////////////////////////////////////
+    // Sinks
+    // Copy the xml column values of result rows to the caller's writer or stream in fixed-size chunks.
+
+    private static abstract class XmlSink
+    {
+        final char[] charBuf;
+
+        XmlSink(int chunkSize)
+        {
+            charBuf = new char[chunkSize];
+        }
+
+        abstract Writer charWriter();
+
+        abstract long finish() throws IOException;
+
+        void writeText(String s) throws IOException
+        {
+            charWriter().write(s);
+        }
+
+        void writeSqlXml(ResultSet rs, int col) throws SQLException, IOException
+        {
+            SQLXML sqlXml = rs.getSQLXML(col);
+            if ( sqlXml == null )
+                return;
+
+            try ( Reader r = sqlXml.getCharacterStream() )
+            {
+                copy(r);
+            }
+            finally
+            {
+                sqlXml.free();
+            }
+        }
+
+        void writeClob(ResultSet rs, int col) throws SQLException, IOException
+        {
+            Clob clob = rs.getClob(col);
+            if ( clob == null )
+                return;
+
+            try ( Reader r = clob.getCharacterStream() )
+            {
+                copy(r);
+            }
+            finally
+            {
+                clob.free();
+            }
+        }
+
+        void writeCharacterStream(ResultSet rs, int col) throws SQLException, IOException
+        {
+            try ( Reader r = rs.getCharacterStream(col) )
+            {
+                if ( r != null )
+                    copy(r);
+            }
+        }
+
+        void copy(Reader r) throws IOException
+        {
+            Writer w = charWriter();
+            int n;
+            while ( (n = r.read(charBuf)) != -1 )
+                w.write(charBuf, 0, n);
+        }
+    }
+
+    private static final class WriterSink extends XmlSink
+    {
+        final CountingWriter w;
+
+        WriterSink(Writer w, int chunkSize)
+        {
+            super(chunkSize);
+            this.w = new CountingWriter(w);
+        }
+
+        @Override
+        Writer charWriter() { return w; }
+
+        @Override
+        long finish() throws IOException
+        {
+            w.flush();
+            return w.count;
+        }
+    }
+
+    private static final class OutputStreamSink extends XmlSink
+    {
+        final CountingOutputStream os;
+        final Writer utf8Writer;
+        final byte[] byteBuf;
+
+        OutputStreamSink(OutputStream os, int chunkSize)
+        {
+            super(chunkSize);
+            this.os = new CountingOutputStream(os);
+            this.utf8Writer = new OutputStreamWriter(this.os, StandardCharsets.UTF_8);
+            this.byteBuf = new byte[chunkSize];
+        }
+
+        @Override
+        Writer charWriter() { return utf8Writer; }
+
+        @Override
+        void writeSqlXml(ResultSet rs, int col) throws SQLException, IOException
+        {
+            SQLXML sqlXml = rs.getSQLXML(col);
+            if ( sqlXml == null )
+                return;
+
+            utf8Writer.flush(); // keep any previously written characters ahead of the copied bytes
+
+            try ( InputStream is = sqlXml.getBinaryStream() )
+            {
+                int n;
+                while ( (n = is.read(byteBuf)) != -1 )
+                    os.write(byteBuf, 0, n);
+            }
+            finally
+            {
+                sqlXml.free();
+            }
+        }
+
+        @Override
+        long finish() throws IOException
+        {
+            utf8Writer.flush();
+            return os.count;
+        }
+    }
+
+    private static final class CountingWriter extends Writer
+    {
+        final Writer w;
+        long count;
+
+        CountingWriter(Writer w) { this.w = w; }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException
+        {
+            w.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String s, int off, int len) throws IOException
+        {
+            w.write(s, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException { w.flush(); }
+
+        @Override
+        public void close() throws IOException { flush(); } // the caller's writer is not ours to close
+    }
+
+    private static final class CountingOutputStream extends OutputStream
+    {
+        final OutputStream os;
+        long count;
+
+        CountingOutputStream(OutputStream os) { this.os = os; }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            os.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            os.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException { os.flush(); }
+
+        @Override
+        public void close() throws IOException { flush(); }
+    }
+
+    // Sinks
+    /////////////////////////////////////////////////////////////////////
+}
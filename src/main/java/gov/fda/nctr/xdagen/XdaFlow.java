@@ -0,0 +1,33 @@
+package gov.fda.nctr.xdagen;
+
+
+/** Interfaces for publishing results with backpressure, having the methods and semantics of those of
+ *  java.util.concurrent.Flow and of Reactive Streams, neither of which is available to this library on Java 8. Either may
+ *  be bridged to with method references.
+ */
+public final class XdaFlow
+{
+    private XdaFlow() {}
+
+    /// Counterpart of Flow.Publisher.
+    public interface Publisher<T>
+    {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /// Counterpart of Flow.Subscriber.
+    public interface Subscriber<T>
+    {
+        void onSubscribe(Subscription subscription);
+        void onNext(T item);
+        void onError(Throwable throwable);
+        void onComplete();
+    }
+
+    /// Counterpart of Flow.Subscription.
+    public interface Subscription
+    {
+        void request(long n);
+        void cancel();
+    }
+}
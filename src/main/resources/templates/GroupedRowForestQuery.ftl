@@ -0,0 +1,6 @@
+select <#list group_by_exprs as expr>${expr}, </#list>xmlagg(${rows_query_alias}.row_xml<@orderby exprs=order_by_exprs!/>) coll_xml
+from<#if rows_cte??> ${rows_cte} ${rows_query_alias}<#else>
+ ( ${rows_query}
+ ) ${rows_query_alias}</#if>
+group by <#list group_by_exprs as expr>${expr}${expr_has_next?string(', ','')}</#list><#rt>
+<#macro orderby exprs><#if (exprs![])?size != 0> order by <#list exprs as expr>${expr}${expr_has_next?string(',','')}</#list></#if></#macro>
\ No newline at end of file
@@ -0,0 +1,11 @@
+select <#if convert_to_large_char>xmlserialize(content </#if>xmlagg(${batches_alias}.row_xml order by ${batches_alias}.batch_row_num)<#if convert_to_large_char> as ${large_char_type}<#if xml_indentation??> ${xml_indentation}</#if>)</#if> row_xml
+from
+ ( select ${rows_query_alias}.row_xml, row_number() over (order by <#if (order_by_exprs!)?size != 0><#list order_by_exprs as expr>${expr}${expr_has_next?string(",","")}</#list><#else>null</#if>) batch_row_num
+   from
+    ( ${rows_query}
+    ) ${rows_query_alias}<#if ((filter_condition!"")?length > 0)>
+   where
+     ${filter_condition}</#if>
+ ) ${batches_alias}
+group by ${batch_number_expr}
+order by ${batch_number_expr}
\ No newline at end of file
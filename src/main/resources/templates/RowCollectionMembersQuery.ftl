@@ -0,0 +1,8 @@
+select <#if convert_to_large_char>xmlserialize(content </#if>${rows_query_alias}.row_xml<#if convert_to_large_char> as ${large_char_type}<#if xml_indentation??> ${xml_indentation}</#if>)</#if> row_xml
+from
+ ( ${rows_query}
+ ) ${rows_query_alias}<#if ((filter_condition!"")?length > 0)>
+where
+  ${filter_condition}</#if><#if (order_by_exprs!)?size != 0>
+order by <#list order_by_exprs as expr>${expr}${expr_has_next?string(',','')}</#list><#t>
+</#if>
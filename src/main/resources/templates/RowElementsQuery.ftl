@@ -8,18 +8,28 @@ select -- rows of ${relid}
      ${field_el_content_expr_gen.getFieldElementContentExpression(table_alias,of.field)} as "${of.outputElementName}"${of_has_next?string(',','')}
      </#list>
     )
-   -- <#if (child_subqueries!)?size == 0>No</#if> child tables for ${relid}
+   -- <#if (child_subqueries!)?size == 0 && (child_collection_joins!)?size == 0>No</#if> child tables for ${relid}
    <#list child_subqueries! as child_subquery>
    ,(${child_subquery}
     ) -- child subquery
    </#list>
-   -- <#if (parent_subqueries!)?size == 0>No</#if> parent tables for ${relid}
+   <#list child_collection_joins! as join>
+   ,${join.column_expr} -- ${join.column_comment}
+   </#list>
+   -- <#if (parent_subqueries!)?size == 0 && (parent_joins!)?size == 0>No</#if> parent tables for ${relid}
    <#list parent_subqueries! as parent_subquery>
    ,(${parent_subquery}
     ) -- parent subquery
    </#list>
+   <#list parent_joins! as join>
+   ,${join.column_expr} -- ${join.column_comment}
+   </#list>
   )<#if convert_to_large_char> as ${large_char_type}<#if xml_indentation??> ${xml_indentation}</#if>)</#if> row_xml
-from ${relid.idString} ${table_alias}<#if ((filter_condition!"")?length > 0)>
+from ${relid.idString} ${table_alias}<#list joins! as join>
+${join.join}<#if join.cte??> ${join.cte} ${join.alias}<#else>
+ ( ${join.query}
+ ) ${join.alias}</#if>
+  on ${join.condition}</#list><#if ((filter_condition!"")?length > 0)>
 where
   ${filter_condition}</#if><#if (order_by_exprs!)?size != 0>
 order by <#list order_by_exprs as expr>${expr}${expr_has_next?string(',','')}</#list><#t>
@@ -1,6 +1,6 @@
 select xmlagg(${rows_query_alias}.row_xml<@orderby exprs=order_by_exprs!/>) "rowcoll_xml"
-from
+from<#if rows_cte??> ${rows_cte} ${rows_query_alias}<#else>
  ( ${rows_query}
- ) ${rows_query_alias}
+ ) ${rows_query_alias}</#if>
 ${where_cond}<#rt>
 <#macro orderby exprs><#if (exprs![])?size != 0> order by <#list exprs as expr>${expr}${expr_has_next?string(',','')}</#list></#if></#macro>
\ No newline at end of file
@@ -0,0 +1,317 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Array;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.sql.DataSource;
+
+
+/** Minimal in-memory JDBC objects for testing query execution without a database. Statements return the result provided
+ *  for their SQL by a function, and executions are recorded for inspection. Large character values are served through
+ *  readers which record the largest read requested, and result rows are counted as they are fetched.
+ */
+public class FakeJdbc
+{
+    /// A query result: column names and JDBC types, and row values.
+    public static class Result
+    {
+        final List<String> columnNames;
+        final List<Integer> columnTypes;
+        final List<Object[]> rows;
+
+        public Result(List<String> columnNames, List<Integer> columnTypes, List<Object[]> rows)
+        {
+            this.columnNames = columnNames;
+            this.columnTypes = columnTypes;
+            this.rows = rows;
+        }
+
+        /// A result of a single xml column of the given JDBC type, with one row for each value.
+        public static Result xmlColumn(int jdbcType, String... values)
+        {
+            List<Object[]> rows = new ArrayList<>();
+            for ( String v: values )
+                rows.add(new Object[]{ v });
+
+            return new Result(Collections.singletonList("xml"), Collections.singletonList(jdbcType), rows);
+        }
+    }
+
+    /// A recorded statement execution.
+    public static class Execution
+    {
+        public final String sql;
+        public final Map<Integer,Object> bindValues = new ConcurrentHashMap<>();
+        public volatile int fetchSize;
+        public volatile boolean statementClosed;
+        public volatile boolean statementCancelled;
+        public volatile boolean resultSetClosed;
+        public final AtomicInteger rowsFetched = new AtomicInteger();
+
+        Execution(String sql) { this.sql = sql; }
+    }
+
+    private final Function<Execution,Result> resultsByExecution;
+
+    public final List<Execution> executions = Collections.synchronizedList(new ArrayList<>());
+
+    public final AtomicInteger connectionsOpened = new AtomicInteger();
+    public final AtomicInteger connectionsClosed = new AtomicInteger();
+    public final AtomicInteger repeatableReadTransactions = new AtomicInteger();
+    public final AtomicInteger rollbacks = new AtomicInteger();
+    public final AtomicInteger lobsFreed = new AtomicInteger();
+    public final AtomicInteger maxReadLength = new AtomicInteger();
+
+    /// The number of further requests for connections from the data source which are to fail.
+    public final AtomicInteger connectionFailures = new AtomicInteger();
+
+    public FakeJdbc(Function<String,Result> resultsBySql)
+    {
+        this.resultsByExecution = exec -> resultsBySql.apply(exec.sql);
+    }
+
+    /// Statements return the result provided by the function for their execution, including its bind values.
+    public static FakeJdbc withResultsByExecution(Function<Execution,Result> resultsByExecution)
+    {
+        return new FakeJdbc(resultsByExecution::apply);
+    }
+
+    private interface ExecutionResults { Result apply(Execution exec); }
+
+    private FakeJdbc(ExecutionResults resultsByExecution)
+    {
+        this.resultsByExecution = resultsByExecution::apply;
+    }
+
+    public DataSource dataSource()
+    {
+        return proxy(DataSource.class, (p, m, args) -> {
+            if ( m.getName().equals("getConnection") )
+            {
+                if ( connectionFailures.getAndUpdate(n -> Math.max(0, n - 1)) > 0 )
+                    throw new SQLException("Connection refused.");
+                return connection();
+            }
+            return unsupported(m.getName());
+        });
+    }
+
+    public Connection connection()
+    {
+        connectionsOpened.incrementAndGet();
+
+        boolean[] autoCommit = { true };
+        int[] transactionIsolation = { Connection.TRANSACTION_READ_COMMITTED };
+
+        return proxy(Connection.class, (p, m, args) -> {
+            switch ( m.getName() )
+            {
+                case "prepareStatement": return statement((String)args[0]);
+                case "createArrayOf": return array((Object[])args[1]);
+                case "getAutoCommit": return autoCommit[0];
+                case "setAutoCommit": autoCommit[0] = (Boolean)args[0]; return null;
+                case "getTransactionIsolation": return transactionIsolation[0];
+                case "setTransactionIsolation":
+                    transactionIsolation[0] = (Integer)args[0];
+                    if ( transactionIsolation[0] == Connection.TRANSACTION_REPEATABLE_READ )
+                        repeatableReadTransactions.incrementAndGet();
+                    return null;
+                case "rollback": rollbacks.incrementAndGet(); return null;
+                case "close": connectionsClosed.incrementAndGet(); return null;
+                case "isClosed": return false;
+                default: return unsupported(m.getName());
+            }
+        });
+    }
+
+    private PreparedStatement statement(String sql)
+    {
+        Execution exec = new Execution(sql);
+
+        return proxy(PreparedStatement.class, (p, m, args) -> {
+            switch ( m.getName() )
+            {
+                case "setObject": case "setString": case "setInt": case "setLong": case "setArray":
+                    exec.bindValues.put((Integer)args[0], args[1]);
+                    return null;
+                case "setFetchSize": exec.fetchSize = (Integer)args[0]; return null;
+                case "executeQuery":
+                    executions.add(exec);
+                    return resultSet(resultsByExecution.apply(exec), exec);
+                case "execute": executions.add(exec); return false; // statements without results
+                case "close": exec.statementClosed = true; return null;
+                case "cancel": exec.statementCancelled = true; return null;
+                default: return unsupported(m.getName());
+            }
+        });
+    }
+
+    private ResultSet resultSet(Result result, Execution exec)
+    {
+        int[] rowIx = { -1 };
+
+        ResultSetMetaData md = proxy(ResultSetMetaData.class, (p, m, args) -> {
+            switch ( m.getName() )
+            {
+                case "getColumnCount": return result.columnNames.size();
+                case "getColumnLabel": case "getColumnName": return result.columnNames.get((Integer)args[0] - 1);
+                case "getColumnType": return result.columnTypes.get((Integer)args[0] - 1);
+                default: return unsupported(m.getName());
+            }
+        });
+
+        return proxy(ResultSet.class, (p, m, args) -> {
+            switch ( m.getName() )
+            {
+                case "next":
+                    if ( rowIx[0] + 1 < result.rows.size() )
+                    {
+                        ++rowIx[0];
+                        exec.rowsFetched.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                case "getMetaData": return md;
+                case "close": exec.resultSetClosed = true; return null;
+                case "getObject": case "getString": return value(result, rowIx[0], args[0]);
+                case "getLong": { Object v = value(result, rowIx[0], args[0]); return v == null ? 0L : ((Number)v).longValue(); }
+                case "getInt": { Object v = value(result, rowIx[0], args[0]); return v == null ? 0 : ((Number)v).intValue(); }
+                case "getDouble": { Object v = value(result, rowIx[0], args[0]); return v == null ? 0d : ((Number)v).doubleValue(); }
+                case "getTimestamp":
+                {
+                    // Converts other values by their text, as drivers convert their own timestamp representations.
+                    Object v = value(result, rowIx[0], args[0]);
+                    return v == null || v instanceof Timestamp ? v : Timestamp.valueOf(v.toString());
+                }
+                case "getCharacterStream":
+                {
+                    String s = (String)value(result, rowIx[0], args[0]);
+                    return s == null ? null : reader(s);
+                }
+                case "getClob":
+                {
+                    String s = (String)value(result, rowIx[0], args[0]);
+                    return s == null ? null : clob(s);
+                }
+                case "getSQLXML":
+                {
+                    String s = (String)value(result, rowIx[0], args[0]);
+                    return s == null ? null : sqlXml(s);
+                }
+                default: return unsupported(m.getName());
+            }
+        });
+    }
+
+    private static Object value(Result result, int rowIx, Object col)
+    {
+        int colIx = col instanceof Integer ? (Integer)col - 1 : indexOfIgnoreCase(result.columnNames, (String)col);
+        return result.rows.get(rowIx)[colIx];
+    }
+
+    private static int indexOfIgnoreCase(List<String> names, String name)
+    {
+        for ( int i = 0; i < names.size(); ++i )
+            if ( names.get(i).equalsIgnoreCase(name) )
+                return i;
+        throw new IllegalArgumentException("No column " + name);
+    }
+
+    private Reader reader(String s)
+    {
+        return new StringReader(s)
+        {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws java.io.IOException
+            {
+                maxReadLength.accumulateAndGet(len, Math::max);
+                return super.read(cbuf, off, len);
+            }
+        };
+    }
+
+    private Clob clob(String s)
+    {
+        return proxy(Clob.class, (p, m, args) -> {
+            switch ( m.getName() )
+            {
+                case "getCharacterStream": return reader(s);
+                case "length": return (long)s.length();
+                case "getSubString": return s.substring((int)(long)(Long)args[0] - 1, (int)(long)(Long)args[0] - 1 + (Integer)args[1]);
+                case "free": lobsFreed.incrementAndGet(); return null;
+                default: return unsupported(m.getName());
+            }
+        });
+    }
+
+    private SQLXML sqlXml(String s)
+    {
+        return proxy(SQLXML.class, (p, m, args) -> {
+            switch ( m.getName() )
+            {
+                case "getCharacterStream": return reader(s);
+                case "getBinaryStream": return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8));
+                case "getString": return s;
+                case "free": lobsFreed.incrementAndGet(); return null;
+                default: return unsupported(m.getName());
+            }
+        });
+    }
+
+    private Array array(Object[] elements)
+    {
+        return proxy(Array.class, (p, m, args) -> {
+            switch ( m.getName() )
+            {
+                case "getArray": return elements;
+                case "free": return null;
+                default: return unsupported(m.getName());
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> iface, InvocationHandler handler)
+    {
+        return (T)Proxy.newProxyInstance(
+            FakeJdbc.class.getClassLoader(),
+            new Class<?>[]{ iface },
+            (p, m, args) -> {
+                if ( m.getDeclaringClass() == Object.class )
+                {
+                    switch ( m.getName() )
+                    {
+                        case "equals": return p == args[0];
+                        case "hashCode": return System.identityHashCode(p);
+                        default: return iface.getSimpleName() + "@fake";
+                    }
+                }
+                return handler.invoke(p, m, args);
+            }
+        );
+    }
+
+    private static Object unsupported(String methodName)
+    {
+        throw new UnsupportedOperationException("Fake JDBC object does not support " + methodName + ".");
+    }
+}
@@ -0,0 +1,82 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
+import freemarker.cache.ClassTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapper;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.util.Freemarker;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DatabaseXmlSchemaGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.TypedTableOutputSpecSourcesGenerator;
+
+
+/** Times creating a query generator, xml schema generator and typed table output spec sources generator for each of a
+ *  number of tenants, as a service creating generators per tenant database metadata would do. Generators share parsed
+ *  templates, so only the first tenant's generators parse them. For comparison, the time to configure FreeMarker and parse
+ *  the templates separately for each tenant, as each generator formerly did, is also shown.
+ *
+ *  Usage: GeneratorStartupBenchmark [tenants]
+ */
+public class GeneratorStartupBenchmark {
+
+    private static final String[] TEMPLATE_NAMES = {
+        "RowElementsQuery.ftl",
+        "RowCollectionElementQuery.ftl",
+        "RowForestQuery.ftl",
+        "XMLSchema.ftl",
+        "TypedTableOutputSpecJavaSource.ftl",
+        "AllTypedTableOutputSpecPrototypesJavaSource.ftl"
+    };
+
+    public static void main(String[] args) throws IOException
+    {
+        int tenants = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+        DBMD dbmd;
+        try ( InputStream dbmdXmlIs = new TestingResources().metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        long start = System.nanoTime();
+        createGenerators(dbmd);
+        long firstNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for ( int i = 1; i < tenants; ++i )
+            createGenerators(dbmd);
+        long restNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for ( int i = 0; i < tenants; ++i )
+            parseTemplatesUnshared();
+        long unsharedNanos = System.nanoTime() - start;
+
+        System.out.println(String.format("first tenant's generators:        %10.1f ms", firstNanos / 1e6));
+        System.out.println(String.format("%d further tenants' generators: %10.1f ms (%.1f us/tenant)", tenants - 1, restNanos / 1e6, restNanos / 1e3 / (tenants - 1)));
+        System.out.println(String.format("%d unshared template parses:    %10.1f ms (%.1f us/tenant)", tenants, unsharedNanos / 1e6, unsharedNanos / 1e3 / tenants));
+    }
+
+    private static void createGenerators(DBMD dbmd) throws IOException
+    {
+        QueryGenerator.builder(dbmd).build();
+        new DatabaseXmlSchemaGenerator(dbmd);
+        new TypedTableOutputSpecSourcesGenerator(dbmd, "gov.fda.nctr.xdagen.tests.generated", ChildCollectionsStyle.INLINE, Optional.empty());
+    }
+
+    private static void parseTemplatesUnshared() throws IOException
+    {
+        Configuration conf = new Configuration(Freemarker.compatibilityVersion);
+        conf.setTemplateLoader(new ClassTemplateLoader(GeneratorStartupBenchmark.class, Freemarker.CLASSPATH_TEMPLATES_DIR_PATH));
+        conf.setObjectWrapper(new DefaultObjectWrapper(Freemarker.compatibilityVersion));
+
+        for ( String templateName: TEMPLATE_NAMES )
+            conf.getTemplate(templateName);
+    }
+}
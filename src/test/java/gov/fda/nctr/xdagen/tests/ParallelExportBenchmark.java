@@ -0,0 +1,100 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.sql.DriverManager;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Properties;
+import javax.sql.DataSource;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.ParallelExporter;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+import gov.fda.nctr.xdagen.XdaExecutor;
+
+
+/** Measures the scaling of ParallelExporter over 1 to 16 workers, exporting the row collection element document of a
+ *  table with all of its child and parent tables. Connects to the test database described by testdbs/{db}_jdbc.props,
+ *  whose tables should be filled with enough rows to make the timings meaningful, opening a new connection for each
+ *  partition. Output is discarded.
+ *
+ *  Usage: ParallelExportBenchmark [db [table [iterations]]]
+ */
+public class ParallelExportBenchmark {
+
+    public static void main(String[] args) throws Exception
+    {
+        String db = args.length > 0 ? args[0] : "pg";
+        String table = args.length > 1 ? args[1] : "drug";
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        TestingResources res = new TestingResources();
+
+        DBMD dbmd;
+        try ( InputStream dbmdXmlIs = res.metadataResourceAsStream(db, "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        Properties p = QueriesIT.loadProperties(res.testdbsResPath(db, "jdbc.props"));
+        Class.forName(p.getProperty("jdbc-driver-class"));
+
+        QueryGenerator qryGen = QueryGenerator.builder(dbmd).cacheGeneratedSql(true).build();
+
+        TableOutputSpec ospec = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table(table).withAllChildTables().withAllParentTables();
+
+        XdaQuery qry = new XdaQuery(ospec, QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT, Optional.of("t"), Optional.empty());
+
+        ParallelExporter exporter = new ParallelExporter(new XdaExecutor(qryGen, driverManagerDataSource(p)), 1);
+
+        // Warm up.
+        exporter.writeXml(qry, Collections.emptyList(), NULL_OUTPUT);
+
+        PrintWriter out = new PrintWriter(System.out, true);
+        out.println(String.format("%s export of %s, %d iterations", db, table, iterations));
+
+        double serialSeconds = 0;
+        for ( int parallelism: new int[]{ 1, 2, 4, 8, 16 } )
+        {
+            ParallelExporter parExporter = exporter.withParallelism(parallelism);
+
+            long start = System.nanoTime();
+            long bytes = 0;
+            for ( int i = 0; i < iterations; ++i )
+                bytes += parExporter.writeXml(qry, Collections.emptyList(), NULL_OUTPUT);
+            double seconds = (System.nanoTime() - start) / 1e9 / iterations;
+
+            if ( parallelism == 1 )
+                serialSeconds = seconds;
+
+            out.println(String.format("workers %2d: %8.3f s  %8.1f MB/s  speedup %5.2f", parallelism, seconds, bytes / iterations / seconds / 1e6, serialSeconds / seconds));
+        }
+    }
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream()
+    {
+        @Override public void write(int b) {}
+        @Override public void write(byte[] b, int off, int len) {}
+    };
+
+    private static DataSource driverManagerDataSource(Properties p)
+    {
+        return (DataSource)Proxy.newProxyInstance(
+            ParallelExportBenchmark.class.getClassLoader(),
+            new Class<?>[]{ DataSource.class },
+            (proxy, m, margs) -> {
+                if ( m.getName().equals("getConnection") )
+                    return DriverManager.getConnection(p.getProperty("jdbc-connect-url"), p.getProperty("user"), p.getProperty("password"));
+                throw new UnsupportedOperationException(m.getName());
+            }
+        );
+    }
+}
@@ -0,0 +1,109 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Properties;
+import javax.sql.DataSource;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.PgCopyExporter;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+import gov.fda.nctr.xdagen.XdaExecutor;
+
+
+/** Compares the rows per second exported by the row elements query for a table with all of its child and parent tables,
+ *  through the JDBC result set path of XdaExecutor and through COPY TO STDOUT with PgCopyExporter. Connects to the
+ *  Postgres test database described by testdbs/pg_jdbc.props, whose tables should be filled with enough rows to make
+ *  the timings meaningful. Output is discarded.
+ *
+ *  Usage: PgCopyExportBenchmark [table [iterations]]
+ */
+public class PgCopyExportBenchmark {
+
+    public static void main(String[] args) throws Exception
+    {
+        String table = args.length > 0 ? args[0] : "drug";
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        TestingResources res = new TestingResources();
+
+        DBMD dbmd;
+        try ( InputStream dbmdXmlIs = res.metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        Properties p = QueriesIT.loadProperties(res.testdbsResPath("pg", "jdbc.props"));
+        Class.forName(p.getProperty("jdbc-driver-class"));
+
+        QueryGenerator qryGen = QueryGenerator.builder(dbmd).cacheGeneratedSql(true).build();
+
+        TableOutputSpec ospec = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table(table).withAllChildTables().withAllParentTables();
+
+        XdaQuery qry = new XdaQuery(ospec, QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("t"), Optional.empty());
+
+        try ( Connection conn = DriverManager.getConnection(p.getProperty("jdbc-connect-url"), p.getProperty("user"), p.getProperty("password")) )
+        {
+            // Only the methods taking a connection are used, so the executors have no use for a data source.
+            DataSource noDataSource = unusedDataSource();
+            XdaExecutor executor = new XdaExecutor(qryGen, noDataSource);
+            PgCopyExporter exporter = new PgCopyExporter(qryGen, noDataSource);
+
+            long rows;
+            try ( Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("select count(*) from " + ospec.getRelationId().getIdString()) )
+            {
+                rs.next();
+                rows = rs.getLong(1);
+            }
+
+            // Warm up both paths.
+            executor.writeXml(conn, qry, Collections.emptyList(), NULL_OUTPUT);
+            exporter.writeXml(conn, qry, Collections.emptyList(), NULL_OUTPUT);
+
+            long start = System.nanoTime();
+            long resultSetBytes = 0;
+            for ( int i = 0; i < iterations; ++i )
+                resultSetBytes += executor.writeXml(conn, qry, Collections.emptyList(), NULL_OUTPUT);
+            long resultSetNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long copyBytes = 0;
+            for ( int i = 0; i < iterations; ++i )
+                copyBytes += exporter.writeXml(conn, qry, Collections.emptyList(), NULL_OUTPUT);
+            long copyNanos = System.nanoTime() - start;
+
+            PrintWriter out = new PrintWriter(System.out, true);
+            out.println(String.format("%d rows of %s, %d iterations", rows, table, iterations));
+            out.println(String.format("result set: %12.0f rows/s  %8.1f MB/s", rows * iterations / (resultSetNanos / 1e9), resultSetBytes / (resultSetNanos / 1e3)));
+            out.println(String.format("copy:       %12.0f rows/s  %8.1f MB/s", rows * iterations / (copyNanos / 1e9), copyBytes / (copyNanos / 1e3)));
+        }
+    }
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream()
+    {
+        @Override public void write(int b) {}
+        @Override public void write(byte[] b, int off, int len) {}
+    };
+
+    private static DataSource unusedDataSource()
+    {
+        return (DataSource)Proxy.newProxyInstance(
+            PgCopyExportBenchmark.class.getClassLoader(),
+            new Class<?>[]{ DataSource.class },
+            (proxy, m, margs) -> { throw new UnsupportedOperationException(m.getName()); }
+        );
+    }
+}
@@ -30,11 +30,16 @@ import static gov.fda.nctr.util.Files.writeStringToFile;
 import static gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering.fields;
 import static gov.fda.nctr.xdagen.tests.TestingResources.readStreamAsString;
 import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildAggregationStrategy;
 import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.ParentLookupStrategy;
 import gov.fda.nctr.xdagen.QueryGenerator;
 import gov.fda.nctr.xdagen.QueryGenerator.XmlOutputColumnType;
 import gov.fda.nctr.xdagen.QueryGenerator.XmlIndentation;
+import gov.fda.nctr.xdagen.StrategyPlanner;
+import gov.fda.nctr.xdagen.SubqueryHoisting;
 import gov.fda.nctr.xdagen.TableOutputSpec;
+import gov.fda.nctr.xdagen.TableStatistics;
 
 
 public class QueriesIT  {
@@ -110,11 +115,12 @@ public class QueriesIT  {
 
         tosFactory = new DefaultTableOutputSpecFactory(dbmd, childCollectionsStyle,"http://nctr.fda.gov/xdagen");
 
-        qryGen = new QueryGenerator(dbmd, XmlOutputColumnType.LARGE_CHAR_TYPE);
-
-        qryGen.setSortUnsortedRowElementCollectionsByPrimaryKeys(true); // Sort each tables output by pk when no sort ordering is defined.
-
-        qryGen.setXmlIndentation(xmlIndentation);
+        qryGen =
+            QueryGenerator.builder(dbmd)
+            .defaultXmlOutputColumnType(XmlOutputColumnType.LARGE_CHAR_TYPE)
+            .sortUnsortedRowElementCollectionsByPrimaryKeys(true) // Sort each tables output by pk when no sort ordering is defined.
+            .xmlIndentation(xmlIndentation)
+            .build();
 
         this.drugTOS = tosFactory.table("drug").withAllChildTables().withAllParentTables();
     }
@@ -249,6 +255,123 @@ public class QueriesIT  {
         }
     }
 
+    @Test
+    public void testGroupedChildAggregationQueryResults() throws Exception
+    {
+        if ( onlyWriteExpectedData )
+            return; // expected data is written by the correlated subquery tests
+
+        QueryGenerator grouped_qry_gen = qryGen.withChildAggregationStrategy(ChildAggregationStrategy.GROUPED_JOINS);
+
+        String rowcoll_xml = getOneLargeTextResultAsString("ROWCOLL_XML", grouped_qry_gen.getRowCollectionElementQuery(drugTOS.orderedBy(fields("id")), null, null));
+
+        Diff listing_diff = new Diff(res.expectedResultAsString("drugs_listing_"+ xmlIndentation + ".xml"), rowcoll_xml);
+
+        assert listing_diff.similar() : "Row collection element query result with grouped child aggregation differed from expected value: " + listing_diff;
+
+        String row_xml = getOneLargeTextResultAsString("ROW_XML", grouped_qry_gen.getRowElementsQuery(drugTOS, "d", Optional.of("d.id = ?")), 2);
+
+        Diff row_diff = new Diff(res.expectedResultAsString("drug_2_rowxml_" + xmlIndentation + ".xml"), row_xml);
+
+        assert row_diff.similar() : "Row elements query result with grouped child aggregation differed from expected value: " + row_diff;
+    }
+
+    @Test
+    public void testJoinedParentLookupQueryResults() throws Exception
+    {
+        if ( onlyWriteExpectedData )
+            return; // expected data is written by the correlated subquery tests
+
+        QueryGenerator joined_qry_gen = qryGen.withParentLookupStrategy(ParentLookupStrategy.LEFT_JOINS);
+
+        String rowcoll_xml = getOneLargeTextResultAsString("ROWCOLL_XML", joined_qry_gen.getRowCollectionElementQuery(drugTOS.orderedBy(fields("id")), null, null));
+
+        Diff listing_diff = new Diff(res.expectedResultAsString("drugs_listing_"+ xmlIndentation + ".xml"), rowcoll_xml);
+
+        assert listing_diff.similar() : "Row collection element query result with joined parent lookups differed from expected value: " + listing_diff;
+
+        String row_xml = getOneLargeTextResultAsString("ROW_XML", joined_qry_gen.getRowElementsQuery(drugTOS, "d", Optional.of("d.id = ?")), 2);
+
+        Diff row_diff = new Diff(res.expectedResultAsString("drug_2_rowxml_" + xmlIndentation + ".xml"), row_xml);
+
+        assert row_diff.similar() : "Row elements query result with joined parent lookups differed from expected value: " + row_diff;
+    }
+
+    @Test
+    public void testLateralJoinsQueryResults() throws Exception
+    {
+        if ( onlyWriteExpectedData || !db.equals("pg") )
+            return; // expected data is written by the correlated subquery tests, and lateral joins are only for Postgres
+
+        QueryGenerator lateral_qry_gen =
+            qryGen
+            .withChildAggregationStrategy(ChildAggregationStrategy.LATERAL_JOINS)
+            .withParentLookupStrategy(ParentLookupStrategy.LATERAL_JOINS);
+
+        String rowcoll_xml = getOneLargeTextResultAsString("ROWCOLL_XML", lateral_qry_gen.getRowCollectionElementQuery(drugTOS.orderedBy(fields("id")), null, null));
+
+        Diff listing_diff = new Diff(res.expectedResultAsString("drugs_listing_"+ xmlIndentation + ".xml"), rowcoll_xml);
+
+        assert listing_diff.similar() : "Row collection element query result with lateral joins differed from expected value: " + listing_diff;
+
+        String row_xml = getOneLargeTextResultAsString("ROW_XML", lateral_qry_gen.getRowElementsQuery(drugTOS, "d", Optional.of("d.id = ?")), 2);
+
+        Diff row_diff = new Diff(res.expectedResultAsString("drug_2_rowxml_" + xmlIndentation + ".xml"), row_xml);
+
+        assert row_diff.similar() : "Row elements query result with lateral joins differed from expected value: " + row_diff;
+    }
+
+    @Test
+    public void testHoistedSubqueriesQueryResults() throws Exception
+    {
+        if ( onlyWriteExpectedData )
+            return;
+
+        // Drugs with the authorities of both their advisories' types and their functional categories, so the authority
+        // rows query is repeated.
+        TableOutputSpec ospec =
+            tosFactory.table("drug")
+            .withChild(tosFactory.table("advisory").withParent(tosFactory.table("advisory_type").withParent("authority")))
+            .withChild(tosFactory.table("drug_functional_category").withParent("authority"))
+            .orderedBy(fields("id"));
+
+        String expected_rowcoll_xml = getOneLargeTextResultAsString("ROWCOLL_XML", qryGen.getRowCollectionElementQuery(ospec, null, null));
+
+        for ( SubqueryHoisting hoisting: new SubqueryHoisting[]{ SubqueryHoisting.COMMON_TABLE_EXPRESSIONS, SubqueryHoisting.MATERIALIZED_COMMON_TABLE_EXPRESSIONS } )
+        {
+            for ( ParentLookupStrategy parentStrategy: new ParentLookupStrategy[]{ ParentLookupStrategy.CORRELATED_SUBQUERIES, ParentLookupStrategy.LEFT_JOINS } )
+            {
+                QueryGenerator hoisting_qry_gen = qryGen.withSubqueryHoisting(hoisting).withParentLookupStrategy(parentStrategy);
+
+                String rowcoll_xml = getOneLargeTextResultAsString("ROWCOLL_XML", hoisting_qry_gen.getRowCollectionElementQuery(ospec, null, null));
+
+                Diff listing_diff = new Diff(expected_rowcoll_xml, rowcoll_xml);
+
+                assert listing_diff.similar() : "Row collection element query result with " + hoisting + " and " + parentStrategy + " differed from that without hoisting: " + listing_diff;
+            }
+        }
+    }
+
+    @Test
+    public void testPlannedStrategiesQueryResults() throws Exception
+    {
+        if ( onlyWriteExpectedData )
+            return; // expected data is written by the correlated subquery tests
+
+        TableStatistics stats = TableStatistics.readFromDatabase(conn, dbmd);
+
+        StrategyPlanner planner = new StrategyPlanner(qryGen, stats);
+
+        for ( StrategyPlanner.Plan plan: new StrategyPlanner.Plan[]{ planner.plan(drugTOS.orderedBy(fields("id"))), planner.plan(drugTOS.orderedBy(fields("id")), 1) } )
+        {
+            String rowcoll_xml = getOneLargeTextResultAsString("ROWCOLL_XML", qryGen.getRowCollectionElementQuery(plan.getTableOutputSpec(), null, null));
+
+            Diff listing_diff = new Diff(res.expectedResultAsString("drugs_listing_"+ xmlIndentation + ".xml"), rowcoll_xml);
+
+            assert listing_diff.similar() : "Row collection element query result with planned strategies differed from expected value: " + listing_diff + "\n" + plan;
+        }
+    }
+
     @Test
     public void testReverseSortedRowCollectionElementQueryResult() throws Exception
     {
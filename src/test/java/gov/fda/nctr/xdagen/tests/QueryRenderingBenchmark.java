@@ -0,0 +1,90 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.RenderingEngine;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+
+
+/** Times rendering of the row elements query for functional category specifications nested through the self-referencing
+ *  foreign key to increasing depths, for each rendering engine. The template engine re-indents each rendered subquery at
+ *  every enclosing level, so its time and allocation grow quadratically with depth, whereas the direct emitter writes
+ *  each line once.
+ *
+ *  Usage: QueryRenderingBenchmark [max-depth [iterations]]
+ */
+public class QueryRenderingBenchmark {
+
+    public static void main(String[] args) throws IOException
+    {
+        int maxDepth = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        DBMD dbmd;
+        try ( InputStream dbmdXmlIs = new TestingResources().metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        TableOutputSpec.Factory tosFactory = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.WRAPPED, "http://nctr.fda.gov/xdagen");
+
+        System.out.println("engine                depth  sql chars   us/query  bytes alloc/query");
+
+        for ( RenderingEngine engine: RenderingEngine.values() )
+        {
+            QueryGenerator g = QueryGenerator.builder(dbmd).renderingEngine(engine).build();
+
+            for ( int depth = 1; depth <= maxDepth; ++depth )
+            {
+                TableOutputSpec ospec = nestedFunctionalCategorySpec(tosFactory, depth);
+
+                // Warm up.
+                for ( int i = 0; i < iterations / 4; ++i )
+                    g.getRowElementsQuery(ospec, "fc");
+
+                long allocBefore = currentThreadAllocatedBytes();
+                long start = System.nanoTime();
+
+                int sqlLength = 0;
+                for ( int i = 0; i < iterations; ++i )
+                    sqlLength = g.getRowElementsQuery(ospec, "fc").length();
+
+                long elapsedNanos = System.nanoTime() - start;
+                long allocated = currentThreadAllocatedBytes() - allocBefore;
+
+                System.out.println(String.format("%-20s  %5d  %9d  %9.1f  %17s",
+                    engine, depth, sqlLength,
+                    elapsedNanos / 1000.0 / iterations,
+                    allocBefore >= 0 ? String.valueOf(allocated / iterations) : "n/a"));
+            }
+        }
+    }
+
+    /// Functional category with its child functional categories, nested to the given depth.
+    private static TableOutputSpec nestedFunctionalCategorySpec(TableOutputSpec.Factory tosFactory, int depth)
+    {
+        TableOutputSpec ospec = tosFactory.table("functional_category");
+
+        for ( int i = 1; i < depth; ++i )
+            ospec = tosFactory.table("functional_category").withChild(ospec);
+
+        return ospec;
+    }
+
+    private static long currentThreadAllocatedBytes()
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+        if ( threadBean instanceof com.sun.management.ThreadMXBean )
+            return ((com.sun.management.ThreadMXBean)threadBean).getCurrentThreadAllocatedBytes();
+        else
+            return -1;
+    }
+}
@@ -0,0 +1,112 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Optional;
+import java.util.Properties;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildAggregationStrategy;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.ParentLookupStrategy;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+
+
+/** Compares the child aggregation and parent lookup strategies, timing the row elements query for a table with all of its
+ *  child and parent tables, both for the full listing of the table and for single rows selected by primary key, for
+ *  each combination of strategies supported by the database. Connects to the test database described by
+ *  testdbs/{db}_jdbc.props, whose tables should be filled with enough rows to make the timings meaningful, as by
+ *  testdbs/pg_scaleup.sql. The xml of each row is read and discarded.
+ *
+ *  Usage: QueryStrategyBenchmark [db [table [iterations [lookups]]]]
+ */
+public class QueryStrategyBenchmark {
+
+    public static void main(String[] args) throws Exception
+    {
+        String db = args.length > 0 ? args[0] : "pg";
+        String table = args.length > 1 ? args[1] : "drug";
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int lookups = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+        TestingResources res = new TestingResources();
+
+        DBMD dbmd;
+        try ( InputStream dbmdXmlIs = res.metadataResourceAsStream(db, "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        Properties p = QueriesIT.loadProperties(res.testdbsResPath(db, "jdbc.props"));
+        Class.forName(p.getProperty("jdbc-driver-class"));
+
+        TableOutputSpec ospec = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table(table).withAllChildTables().withAllParentTables();
+
+        String pkField = dbmd.getPrimaryKeyFieldNames(ospec.getRelationId()).get(0);
+
+        PrintWriter out = new PrintWriter(System.out, true);
+        out.println(String.format("%s row elements queries of %s, %d listing iterations, %d lookups", db, table, iterations, lookups));
+
+        try ( Connection conn = DriverManager.getConnection(p.getProperty("jdbc-connect-url"), p.getProperty("user"), p.getProperty("password")) )
+        {
+            conn.setAutoCommit(false); // for cursor based fetching of the listing
+
+            for ( ChildAggregationStrategy childStrategy: ChildAggregationStrategy.values() )
+            {
+                for ( ParentLookupStrategy parentStrategy: ParentLookupStrategy.values() )
+                {
+                    boolean lateral = childStrategy == ChildAggregationStrategy.LATERAL_JOINS || parentStrategy == ParentLookupStrategy.LATERAL_JOINS;
+                    if ( lateral && !db.equals("pg") )
+                        continue;
+
+                    QueryGenerator g = QueryGenerator.builder(dbmd).childAggregationStrategy(childStrategy).parentLookupStrategy(parentStrategy).build();
+
+                    String listingSql = g.getRowElementsQuery(ospec, "t");
+                    String lookupSql = g.getRowElementsQuery(ospec, "t", Optional.of("t." + pkField + " = ?"));
+
+                    readRows(conn, listingSql, null); // warm up
+
+                    long start = System.nanoTime();
+                    long chars = 0;
+                    for ( int i = 0; i < iterations; ++i )
+                        chars += readRows(conn, listingSql, null);
+                    double listingSeconds = (System.nanoTime() - start) / 1e9 / iterations;
+
+                    start = System.nanoTime();
+                    for ( int i = 1; i <= lookups; ++i )
+                        readRows(conn, lookupSql, i);
+                    double lookupMillis = (System.nanoTime() - start) / 1e6 / Math.max(lookups, 1);
+
+                    out.println(String.format("%-21s %-21s listing: %8.3f s  %8.1f MB/s   lookup: %8.3f ms", childStrategy, parentStrategy, listingSeconds, chars / iterations / listingSeconds / 1e6, lookupMillis));
+                }
+            }
+        }
+    }
+
+    // Returns the number of characters of row xml read.
+    private static long readRows(Connection conn, String sql, Integer key) throws Exception
+    {
+        long chars = 0;
+
+        try ( PreparedStatement stmt = conn.prepareStatement(sql) )
+        {
+            stmt.setFetchSize(100);
+            if ( key != null )
+                stmt.setObject(1, key);
+
+            try ( ResultSet rs = stmt.executeQuery() )
+            {
+                while ( rs.next() )
+                    chars += rs.getString("row_xml").length();
+            }
+        }
+
+        return chars;
+    }
+}
@@ -0,0 +1,174 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.IntStream;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.BatchDocumentService;
+import gov.fda.nctr.xdagen.BatchDocumentService.BatchRunReport;
+import gov.fda.nctr.xdagen.BatchDocumentService.Document;
+import gov.fda.nctr.xdagen.BatchDocumentService.DocumentSink;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+import gov.fda.nctr.xdagen.XdaExecutor;
+
+
+public class TestBatchDocuments {
+
+    QueryGenerator qryGen;
+
+    TableOutputSpec drugTOS;
+
+    @BeforeClass
+    protected void setUp() throws IOException
+    {
+        DBMD dbmd;
+        try ( InputStream dbmdXmlIs = new TestingResources().metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        qryGen = QueryGenerator.builder(dbmd).build();
+
+        drugTOS = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table("drug");
+    }
+
+    /// A database of drugs with any id not divisible by 10, returning the row element for the bound id.
+    private static FakeJdbc drugsDatabase()
+    {
+        return FakeJdbc.withResultsByExecution(exec -> {
+            int id = (Integer)exec.bindValues.get(1);
+            return id % 10 == 0 ? FakeJdbc.Result.xmlColumn(Types.VARCHAR) : FakeJdbc.Result.xmlColumn(Types.VARCHAR, drugXml(id));
+        });
+    }
+
+    private static String drugXml(int id)
+    {
+        return "<drug><id>" + id + "</id></drug>";
+    }
+
+    @Test
+    public void testDocumentPerKey() throws IOException
+    {
+        FakeJdbc jdbc = drugsDatabase();
+        LinkedBlockingQueue<Document> docs = new LinkedBlockingQueue<>();
+
+        BatchRunReport report =
+            new BatchDocumentService(new XdaExecutor(qryGen, jdbc.dataSource()), 4)
+            .run(drugTOS, IntStream.rangeClosed(1, 1000).mapToObj(Collections::singletonList), DocumentSink.toQueue(docs));
+
+        assert report.getDocuments() == 900 && report.getMissing() == 100 && report.getFailures() == 0 : "Unexpected report: " + report;
+        assert docs.size() == 900 : "Expected a document for each key with a row.";
+        for ( Document doc: docs )
+            assert doc.getXml().equals(drugXml((Integer)doc.getKey().get(0))) : "Unexpected document for key " + doc.getKey();
+
+        // Statements are prepared once per connection.
+        Set<FakeJdbc.Execution> statements = Collections.newSetFromMap(new IdentityHashMap<>());
+        statements.addAll(jdbc.executions);
+        assert jdbc.executions.size() == 1000 && statements.size() <= 4 : "Expected one statement per connection, got " + statements.size();
+        assert jdbc.connectionsOpened.get() == 4 && jdbc.connectionsClosed.get() == 4 : "Expected one connection per worker, all closed.";
+        assert statements.iterator().next().sql.contains("where\n  d.id = ?") : "Expected the row elements query by primary key.";
+
+        assert report.getLatencyPercentileNanos(0.5) <= report.getLatencyPercentileNanos(0.99)
+            && report.getLatencyPercentileNanos(0.99) <= report.getLatencyPercentileNanos(1) : "Expected ordered latency percentiles.";
+        assert report.getThroughput() > 0 : "Expected positive throughput.";
+    }
+
+    @Test
+    public void testSinkFailuresCounted() throws IOException
+    {
+        DocumentSink failingSink = (key, xml) -> {
+            if ( (Integer)key.get(0) % 7 == 0 )
+                throw new IOException("disk full");
+        };
+
+        BatchRunReport report =
+            new BatchDocumentService(new XdaExecutor(qryGen, drugsDatabase().dataSource()), 3)
+            .run(drugTOS, IntStream.rangeClosed(1, 70).mapToObj(Collections::singletonList), failingSink);
+
+        // 7 of the 70 keys are missing, and 10 are multiples of 7, of which 1 (70) is also missing.
+        assert report.getMissing() == 7 && report.getFailures() == 9 && report.getDocuments() == 54 : "Unexpected report: " + report;
+        assert report.getFirstFailure().isPresent() : "Expected the first failure to be reported.";
+    }
+
+    @Test
+    public void testKeysOfWorkerWithoutConnectionFetchedByOthers() throws IOException
+    {
+        FakeJdbc jdbc = drugsDatabase();
+        jdbc.connectionFailures.set(1);
+        LinkedBlockingQueue<Document> docs = new LinkedBlockingQueue<>();
+
+        BatchRunReport report =
+            new BatchDocumentService(new XdaExecutor(qryGen, jdbc.dataSource()), 4)
+            .run(drugTOS, IntStream.rangeClosed(1, 1000).mapToObj(Collections::singletonList), DocumentSink.toQueue(docs));
+
+        assert report.getDocuments() == 900 && report.getMissing() == 100 && report.getFailures() == 0 : "Unexpected report: " + report;
+        assert report.getFailedWorkers() == 1 && report.getFirstFailure().isPresent() : "Expected the worker without a connection to be reported: " + report;
+        assert docs.size() == 900 && jdbc.executions.size() == 1000 : "Expected every key to be fetched by the other workers.";
+        assert jdbc.connectionsOpened.get() == 3 && jdbc.connectionsClosed.get() == 3 : "Expected the connections of the other workers to be closed.";
+    }
+
+    @Test
+    public void testKeysFailedWithoutAnyConnection() throws IOException
+    {
+        FakeJdbc jdbc = drugsDatabase();
+        jdbc.connectionFailures.set(2);
+
+        // More keys than the queue holds, which must not leave the run waiting for workers.
+        BatchRunReport report =
+            new BatchDocumentService(new XdaExecutor(qryGen, jdbc.dataSource()), 2)
+            .run(drugTOS, IntStream.rangeClosed(1, 1000).mapToObj(Collections::singletonList), (key, xml) -> {});
+
+        assert report.getDocuments() == 0 && report.getFailures() == 1000 && report.getFailedWorkers() == 2 : "Unexpected report: " + report;
+        assert jdbc.executions.isEmpty() : "Expected no executions without connections.";
+    }
+
+    @Test
+    public void testFileAndStreamSinks() throws IOException
+    {
+        Path dir = Files.createTempDirectory("xdagen-batch");
+        try
+        {
+            new BatchDocumentService(new XdaExecutor(qryGen, drugsDatabase().dataSource()), 2)
+            .run(drugTOS, IntStream.rangeClosed(1, 5).mapToObj(Collections::singletonList), DocumentSink.toDirectory(dir, key -> "drug-" + key.get(0) + ".xml"));
+
+            for ( int id = 1; id <= 5; ++id )
+                assert new String(Files.readAllBytes(dir.resolve("drug-" + id + ".xml")), StandardCharsets.UTF_8).equals(drugXml(id)) : "Unexpected file for drug " + id + ".";
+        }
+        finally
+        {
+            List<Path> files = new ArrayList<>();
+            Files.list(dir).forEach(files::add);
+            for ( Path f: files )
+                Files.delete(f);
+            Files.delete(dir);
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new BatchDocumentService(new XdaExecutor(qryGen, drugsDatabase().dataSource()), 2)
+        .run(drugTOS, IntStream.rangeClosed(1, 5).mapToObj(Collections::singletonList), DocumentSink.toOutputStream(os));
+
+        Set<String> lines = new HashSet<>();
+        for ( String line: new String(os.toByteArray(), StandardCharsets.UTF_8).split("\n") )
+            lines.add(line);
+        assert lines.size() == 5 && lines.contains(drugXml(3)) : "Expected a line for each document: " + lines;
+    }
+}
@@ -0,0 +1,142 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering.fields;
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildAggregationStrategy;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.RenderingEngine;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+
+
+/** Checks the SQL generated for grouped child aggregation. Equivalence of the xml produced with that of correlated
+ *  subqueries is checked against the test databases in QueriesIT. */
+public class TestChildAggregation {
+
+    TestingResources res = new TestingResources();
+
+    @DataProvider(name = "dbsAndStyles")
+    public Object[][] dbsAndStyles()
+    {
+        List<Object[]> l = new ArrayList<>();
+
+        for ( String db: new String[]{ "pg", "ora" } )
+            for ( ChildCollectionsStyle style: ChildCollectionsStyle.values() )
+                l.add(new Object[]{ db, style });
+
+        return l.toArray(new Object[0][]);
+    }
+
+    @Test(dataProvider = "dbsAndStyles")
+    public void testGroupedJoinsQueryShape(String db, ChildCollectionsStyle style) throws IOException
+    {
+        QueryGenerator g = res.makeQueryGenerator(db).withChildAggregationStrategy(ChildAggregationStrategy.GROUPED_JOINS);
+
+        // Oracle field names are upper case.
+        String sql = g.getRowElementsQuery(drugOutputSpec(db, style), "d", Optional.of("d.id = ?")).toLowerCase();
+
+        assert !sql.contains("-- child subquery") : "Expected no correlated child subqueries:\n" + sql;
+        assert sql.contains("\nleft join\n ( select b_row.drug_id, xmlagg(b_row.row_xml order by b_row.drug_id,b_row.brand_name) coll_xml\n")
+            : "Expected the brand collections to be aggregated in a derived table:\n" + sql;
+        assert sql.contains("\n   group by b_row.drug_id\n ) b_coll\n  on b_coll.drug_id = d.id\n")
+            : "Expected the brand collections to be grouped by and joined on the foreign key:\n" + sql;
+
+        String collColumn = style == ChildCollectionsStyle.INLINE ? "   ,b_coll.coll_xml" : "   ,xmlelement(name \"brand-listing\", b_coll.coll_xml)";
+        assert sql.contains(collColumn + " -- grouped child collection\n") : "Expected the joined brand collection in the row element:\n" + sql;
+
+        assert sql.indexOf("\nwhere\n  d.id = ?\norder by d.id") > sql.lastIndexOf("left join") : "Expected the filter condition to follow the joins.";
+    }
+
+    @Test(dataProvider = "dbsAndStyles")
+    public void testRenderingEnginesAgree(String db, ChildCollectionsStyle style) throws IOException
+    {
+        QueryGenerator directGen = res.makeQueryGenerator(db).withChildAggregationStrategy(ChildAggregationStrategy.GROUPED_JOINS);
+        QueryGenerator templatesGen = directGen.withRenderingEngine(RenderingEngine.FREEMARKER_TEMPLATES);
+
+        TableOutputSpec ospec = drugOutputSpec(db, style).orderedBy(fields("name desc", "id"));
+
+        assert templatesGen.getRowElementsQuery(ospec, "d", Optional.of("d.id >= 1 and d.id <= 5"))
+               .equals(directGen.getRowElementsQuery(ospec, "d", Optional.of("d.id >= 1 and d.id <= 5")))
+            : "Rendering engines differ for grouped row elements query.";
+
+        assert templatesGen.getRowCollectionElementQuery(ospec, Optional.of("dr"), Optional.of("dr.id > 1"))
+               .equals(directGen.getRowCollectionElementQuery(ospec, Optional.of("dr"), Optional.of("dr.id > 1")))
+            : "Rendering engines differ for grouped row collection element query.";
+
+        assert templatesGen.getRowCollectionMemberBatchesQuery(ospec, Optional.of("dr"), Optional.empty())
+               .equals(directGen.getRowCollectionMemberBatchesQuery(ospec, Optional.of("dr"), Optional.empty()))
+            : "Rendering engines differ for grouped row collection member batches query.";
+    }
+
+    @Test
+    public void testCachedSqlMatchesUncached() throws IOException
+    {
+        QueryGenerator g = res.makeQueryGenerator("pg").withChildAggregationStrategy(ChildAggregationStrategy.GROUPED_JOINS);
+        QueryGenerator cachingGen = g.withCacheGeneratedSql(true);
+
+        TableOutputSpec ospec = drugOutputSpec("pg", ChildCollectionsStyle.WRAPPED);
+
+        // The last alias is that of a joined collection when the table alias differs, so cannot be spliced into the plan.
+        for ( String alias: new String[]{ "d", "x", "d", "b_coll" } )
+        {
+            String sql = cachingGen.getRowElementsQuery(ospec, alias, Optional.of(alias + ".id = ?"));
+
+            assert sql.equals(g.getRowElementsQuery(ospec, alias, Optional.of(alias + ".id = ?"))) : "Cached SQL differs for table alias " + alias + ".";
+        }
+
+        assert cachingGen.getRowElementsQuery(ospec, "b_coll").contains(") b_coll1\n  on b_coll1.drug_id = b_coll.id")
+            : "Expected the joined collection alias to be distinct from the table alias.";
+    }
+
+    @Test
+    public void testSpecificationOverridesGeneratorStrategy() throws IOException
+    {
+        QueryGenerator correlatedGen = res.makeQueryGenerator("pg");
+        QueryGenerator groupedGen = correlatedGen.withChildAggregationStrategy(ChildAggregationStrategy.GROUPED_JOINS);
+
+        TableOutputSpec ospec = drugOutputSpec("pg", ChildCollectionsStyle.INLINE);
+        TableOutputSpec groupedOspec = ospec.withChildAggregationStrategy(ChildAggregationStrategy.GROUPED_JOINS);
+        TableOutputSpec correlatedOspec = ospec.withChildAggregationStrategy(ChildAggregationStrategy.CORRELATED_SUBQUERIES);
+
+        assert correlatedGen.getRowElementsQuery(groupedOspec, "d").equals(groupedGen.getRowElementsQuery(ospec, "d"))
+            : "Expected the specification's grouped strategy to override the generator's.";
+        assert groupedGen.getRowElementsQuery(correlatedOspec, "d").equals(correlatedGen.getRowElementsQuery(ospec, "d"))
+            : "Expected the specification's correlated strategy to override the generator's.";
+
+        assert !groupedOspec.getFingerprint().equals(ospec.getFingerprint()) && !groupedOspec.getFingerprint().equals(correlatedOspec.getFingerprint())
+            : "Expected the strategy override to contribute to the fingerprint.";
+        assert !ospec.getChildAggregationStrategy().isPresent() : "Expected no strategy override by default.";
+    }
+
+    @Test
+    public void testChildStrategyAppliesToItsOwnChildren() throws IOException
+    {
+        DBMD dbmd = res.loadDbmd("pg");
+        TableOutputSpec.Factory tosFactory = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen");
+
+        // Compounds with their drugs grouped, whose own brands are aggregated by correlated subqueries.
+        TableOutputSpec compoundOspec =
+            tosFactory.table("compound")
+            .withChild(tosFactory.table("drug").withChild("brand"))
+            .withChildAggregationStrategy(ChildAggregationStrategy.GROUPED_JOINS);
+
+        String sql = res.makeQueryGenerator("pg").getRowElementsQuery(compoundOspec, "c");
+
+        assert sql.contains(") d_coll\n  on d_coll.compound_id = c.id") : "Expected the drugs to be joined to the compounds:\n" + sql;
+        assert sql.contains("b_row.drug_id = d.id") && sql.contains("-- child subquery") : "Expected a correlated subquery for the brands of each drug:\n" + sql;
+    }
+
+    private TableOutputSpec drugOutputSpec(String db, ChildCollectionsStyle style) throws IOException
+    {
+        return new DefaultTableOutputSpecFactory(res.loadDbmd(db), style, "http://nctr.fda.gov/xdagen").table("drug").withAllChildTables().withAllParentTables();
+    }
+}
@@ -0,0 +1,116 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering.fields;
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.util.Fingerprint;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+import gov.fda.nctr.xdagen.TableOutputSpec.OrderItem;
+import gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering;
+
+
+public class TestFingerprints {
+
+    DBMD dbmd;
+
+    TableOutputSpec.Factory tosFactory;
+
+    @BeforeClass
+    protected void setUp() throws IOException
+    {
+        TestingResources res = new TestingResources();
+
+        try ( InputStream dbmdXmlIs = res.metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        tosFactory = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen");
+    }
+
+    @Test
+    public void testStableEncoding()
+    {
+        // Fingerprints must not vary between JVMs or runs, as they may be stored or shared between nodes.
+        Fingerprint fp = Fingerprint.builder("test").add("drug").add(42).add(true).build();
+
+        assert fp.toHexString().equals("c7edf6ac48ea8229af4acd3b3f0dfc20") : "Fingerprint encoding has changed: " + fp;
+        assert Fingerprint.fromHexString(fp.toHexString()).equals(fp) : "Fingerprint does not round trip through hex string.";
+
+        assert !Fingerprint.builder("test").add("ab").add("c").build().equals(Fingerprint.builder("test").add("a").add("bc").build())
+            : "String boundaries should contribute to fingerprints.";
+    }
+
+    @Test
+    public void testStructurallyEqualSpecs()
+    {
+        TableOutputSpec tos1 = tosFactory.table("drug").withAllChildTables().withAllParentTables().orderedBy(fields("id"));
+        TableOutputSpec tos2 = tosFactory.table("drug").withAllChildTables().withAllParentTables().orderedBy(fields("id"));
+
+        assert tos1 != tos2 && tos1.getFingerprint().equals(tos2.getFingerprint()) : "Separately built equal specs should have equal fingerprints.";
+        assert tos1.equals(tos2) && tos1.hashCode() == tos2.hashCode() : "Separately built equal specs should be equal.";
+
+        assert !tos1.equals(tos2.orderedBy(fields("name"))) : "Specs with different orderings should differ.";
+        assert !tos1.equals(tos2.withoutFields("name")) : "Specs with different fields should differ.";
+    }
+
+    @Test
+    public void testOrderingFieldsAndExpressionsDistinguished() throws IOException
+    {
+        // The field item renders the same as the expression item for the table alias "t".
+        TableOutputSpec byField = tosFactory.table("drug").orderedBy(fields("id"));
+        TableOutputSpec byExpression = tosFactory.table("drug").orderedBy(RowOrdering.of(OrderItem.expression("t.id")));
+
+        assert !byField.getFingerprint().equals(byExpression.getFingerprint()) && !byField.equals(byExpression)
+            : "Field and expression order items should be distinguished.";
+
+        QueryGenerator cachingGen = QueryGenerator.builder(dbmd).cacheGeneratedSql(true).build();
+
+        cachingGen.getRowElementsQuery(byField, "x");
+        String sql = cachingGen.getRowElementsQuery(byExpression, "x");
+
+        assert sql.contains("order by t.id") && !sql.contains("order by x.id")
+            : "Expected the expression ordering rather than the cached field ordering:\n" + sql;
+    }
+
+    @Test
+    public void testChildAndParentPositionsDistinguished()
+    {
+        // Functional categories reference their parent categories, so the same table and foreign key can be included as
+        // either a child or a parent.
+        TableOutputSpec fcWithChild = tosFactory.table("functional_category").withChild("functional_category");
+        TableOutputSpec fcWithParent = tosFactory.table("functional_category").withParent("functional_category");
+
+        assert !fcWithChild.getFingerprint().equals(fcWithParent.getFingerprint()) : "Child and parent inclusions should be distinguished.";
+
+        // Nested specs contribute to their ancestors' fingerprints.
+        TableOutputSpec nested1 = tosFactory.table("drug").withChild(tosFactory.table("drug_functional_category").withParent("functional_category"));
+        TableOutputSpec nested2 = tosFactory.table("drug").withChild(tosFactory.table("drug_functional_category").withParent(fcWithParent));
+
+        assert !nested1.equals(nested2) : "Specs differing only in a nested spec should differ.";
+    }
+
+    @Test
+    public void testQueryFingerprints()
+    {
+        TableOutputSpec tos = tosFactory.table("drug").withAllChildTables();
+
+        XdaQuery q1 = new XdaQuery(tos, Optional.of("a"), Optional.of("b.id = 1"));
+        XdaQuery q2 = new XdaQuery(tos, Optional.of("a"), Optional.of("b.id = 1"));
+        XdaQuery swapped = new XdaQuery(tos, Optional.of("b"), Optional.of("a.id = 1"));
+
+        assert q1.getFingerprint().equals(q2.getFingerprint()) && q1.equals(q2) : "Equal queries should have equal fingerprints.";
+        assert !q1.equals(swapped) : "Queries with swapped aliases should differ.";
+        assert !q1.getFingerprint().equals(tos.getFingerprint()) : "Query fingerprint should differ from its spec's.";
+    }
+}
@@ -0,0 +1,274 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.KeysetPageQuery;
+import gov.fda.nctr.xdagen.KeysetPageToken;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+import gov.fda.nctr.xdagen.TableOutputSpec.OrderItem;
+import gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering;
+import gov.fda.nctr.xdagen.XdaExecutor;
+
+
+public class TestKeysetPagination {
+
+    TestingResources res = new TestingResources();
+
+    QueryGenerator pgGen;
+
+    QueryGenerator oraGen;
+
+    TableOutputSpec pgDrugTOS;
+
+    TableOutputSpec oraDrugTOS;
+
+    @BeforeClass
+    protected void setUp() throws IOException
+    {
+        DBMD pgDbmd = res.loadDbmd("pg");
+        DBMD oraDbmd = res.loadDbmd("ora");
+
+        pgGen = QueryGenerator.builder(pgDbmd).build();
+        oraGen = QueryGenerator.builder(oraDbmd).build();
+
+        pgDrugTOS = new DefaultTableOutputSpecFactory(pgDbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table("drug");
+        oraDrugTOS = new DefaultTableOutputSpecFactory(oraDbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table("drug");
+    }
+
+    @Test
+    public void testPrimaryKeyPageQueryText()
+    {
+        XdaQuery qry = new XdaQuery(pgDrugTOS, QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("d"), Optional.of("d.id > ?"));
+
+        KeysetPageQuery firstPage = pgGen.getKeysetPageQuery(qry, 50, false);
+        KeysetPageQuery nextPage = pgGen.getKeysetPageQuery(qry, 50, true);
+
+        assert firstPage.getKeysetFieldNames().equals(Collections.singletonList("id")) : "Expected the primary key as keyset.";
+        assert firstPage.getSql().startsWith("select d.id, xmlserialize(content d.row_xml as text) row_xml\nfrom\n ( ") : "Unexpected select clause:\n" + firstPage.getSql();
+        assert firstPage.getSql().endsWith("\nwhere\n  d.id > ?\norder by d.id\nfetch first 50 rows only") : "Unexpected first page query:\n" + firstPage.getSql();
+        assert nextPage.getSql().endsWith("\nwhere\n  (d.id > ?)\n  and ((d.id) > (?))\norder by d.id\nfetch first 50 rows only") : "Unexpected next page query:\n" + nextPage.getSql();
+
+        assert firstPage.getSeekBindValues(Collections.singletonList(7)).isEmpty() : "Expected no seek binds for the first page.";
+        assert nextPage.getSeekBindValues(Collections.singletonList(7)).equals(Collections.singletonList(7)) : "Expected the last key as seek bind.";
+    }
+
+    @Test
+    public void testMixedDirectionsExpandSeekPredicate()
+    {
+        XdaQuery qry = new XdaQuery(pgDrugTOS.orderedBy(RowOrdering.fields("name desc")), QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("d"), Optional.empty());
+
+        KeysetPageQuery page = pgGen.getKeysetPageQuery(qry, 10, true);
+
+        assert page.getKeysetFieldNames().equals(Arrays.asList("name", "id")) : "Expected the primary key to follow the ordering fields in the keyset.";
+        assert page.getSql().endsWith("\nwhere\n  ((d.name < ?)\n   or (d.name = ? and d.id > ?))\norder by d.name desc,d.id\nfetch first 10 rows only")
+            : "Unexpected page query:\n" + page.getSql();
+        assert page.getSeekBindValues(Arrays.asList("b", 4)).equals(Arrays.asList("b", "b", 4)) : "Unexpected seek binds for the expanded predicate.";
+    }
+
+    @Test
+    public void testOracleExpandsSeekPredicate()
+    {
+        XdaQuery qry = new XdaQuery(oraDrugTOS, QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT, Optional.empty(), Optional.empty());
+
+        String sql = oraGen.getKeysetPageQuery(qry, 20, true).getSql().toLowerCase();
+
+        assert sql.endsWith("\nwhere\n  ((d_row.id > ?))\norder by d_row.id\nfetch first 20 rows only") : "Unexpected Oracle page query:\n" + sql;
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNullableKeysetFieldRejected()
+    {
+        pgGen.getKeysetPageQuery(new XdaQuery(pgDrugTOS.orderedBy(RowOrdering.fields("mesh_id")), Optional.of("d"), Optional.empty()), 10, false);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testExpressionOrderingRejected()
+    {
+        pgGen.getKeysetPageQuery(new XdaQuery(pgDrugTOS.orderedBy(RowOrdering.of(OrderItem.expression("lower(name)"))), Optional.of("d"), Optional.empty()), 10, false);
+    }
+
+    @Test
+    public void testPagesContinueFromLastKey() throws SQLException, IOException
+    {
+        Map<Integer,String> rowXmls = new HashMap<>();
+        for ( int id = 1; id <= 3; ++id )
+            rowXmls.put(id, "<drug xmlns=\"http://nctr.fda.gov/xdagen\"><id>" + id + "</id></drug>");
+
+        // Each execution returns the two rows following the bound key, or starting from the first.
+        FakeJdbc[] jdbc = new FakeJdbc[1];
+        jdbc[0] =
+            new FakeJdbc(sql -> {
+                FakeJdbc.Execution exec = jdbc[0].executions.get(jdbc[0].executions.size() - 1);
+                int after = exec.bindValues.containsKey(1) ? (Integer)exec.bindValues.get(1) : 0;
+                List<Object[]> rows = new ArrayList<>();
+                for ( int id = after + 1; id <= Math.min(after + 2, 3); ++id )
+                    rows.add(new Object[]{ id, rowXmls.get(id) });
+                return new FakeJdbc.Result(Arrays.asList("id", "row_xml"), Arrays.asList(Types.INTEGER, Types.VARCHAR), rows);
+            });
+
+        XdaExecutor executor = new XdaExecutor(pgGen, jdbc[0].dataSource());
+        XdaQuery qry = new XdaQuery(pgDrugTOS, QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("d"), Optional.empty());
+
+        StringWriter page1 = new StringWriter();
+        Optional<String> token1 = executor.writeXmlPage(qry, Collections.emptyList(), 2, Optional.empty(), page1);
+
+        assert page1.toString().equals(rowXmls.get(1) + rowXmls.get(2)) : "Unexpected first page: " + page1;
+        assert token1.isPresent() && KeysetPageToken.decode(token1.get()).getKeysetValues().equals(Collections.singletonList(2)) : "Expected a token for the last key of the full page.";
+
+        StringWriter page2 = new StringWriter();
+        Optional<String> token2 = executor.writeXmlPage(qry, Collections.emptyList(), 2, token1, page2);
+
+        assert page2.toString().equals(rowXmls.get(3)) : "Unexpected second page: " + page2;
+        assert !token2.isPresent() : "Expected no token after a partial page.";
+        assert jdbc[0].executions.get(1).bindValues.equals(Collections.singletonMap(1, 2)) : "Expected the last key of the first page as seek bind.";
+        assert jdbc[0].executions.get(1).sql.equals(pgGen.getKeysetPageQuery(qry, 2, true).getSql()) : "Expected the seeking page query for the second page.";
+    }
+
+    @Test
+    public void testCollectionPageWrapped() throws SQLException, IOException
+    {
+        FakeJdbc jdbc = new FakeJdbc(sql -> new FakeJdbc.Result(Arrays.asList("id", "row_xml"), Arrays.asList(Types.INTEGER, Types.VARCHAR), Collections.singletonList(new Object[]{ 1, "<drug/>" })));
+
+        XdaQuery qry = new XdaQuery(pgDrugTOS, QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT, Optional.empty(), Optional.empty());
+
+        StringWriter w = new StringWriter();
+        Optional<String> token = new XdaExecutor(pgGen, jdbc.dataSource()).writeXmlPage(qry, Collections.emptyList(), 1, Optional.empty(), w);
+
+        assert w.toString().equals("<" + pgDrugTOS.getRowCollectionElementName() + " xmlns=\"http://nctr.fda.gov/xdagen\"><drug/></" + pgDrugTOS.getRowCollectionElementName() + ">")
+            : "Unexpected collection page: " + w;
+        assert token.isPresent() : "Expected a token for a full page.";
+    }
+
+    @Test
+    public void testTokenRoundTrip()
+    {
+        KeysetPageToken token =
+            new KeysetPageToken(
+                Arrays.asList("name", "id", "created", "uid"),
+                Arrays.asList("O'Brien \u00c4", 12L, Timestamp.valueOf("2017-03-04 05:06:07.5"), UUID.fromString("4b1c0bd6-63f2-4ac6-a5a2-25c3c8d5e4f1"))
+            );
+
+        assert KeysetPageToken.decode(token.encode()).equals(token) : "Expected the decoded token to equal the original.";
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTamperedTokenRejected()
+    {
+        String encoded = new KeysetPageToken(Collections.singletonList("id"), Collections.singletonList(5)).encode();
+
+        KeysetPageToken.decode(encoded.substring(0, encoded.length() - 2));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTokenForOtherKeysetRejected() throws SQLException, IOException
+    {
+        FakeJdbc jdbc = new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.VARCHAR));
+
+        String token = new KeysetPageToken(Collections.singletonList("name"), Collections.singletonList("a")).encode();
+
+        XdaQuery qry = new XdaQuery(pgDrugTOS, QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("d"), Optional.empty());
+
+        new XdaExecutor(pgGen, jdbc.dataSource()).writeXmlPage(qry, Collections.emptyList(), 10, Optional.of(token), new StringWriter());
+    }
+
+    @Test
+    public void testUnsupportedKeysetFieldTypeRejectedBeforeExecution() throws IOException, SQLException
+    {
+        QueryGenerator g = QueryGenerator.builder(loadDbmdWithCompoundIdType("bytea", Types.BINARY)).build();
+        FakeJdbc jdbc = new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.VARCHAR, "<drug/>"));
+
+        XdaQuery qry = new XdaQuery(drugOutputSpec(g).orderedBy(RowOrdering.fields("compound_id")), QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("d"), Optional.empty());
+
+        StringWriter w = new StringWriter();
+        try
+        {
+            new XdaExecutor(g, jdbc.dataSource()).writeXmlPage(qry, Collections.emptyList(), 1, Optional.empty(), w);
+            assert false : "Expected a keyset field whose values cannot be written to page tokens to be rejected.";
+        }
+        catch(IllegalArgumentException e)
+        {
+            assert e.getMessage().contains("compound_id") : "Unexpected message: " + e.getMessage();
+        }
+
+        assert jdbc.executions.isEmpty() && w.toString().isEmpty() : "Expected nothing to be executed or written.";
+    }
+
+    @Test
+    public void testUuidKeysetValues() throws IOException, SQLException
+    {
+        QueryGenerator g = QueryGenerator.builder(loadDbmdWithCompoundIdType("uuid", Types.OTHER)).build();
+        UUID compoundId = UUID.fromString("4b1c0bd6-63f2-4ac6-a5a2-25c3c8d5e4f1");
+
+        FakeJdbc jdbc = new FakeJdbc(sql -> new FakeJdbc.Result(Arrays.asList("compound_id", "id", "row_xml"), Arrays.asList(Types.OTHER, Types.INTEGER, Types.VARCHAR), Collections.singletonList(new Object[]{ compoundId, 1, "<drug/>" })));
+        XdaExecutor executor = new XdaExecutor(g, jdbc.dataSource());
+
+        XdaQuery qry = new XdaQuery(drugOutputSpec(g).orderedBy(RowOrdering.fields("compound_id")), QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("d"), Optional.empty());
+
+        Optional<String> token = executor.writeXmlPage(qry, Collections.emptyList(), 1, Optional.empty(), new StringWriter());
+
+        assert token.isPresent() && KeysetPageToken.decode(token.get()).getKeysetValues().equals(Arrays.asList(compoundId, 1)) : "Expected the UUID keyset value in the token.";
+
+        executor.writeXmlPage(qry, Collections.emptyList(), 1, token, new StringWriter());
+
+        assert jdbc.executions.get(1).bindValues.get(1).equals(compoundId) : "Expected the UUID keyset value as seek bind.";
+    }
+
+    @Test
+    public void testTimestampKeysetValuesReadAsTimestamps() throws IOException, SQLException
+    {
+        QueryGenerator g = QueryGenerator.builder(loadDbmdWithCompoundIdType("timestamp", Types.TIMESTAMP)).build();
+
+        // A driver's own timestamp representation, as Oracle's oracle.sql.TIMESTAMP, which tokens cannot encode.
+        Object driverTimestamp = new Object() {
+            @Override
+            public String toString() { return "2017-03-04 05:06:07.5"; }
+        };
+
+        FakeJdbc jdbc = new FakeJdbc(sql -> new FakeJdbc.Result(Arrays.asList("compound_id", "id", "row_xml"), Arrays.asList(Types.TIMESTAMP, Types.INTEGER, Types.VARCHAR), Collections.singletonList(new Object[]{ driverTimestamp, 1, "<drug/>" })));
+
+        XdaQuery qry = new XdaQuery(drugOutputSpec(g).orderedBy(RowOrdering.fields("compound_id")), QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("d"), Optional.empty());
+
+        Optional<String> token = new XdaExecutor(g, jdbc.dataSource()).writeXmlPage(qry, Collections.emptyList(), 1, Optional.empty(), new StringWriter());
+
+        assert token.isPresent() && KeysetPageToken.decode(token.get()).getKeysetValues().equals(Arrays.asList(Timestamp.valueOf("2017-03-04 05:06:07.5"), 1))
+            : "Expected the timestamp keyset value to be read as a java.sql.Timestamp.";
+    }
+
+    private TableOutputSpec drugOutputSpec(QueryGenerator g)
+    {
+        return new DefaultTableOutputSpecFactory(g.getDatabaseMetaData(), ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table("drug");
+    }
+
+    // The Postgres metadata with the non-nullable compound_id field of the drug table of the passed type.
+    private DBMD loadDbmdWithCompoundIdType(String databaseType, int jdbcType) throws IOException
+    {
+        String dbmdXml =
+            TestingResources.resourceAsString(res.metadataResourcePath("pg", "dbmd.xml"))
+            .replace("db-type-name=\"int4\" jdbc-type-code=\"4\" name=\"compound_id\"", "db-type-name=\"" + databaseType + "\" jdbc-type-code=\"" + jdbcType + "\" name=\"compound_id\"");
+
+        return DBMD.readXML(new ByteArrayInputStream(dbmdXml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
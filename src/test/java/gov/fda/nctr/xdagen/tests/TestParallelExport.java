@@ -0,0 +1,237 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.ParallelExporter;
+import gov.fda.nctr.xdagen.ParallelExporter.KeyRangeSplit;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+import gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering;
+import gov.fda.nctr.xdagen.XdaExecutor;
+
+
+public class TestParallelExport {
+
+    QueryGenerator qryGen;
+
+    TableOutputSpec drugTOS;
+
+    @BeforeClass
+    protected void setUp() throws IOException
+    {
+        DBMD dbmd;
+        try ( InputStream dbmdXmlIs = new TestingResources().metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        qryGen = QueryGenerator.builder(dbmd).build();
+
+        drugTOS = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table("drug");
+    }
+
+    static final String SNAPSHOT_ID = "00000003-0000001B-1";
+
+    /** A database of drugs with ids 1 through maxId, answering the key range queries from the ids and returning for the
+     *  partition queries the rows with ids in the bound key range. */
+    private static FakeJdbc drugsDatabase(int maxId)
+    {
+        return FakeJdbc.withResultsByExecution(exec -> {
+            if ( isSnapshotExport(exec) )
+                return snapshotExportResult();
+
+            if ( exec.sql.startsWith("select min(") )
+                return new FakeJdbc.Result(Arrays.asList("min", "max"), Arrays.asList(Types.INTEGER, Types.INTEGER),
+                                           Collections.singletonList(maxId == 0 ? new Object[]{ null, null } : new Object[]{ 1, maxId }));
+
+            if ( exec.sql.startsWith("select max(") )
+            {
+                List<Object[]> partMaxes = new ArrayList<>();
+                for ( int id = 3; id <= maxId; id += 3 )
+                    partMaxes.add(new Object[]{ id });
+                return new FakeJdbc.Result(Collections.singletonList("part_max"), Collections.singletonList(Types.INTEGER), partMaxes);
+            }
+
+            // Bind parameters for the lower bound precede those for the upper bound.
+            int bindIx = 1;
+            long lower = exec.sql.contains(".id > ?") ? ((Number)exec.bindValues.get(bindIx++)).longValue() : Long.MIN_VALUE;
+            long upper = exec.sql.contains(".id <= ?") ? ((Number)exec.bindValues.get(bindIx)).longValue() : Long.MAX_VALUE;
+
+            List<String> rowXmls = new ArrayList<>();
+            for ( int id = 1; id <= maxId; ++id )
+                if ( id > lower && id <= upper )
+                    rowXmls.add(drugXml(id));
+
+            return FakeJdbc.Result.xmlColumn(Types.VARCHAR, rowXmls.toArray(new String[0]));
+        });
+    }
+
+    private static boolean isSnapshotExport(FakeJdbc.Execution exec)
+    {
+        return exec.sql.equals("select pg_export_snapshot()");
+    }
+
+    private static FakeJdbc.Result snapshotExportResult()
+    {
+        return new FakeJdbc.Result(Collections.singletonList("pg_export_snapshot"), Collections.singletonList(Types.VARCHAR), Collections.singletonList(new Object[]{ SNAPSHOT_ID }));
+    }
+
+    private static long countPartitionExecutions(FakeJdbc jdbc)
+    {
+        return jdbc.executions.stream().filter(e -> e.sql.contains("rows of xdagentest.drug")).count();
+    }
+
+    private static String drugXml(int id)
+    {
+        return "<drug><id>" + id + "</id></drug>";
+    }
+
+    private String expectedDocument(int maxId)
+    {
+        StringBuilder sb = new StringBuilder("<" + drugTOS.getRowCollectionElementName() + " xmlns=\"http://nctr.fda.gov/xdagen\"");
+        if ( maxId == 0 )
+            return sb.append("/>").toString();
+        sb.append('>');
+        for ( int id = 1; id <= maxId; ++id )
+            sb.append(drugXml(id));
+        return sb.append("</").append(drugTOS.getRowCollectionElementName()).append('>').toString();
+    }
+
+    private XdaQuery drugsCollectionQuery(TableOutputSpec ospec)
+    {
+        return new XdaQuery(ospec, QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT, Optional.empty(), Optional.empty());
+    }
+
+    @Test
+    public void testPartitionsMergedInKeyOrder() throws SQLException, IOException
+    {
+        for ( int parallelism: new int[]{ 1, 2, 3, 4, 16 } )
+        {
+            FakeJdbc jdbc = drugsDatabase(10);
+
+            ParallelExporter exporter = new ParallelExporter(new XdaExecutor(qryGen, jdbc.dataSource()), parallelism);
+
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            long bytes = exporter.writeXml(drugsCollectionQuery(drugTOS), Collections.emptyList(), os);
+
+            String doc = new String(os.toByteArray(), StandardCharsets.UTF_8);
+            assert doc.equals(expectedDocument(10)) : "Unexpected document with parallelism " + parallelism + ": " + doc;
+            assert bytes == os.size() : "Expected the number of bytes written to be returned.";
+
+            long partitionExecutions = countPartitionExecutions(jdbc);
+            assert partitionExecutions == Math.min(parallelism, 10) : "Unexpected number of partitions with parallelism " + parallelism + ": " + partitionExecutions;
+            assert jdbc.connectionsClosed.get() == jdbc.connectionsOpened.get() : "Expected all connections to be closed.";
+        }
+    }
+
+    @Test
+    public void testQuantileKeyRangeSplit() throws SQLException, IOException
+    {
+        FakeJdbc jdbc = drugsDatabase(9);
+
+        ParallelExporter exporter = new ParallelExporter(new XdaExecutor(qryGen, jdbc.dataSource()), 3).withKeyRangeSplit(KeyRangeSplit.QUANTILES);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        exporter.writeXml(drugsCollectionQuery(drugTOS), Collections.emptyList(), os);
+
+        assert new String(os.toByteArray(), StandardCharsets.UTF_8).equals(expectedDocument(9)) : "Unexpected document.";
+        assert jdbc.executions.get(0).sql.contains("ntile(3) over (order by id)") : "Expected a quantiles query for the key range.";
+
+        // The middle partition is bounded by the first two quantile maximums.
+        boolean middlePartitionBound = false;
+        for ( FakeJdbc.Execution exec: jdbc.executions )
+            middlePartitionBound |= exec.bindValues.size() == 2 && exec.bindValues.get(1).equals(3) && exec.bindValues.get(2).equals(6);
+        assert middlePartitionBound : "Expected a partition bound by the first and second quantiles.";
+    }
+
+    @Test
+    public void testPostgresPartitionsShareSnapshot() throws SQLException, IOException
+    {
+        FakeJdbc jdbc = drugsDatabase(9);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new ParallelExporter(new XdaExecutor(qryGen, jdbc.dataSource()), 3).writeXml(drugsCollectionQuery(drugTOS), Collections.emptyList(), os);
+
+        assert new String(os.toByteArray(), StandardCharsets.UTF_8).equals(expectedDocument(9)) : "Unexpected document.";
+        assert jdbc.executions.stream().filter(TestParallelExport::isSnapshotExport).count() == 1 : "Expected the snapshot to be exported once.";
+        assert jdbc.executions.stream().filter(e -> e.sql.equals("set transaction snapshot '" + SNAPSHOT_ID + "'")).count() == 2
+            : "Expected the snapshot to be imported for each partition exported on another connection.";
+        assert jdbc.repeatableReadTransactions.get() == 3 && jdbc.rollbacks.get() == 3
+            : "Expected a repeatable read transaction ended for each partition: " + jdbc.repeatableReadTransactions + ", " + jdbc.rollbacks;
+    }
+
+    @Test
+    public void testOracleExportHasNoSharedSnapshot() throws SQLException, IOException
+    {
+        DBMD oraDbmd;
+        try ( InputStream dbmdXmlIs = new TestingResources().metadataResourceAsStream("ora", "dbmd.xml") )
+        {
+            oraDbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        TableOutputSpec oraDrugTOS = new DefaultTableOutputSpecFactory(oraDbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table("drug");
+        FakeJdbc jdbc = drugsDatabase(9);
+
+        new ParallelExporter(new XdaExecutor(QueryGenerator.builder(oraDbmd).build(), jdbc.dataSource()), 3)
+            .writeXml(drugsCollectionQuery(oraDrugTOS), Collections.emptyList(), new ByteArrayOutputStream());
+
+        assert jdbc.executions.stream().noneMatch(e -> isSnapshotExport(e) || e.sql.startsWith("set transaction")) && jdbc.repeatableReadTransactions.get() == 0
+            : "Expected no shared snapshot for Oracle.";
+    }
+
+    @Test
+    public void testEmptyTable() throws SQLException, IOException
+    {
+        ParallelExporter exporter = new ParallelExporter(new XdaExecutor(qryGen, drugsDatabase(0).dataSource()), 4);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        exporter.writeXml(drugsCollectionQuery(drugTOS), Collections.emptyList(), os);
+
+        assert new String(os.toByteArray(), StandardCharsets.UTF_8).equals(expectedDocument(0)) : "Expected an empty collection element.";
+    }
+
+    @Test
+    public void testFilterBindsPrecedeRangeBinds() throws SQLException, IOException
+    {
+        FakeJdbc jdbc = FakeJdbc.withResultsByExecution(exec ->
+            isSnapshotExport(exec) ? snapshotExportResult()
+            : exec.sql.startsWith("select min(") ?
+                new FakeJdbc.Result(Arrays.asList("min", "max"), Arrays.asList(Types.INTEGER, Types.INTEGER), Collections.singletonList(new Object[]{ 1, 4 }))
+                : FakeJdbc.Result.xmlColumn(Types.VARCHAR)
+        );
+
+        XdaQuery qry = new XdaQuery(drugTOS, QueryResultStyle.SINGLE_ROW_COLLECTION_ELEMENT_RESULT, Optional.of("d"), Optional.of("d.name like ?"));
+
+        new ParallelExporter(new XdaExecutor(qryGen, jdbc.dataSource()), 2).writeXml(qry, Collections.singletonList("a%"), new ByteArrayOutputStream());
+
+        FakeJdbc.Execution first = jdbc.executions.stream().filter(e -> e.sql.contains("d.id <= ?")).findFirst().get();
+        assert first.sql.contains("where\n  (d.name like ?)\n  and d.id <= ?") : "Unexpected partition condition:\n" + first.sql;
+        assert first.bindValues.get(1).equals("a%") && first.bindValues.get(2).equals(2L) : "Unexpected partition bind values: " + first.bindValues;
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testOrderingNotLedByKeyRejected() throws SQLException, IOException
+    {
+        ParallelExporter exporter = new ParallelExporter(new XdaExecutor(qryGen, drugsDatabase(3).dataSource()), 2);
+
+        exporter.writeXml(drugsCollectionQuery(drugTOS.orderedBy(RowOrdering.fields("name"))), Collections.emptyList(), new ByteArrayOutputStream());
+    }
+}
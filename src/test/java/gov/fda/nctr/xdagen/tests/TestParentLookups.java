@@ -0,0 +1,117 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering.fields;
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildAggregationStrategy;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.ParentLookupStrategy;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.RenderingEngine;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+
+
+/** Checks the SQL generated for parent lookups by left joins. Equivalence of the xml produced with that of correlated
+ *  subqueries is checked against the test databases in QueriesIT. */
+public class TestParentLookups {
+
+    TestingResources res = new TestingResources();
+
+    @DataProvider(name = "dbsAndStyles")
+    public Object[][] dbsAndStyles()
+    {
+        List<Object[]> l = new ArrayList<>();
+
+        for ( String db: new String[]{ "pg", "ora" } )
+            for ( ChildCollectionsStyle style: ChildCollectionsStyle.values() )
+                l.add(new Object[]{ db, style });
+
+        return l.toArray(new Object[0][]);
+    }
+
+    @Test(dataProvider = "dbsAndStyles")
+    public void testLeftJoinsQueryShape(String db, ChildCollectionsStyle style) throws IOException
+    {
+        QueryGenerator g = res.makeQueryGenerator(db).withParentLookupStrategy(ParentLookupStrategy.LEFT_JOINS);
+
+        // Oracle field names are upper case.
+        String sql = g.getRowElementsQuery(drugOutputSpec(db, style), "d", Optional.of("d.id = ?")).toLowerCase();
+
+        assert !sql.contains("-- parent subquery") : "Expected no correlated parent subqueries:\n" + sql;
+        assert sql.contains("-- child subquery") : "Expected child collections to remain correlated subqueries:\n" + sql;
+        assert sql.contains("\n   ,c_parent.row_xml -- joined parent\n") : "Expected the joined compound row element in the drug row element:\n" + sql;
+        assert sql.contains("\nfrom xdagentest.drug d\nleft join\n ( select -- rows of xdagentest.compound\n     c.*,\n")
+            : "Expected the compound rows query with all fields to be joined:\n" + sql;
+        assert sql.contains("\n   from xdagentest.compound c\n ) c_parent\n  on c_parent.id = d.compound_id\nwhere\n  d.id = ?")
+            : "Expected the compounds to be joined on the foreign key, preceding the filter condition:\n" + sql;
+    }
+
+    @Test(dataProvider = "dbsAndStyles")
+    public void testRenderingEnginesAgree(String db, ChildCollectionsStyle style) throws IOException
+    {
+        QueryGenerator directGen =
+            res.makeQueryGenerator(db)
+            .withParentLookupStrategy(ParentLookupStrategy.LEFT_JOINS)
+            .withChildAggregationStrategy(ChildAggregationStrategy.GROUPED_JOINS);
+        QueryGenerator templatesGen = directGen.withRenderingEngine(RenderingEngine.FREEMARKER_TEMPLATES);
+
+        TableOutputSpec ospec = drugOutputSpec(db, style).orderedBy(fields("name desc", "id"));
+
+        assert templatesGen.getRowElementsQuery(ospec, "d", Optional.of("d.id >= 1 and d.id <= 5"))
+               .equals(directGen.getRowElementsQuery(ospec, "d", Optional.of("d.id >= 1 and d.id <= 5")))
+            : "Rendering engines differ for row elements query with joined parents.";
+
+        assert templatesGen.getRowCollectionElementQuery(ospec, Optional.of("dr"), Optional.of("dr.id > 1"))
+               .equals(directGen.getRowCollectionElementQuery(ospec, Optional.of("dr"), Optional.of("dr.id > 1")))
+            : "Rendering engines differ for row collection element query with joined parents.";
+    }
+
+    @Test
+    public void testJoinAliasesDistinct() throws IOException
+    {
+        QueryGenerator g =
+            res.makeQueryGenerator("pg")
+            .withParentLookupStrategy(ParentLookupStrategy.LEFT_JOINS)
+            .withChildAggregationStrategy(ChildAggregationStrategy.GROUPED_JOINS);
+        QueryGenerator cachingGen = g.withCacheGeneratedSql(true);
+
+        TableOutputSpec ospec = drugOutputSpec("pg", ChildCollectionsStyle.INLINE);
+
+        for ( String alias: new String[]{ "d", "c_parent", "d" } )
+        {
+            String sql = cachingGen.getRowElementsQuery(ospec, alias, Optional.of(alias + ".id = ?"));
+
+            assert sql.equals(g.getRowElementsQuery(ospec, alias, Optional.of(alias + ".id = ?"))) : "Cached SQL differs for table alias " + alias + ".";
+        }
+
+        String sql = g.getRowElementsQuery(ospec, "c_parent");
+        assert sql.contains(") c_parent1\n  on c_parent1.id = c_parent.compound_id") : "Expected the joined parent alias to be distinct from the table alias:\n" + sql;
+        assert sql.contains(") b_coll\n  on b_coll.drug_id = c_parent.id") : "Expected the grouped child collections to be joined as well:\n" + sql;
+    }
+
+    @Test
+    public void testParentsOfJoinedParentsJoined() throws IOException
+    {
+        TableOutputSpec.Factory tosFactory = new DefaultTableOutputSpecFactory(res.loadDbmd("pg"), ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen");
+
+        TableOutputSpec brandOspec = tosFactory.table("brand").withParent(tosFactory.table("drug").withParent("compound"));
+
+        String sql = res.makeQueryGenerator("pg").withParentLookupStrategy(ParentLookupStrategy.LEFT_JOINS).getRowElementsQuery(brandOspec, "b");
+
+        assert sql.contains("\n    ) c_parent\n     on c_parent.id = d.compound_id\n ) d_parent\n  on d_parent.id = b.drug_id")
+            : "Expected the compound to be joined within the joined drug rows query:\n" + sql;
+    }
+
+    private TableOutputSpec drugOutputSpec(String db, ChildCollectionsStyle style) throws IOException
+    {
+        return new DefaultTableOutputSpecFactory(res.loadDbmd(db), style, "http://nctr.fda.gov/xdagen").table("drug").withAllChildTables().withAllParentTables();
+    }
+}
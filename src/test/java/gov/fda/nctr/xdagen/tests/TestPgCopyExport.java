@@ -0,0 +1,124 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.PgCopyExporter;
+import gov.fda.nctr.xdagen.PgCopyExporter.CopyTextDecoder;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+
+
+public class TestPgCopyExport {
+
+    QueryGenerator qryGen;
+
+    TableOutputSpec drugTOS;
+
+    PgCopyExporter exporter;
+
+    @BeforeClass
+    protected void setUp() throws IOException
+    {
+        DBMD dbmd;
+        try ( InputStream dbmdXmlIs = new TestingResources().metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        qryGen = QueryGenerator.builder(dbmd).build();
+
+        drugTOS = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table("drug");
+
+        exporter = new PgCopyExporter(qryGen, new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.VARCHAR)).dataSource());
+    }
+
+    @Test
+    public void testCopyTextDecoding() throws IOException
+    {
+        // Two rows as written by COPY TO in text format, the first having escaped backslash, tab and newline characters.
+        byte[] copyText = "<drug><name>a\\\\b\\tc\\nd \u00c4</name></drug>\n<drug/>\n".getBytes(StandardCharsets.UTF_8);
+        byte[] expected = "<drug><name>a\\b\tc\nd \u00c4</name></drug><drug/>".getBytes(StandardCharsets.UTF_8);
+
+        // Escapes and row terminators may be split between writes.
+        for ( int writeSize = 1; writeSize <= copyText.length; ++writeSize )
+        {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            CopyTextDecoder decoder = new CopyTextDecoder(os);
+
+            for ( int off = 0; off < copyText.length; off += writeSize )
+                decoder.write(copyText, off, Math.min(writeSize, copyText.length - off));
+
+            assert Arrays.equals(os.toByteArray(), expected) : "Unexpected decoded output for writes of size " + writeSize + ".";
+            assert decoder.getRowCount() == 2 && decoder.getByteCount() == expected.length : "Unexpected row or byte count.";
+        }
+    }
+
+    @Test
+    public void testFirstRowPrefix() throws IOException
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        CopyTextDecoder decoder = new CopyTextDecoder(os, ">".getBytes(StandardCharsets.UTF_8));
+        decoder.write("<a/>\n<b/>\n".getBytes(StandardCharsets.UTF_8));
+        assert new String(os.toByteArray(), StandardCharsets.UTF_8).equals("><a/><b/>") : "Expected prefix before the first row only.";
+
+        ByteArrayOutputStream emptyOs = new ByteArrayOutputStream();
+        new CopyTextDecoder(emptyOs, ">".getBytes(StandardCharsets.UTF_8)).write(new byte[0]);
+        assert emptyOs.size() == 0 : "Expected no prefix without rows.";
+    }
+
+    @Test
+    public void testBindValuesWrittenAsLiterals()
+    {
+        XdaQuery qry = new XdaQuery(drugTOS, QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("d"), Optional.of("d.name <> '?' and d.id = ? and d.name = ?"));
+
+        String copySql = exporter.getCopySql(qry, Arrays.asList(5, "O'Brien\\"));
+
+        String expectedSql = qryGen.getSql(qry).replace("d.id = ? and d.name = ?", "d.id = 5 and d.name = E'O''Brien\\\\'");
+        assert copySql.equals("COPY (\n" + expectedSql + "\n) TO STDOUT") : "Unexpected COPY statement:\n" + copySql;
+    }
+
+    @Test
+    public void testNegativeNumbersParenthesized()
+    {
+        // Unparenthesized, the first negative value would follow the minus sign to form a comment.
+        XdaQuery qry = new XdaQuery(drugTOS, QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("d"), Optional.of("d.id-? > ? and d.id <> ? and d.id <> ?"));
+
+        String copySql = exporter.getCopySql(qry, Arrays.asList(-5, -1.5, new BigDecimal("-2.50"), 7L));
+
+        String expectedSql = qryGen.getSql(qry).replace("d.id-? > ? and d.id <> ? and d.id <> ?", "d.id-(-5) > (-1.5) and d.id <> (-2.50) and d.id <> 7");
+        assert copySql.equals("COPY (\n" + expectedSql + "\n) TO STDOUT") : "Unexpected COPY statement:\n" + copySql;
+    }
+
+    @Test
+    public void testQuotesAndBackslashesEscaped()
+    {
+        XdaQuery qry = new XdaQuery(drugTOS, QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("d"), Optional.of("d.name in (?, ?)"));
+
+        String copySql = exporter.getCopySql(qry, Arrays.asList("\\'; drop table drug; --", "''\\\\n"));
+
+        String expectedSql = qryGen.getSql(qry).replace("d.name in (?, ?)", "d.name in (E'\\\\''; drop table drug; --', E'''''\\\\\\\\n')");
+        assert copySql.equals("COPY (\n" + expectedSql + "\n) TO STDOUT") : "Unexpected COPY statement:\n" + copySql;
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnsupportedBindValueType()
+    {
+        exporter.getCopySql(new XdaQuery(drugTOS, Optional.of("dr"), Optional.of("dr.id = ?")), Collections.singletonList(new Object()));
+    }
+}
@@ -0,0 +1,130 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.RenderingEngine;
+import gov.fda.nctr.xdagen.QueryGenerator.XmlIndentation;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+
+
+public class TestQueryGeneratorBuilder {
+
+    DBMD dbmd;
+
+    TableOutputSpec drugTOS;
+
+    @BeforeClass
+    protected void setUp() throws IOException
+    {
+        TestingResources res = new TestingResources();
+
+        try ( InputStream dbmdXmlIs = res.metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        TableOutputSpec.Factory tosFactory = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.WRAPPED, "http://nctr.fda.gov/xdagen");
+
+        drugTOS = tosFactory.table("drug").withAllChildTables().withAllParentTables();
+    }
+
+    @Test
+    public void testDerivationLeavesOriginalUnchanged() throws IOException
+    {
+        QueryGenerator g = QueryGenerator.builder(dbmd).build();
+
+        QueryGenerator derived = g.withXmlIndentation(XmlIndentation.INDENT).withXmlIndentationSize(2).withCacheGeneratedSql(true);
+
+        assert g.getXmlIndentation() == XmlIndentation.INDENT_UNSPECIFIED && !g.getXmlIndentationSize().isPresent() && !g.getCacheGeneratedSql()
+            : "Deriving a generator should not change the original.";
+        assert derived.getXmlIndentation() == XmlIndentation.INDENT && derived.getXmlIndentationSize().equals(Optional.of(2)) && derived.getCacheGeneratedSql()
+            : "Derived generator should have the requested options.";
+
+        String expectedSql = QueryGenerator.builder(dbmd).xmlIndentation(XmlIndentation.INDENT).xmlIndentationSize(2).build().getRowElementsQuery(drugTOS, "d");
+
+        assert derived.getRowElementsQuery(drugTOS, "d").equals(expectedSql) : "Derived generator should match an equivalently built generator.";
+        assert !g.getRowElementsQuery(drugTOS, "d").equals(expectedSql) : "Original generator should not use the derived generator's indentation.";
+    }
+
+    @Test
+    public void testDerivedGeneratorsShareCaches() throws IOException
+    {
+        QueryGenerator g = QueryGenerator.builder(dbmd).cacheGeneratedSql(true).build();
+
+        String sql = g.getRowElementsQuery(drugTOS, "d");
+
+        // The rendering engine does not affect the generated SQL, so the derived generator can use the same cached SQL.
+        QueryGenerator sameOptionsGen = g.withRenderingEngine(RenderingEngine.FREEMARKER_TEMPLATES);
+        assert sameOptionsGen.getRowElementsQuery(drugTOS, "d") == sql : "Expected derived generator to share the generated SQL cache.";
+        assert g.getGeneratedSqlCacheStats().getHitCount() == 1 : "Expected a hit in the shared cache: " + g.getGeneratedSqlCacheStats();
+
+        QueryGenerator indentingGen = g.withXmlIndentation(XmlIndentation.INDENT);
+        String indentingSql = indentingGen.getRowElementsQuery(drugTOS, "d");
+        assert !indentingSql.equals(sql) : "Expected different SQL for different xml indentation.";
+        assert indentingGen.getGeneratedSqlCacheStats().getHitCount() == 0 : "Generators with different rendering options should not share caches.";
+
+        QueryGenerator smallCacheGen = g.toBuilder().generatedSqlCacheMaximumWeight(sql.length()).build();
+        assert smallCacheGen.getGeneratedSqlCacheMaximumWeight() == sql.length() : "Expected the rebuilt generator to have its own cache.";
+        assert smallCacheGen.getRowElementsQuery(drugTOS, "d").equals(sql) : "Rebuilt generator should produce the same SQL.";
+    }
+
+    @Test
+    public void testSharedUseByManyThreads() throws Exception
+    {
+        QueryGenerator g = QueryGenerator.builder(dbmd).cacheGeneratedSql(true).build();
+        QueryGenerator uncachedGen = QueryGenerator.builder(dbmd).build();
+        QueryGenerator uncachedIndentingGen = uncachedGen.withXmlIndentation(XmlIndentation.INDENT);
+
+        int threads = 32;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<Boolean>> futures = new ArrayList<>();
+
+            for ( int t = 0; t < threads; ++t )
+            {
+                final int id = (t / 2) % 4;
+                final boolean indent = t % 2 == 0;
+
+                Callable<Boolean> task = () -> {
+                    // Derive generators concurrently too, as request handlers customizing a shared generator would do.
+                    QueryGenerator threadGen = indent ? g.withXmlIndentation(XmlIndentation.INDENT) : g;
+                    QueryGenerator expectedGen = indent ? uncachedIndentingGen : uncachedGen;
+                    for ( int i = 0; i < 50; ++i )
+                    {
+                        Optional<String> cond = Optional.of("d.id = " + id);
+                        if ( !threadGen.getRowElementsQuery(drugTOS, "d", cond).equals(expectedGen.getRowElementsQuery(drugTOS, "d", cond)) )
+                            return false;
+                    }
+                    return true;
+                };
+
+                futures.add(executor.submit(task));
+            }
+
+            for ( Future<Boolean> f: futures )
+                assert f.get() : "Shared generator produced unexpected SQL.";
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        assert g.getGeneratedSqlCacheStats().getEntryCount() == 4 : "Expected one cache entry for each distinct query: " + g.getGeneratedSqlCacheStats();
+    }
+}
@@ -0,0 +1,129 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering.fields;
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.util.WeightedLruCache;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.OrderByClauseInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.OutputColumnsInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.XmlOutputColumnType;
+import gov.fda.nctr.xdagen.QueryPlan;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+
+
+public class TestQueryPlans {
+
+    DBMD dbmd;
+
+    TableOutputSpec.Factory tosFactory;
+
+    @BeforeClass
+    protected void setUp() throws IOException
+    {
+        TestingResources res = new TestingResources();
+
+        try ( InputStream dbmdXmlIs = res.metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        tosFactory = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.WRAPPED, "http://nctr.fda.gov/xdagen");
+    }
+
+    @Test
+    public void testSplicedSqlMatchesRenderedSql() throws IOException
+    {
+        QueryGenerator renderingGen = new QueryGenerator(dbmd);
+        QueryGenerator planningGen = new QueryGenerator(dbmd);
+
+        TableOutputSpec ospec = tosFactory.table("drug").withAllChildTables().withAllParentTables().orderedBy(fields("name desc", "id"));
+
+        for ( String filter: new String[]{ "d.id = ?", "d.id >= 1\nand d.id <= 5", "" } )
+        {
+            for ( OrderByClauseInclusion orderByIncl: new OrderByClauseInclusion[]{ OrderByClauseInclusion.INCLUDE_ORDERBY_CLAUSE_IF_ORDERED, OrderByClauseInclusion.OMIT_ORDERBY_CLAUSE } )
+            {
+                for ( OutputColumnsInclusion outputColsOpt: OutputColumnsInclusion.values() )
+                {
+                    String expectedSql = renderingGen.getRowElementsQuery(ospec, "d", Optional.of(filter), orderByIncl, XmlOutputColumnType.LARGE_CHAR_TYPE, outputColsOpt);
+
+                    QueryPlan plan = planningGen.getRowElementsQueryPlan(ospec, XmlOutputColumnType.LARGE_CHAR_TYPE, outputColsOpt);
+
+                    assert plan.getSql("d", Optional.of(filter), orderByIncl).equals(expectedSql) : "Row elements query from plan differs from rendered query.";
+                }
+            }
+
+            String expectedCollSql = renderingGen.getRowCollectionElementQuery(ospec, Optional.of("dr"), Optional.of(filter.replace("d.", "dr.")));
+            String collSql = planningGen.getRowCollectionElementQueryPlan(ospec, XmlOutputColumnType.LARGE_CHAR_TYPE).getSql("dr", Optional.of(filter.replace("d.", "dr.")));
+            assert collSql.equals(expectedCollSql) : "Row collection element query from plan differs from rendered query.";
+
+            String expectedMembersSql = renderingGen.getRowCollectionMembersQuery(ospec, Optional.of("dr"), Optional.of(filter.replace("d.", "dr.")));
+            String membersSql = planningGen.getRowCollectionMembersQueryPlan(ospec, XmlOutputColumnType.LARGE_CHAR_TYPE).getSql("dr", Optional.of(filter.replace("d.", "dr.")));
+            assert membersSql.equals(expectedMembersSql) : "Row collection members query from plan differs from rendered query.";
+
+            String expectedBatchesSql = renderingGen.getRowCollectionMemberBatchesQuery(ospec, Optional.of("dr"), Optional.of(filter.replace("d.", "dr.")));
+            String batchesSql = planningGen.getRowCollectionMemberBatchesQueryPlan(ospec, XmlOutputColumnType.LARGE_CHAR_TYPE).getSql("dr", Optional.of(filter.replace("d.", "dr.")));
+            assert batchesSql.equals(expectedBatchesSql) : "Row collection member batches query from plan differs from rendered query.";
+
+            String expectedForestSql = renderingGen.getRowForestQuery(ospec, Optional.of("dr"), Optional.of(filter.replace("d.", "dr.")));
+            String forestSql = planningGen.getRowForestQueryPlan(ospec).getSql("dr", Optional.of(filter.replace("d.", "dr.")));
+            assert forestSql.equals(expectedForestSql) : "Row forest query from plan differs from rendered query.";
+        }
+
+        assert planningGen.getRowElementsQueryPlan(ospec).getSql("d", Optional.empty())
+               .equals(renderingGen.getRowElementsQuery(ospec, "d")) : "Unfiltered row elements query from plan differs from rendered query.";
+    }
+
+    @Test
+    public void testFilterChangesOnlyRenderOnce() throws IOException
+    {
+        QueryGenerator g = QueryGenerator.builder(dbmd).cacheGeneratedSql(true).build();
+
+        TableOutputSpec ospec = tosFactory.table("drug").withAllChildTables().withAllParentTables();
+
+        for ( int id = 1; id <= 10; ++id )
+            g.getRowElementsQuery(ospec, "d", Optional.of("d.id = " + id));
+
+        WeightedLruCache.Stats sqlStats = g.getGeneratedSqlCacheStats();
+        WeightedLruCache.Stats planStats = g.getQueryPlanCacheStats();
+
+        assert sqlStats.getMissCount() == 10 : "Expected a generated SQL cache miss for each distinct filter: " + sqlStats;
+        assert planStats.getLoadCount() == 1 && planStats.getHitCount() == 9 : "Expected one query plan for all filters: " + planStats;
+    }
+
+    @Test
+    public void testReservedTableAlias() throws IOException
+    {
+        QueryGenerator renderingGen = new QueryGenerator(dbmd);
+        QueryGenerator cachingGen = renderingGen.withCacheGeneratedSql(true);
+
+        TableOutputSpec ospec = tosFactory.table("drug").withParent("compound");
+
+        QueryPlan plan = cachingGen.getRowElementsQueryPlan(ospec);
+
+        // The compound parent subquery would use alias "c" if not already taken by the drug table.
+        assert !plan.isApplicableTableAlias("c") : "Expected parent table alias to be reserved.";
+
+        assert cachingGen.getRowElementsQuery(ospec, "c").equals(renderingGen.getRowElementsQuery(ospec, "c"))
+            : "Query with reserved table alias differs from rendered query.";
+    }
+
+    @Test
+    public void testBindParameterCount() throws IOException
+    {
+        QueryGenerator g = new QueryGenerator(dbmd);
+
+        QueryPlan plan = g.getRowElementsQueryPlan(tosFactory.table("drug").withAllChildTables());
+
+        assert plan.getBindParameterCount(Optional.empty()) == 0 : "Expected no bind parameters without a filter.";
+        assert plan.getBindParameterCount(Optional.of("d.id = ? or d.name in (?, '?', \"?\") -- ?")) == 2 : "Expected two bind parameters.";
+    }
+}
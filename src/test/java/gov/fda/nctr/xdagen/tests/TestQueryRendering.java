@@ -0,0 +1,213 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering.fields;
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildAggregationStrategy;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.ParentLookupStrategy;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.OrderByClauseInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.OutputColumnsInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.RenderingEngine;
+import gov.fda.nctr.xdagen.QueryGenerator.XmlIndentation;
+import gov.fda.nctr.xdagen.QueryGenerator.XmlOutputColumnType;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+
+
+/** Checks the generated SQL text against the expected query results, for each of the SQL rendering engines. No database
+ *  connection is required. */
+public class TestQueryRendering {
+
+    TestingResources res = new TestingResources();
+
+    @DataProvider(name = "queryVariants")
+    public Object[][] queryVariants()
+    {
+        List<Object[]> l = new ArrayList<>();
+
+        for ( ChildCollectionsStyle style: ChildCollectionsStyle.values() )
+        {
+            l.add(new Object[]{"pg", style, XmlIndentation.INDENT_UNSPECIFIED});
+            l.add(new Object[]{"ora", style, XmlIndentation.INDENT});
+            l.add(new Object[]{"ora", style, XmlIndentation.NO_INDENT});
+        }
+
+        return l.toArray(new Object[0][]);
+    }
+
+    @Test(dataProvider = "queryVariants")
+    public void testRowElementsQueryText(String db, ChildCollectionsStyle style, XmlIndentation xmlIndentation) throws IOException
+    {
+        String expectedSql = res.expectedResultAsString(db, "drugs_query_" + style + "_el_colls_" + xmlIndentation + ".sql").replaceAll("\r","");
+
+        for ( RenderingEngine engine: RenderingEngine.values() )
+        {
+            QueryGenerator g = makeQueryGenerator(db, xmlIndentation, engine);
+
+            String sql = g.getRowElementsQuery(drugOutputSpec(db, style), "d");
+
+            assert expectedSql.equals(sql) : "Drugs row elements query not as expected with rendering engine " + engine + ".";
+        }
+    }
+
+    @Test(dataProvider = "queryVariants")
+    public void testRowCollectionElementQueryText(String db, ChildCollectionsStyle style, XmlIndentation xmlIndentation) throws IOException
+    {
+        String expectedSql = res.expectedResultAsString(db, "drugs_collection_query_" + style + "_el_colls_" + xmlIndentation + ".sql").replaceAll("\r","");
+
+        for ( RenderingEngine engine: RenderingEngine.values() )
+        {
+            QueryGenerator g = makeQueryGenerator(db, xmlIndentation, engine);
+
+            String sql = g.getRowCollectionElementQuery(drugOutputSpec(db, style));
+
+            assert expectedSql.equals(sql) : "Drugs row collection element query not as expected with rendering engine " + engine + ".";
+        }
+    }
+
+    @DataProvider(name = "childCollectionsStyles")
+    public Object[][] childCollectionsStyles()
+    {
+        List<Object[]> l = new ArrayList<>();
+
+        for ( ChildCollectionsStyle style: ChildCollectionsStyle.values() )
+            l.add(new Object[]{ style });
+
+        return l.toArray(new Object[0][]);
+    }
+
+    @Test(dataProvider = "childCollectionsStyles")
+    public void testLateralJoinsQueryText(ChildCollectionsStyle style) throws IOException
+    {
+        String expectedSql = res.expectedResultAsString("pg", "drugs_lateral_query_" + style + "_el_colls_INDENT_UNSPECIFIED.sql").replaceAll("\r","");
+        String expectedCollSql = res.expectedResultAsString("pg", "drugs_lateral_collection_query_" + style + "_el_colls_INDENT_UNSPECIFIED.sql").replaceAll("\r","");
+
+        for ( RenderingEngine engine: RenderingEngine.values() )
+        {
+            QueryGenerator g =
+                makeQueryGenerator("pg", XmlIndentation.INDENT_UNSPECIFIED, engine)
+                .withChildAggregationStrategy(ChildAggregationStrategy.LATERAL_JOINS)
+                .withParentLookupStrategy(ParentLookupStrategy.LATERAL_JOINS);
+
+            for ( QueryGenerator gen: new QueryGenerator[]{ g, g.withCacheGeneratedSql(true) } )
+            {
+                assert expectedSql.equals(gen.getRowElementsQuery(drugOutputSpec("pg", style), "d"))
+                    : "Drugs row elements query with lateral joins not as expected with rendering engine " + engine + ".";
+
+                assert expectedCollSql.equals(gen.getRowCollectionElementQuery(drugOutputSpec("pg", style)))
+                    : "Drugs row collection element query with lateral joins not as expected with rendering engine " + engine + ".";
+            }
+        }
+    }
+
+    @Test
+    public void testLateralJoinsRequirePostgres() throws IOException
+    {
+        QueryGenerator g = makeQueryGenerator("ora", XmlIndentation.NO_INDENT, RenderingEngine.DIRECT_EMITTER);
+
+        try
+        {
+            g.withParentLookupStrategy(ParentLookupStrategy.LATERAL_JOINS);
+            assert false : "Expected lateral parent joins to be rejected for Oracle.";
+        }
+        catch(IllegalArgumentException e) {}
+
+        TableOutputSpec lateralOspec = drugOutputSpec("ora", ChildCollectionsStyle.INLINE).withChildAggregationStrategy(ChildAggregationStrategy.LATERAL_JOINS);
+        try
+        {
+            g.getRowElementsQuery(lateralOspec, "d");
+            assert false : "Expected lateral child collection joins to be rejected for Oracle.";
+        }
+        catch(IllegalArgumentException e) {}
+    }
+
+    /// Compare the engines for query variations not covered by the expected results.
+    @Test(dataProvider = "queryVariants")
+    public void testRenderingEnginesAgree(String db, ChildCollectionsStyle style, XmlIndentation xmlIndentation) throws IOException
+    {
+        QueryGenerator templatesGen = makeQueryGenerator(db, xmlIndentation, RenderingEngine.FREEMARKER_TEMPLATES);
+        QueryGenerator directGen = makeQueryGenerator(db, xmlIndentation, RenderingEngine.DIRECT_EMITTER);
+
+        TableOutputSpec ospec = drugOutputSpec(db, style).orderedBy(fields("name desc", "id"));
+
+        assert templatesGen.getRowElementsQuery(ospec, "d", Optional.of("d.id >= 1 and d.id <= 5"))
+               .equals(directGen.getRowElementsQuery(ospec, "d", Optional.of("d.id >= 1 and d.id <= 5")))
+            : "Rendering engines differ for filtered row elements query.";
+
+        assert templatesGen.getRowCollectionElementQuery(ospec, Optional.of("dr"), Optional.of("dr.id > 1"))
+               .equals(directGen.getRowCollectionElementQuery(ospec, Optional.of("dr"), Optional.of("dr.id > 1")))
+            : "Rendering engines differ for filtered row collection element query.";
+
+        assert templatesGen.getRowCollectionMembersQuery(ospec, Optional.of("dr"), Optional.of("dr.id > 1"))
+               .equals(directGen.getRowCollectionMembersQuery(ospec, Optional.of("dr"), Optional.of("dr.id > 1")))
+            : "Rendering engines differ for filtered row collection members query.";
+
+        assert templatesGen.getRowCollectionMembersQuery(drugOutputSpec(db, style), Optional.empty(), Optional.empty())
+               .equals(directGen.getRowCollectionMembersQuery(drugOutputSpec(db, style), Optional.empty(), Optional.empty()))
+            : "Rendering engines differ for unfiltered, unordered row collection members query.";
+
+        assert templatesGen.getRowCollectionMemberBatchesQuery(ospec, Optional.of("dr"), Optional.of("dr.id > 1\nand dr.id < 9"))
+               .equals(directGen.getRowCollectionMemberBatchesQuery(ospec, Optional.of("dr"), Optional.of("dr.id > 1\nand dr.id < 9")))
+            : "Rendering engines differ for filtered row collection member batches query.";
+
+        assert templatesGen.getRowCollectionMemberBatchesQuery(drugOutputSpec(db, style), Optional.empty(), Optional.empty())
+               .equals(directGen.getRowCollectionMemberBatchesQuery(drugOutputSpec(db, style), Optional.empty(), Optional.empty()))
+            : "Rendering engines differ for unfiltered, unordered row collection member batches query.";
+
+        assert templatesGen.getRowForestQuery(ospec, Optional.empty(), Optional.empty())
+               .equals(directGen.getRowForestQuery(ospec, Optional.empty(), Optional.empty()))
+            : "Rendering engines differ for row forest query.";
+    }
+
+    @Test
+    public void testRowElementsByKeysQueryText() throws IOException
+    {
+        for ( String db: new String[]{ "pg", "ora" } )
+        {
+            QueryGenerator g = makeQueryGenerator(db, XmlIndentation.INDENT_UNSPECIFIED, RenderingEngine.DIRECT_EMITTER);
+
+            TableOutputSpec brandSpec = new DefaultTableOutputSpecFactory(res.loadDbmd(db), ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table("brand");
+
+            String sql = g.getRowElementsByKeysQuery(brandSpec);
+
+            assert sql.contains(g.getRowElementsQuery(brandSpec, "b", Optional.empty(), OrderByClauseInclusion.OMIT_ORDERBY_CLAUSE, XmlOutputColumnType.LARGE_CHAR_TYPE, OutputColumnsInclusion.ALL_FIELDS_THEN_ROW_XML).replace("\n", "\n   "))
+                : "Expected the row elements query with all fields as the rows query.";
+            assert sql.toLowerCase().contains("b_row.drug_id = req_keys.key_1\n  and b_row.brand_name = req_keys.key_2") && sql.endsWith("\norder by req_keys.key_ix")
+                : "Expected rows to be joined to the keys on the primary key columns and ordered by key position:\n" + sql;
+
+            if ( db.equals("pg") )
+                assert sql.contains("join unnest(cast(? as int4[]), cast(? as varchar[])) with ordinality as req_keys(key_1, key_2, key_ix)")
+                    : "Expected a typed array bind for each primary key column.";
+            else
+                assert sql.contains("(select rownum key_ix, column_value key_2 from table(?)) k2 on k2.key_ix = k1.key_ix")
+                    : "Expected a bound collection for each primary key column.";
+        }
+    }
+
+    private QueryGenerator makeQueryGenerator(String db, XmlIndentation xmlIndentation, RenderingEngine engine) throws IOException
+    {
+        return
+            QueryGenerator.builder(res.loadDbmd(db))
+            .defaultXmlOutputColumnType(XmlOutputColumnType.LARGE_CHAR_TYPE)
+            .sortUnsortedRowElementCollectionsByPrimaryKeys(true)
+            .xmlIndentation(xmlIndentation)
+            .renderingEngine(engine)
+            .build();
+    }
+
+    private TableOutputSpec drugOutputSpec(String db, ChildCollectionsStyle style) throws IOException
+    {
+        TableOutputSpec.Factory tosFactory = new DefaultTableOutputSpecFactory(res.loadDbmd(db), style, "http://nctr.fda.gov/xdagen");
+
+        return tosFactory.table("drug").withAllChildTables().withAllParentTables();
+    }
+}
@@ -0,0 +1,239 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.CoalescingXdaExecutor;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+import gov.fda.nctr.xdagen.XdaExecutor;
+
+
+public class TestRequestCoalescing {
+
+    QueryGenerator qryGen;
+
+    XdaQuery drugQuery;
+
+    static final String DRUG_XML = "<drug><id>1</id><name>Aspirin</name></drug>";
+
+    @BeforeClass
+    protected void setUp() throws IOException
+    {
+        DBMD dbmd;
+        try ( InputStream dbmdXmlIs = new TestingResources().metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        qryGen = QueryGenerator.builder(dbmd).build();
+
+        TableOutputSpec drugTOS = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table("drug");
+
+        drugQuery = new XdaQuery(drugTOS, QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("d"), Optional.of("d.id = ?"));
+    }
+
+    /// Executions wait for the release latch before returning their results, or failing if fail is set.
+    private static FakeJdbc blockingDatabase(CountDownLatch release, boolean fail)
+    {
+        return new FakeJdbc(sql -> {
+            try
+            {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+                throw new RuntimeException(e);
+            }
+            if ( fail )
+                throw new IllegalStateException("database unavailable");
+            return FakeJdbc.Result.xmlColumn(Types.VARCHAR, DRUG_XML);
+        });
+    }
+
+    // Starts the requests, releasing the executions once all but the first have joined the first's execution.
+    private List<Future<String>> startRequests(CoalescingXdaExecutor coalescer, int n, CountDownLatch release, ExecutorService threads) throws InterruptedException
+    {
+        List<Future<String>> results = new ArrayList<>();
+        for ( int i = 0; i < n; ++i )
+        {
+            results.add(threads.submit(() -> {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                coalescer.writeXml(drugQuery, Collections.singletonList(1), os);
+                return new String(os.toByteArray(), StandardCharsets.UTF_8);
+            }));
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( coalescer.getCoalescedRequests() < n - 1 && System.currentTimeMillis() < deadline )
+            Thread.sleep(5);
+
+        release.countDown();
+
+        return results;
+    }
+
+    @Test
+    public void testConcurrentIdenticalRequestsShareExecution() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        FakeJdbc jdbc = blockingDatabase(release, false);
+        CoalescingXdaExecutor coalescer = new CoalescingXdaExecutor(new XdaExecutor(qryGen, jdbc.dataSource()));
+
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try
+        {
+            for ( Future<String> result: startRequests(coalescer, 8, release, threads) )
+                assert result.get(10, TimeUnit.SECONDS).equals(DRUG_XML) : "Expected each request to receive the document.";
+        }
+        finally
+        {
+            threads.shutdownNow();
+        }
+
+        assert jdbc.executions.size() == 1 : "Expected a single execution, got " + jdbc.executions.size();
+        assert coalescer.getRequests() == 8 && coalescer.getExecutions() == 1 && coalescer.getCoalescedRequests() == 7 : "Unexpected coalescing counts.";
+        assert coalescer.getInFlightExecutions() == 0 : "Expected no execution left in flight.";
+
+        // Requests after completion execute anew, as do requests with other bind values.
+        coalescer.writeXml(drugQuery, Collections.singletonList(1), new ByteArrayOutputStream());
+        coalescer.writeXml(drugQuery, Collections.singletonList(2), new ByteArrayOutputStream());
+        assert coalescer.getExecutions() == 3 && jdbc.executions.size() == 3 : "Expected later and differing requests to execute.";
+    }
+
+    @Test
+    public void testExecutionFailureSharedByJoinedRequests() throws Exception
+    {
+        CountDownLatch release = new CountDownLatch(1);
+        CoalescingXdaExecutor coalescer = new CoalescingXdaExecutor(new XdaExecutor(qryGen, blockingDatabase(release, true).dataSource()));
+
+        ExecutorService threads = Executors.newFixedThreadPool(3);
+        try
+        {
+            for ( Future<String> result: startRequests(coalescer, 3, release, threads) )
+            {
+                try
+                {
+                    result.get(10, TimeUnit.SECONDS);
+                    assert false : "Expected the request to fail.";
+                }
+                catch(ExecutionException e)
+                {
+                    assert e.getCause() instanceof RuntimeException : "Unexpected failure: " + e.getCause();
+                }
+            }
+        }
+        finally
+        {
+            threads.shutdownNow();
+        }
+
+        assert coalescer.getExecutions() == 1 && coalescer.getCoalescedRequests() == 2 : "Unexpected coalescing counts.";
+    }
+
+    /// A database returning the passed number of drug row elements for any query.
+    private static FakeJdbc manyRowsDatabase(int rows)
+    {
+        String[] values = new String[rows];
+        Arrays.fill(values, DRUG_XML);
+        return new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.VARCHAR, values));
+    }
+
+    @Test
+    public void testBufferBoundedWithoutJoinedRequests() throws Exception
+    {
+        CoalescingXdaExecutor coalescer = new CoalescingXdaExecutor(new XdaExecutor(qryGen, manyRowsDatabase(5000).dataSource()), 1024);
+
+        // Record the bytes held by the execution as its output is written.
+        AtomicLong maxBuffered = new AtomicLong();
+        ByteArrayOutputStream os = new ByteArrayOutputStream()
+        {
+            @Override
+            public synchronized void write(byte[] b, int off, int len)
+            {
+                maxBuffered.accumulateAndGet(coalescer.getBufferedBytes(), Math::max);
+                super.write(b, off, len);
+            }
+        };
+
+        long bytes = coalescer.writeXml(drugQuery, Collections.singletonList(1), os);
+
+        assert bytes == os.size() && bytes >= 5000 * DRUG_XML.length() : "Expected all rows to be written.";
+        assert maxBuffered.get() <= 1024 : "Expected at most the maximum to be buffered, got " + maxBuffered.get();
+        assert coalescer.getBufferedBytes() == 0 && coalescer.getInFlightExecutions() == 0 : "Expected nothing held after the execution.";
+    }
+
+    @Test
+    public void testRequestsNotJoinedPastMaximumBuffered() throws Exception
+    {
+        FakeJdbc jdbc = manyRowsDatabase(100);
+        CoalescingXdaExecutor coalescer = new CoalescingXdaExecutor(new XdaExecutor(qryGen, jdbc.dataSource()), 0);
+
+        // The first request's stream waits at its first write, by which time the execution accepts no other requests.
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        OutputStream waitingOs = new ByteArrayOutputStream()
+        {
+            @Override
+            public synchronized void write(byte[] b, int off, int len)
+            {
+                writing.countDown();
+                try
+                {
+                    proceed.await(10, TimeUnit.SECONDS);
+                }
+                catch(InterruptedException e)
+                {
+                    throw new RuntimeException(e);
+                }
+                super.write(b, off, len);
+            }
+        };
+
+        ExecutorService threads = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<Long> first = threads.submit(() -> coalescer.writeXml(drugQuery, Collections.singletonList(1), waitingOs));
+
+            assert writing.await(10, TimeUnit.SECONDS) : "Expected the first request to write.";
+
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            coalescer.writeXml(drugQuery, Collections.singletonList(1), os);
+
+            assert coalescer.getExecutions() == 2 && coalescer.getCoalescedRequests() == 0 : "Expected the second request to execute the query itself.";
+            assert jdbc.executions.size() == 2 : "Expected two executions, got " + jdbc.executions.size();
+
+            proceed.countDown();
+            assert first.get(10, TimeUnit.SECONDS) == os.size() : "Expected the same output from both requests.";
+        }
+        finally
+        {
+            proceed.countDown();
+            threads.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import static java.util.Arrays.asList;
+
+import org.testng.annotations.Test;
+
+import gov.fda.nctr.xdagen.TableOutputSpec.OrderItem;
+import gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering;
+import static gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering.fields;
+
+
+public class TestRowOrdering {
+
+    @Test
+    public void testValueEquality()
+    {
+        assert fields("id").equals(fields("id")) && fields("id").hashCode() == fields("id").hashCode() : "Equal orderings should be equal.";
+
+        assert fields("name desc nulls last", "id").equals(RowOrdering.of(OrderItem.field("name").desc().nullsLast(), OrderItem.field("id")))
+            : "Parsed and constructed orderings should be equal.";
+
+        assert !fields("id").equals(fields("id desc")) : "Orderings with different directions should differ.";
+        assert !fields("id desc").equals(fields("id desc nulls first")) : "Orderings with different nulls orderings should differ.";
+        assert !fields("id", "name").equals(fields("name", "id")) : "Orderings with differently ordered items should differ.";
+    }
+
+    @Test
+    public void testOrderByExpressions()
+    {
+        RowOrdering ordering =
+            RowOrdering.of(
+                OrderItem.field("name").desc(),
+                OrderItem.expression("lower({alias}.shortname)").nullsFirst(),
+                OrderItem.field("id").asc()
+            );
+
+        assert ordering.getOrderByExpressions("d").equals(asList("d.name desc", "lower(d.shortname) nulls first", "d.id asc"))
+            : "Unexpected order by expressions: " + ordering.getOrderByExpressions("d");
+
+        assert ordering.getOrderByExpressions(null).equals(asList("name desc", "lower(shortname) nulls first", "id asc"))
+            : "Unexpected unqualified order by expressions: " + ordering.getOrderByExpressions(null);
+    }
+
+    @Test
+    public void testSerialization() throws IOException, ClassNotFoundException
+    {
+        RowOrdering ordering = fields("name desc nulls last", "id");
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try ( ObjectOutputStream oos = new ObjectOutputStream(bos) )
+        {
+            oos.writeObject(ordering);
+        }
+
+        try ( ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())) )
+        {
+            assert ordering.equals(ois.readObject()) : "Deserialized ordering should equal the original.";
+        }
+    }
+
+    @Test
+    public void testUnparsedFieldSpecificationsRenderedAsGiven()
+    {
+        RowOrdering ordering = fields("name collate \"C\"", "id desc");
+
+        assert ordering.getOrderByExpressions("d").equals(asList("d.name collate \"C\"", "d.id desc"))
+            : "Unexpected order by expressions: " + ordering.getOrderByExpressions("d");
+
+        assert !ordering.getItems().get(0).isFieldExpression() && ordering.getItems().get(1).isFieldExpression()
+            : "Expected only the parsed specification to be a field item.";
+    }
+
+    @Test
+    public void testCustomOrdering()
+    {
+        RowOrdering ordering = new RowOrdering() {
+            @Override
+            public List<String> getOrderByExpressions(String alias) { return asList("coalesce(" + alias + ".shortname, " + alias + ".name)"); }
+        };
+
+        assert ordering.getOrderByExpressions("d").equals(asList("coalesce(d.shortname, d.name)"))
+            : "Unexpected order by expressions: " + ordering.getOrderByExpressions("d");
+        assert ordering.getItems().isEmpty() : "Expected no order items for a custom ordering.";
+        assert ordering.equals(ordering) && !ordering.equals(fields("shortname")) : "Expected a custom ordering to compare by identity.";
+    }
+}
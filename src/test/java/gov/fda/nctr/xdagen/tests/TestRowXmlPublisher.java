@@ -0,0 +1,159 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+import gov.fda.nctr.xdagen.RowXmlPublisher;
+import gov.fda.nctr.xdagen.RowXmlPublisher.RowXml;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+import gov.fda.nctr.xdagen.XdaExecutor;
+import gov.fda.nctr.xdagen.XdaFlow.Subscriber;
+import gov.fda.nctr.xdagen.XdaFlow.Subscription;
+
+
+public class TestRowXmlPublisher {
+
+    QueryGenerator qryGen;
+
+    TableOutputSpec drugTOS;
+
+    XdaQuery drugsQuery;
+
+    @BeforeClass
+    protected void setUp() throws IOException
+    {
+        DBMD dbmd;
+        try ( InputStream dbmdXmlIs = new TestingResources().metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        qryGen = QueryGenerator.builder(dbmd).build();
+
+        drugTOS = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table("drug");
+
+        drugsQuery = new XdaQuery(drugTOS, QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS, Optional.of("d"), Optional.empty());
+    }
+
+    private static FakeJdbc drugsDatabase(int rows)
+    {
+        String[] rowXmls = new String[rows];
+        for ( int i = 0; i < rows; ++i )
+            rowXmls[i] = "<drug><id>" + (i + 1) + "</id></drug>";
+
+        return new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.VARCHAR, rowXmls));
+    }
+
+    /// Records the signals received, requesting nothing itself.
+    private static class RecordingSubscriber implements Subscriber<RowXml>
+    {
+        Subscription subscription;
+        final List<String> xmls = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean completed;
+        volatile Throwable error;
+        final CountDownLatch terminated = new CountDownLatch(1);
+
+        @Override public void onSubscribe(Subscription s) { subscription = s; }
+        @Override public void onNext(RowXml row) { xmls.add(row.getXml()); }
+        @Override public void onError(Throwable t) { error = t; terminated.countDown(); }
+        @Override public void onComplete() { completed = true; terminated.countDown(); }
+    }
+
+    @Test
+    public void testRowsReadOnlyAsRequested()
+    {
+        FakeJdbc jdbc = drugsDatabase(5);
+        RowXmlPublisher publisher = new XdaExecutor(qryGen, jdbc.dataSource()).publishRowXml(drugsQuery, Collections.emptyList(), Runnable::run);
+
+        RecordingSubscriber sub = new RecordingSubscriber();
+        publisher.subscribe(sub);
+
+        assert jdbc.connectionsOpened.get() == 0 : "Expected no execution before rows are requested.";
+
+        sub.subscription.request(2);
+
+        FakeJdbc.Execution exec = jdbc.executions.get(0);
+        assert sub.xmls.size() == 2 && exec.rowsFetched.get() == 2 && !sub.completed : "Expected only the requested rows to be read.";
+
+        sub.subscription.request(10);
+
+        assert sub.xmls.size() == 5 && sub.completed && sub.error == null : "Expected the remaining rows and completion.";
+        assert sub.xmls.get(4).equals("<drug><id>5</id></drug>") : "Expected rows in result order.";
+        assert exec.resultSetClosed && exec.statementClosed && jdbc.connectionsClosed.get() == 1 : "Expected resources released on completion.";
+    }
+
+    @Test
+    public void testCancelReleasesConnection()
+    {
+        FakeJdbc jdbc = drugsDatabase(5);
+        RowXmlPublisher publisher = new XdaExecutor(qryGen, jdbc.dataSource()).publishRowXml(drugsQuery, Collections.emptyList(), Runnable::run);
+
+        RecordingSubscriber sub = new RecordingSubscriber();
+        publisher.subscribe(sub);
+        sub.subscription.request(1);
+        sub.subscription.cancel();
+        sub.subscription.request(1);
+
+        FakeJdbc.Execution exec = jdbc.executions.get(0);
+        assert sub.xmls.size() == 1 && !sub.completed && sub.error == null : "Expected no signals after cancellation.";
+        assert exec.statementCancelled && exec.statementClosed && jdbc.connectionsClosed.get() == 1 : "Expected the statement cancelled and the connection released.";
+    }
+
+    @Test
+    public void testNonPositiveRequestSignalsError()
+    {
+        FakeJdbc jdbc = drugsDatabase(3);
+        RowXmlPublisher publisher = new XdaExecutor(qryGen, jdbc.dataSource()).publishRowXml(drugsQuery, Collections.emptyList(), Runnable::run);
+
+        RecordingSubscriber sub = new RecordingSubscriber();
+        publisher.subscribe(sub);
+        sub.subscription.request(0);
+
+        assert sub.error instanceof IllegalArgumentException : "Expected an error for a non-positive request.";
+        assert jdbc.connectionsOpened.get() == jdbc.connectionsClosed.get() : "Expected no connection left open.";
+    }
+
+    @Test
+    public void testRequestsFromOnNext() throws InterruptedException
+    {
+        FakeJdbc jdbc = drugsDatabase(2000);
+        ExecutorService deliveryExecutor = Executors.newSingleThreadExecutor();
+        try
+        {
+            RowXmlPublisher publisher = new XdaExecutor(qryGen, jdbc.dataSource()).publishRowXml(drugsQuery, Collections.emptyList(), deliveryExecutor);
+
+            // Requests one row at a time from onNext, which must neither recurse nor lose demand.
+            RecordingSubscriber sub = new RecordingSubscriber()
+            {
+                @Override public void onSubscribe(Subscription s) { super.onSubscribe(s); s.request(1); }
+                @Override public void onNext(RowXml row) { super.onNext(row); subscription.request(1); }
+            };
+            publisher.subscribe(sub);
+
+            assert sub.terminated.await(10, TimeUnit.SECONDS) : "Expected the subscription to complete.";
+            assert sub.completed && sub.xmls.size() == 2000 : "Expected all rows, got " + sub.xmls.size();
+        }
+        finally
+        {
+            deliveryExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering.fields;
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+
+
+public class TestSpecInterning {
+
+    DBMD dbmd;
+
+    @BeforeClass
+    protected void setUp() throws IOException
+    {
+        TestingResources res = new TestingResources();
+
+        try ( InputStream dbmdXmlIs = res.metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+    }
+
+    @Test
+    public void testEqualSpecsAreIdentical()
+    {
+        TableOutputSpec.Factory tosFactory = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen", true);
+
+        TableOutputSpec tos1 = tosFactory.table("drug").withAllChildTables().withAllParentTables().orderedBy(fields("id"));
+        TableOutputSpec tos2 = tosFactory.table("drug").withAllChildTables().withAllParentTables().orderedBy(fields("id"));
+
+        assert tos1 == tos2 : "Expected interned specs to be identical.";
+        assert tos1.getOutputSpecForParent("compound") == tosFactory.table("drug").withParent("compound").getOutputSpecForParent("compound")
+            : "Expected default parent specs to be identical.";
+
+        assert tos1.orderedBy(fields("name")) != tos1 : "Expected distinct specs for different orderings.";
+    }
+
+    @Test
+    public void testNoInterningByDefault()
+    {
+        TableOutputSpec.Factory tosFactory = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen");
+
+        TableOutputSpec tos1 = tosFactory.table("drug").withAllChildTables();
+        TableOutputSpec tos2 = tosFactory.table("drug").withAllChildTables();
+
+        assert tos1 != tos2 && tos1.equals(tos2) : "Expected equal but distinct specs without interning.";
+    }
+
+    @Test
+    public void testConcurrentInterning() throws Exception
+    {
+        TableOutputSpec.Factory tosFactory = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.WRAPPED, "http://nctr.fda.gov/xdagen", true);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<TableOutputSpec>> futures = new ArrayList<>();
+            for ( int i = 0; i < 64; ++i )
+                futures.add(executor.submit(() -> tosFactory.table("drug").withAllChildTables().withAllParentTables()));
+
+            TableOutputSpec first = futures.get(0).get();
+            for ( Future<TableOutputSpec> f: futures )
+                assert f.get() == first : "Expected concurrently built specs to be identical.";
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static gov.fda.nctr.xdagen.TableOutputSpec.RowOrdering.fields;
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.util.WeightedLruCache;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+
+
+public class TestSqlCache {
+
+    DBMD dbmd;
+
+    TableOutputSpec drugTOS;
+
+    @BeforeClass
+    protected void setUp() throws IOException
+    {
+        TestingResources res = new TestingResources();
+
+        try ( InputStream dbmdXmlIs = res.metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        TableOutputSpec.Factory tosFactory = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen");
+
+        drugTOS = tosFactory.table("drug").withAllChildTables().withAllParentTables();
+    }
+
+    @Test
+    public void testHitsAndMisses() throws IOException
+    {
+        QueryGenerator g = QueryGenerator.builder(dbmd).cacheGeneratedSql(true).build();
+
+        String sql1 = g.getRowElementsQuery(drugTOS, "d", Optional.of("d.id = ?"));
+        String sql2 = g.getRowElementsQuery(drugTOS, "d", Optional.of("d.id = ?"));
+
+        assert sql1 == sql2 : "Expected cached sql to be returned for repeated query.";
+
+        WeightedLruCache.Stats stats = g.getGeneratedSqlCacheStats();
+
+        assert stats.getHitCount() == 1 && stats.getMissCount() == 1 && stats.getLoadCount() == 1 : "Unexpected cache statistics: " + stats;
+        assert stats.getWeight() == sql1.length() : "Cache weight should be the cached sql length: " + stats;
+    }
+
+    @Test
+    public void testSeparatelyBuiltOrderingsHitCache() throws IOException
+    {
+        QueryGenerator g = QueryGenerator.builder(dbmd).cacheGeneratedSql(true).build();
+
+        // Orderings are rebuilt for each request, as a client building specs per request would do.
+        String sql1 = g.getRowElementsQuery(drugTOS.orderedBy(fields("name desc", "id")), "d");
+        String sql2 = g.getRowElementsQuery(drugTOS.orderedBy(fields("name desc", "id")), "d");
+
+        WeightedLruCache.Stats stats = g.getGeneratedSqlCacheStats();
+
+        assert sql1 == sql2 && stats.getHitCount() == 1 && stats.getLoadCount() == 1 : "Expected a cache hit for an equal ordering: " + stats;
+    }
+
+    @Test
+    public void testSubqueryFragmentReuse() throws IOException
+    {
+        for ( QueryGenerator.RenderingEngine engine: QueryGenerator.RenderingEngine.values() )
+        {
+            QueryGenerator g = QueryGenerator.builder(dbmd).renderingEngine(engine).cacheGeneratedSql(true).build();
+
+            QueryGenerator uncachedGen = QueryGenerator.builder(dbmd).renderingEngine(engine).build();
+
+            // The drug rows query within the compound query has alias "d", so its subqueries are those of the drug query.
+            TableOutputSpec compoundTOS = drugTOS.getFactory().table("compound").withChild(drugTOS);
+
+            String drugSql = g.getRowElementsQuery(drugTOS, "d");
+            long hitsBefore = g.getSubqueryFragmentCacheStats().getHitCount();
+            String compoundSql = g.getRowElementsQuery(compoundTOS, "c");
+
+            assert g.getSubqueryFragmentCacheStats().getHitCount() > hitsBefore : "Expected drug subquery fragments to be reused: " + g.getSubqueryFragmentCacheStats();
+
+            assert drugSql.equals(uncachedGen.getRowElementsQuery(drugTOS, "d")) : "Query with cached fragments differs from uncached query.";
+            assert compoundSql.equals(uncachedGen.getRowElementsQuery(compoundTOS, "c")) : "Query with reused fragments differs from uncached query.";
+        }
+    }
+
+    @Test
+    public void testWeightBound() throws IOException
+    {
+        QueryGenerator g = QueryGenerator.builder(dbmd).cacheGeneratedSql(true).build();
+
+        int sqlLength = g.getRowElementsQuery(drugTOS, "d", Optional.of("d.id = 100")).length();
+
+        g = g.toBuilder().generatedSqlCacheMaximumWeight(3 * sqlLength + 10).build();
+
+        for ( int id = 100; id < 110; ++id )
+            g.getRowElementsQuery(drugTOS, "d", Optional.of("d.id = " + id));
+
+        WeightedLruCache.Stats stats = g.getGeneratedSqlCacheStats();
+
+        assert stats.getWeight() <= stats.getMaximumWeight() : "Cache exceeds its maximum weight: " + stats;
+        assert stats.getEntryCount() == 3 : "Expected three cached entries: " + stats;
+        assert stats.getEvictionCount() == 7 : "Expected seven evictions: " + stats;
+
+        // The most recently used entries should have been retained.
+        g.getRowElementsQuery(drugTOS, "d", Optional.of("d.id = 109"));
+        assert g.getGeneratedSqlCacheStats().getHitCount() == 1 : "Expected a cache hit for a recently used entry.";
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception
+    {
+        QueryGenerator g = QueryGenerator.builder(dbmd).cacheGeneratedSql(true).build();
+
+        String expectedSql = g.getRowElementsQuery(drugTOS, "d", Optional.of("d.id = 1"));
+        g.clearGeneratedSqlCache();
+        long requestsBefore = g.getGeneratedSqlCacheStats().getRequestCount(); // clearing does not reset statistics
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<String>> futures = new ArrayList<>();
+            for ( int i = 0; i < 400; ++i )
+            {
+                int id = i % 20;
+                futures.add(executor.submit(() -> g.getRowElementsQuery(drugTOS, "d", Optional.of("d.id = " + id))));
+            }
+
+            for ( int i = 0; i < futures.size(); ++i )
+            {
+                String sql = futures.get(i).get();
+                if ( i % 20 == 1 )
+                    assert sql.equals(expectedSql) : "Concurrently generated sql differs from expected.";
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        WeightedLruCache.Stats stats = g.getGeneratedSqlCacheStats();
+        assert stats.getEntryCount() == 20 : "Expected one cache entry per distinct query: " + stats;
+        assert stats.getRequestCount() - requestsBefore == 400 : "Expected all requests to be counted: " + stats;
+    }
+
+    @Test
+    public void testConcurrentInsertionsStayWithinWeightBound() throws Exception
+    {
+        // Far more distinct entries than fit, so that eviction samples rather than scanning all entries.
+        WeightedLruCache<Integer,String> cache = new WeightedLruCache<>(1000, String::length);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for ( int t = 0; t < 8; ++t )
+            {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for ( int i = 0; i < 5000; ++i )
+                    {
+                        int key = thread * 5000 + i;
+                        cache.get(key, k -> "value " + k);
+                        cache.getIfPresent(key - 1);
+                    }
+                }));
+            }
+
+            for ( Future<?> f: futures )
+                f.get();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        WeightedLruCache.Stats stats = cache.getStats();
+
+        assert stats.getWeight() <= stats.getMaximumWeight() : "Cache exceeds its maximum weight: " + stats;
+        assert stats.getLoadCount() == 40000 && stats.getEvictionCount() == stats.getLoadCount() - stats.getEntryCount()
+            : "Expected every entry not retained to have been evicted: " + stats;
+
+        long retainedWeight = 0;
+        for ( int key = 0; key < 40000; ++key )
+            retainedWeight += cache.getIfPresent(key).map(String::length).orElse(0);
+        assert retainedWeight == stats.getWeight() : "Expected the cache weight to be that of the retained entries: " + stats;
+    }
+
+    @Test
+    public void testCachesOfDiscardedRenderingOptionsCollected() throws Exception
+    {
+        QueryGenerator g = QueryGenerator.builder(dbmd).cacheGeneratedSql(true).build();
+
+        // Content expression generators are rendering options compared by identity, so each derived generator below has
+        // caches of its own, which should not outlive it.
+        QueryGenerator.FieldElementContentExpressionGenerator contentGen = new QueryGenerator.DefaultFieldElementContentExpressionGenerator();
+        WeakReference<QueryGenerator.FieldElementContentExpressionGenerator> contentGenRef = new WeakReference<>(contentGen);
+
+        g.withFieldElementContentExpressionGenerator(contentGen).getRowElementsQuery(drugTOS, "d");
+        contentGen = null;
+
+        for ( int i = 0; i < 50 && contentGenRef.get() != null; ++i )
+        {
+            System.gc();
+            Thread.sleep(10);
+            // Deriving another generator removes the entries of collected caches.
+            g.withFieldElementContentExpressionGenerator(new QueryGenerator.DefaultFieldElementContentExpressionGenerator());
+        }
+
+        assert contentGenRef.get() == null : "Expected the rendering options of a discarded generator not to be retained.";
+    }
+}
@@ -0,0 +1,248 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.testng.annotations.Test;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.dbmd.RelId;
+import gov.fda.nctr.xdagen.ChildAggregationStrategy;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.StrategyPlanner;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+import gov.fda.nctr.xdagen.TableStatistics;
+
+
+/** Checks the strategies chosen by the strategy planner from table statistics. Equivalence of the xml produced by the
+ *  planned specifications with statistics read from the test databases is checked in QueriesIT. */
+public class TestStrategyPlanner {
+
+    TestingResources res = new TestingResources();
+
+    @Test
+    public void testFewRowsCorrelated() throws IOException
+    {
+        DBMD dbmd = res.loadDbmd("pg");
+        StrategyPlanner planner = new StrategyPlanner(res.makeQueryGenerator(dbmd), makeStatistics(dbmd));
+
+        TableOutputSpec ospec = drugOutputSpec(dbmd);
+
+        StrategyPlanner.Plan plan = planner.plan(ospec, 5);
+
+        assert plan.getTableOutputSpec().getChildAggregationStrategy().equals(Optional.of(ChildAggregationStrategy.CORRELATED_SUBQUERIES))
+            : "Expected correlated subqueries for the children of few drugs:\n" + plan;
+        assert plan.getReport().contains("\nxdagentest.drug: 5 of 1000000 rows, child collections by CORRELATED_SUBQUERIES (estimated costs: ")
+            : "Expected the drug strategy and its costs to be reported:\n" + plan;
+        assert plan.getReport().contains("\n  child xdagentest.brand [drug_id]: 5 of 1000000 rows\n")
+            : "Expected a brand per drug to be rendered:\n" + plan;
+    }
+
+    @Test
+    public void testListingGrouped() throws IOException
+    {
+        DBMD dbmd = res.loadDbmd("pg");
+        QueryGenerator g = res.makeQueryGenerator(dbmd);
+        StrategyPlanner planner = new StrategyPlanner(g, makeStatistics(dbmd));
+
+        TableOutputSpec ospec = drugOutputSpec(dbmd);
+
+        StrategyPlanner.Plan plan = planner.plan(ospec);
+
+        assert plan.getTableOutputSpec().getChildAggregationStrategy().equals(Optional.of(ChildAggregationStrategy.GROUPED_JOINS))
+            : "Expected grouped joins for the children of all drugs:\n" + plan;
+        assert g.getRowElementsQuery(plan.getTableOutputSpec(), "d").equals(g.withChildAggregationStrategy(ChildAggregationStrategy.GROUPED_JOINS).getRowElementsQuery(ospec, "d"))
+            : "Expected the planned specification to render as with grouped joins throughout.";
+        assert plan.getEstimatedCost() > planner.plan(ospec, 5).getEstimatedCost() : "Expected the listing to cost more than a few drugs.";
+    }
+
+    @Test
+    public void testStrategiesChosenPerSubtree() throws IOException
+    {
+        DBMD dbmd = res.loadDbmd("pg");
+        TableOutputSpec.Factory tosFactory = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen");
+
+        // A few large manufacturers, whose brands' drugs have their advisories.
+        TableStatistics stats =
+            TableStatistics.builder()
+            .rowCount(dbmd.toRelId("xdagentest.manufacturer"), 3)
+            .rowCount(dbmd.toRelId("xdagentest.brand"), 1000000)
+            .rowCount(dbmd.toRelId("xdagentest.drug"), 1000000)
+            .rowCount(dbmd.toRelId("xdagentest.advisory"), 2000000)
+            .build();
+
+        TableOutputSpec manufacturerOspec =
+            tosFactory.table("manufacturer")
+            .withChild(tosFactory.table("brand").withParent(tosFactory.table("drug").withChild("advisory")));
+
+        StrategyPlanner.Plan plan = new StrategyPlanner(res.makeQueryGenerator(dbmd), stats).plan(manufacturerOspec, 1);
+
+        TableOutputSpec plannedOspec = plan.getTableOutputSpec();
+        TableOutputSpec plannedDrugOspec = plannedOspec.getOutputSpecForChild("brand").getOutputSpecForParent("drug");
+
+        assert plannedOspec.getChildAggregationStrategy().equals(Optional.of(ChildAggregationStrategy.CORRELATED_SUBQUERIES))
+            : "Expected the brands of one manufacturer to be correlated:\n" + plan;
+        assert plannedDrugOspec.getChildAggregationStrategy().equals(Optional.of(ChildAggregationStrategy.GROUPED_JOINS))
+            : "Expected the advisories of the drugs of a third of the brands to be grouped:\n" + plan;
+        assert !plannedOspec.getOutputSpecForChild("brand").getChildAggregationStrategy().isPresent()
+            : "Expected no strategy for a specification without child tables.";
+    }
+
+    @Test
+    public void testSpecifiedStrategyKept() throws IOException
+    {
+        DBMD dbmd = res.loadDbmd("pg");
+        StrategyPlanner planner = new StrategyPlanner(res.makeQueryGenerator(dbmd), makeStatistics(dbmd));
+
+        TableOutputSpec ospec = drugOutputSpec(dbmd).withChildAggregationStrategy(ChildAggregationStrategy.GROUPED_JOINS);
+
+        StrategyPlanner.Plan plan = planner.plan(ospec, 5);
+
+        assert plan.getTableOutputSpec().equals(ospec) : "Expected the specified strategy to be kept:\n" + plan;
+        assert plan.getReport().contains("child collections by GROUPED_JOINS as specified, estimated cost ")
+            : "Expected the specified strategy to be reported:\n" + plan;
+    }
+
+    @Test
+    public void testLateralJoinsOnlyConsideredForPostgres() throws IOException
+    {
+        DBMD pgDbmd = res.loadDbmd("pg");
+        String pgReport = new StrategyPlanner(res.makeQueryGenerator(pgDbmd), makeStatistics(pgDbmd)).plan(drugOutputSpec(pgDbmd), 5).getReport();
+
+        assert pgReport.contains(" LATERAL_JOINS ") : "Expected lateral joins to be costed for PostgreSQL:\n" + pgReport;
+
+        DBMD oraDbmd = res.loadDbmd("ora");
+        String oraReport = new StrategyPlanner(res.makeQueryGenerator(oraDbmd), makeStatistics(oraDbmd)).plan(drugOutputSpec(oraDbmd), 5).getReport();
+
+        assert !oraReport.contains("LATERAL_JOINS") : "Expected lateral joins not to be costed for Oracle:\n" + oraReport;
+    }
+
+    @Test
+    public void testTablesWithoutStatistics() throws IOException
+    {
+        DBMD dbmd = res.loadDbmd("pg");
+        StrategyPlanner planner = new StrategyPlanner(res.makeQueryGenerator(dbmd), TableStatistics.builder().build());
+
+        StrategyPlanner.Plan plan = planner.plan(drugOutputSpec(dbmd));
+
+        assert plan.getReport().contains("\nxdagentest.drug: 1000 of 1000 rows (assumed, no statistics), child collections by ")
+            : "Expected the default row count to be reported for tables without statistics:\n" + plan;
+    }
+
+    @Test
+    public void testStatisticsStoredAsXml() throws IOException
+    {
+        DBMD dbmd = res.loadDbmd("pg");
+        TableStatistics stats = makeStatistics(dbmd);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        stats.writeXML(os);
+
+        TableStatistics readStats = TableStatistics.readXML(new ByteArrayInputStream(os.toByteArray()), dbmd);
+
+        assert readStats.equals(stats) : "Expected the statistics read to equal those written.";
+        assert readStats.getDistinctValueCount(dbmd.toRelId("xdagentest.advisory"), "drug_id").equals(Optional.of(900000L))
+            : "Expected the distinct value count of the advisory drug ids.";
+    }
+
+    @Test
+    public void testStatisticsReadForMetadataSchemasOnly() throws IOException, SQLException
+    {
+        DBMD dbmd = res.loadDbmd("pg");
+        FakeJdbc jdbc = catalogDatabase();
+
+        TableStatistics stats = TableStatistics.readFromDatabase(jdbc.connection(), dbmd);
+
+        assert stats.getRowCount(dbmd.toRelId("xdagentest.drug")).equals(Optional.of(1000L))
+            && stats.getRowCount(dbmd.toRelId("xdagentest.brand")).equals(Optional.of(2000L))
+            : "Expected the row counts of the metadata's schema: " + stats.getRowCounts();
+        assert stats.getDistinctValueCount(dbmd.toRelId("xdagentest.drug"), "compound_id").equals(Optional.of(50L))
+            : "Expected the distinct value count of the metadata's schema.";
+        assert jdbc.executions.size() == 2 : "Expected no current schema query for tables qualified by schema.";
+        for ( FakeJdbc.Execution exec: jdbc.executions )
+            assert new ArrayList<>(exec.bindValues.values()).equals(Collections.singletonList("xdagentest"))
+                : "Expected the catalog queries to read only the metadata's schema: " + exec.bindValues;
+    }
+
+    @Test
+    public void testUnqualifiedTablesReadFromCurrentSchema() throws IOException, SQLException
+    {
+        String dbmdXml = TestingResources.resourceAsString(res.metadataResourcePath("pg", "dbmd.xml")).replace(" schema=\"xdagentest\"", "");
+        DBMD dbmd = DBMD.readXML(new ByteArrayInputStream(dbmdXml.getBytes(StandardCharsets.UTF_8)));
+        FakeJdbc jdbc = catalogDatabase();
+
+        TableStatistics stats = TableStatistics.readFromDatabase(jdbc.connection(), dbmd);
+
+        RelId drugRelId = null;
+        for ( RelId relId: dbmd.getRelationIds() )
+            if ( relId.getName().equals("drug") )
+                drugRelId = relId;
+
+        assert drugRelId != null && drugRelId.getSchema() == null : "Expected the drug table not to be qualified by schema.";
+        assert stats.getRowCount(drugRelId).equals(Optional.of(1000L)) : "Expected the row count of the current schema's table: " + stats.getRowCounts();
+        assert stats.getRowCounts().size() == 2 : "Expected only the current schema's tables: " + stats.getRowCounts();
+        assert jdbc.executions.get(0).sql.equals("select current_schema()") : "Expected the current schema to be read first.";
+    }
+
+    /// A PostgreSQL catalog having drug and brand tables in both the xdagentest schema, which is the current schema,
+    /// and in another schema, its catalog queries returning the tables of the bound schemas.
+    private static FakeJdbc catalogDatabase()
+    {
+        List<Object[]> tables = Arrays.asList(
+            new Object[]{ "xdagentest", "drug", 1000d },
+            new Object[]{ "other", "drug", 5d },
+            new Object[]{ "xdagentest", "brand", 2000d },
+            new Object[]{ "other", "brand", 7d }
+        );
+        List<Object[]> stats = Arrays.asList(
+            new Object[]{ "other", "drug", "compound_id", 3d },
+            new Object[]{ "xdagentest", "drug", "compound_id", 50d }
+        );
+
+        return FakeJdbc.withResultsByExecution(exec -> {
+            if ( exec.sql.equals("select current_schema()") )
+                return new FakeJdbc.Result(Collections.singletonList("current_schema"), Collections.singletonList(Types.VARCHAR), Collections.singletonList(new Object[]{ "xdagentest" }));
+
+            boolean tableStats = exec.sql.contains("pg_class");
+            List<Object[]> rows = new ArrayList<>();
+            for ( Object[] row: tableStats ? tables : stats )
+                if ( exec.bindValues.containsValue(row[0]) )
+                    rows.add(row);
+
+            return tableStats ?
+                new FakeJdbc.Result(Arrays.asList("nspname", "relname", "reltuples"), Arrays.asList(Types.VARCHAR, Types.VARCHAR, Types.DOUBLE), rows)
+                : new FakeJdbc.Result(Arrays.asList("schemaname", "tablename", "attname", "n_distinct"), Arrays.asList(Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.DOUBLE), rows);
+        });
+    }
+
+    // A million drugs with their compounds and brands, and more of their other child rows, a tenth of drugs having no
+    // advisories.
+    private TableStatistics makeStatistics(DBMD dbmd)
+    {
+        TableStatistics.Builder b = TableStatistics.builder();
+
+        for ( String table: new String[]{ "drug", "compound", "brand" } )
+            b.rowCount(dbmd.toRelId("xdagentest." + table), 1000000);
+
+        for ( String table: new String[]{ "advisory", "drug_functional_category", "drug_reference", "reference" } )
+            b.rowCount(dbmd.toRelId("xdagentest." + table), 3000000);
+
+        return b.distinctValueCount(dbmd.toRelId("xdagentest.advisory"), "drug_id", 900000).build();
+    }
+
+    private TableOutputSpec drugOutputSpec(DBMD dbmd)
+    {
+        return new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table("drug").withAllChildTables().withAllParentTables();
+    }
+}
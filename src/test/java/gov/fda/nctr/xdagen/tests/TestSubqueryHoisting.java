@@ -0,0 +1,200 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildAggregationStrategy;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.ParentLookupStrategy;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.RenderingEngine;
+import gov.fda.nctr.xdagen.SubqueryHoisting;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+
+
+/** Checks the SQL generated with repeated rows queries hoisted into common table expressions. Equivalence of the xml
+ *  produced with that of unhoisted queries is checked against the test databases in QueriesIT. */
+public class TestSubqueryHoisting {
+
+    TestingResources res = new TestingResources();
+
+    @DataProvider(name = "dbsAndStrategies")
+    public Object[][] dbsAndStrategies()
+    {
+        List<Object[]> l = new ArrayList<>();
+
+        for ( String db: new String[]{ "pg", "ora" } )
+            for ( ChildAggregationStrategy childStrategy: new ChildAggregationStrategy[]{ ChildAggregationStrategy.CORRELATED_SUBQUERIES, ChildAggregationStrategy.GROUPED_JOINS } )
+                for ( ParentLookupStrategy parentStrategy: new ParentLookupStrategy[]{ ParentLookupStrategy.CORRELATED_SUBQUERIES, ParentLookupStrategy.LEFT_JOINS } )
+                    l.add(new Object[]{ db, childStrategy, parentStrategy });
+
+        for ( ChildAggregationStrategy childStrategy: ChildAggregationStrategy.values() )
+            l.add(new Object[]{ "pg", childStrategy, ParentLookupStrategy.LATERAL_JOINS });
+
+        return l.toArray(new Object[0][]);
+    }
+
+    @Test
+    public void testRepeatedRowsQueryHoisted() throws IOException
+    {
+        QueryGenerator g = res.makeQueryGenerator("pg").withSubqueryHoisting(SubqueryHoisting.COMMON_TABLE_EXPRESSIONS);
+
+        String sql = g.getRowElementsQuery(drugOutputSpec("pg", ChildCollectionsStyle.INLINE), "d", Optional.of("d.id = ?"));
+
+        assert sql.startsWith("with a_rows as not materialized\n ( select -- rows of xdagentest.authority\n     a.*,\n")
+            : "Expected the authority rows query in a common table expression heading the query:\n" + sql;
+        assert sql.contains("\n   from xdagentest.authority a\n )\nselect -- rows of xdagentest.drug\n")
+            : "Expected the drug query to follow the WITH clause:\n" + sql;
+        assert sql.indexOf("from xdagentest.authority") == sql.lastIndexOf("from xdagentest.authority")
+            : "Expected the authority rows query to be rendered once:\n" + sql;
+        assert sql.contains("(select a.row_xml\n                  from a_rows a\n                  where\n                    a.id = at.authority_id\n")
+            : "Expected the authority of the advisory type to be selected from the common table expression:\n" + sql;
+        assert sql.contains("(select a.row_xml\n             from a_rows a\n             where\n               a.id = dfc.authority_id\n")
+            : "Expected the authority of the functional category to be selected from the common table expression:\n" + sql;
+    }
+
+    @Test
+    public void testJoinedParentsReferenceHoistedRows() throws IOException
+    {
+        QueryGenerator g =
+            res.makeQueryGenerator("pg")
+            .withParentLookupStrategy(ParentLookupStrategy.LEFT_JOINS)
+            .withSubqueryHoisting(SubqueryHoisting.COMMON_TABLE_EXPRESSIONS);
+
+        String sql = g.getRowElementsQuery(drugOutputSpec("pg", ChildCollectionsStyle.INLINE), "d");
+
+        assert sql.contains("\n           left join a_rows a_parent\n             on a_parent.id = at.authority_id\n")
+            : "Expected the advisory type's authority to be joined from the common table expression:\n" + sql;
+        assert sql.contains("\n        left join a_rows a_parent\n          on a_parent.id = dfc.authority_id\n")
+            : "Expected the functional category's authority to be joined from the common table expression:\n" + sql;
+    }
+
+    @Test
+    public void testNoWithClauseWithoutRepeatedRowsQueries() throws IOException
+    {
+        QueryGenerator g = res.makeQueryGenerator("pg");
+        QueryGenerator hoistingGen = g.withSubqueryHoisting(SubqueryHoisting.COMMON_TABLE_EXPRESSIONS);
+
+        TableOutputSpec ospec =
+            new DefaultTableOutputSpecFactory(res.loadDbmd("pg"), ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen")
+            .table("drug").withAllChildTables().withAllParentTables();
+
+        assert hoistingGen.getRowElementsQuery(ospec, "d").equals(g.getRowElementsQuery(ospec, "d"))
+            : "Expected the same query as without hoisting when no rows query is repeated.";
+        assert hoistingGen.getRowCollectionElementQuery(ospec, Optional.of("d"), Optional.empty()).equals(g.getRowCollectionElementQuery(ospec, Optional.of("d"), Optional.empty()))
+            : "Expected the same collection query as without hoisting when no rows query is repeated.";
+    }
+
+    @Test(dataProvider = "dbsAndStrategies")
+    public void testRenderingEnginesAgree
+    (
+        String db,
+        ChildAggregationStrategy childStrategy,
+        ParentLookupStrategy parentStrategy
+    )
+        throws IOException
+    {
+        QueryGenerator directGen =
+            res.makeQueryGenerator(db)
+            .withChildAggregationStrategy(childStrategy)
+            .withParentLookupStrategy(parentStrategy)
+            .withSubqueryHoisting(SubqueryHoisting.COMMON_TABLE_EXPRESSIONS);
+        QueryGenerator templatesGen = directGen.withRenderingEngine(RenderingEngine.FREEMARKER_TEMPLATES);
+
+        for ( ChildCollectionsStyle style: ChildCollectionsStyle.values() )
+        {
+            TableOutputSpec ospec = drugOutputSpec(db, style);
+
+            assert templatesGen.getRowElementsQuery(ospec, "d", Optional.of("d.id = ?"))
+                   .equals(directGen.getRowElementsQuery(ospec, "d", Optional.of("d.id = ?")))
+                : "Rendering engines differ for hoisted row elements query.";
+
+            assert templatesGen.getRowCollectionElementQuery(ospec, Optional.of("dr"), Optional.empty())
+                   .equals(directGen.getRowCollectionElementQuery(ospec, Optional.of("dr"), Optional.empty()))
+                : "Rendering engines differ for hoisted row collection element query.";
+
+            assert templatesGen.getRowCollectionMemberBatchesQuery(ospec, Optional.of("dr"), Optional.empty())
+                   .equals(directGen.getRowCollectionMemberBatchesQuery(ospec, Optional.of("dr"), Optional.empty()))
+                : "Rendering engines differ for hoisted row collection member batches query.";
+        }
+    }
+
+    @Test
+    public void testCachedSqlMatchesUncached() throws IOException
+    {
+        QueryGenerator g =
+            res.makeQueryGenerator("pg")
+            .withParentLookupStrategy(ParentLookupStrategy.LEFT_JOINS)
+            .withSubqueryHoisting(SubqueryHoisting.COMMON_TABLE_EXPRESSIONS);
+        QueryGenerator cachingGen = g.withCacheGeneratedSql(true);
+
+        TableOutputSpec ospec = drugOutputSpec("pg", ChildCollectionsStyle.WRAPPED);
+
+        // The last alias is the name of a common table expression when the table alias differs.
+        for ( String alias: new String[]{ "d", "x", "d", "a_rows" } )
+        {
+            String sql = cachingGen.getRowElementsQuery(ospec, alias, Optional.of(alias + ".id = ?"));
+
+            assert sql.equals(g.getRowElementsQuery(ospec, alias, Optional.of(alias + ".id = ?"))) : "Cached SQL differs for table alias " + alias + ".";
+        }
+
+        String sql = cachingGen.getRowElementsQuery(ospec, "a_rows");
+        assert sql.startsWith("with a_rows1 as not materialized\n") && sql.contains(" join a_rows1 a_parent\n")
+            : "Expected the common table expression name to be distinct from the table alias:\n" + sql;
+    }
+
+    @Test
+    public void testOracleCommonTableExpressionsInlined() throws IOException
+    {
+        // Oracle field names are upper case.
+        String oraSql =
+            res.makeQueryGenerator("ora")
+            .withSubqueryHoisting(SubqueryHoisting.COMMON_TABLE_EXPRESSIONS)
+            .getRowElementsQuery(drugOutputSpec("ora", ChildCollectionsStyle.INLINE), "d")
+            .toLowerCase();
+
+        assert oraSql.startsWith("with a_rows as\n ( select /*+ inline */ -- rows of xdagentest.authority\n")
+            : "Expected the inline hint in the common table expression for Oracle:\n" + oraSql;
+    }
+
+    @Test
+    public void testMaterializedCommonTableExpressions() throws IOException
+    {
+        String pgSql =
+            res.makeQueryGenerator("pg")
+            .withSubqueryHoisting(SubqueryHoisting.MATERIALIZED_COMMON_TABLE_EXPRESSIONS)
+            .getRowElementsQuery(drugOutputSpec("pg", ChildCollectionsStyle.INLINE), "d");
+
+        assert pgSql.startsWith("with a_rows as materialized\n ( select -- rows of xdagentest.authority\n")
+            : "Expected a materialized common table expression for PostgreSQL:\n" + pgSql;
+
+        // Oracle field names are upper case.
+        String oraSql =
+            res.makeQueryGenerator("ora")
+            .withSubqueryHoisting(SubqueryHoisting.MATERIALIZED_COMMON_TABLE_EXPRESSIONS)
+            .getRowElementsQuery(drugOutputSpec("ora", ChildCollectionsStyle.INLINE), "d")
+            .toLowerCase();
+
+        assert oraSql.startsWith("with a_rows as\n ( select /*+ materialize */ -- rows of xdagentest.authority\n")
+            : "Expected the materialize hint in the common table expression for Oracle:\n" + oraSql;
+    }
+
+    // Drugs with their advisories and functional categories, both of which include their authorities, by way of the
+    // advisory types for the advisories.
+    private TableOutputSpec drugOutputSpec(String db, ChildCollectionsStyle style) throws IOException
+    {
+        TableOutputSpec.Factory tosFactory = new DefaultTableOutputSpecFactory(res.loadDbmd(db), style, "http://nctr.fda.gov/xdagen");
+
+        return
+            tosFactory.table("drug")
+            .withChild(tosFactory.table("advisory").withParent(tosFactory.table("advisory_type").withParent("authority")))
+            .withChild(tosFactory.table("drug_functional_category").withParent("authority"));
+    }
+}
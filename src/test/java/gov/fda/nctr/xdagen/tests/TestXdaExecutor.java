@@ -0,0 +1,252 @@
+package gov.fda.nctr.xdagen.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.ChildCollectionsStyle;
+import gov.fda.nctr.xdagen.DefaultTableOutputSpecFactory;
+import gov.fda.nctr.xdagen.QueryGenerator;
+import gov.fda.nctr.xdagen.QueryGenerator.OrderByClauseInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.OutputColumnsInclusion;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery;
+import gov.fda.nctr.xdagen.QueryGenerator.XdaQuery.QueryResultStyle;
+import gov.fda.nctr.xdagen.QueryGenerator.XmlOutputColumnType;
+import gov.fda.nctr.xdagen.TableOutputSpec;
+import gov.fda.nctr.xdagen.XdaExecutor;
+
+
+public class TestXdaExecutor {
+
+    QueryGenerator qryGen;
+
+    TableOutputSpec drugTOS;
+
+    @BeforeClass
+    protected void setUp() throws IOException
+    {
+        TestingResources res = new TestingResources();
+
+        DBMD dbmd;
+        try ( InputStream dbmdXmlIs = res.metadataResourceAsStream("pg", "dbmd.xml") )
+        {
+            dbmd = DBMD.readXML(dbmdXmlIs);
+        }
+
+        qryGen = QueryGenerator.builder(dbmd).build();
+
+        drugTOS = new DefaultTableOutputSpecFactory(dbmd, ChildCollectionsStyle.INLINE, "http://nctr.fda.gov/xdagen").table("drug");
+    }
+
+    private XdaQuery drugRowsQuery(XmlOutputColumnType xmlColType, String filter)
+    {
+        return
+            new XdaQuery(
+                drugTOS,
+                QueryResultStyle.MULTIPLE_ROW_ELEMENT_RESULTS,
+                Optional.of("d"),
+                Optional.of(filter),
+                OrderByClauseInclusion.INCLUDE_ORDERBY_CLAUSE_IF_ORDERED,
+                xmlColType,
+                OutputColumnsInclusion.XML_COLUMN_ONLY
+            );
+    }
+
+    @Test
+    public void testClobsStreamedInChunks() throws SQLException, IOException
+    {
+        String[] rowXmls = { "<drug><id>1</id><name>" + repeat("a", 100) + "</name></drug>", "<drug><id>2</id></drug>", "<drug><id>3</id></drug>" };
+
+        FakeJdbc jdbc = new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.CLOB, rowXmls));
+
+        XdaExecutor executor = new XdaExecutor(qryGen, jdbc.dataSource(), 16);
+
+        StringWriter sw = new StringWriter();
+        long written = executor.writeXml(drugRowsQuery(XmlOutputColumnType.LARGE_CHAR_TYPE, "d.id <= ?"), Collections.singletonList(3), sw);
+
+        String expected = String.join("", rowXmls);
+
+        assert sw.toString().equals(expected) && written == expected.length() : "Unexpected output from streamed clobs.";
+        assert jdbc.maxReadLength.get() == 16 : "Expected clobs to be read in chunks of the configured size.";
+        assert jdbc.lobsFreed.get() == 3 : "Expected each clob to be freed.";
+
+        FakeJdbc.Execution exec = jdbc.executions.get(0);
+        assert exec.sql.equals(qryGen.getSql(drugRowsQuery(XmlOutputColumnType.LARGE_CHAR_TYPE, "d.id <= ?"))) : "Unexpected SQL executed.";
+        assert exec.bindValues.equals(Collections.singletonMap(1, 3)) : "Expected bind value to be set.";
+        assert exec.statementClosed && exec.resultSetClosed && jdbc.connectionsClosed.get() == jdbc.connectionsOpened.get()
+            : "Expected JDBC resources to be closed.";
+    }
+
+    @Test
+    public void testTextColumnsStreamedToOutputStream() throws SQLException, IOException
+    {
+        // Postgres returns large char (text) xml columns as varchar rather than clob.
+        String rowXml = "<drug><name>\u00c4rzneimittel \u2713</name></drug>";
+
+        FakeJdbc jdbc = new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.VARCHAR, rowXml, rowXml));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        long written = new XdaExecutor(qryGen, jdbc.dataSource(), 8).writeXml(drugRowsQuery(XmlOutputColumnType.LARGE_CHAR_TYPE, "d.id = 1"), Collections.emptyList(), os);
+
+        byte[] expected = (rowXml + rowXml).getBytes(StandardCharsets.UTF_8);
+
+        assert Arrays.equals(os.toByteArray(), expected) && written == expected.length : "Expected UTF-8 encoded xml.";
+        assert jdbc.maxReadLength.get() == 8 : "Expected text to be read in chunks of the configured size.";
+    }
+
+    @Test
+    public void testXmlTypeColumns() throws SQLException, IOException
+    {
+        String rowXml = "<drug><id>1</id></drug>";
+
+        FakeJdbc jdbc = new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.SQLXML, rowXml));
+        XdaExecutor executor = new XdaExecutor(qryGen, jdbc.dataSource());
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        executor.writeXml(drugRowsQuery(XmlOutputColumnType.XML_TYPE, "d.id = 1"), Collections.emptyList(), os);
+
+        StringWriter sw = new StringWriter();
+        executor.writeXml(drugRowsQuery(XmlOutputColumnType.XML_TYPE, "d.id = 1"), Collections.emptyList(), sw);
+
+        assert new String(os.toByteArray(), StandardCharsets.UTF_8).equals(rowXml) && sw.toString().equals(rowXml) : "Unexpected output for xml type column.";
+        assert jdbc.lobsFreed.get() == 2 : "Expected SQLXML values to be freed.";
+    }
+
+    @Test
+    public void testClientCollectionAssemblyMatchesDatabaseAggregation() throws SQLException, IOException
+    {
+        TestingResources res = new TestingResources();
+
+        for ( String expectedResName: new String[]{ "drugs_listing_INLINE_el_colls_NO_INDENT.xml", "drugs_listing_WRAPPED_el_colls_INDENT_UNSPECIFIED.xml" } )
+        {
+            // The expected document as aggregated by the database, and its row elements as the members query would return them.
+            String expectedXml = res.expectedResultAsString(expectedResName);
+            String startTag = "<drug-listing xmlns=\"http://nctr.fda.gov/xdagen\">";
+            assert expectedXml.startsWith(startTag) && expectedXml.endsWith("</drug-listing>") : "Unexpected collection element in expected results.";
+            String[] rowXmls = expectedXml.substring(startTag.length(), expectedXml.length() - "</drug-listing>".length()).replace("</drug><drug>", "</drug>\u0000<drug>").split("\u0000");
+            assert rowXmls.length == 5 : "Expected five drug row elements.";
+
+            FakeJdbc jdbc = new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.VARCHAR, rowXmls));
+
+            XdaExecutor executor = new XdaExecutor(qryGen, jdbc.dataSource()).withCollectionAssembly(XdaExecutor.CollectionAssembly.CLIENT).withFetchSize(2);
+
+            XdaQuery collQry = new XdaQuery(drugTOS, Optional.of("dr"), Optional.of("dr.id > ?"));
+
+            StringWriter sw = new StringWriter();
+            executor.writeXml(collQry, Collections.singletonList(0), sw);
+
+            assert sw.toString().equals(expectedXml) : "Client assembled collection differs from database aggregated collection.";
+
+            FakeJdbc.Execution exec = jdbc.executions.get(0);
+            assert exec.sql.equals(qryGen.getRowCollectionMembersQuery(drugTOS, Optional.of("dr"), Optional.of("dr.id > ?"), XmlOutputColumnType.LARGE_CHAR_TYPE))
+                : "Expected the collection members query to be executed.";
+            assert exec.fetchSize == 2 && exec.rowsFetched.get() == 5 : "Expected rows to be fetched with the configured fetch size.";
+        }
+    }
+
+    @Test
+    public void testClientBatchedCollectionAssemblyMatchesDatabaseAggregation() throws SQLException, IOException
+    {
+        TestingResources res = new TestingResources();
+
+        String expectedXml = res.expectedResultAsString("drugs_listing_INLINE_el_colls_NO_INDENT.xml");
+        String startTag = "<drug-listing xmlns=\"http://nctr.fda.gov/xdagen\">";
+        String[] rowXmls = expectedXml.substring(startTag.length(), expectedXml.length() - "</drug-listing>".length()).replace("</drug><drug>", "</drug>\u0000<drug>").split("\u0000");
+
+        // Batches of two row elements, the last batch holding the one remaining row element.
+        String[] batchXmls = { rowXmls[0] + rowXmls[1], rowXmls[2] + rowXmls[3], rowXmls[4] };
+
+        FakeJdbc jdbc = new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.CLOB, batchXmls));
+
+        QueryGenerator batchingGen = qryGen.withRowElementBatchSize(2);
+        XdaExecutor executor = new XdaExecutor(batchingGen, jdbc.dataSource()).withCollectionAssembly(XdaExecutor.CollectionAssembly.CLIENT_BATCHED);
+
+        StringWriter sw = new StringWriter();
+        executor.writeXml(new XdaQuery(drugTOS, Optional.of("dr"), Optional.of("dr.id > ?")), Collections.singletonList(0), sw);
+
+        assert sw.toString().equals(expectedXml) : "Client assembled batches differ from database aggregated collection.";
+
+        FakeJdbc.Execution exec = jdbc.executions.get(0);
+        assert exec.sql.equals(batchingGen.getRowCollectionMemberBatchesQuery(drugTOS, Optional.of("dr"), Optional.of("dr.id > ?"), XmlOutputColumnType.LARGE_CHAR_TYPE))
+            : "Expected the collection member batches query to be executed.";
+        assert exec.sql.contains("floor((dr_batch.batch_row_num - 1) / 2)") : "Expected batches of the generator's row element batch size.";
+        assert exec.rowsFetched.get() == 3 && jdbc.lobsFreed.get() == 3 : "Expected one row and clob per batch.";
+    }
+
+    @Test
+    public void testClientAssemblyOfEmptyCollection() throws SQLException, IOException
+    {
+        FakeJdbc jdbc = new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.VARCHAR));
+
+        XdaExecutor executor = new XdaExecutor(qryGen, jdbc.dataSource()).withCollectionAssembly(XdaExecutor.CollectionAssembly.CLIENT);
+
+        StringWriter sw = new StringWriter();
+        executor.writeXml(new XdaQuery(drugTOS, Optional.empty(), Optional.of("d_row.id < 0")), Collections.emptyList(), sw);
+
+        // Postgres writes an element without content as an empty-element tag.
+        assert sw.toString().equals("<drug-listing xmlns=\"http://nctr.fda.gov/xdagen\"/>") : "Unexpected empty collection: " + sw;
+    }
+
+    @Test
+    public void testRowXmlsFetchedByKeys() throws SQLException
+    {
+        String drug3Xml = "<drug xmlns=\"http://nctr.fda.gov/xdagen\"><id>3</id></drug>";
+        String drug1Xml = "<drug xmlns=\"http://nctr.fda.gov/xdagen\"><id>1</id></drug>";
+
+        // Rows tagged with the positions of their keys, there being no row for the second key.
+        FakeJdbc jdbc =
+            new FakeJdbc(sql ->
+                new FakeJdbc.Result(
+                    Arrays.asList("key_ix", "row_xml"),
+                    Arrays.asList(Types.INTEGER, Types.CLOB),
+                    Arrays.asList(new Object[]{ 1, drug3Xml }, new Object[]{ 3, drug1Xml })
+                )
+            );
+
+        List<Optional<String>> rowXmls =
+            new XdaExecutor(qryGen, jdbc.dataSource()).fetchRowXmlsByKeys(drugTOS, Arrays.asList(Collections.singletonList(3), Collections.singletonList(7), Collections.singletonList(1)));
+
+        assert rowXmls.equals(Arrays.asList(Optional.of(drug3Xml), Optional.empty(), Optional.of(drug1Xml))) : "Unexpected row xmls by key: " + rowXmls;
+
+        FakeJdbc.Execution exec = jdbc.executions.get(0);
+        assert jdbc.executions.size() == 1 && exec.sql.equals(qryGen.getRowElementsByKeysQuery(drugTOS)) : "Expected a single execution of the keyed rows query.";
+        assert Arrays.equals((Object[])((java.sql.Array)exec.bindValues.get(1)).getArray(), new Object[]{ 3, 7, 1 }) : "Expected the key values to be bound as an array.";
+        assert jdbc.lobsFreed.get() == 2 : "Expected each clob to be freed.";
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testKeysMustMatchPrimaryKey() throws SQLException
+    {
+        FakeJdbc jdbc = new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.CLOB));
+
+        new XdaExecutor(qryGen, jdbc.dataSource()).fetchRowXmlsByKeys(drugTOS, Collections.singletonList(Arrays.asList(1, 2)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testBindValueCountChecked() throws SQLException, IOException
+    {
+        FakeJdbc jdbc = new FakeJdbc(sql -> FakeJdbc.Result.xmlColumn(Types.CLOB));
+
+        new XdaExecutor(qryGen, jdbc.dataSource()).writeXml(drugRowsQuery(XmlOutputColumnType.LARGE_CHAR_TYPE, "d.id = ? or d.id = ?"), Collections.singletonList(1), new StringWriter());
+    }
+
+    private static String repeat(String s, int n)
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < n; ++i )
+            sb.append(s);
+        return sb.toString();
+    }
+}
@@ -5,6 +5,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 
+import gov.fda.nctr.dbmd.DBMD;
+import gov.fda.nctr.xdagen.QueryGenerator;
+
 public class TestingResources {
 
     private String metadataDir = "metadata";
@@ -67,6 +70,25 @@ public class TestingResources {
         return "src/test/resources/";
     }
 
+    public DBMD loadDbmd(String db) throws IOException
+    {
+        try ( InputStream dbmdXmlIs = metadataResourceAsStream(db, "dbmd.xml") )
+        {
+            return DBMD.readXML(dbmdXmlIs);
+        }
+    }
+
+    /// A query generator for the database's metadata, sorting unsorted child collections so generated SQL is stable.
+    public QueryGenerator makeQueryGenerator(DBMD dbmd) throws IOException
+    {
+        return QueryGenerator.builder(dbmd).sortUnsortedRowElementCollectionsByPrimaryKeys(true).build();
+    }
+
+    public QueryGenerator makeQueryGenerator(String db) throws IOException
+    {
+        return makeQueryGenerator(loadDbmd(db));
+    }
+
 
     public static String readStreamAsString(InputStream is) throws IOException
     {
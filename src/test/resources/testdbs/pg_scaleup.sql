@@ -0,0 +1,54 @@
+/* Scales up the testing schema to a million drugs, each with its compound, brand, references, functional categories
+   and advisories as for the drugs of pg_setup.sql, for timing comparisons of the query strategies such as by
+   QueryStrategyBenchmark.
+   The expected results of QueriesIT are for the unscaled data, so scale up a separate database, created and set up as
+   described in pg_setup.sql. Then as xdagentest within psql:
+  \i src/test/resources/testdbs/pg_scaleup.sql
+*/
+
+insert into compound(id, display_name, nctr_isis_id)
+ select generate_series, 'Test Compound ' || generate_series, 'DUMMY' || generate_series
+ from generate_series(6,1000000)
+;
+
+insert into drug(id, name, compound_id, therapeutic_indications, spl)
+ select generate_series, 'Test Drug ' || generate_series, generate_series, 'Indication ' || generate_series, xmlparse(document '<document><gen-name>drug ' || generate_series || '</gen-name></document>')
+ from generate_series(6,1000000)
+;
+
+insert into reference(id, publication)
+ select 100*generate_series + r, 'Publication ' || r || ' about drug # ' || generate_series
+ from generate_series(6,1000000), generate_series(1,3) r
+;
+
+insert into drug_reference (drug_id, reference_id, priority)
+ select generate_series, 100*generate_series + r, generate_series
+ from generate_series(6,1000000), generate_series(1,3) r
+;
+
+insert into drug_functional_category(drug_id, functional_category_id, authority_id, seq)
+ select generate_series, mod(generate_series,3)+1, 1, 1
+ from generate_series(6,1000000)
+;
+
+insert into drug_functional_category(drug_id, functional_category_id, authority_id, seq)
+ select generate_series, mod(generate_series,3)+4, 1, 2
+ from generate_series(6,1000000)
+;
+
+insert into brand(drug_id, brand_name, language_code, manufacturer_id)
+ select generate_series, 'Brand'||generate_series||'(TM)', 'EN', mod(generate_series,3)+1
+ from generate_series(6,1000000)
+;
+
+insert into advisory(id, drug_id, advisory_type_id, text)
+ select 100*generate_series+1, generate_series, 1, 'Advisory concerning drug ' || generate_series
+ from generate_series(6,1000000)
+;
+
+insert into advisory(id, drug_id, advisory_type_id, text)
+ select 100*generate_series+2, generate_series, 2, 'Caution concerning drug ' || generate_series
+ from generate_series(6,1000000)
+;
+
+analyze;